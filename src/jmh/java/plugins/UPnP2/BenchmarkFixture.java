@@ -0,0 +1,98 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import plugins.UPnP2.simulator.SimulatedGateway;
+import plugins.UPnP2.simulator.SimulatedNetwork;
+
+/**
+ * A ServiceManager and simulated gateways on loopback, shared by the benchmarks.
+ */
+class BenchmarkFixture {
+
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    final SimulatedNetwork network = new SimulatedNetwork();
+    final List<SimulatedGateway> gateways = new ArrayList<>();
+    final ServiceManager serviceManager;
+
+    private final TestTicker ticker = new TestTicker();
+
+    /**
+     * Fresh for every fixture, so the gateway cache never warm-starts a benchmark
+     */
+    private final File gatewayCacheFile;
+
+    /**
+     * Put the gateways on the network. The ServiceManager isn't started yet.
+     */
+    BenchmarkFixture(int gatewayCount) throws Exception {
+        for (int i = 0; i < gatewayCount; i++) {
+            SimulatedGateway gateway = new SimulatedGateway("198.51.100." + (i + 1));
+            network.add(gateway);
+            gateways.add(gateway);
+        }
+        gatewayCacheFile = File.createTempFile("upnp2-gateways", ".cache");
+        if (!gatewayCacheFile.delete()) {
+            throw new IOException("Unable to delete " + gatewayCacheFile);
+        }
+        serviceManager = new ServiceManager(new Config(), ticker, gatewayCacheFile,
+                new LoopbackUpnpServiceConfiguration(network));
+    }
+
+    /**
+     * Let the ServiceManager discover all gateways
+     */
+    void connect() throws Exception {
+        for (SimulatedGateway gateway : gateways) {
+            network.announce(serviceManager.getUpnpService(), gateway);
+        }
+    }
+
+    /**
+     * Start, connect and wait until every gateway reported its external IP
+     */
+    BenchmarkFixture start() throws Exception {
+        serviceManager.init();
+        connect();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (serviceManager.getDetectedIPs().size() < gateways.size()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Gateways didn't report their IPs in time");
+            }
+            Thread.sleep(10);
+        }
+        serviceManager.waitForBooting();
+        return this;
+    }
+
+    void shutdown() {
+        serviceManager.shutdown();
+        network.shutdown();
+        ticker.shutdown();
+        if (gatewayCacheFile.exists() && !gatewayCacheFile.delete()) {
+            gatewayCacheFile.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import freenet.pluginmanager.DetectedIP;
+
+/**
+ * Time from {@link ServiceManager#init()} until Fred gets the first external address. Includes
+ * the boot settle window, so changes to it show up here.
+ * <p>
+ * Discovery itself is simulated: SSDP doesn't run on loopback, the gateway is announced right
+ * after init.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DiscoveryBenchmark {
+
+    private BenchmarkFixture fixture;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        fixture = new BenchmarkFixture(1);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        fixture.shutdown();
+    }
+
+    @Benchmark
+    public Collection<DetectedIP> timeToFirstAddress() throws Exception {
+        fixture.serviceManager.init();
+        fixture.connect();
+        return fixture.serviceManager.getExternalIPs();
+    }
+}
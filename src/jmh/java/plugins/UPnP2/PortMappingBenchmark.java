@@ -0,0 +1,120 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortCallback;
+import freenet.pluginmanager.ForwardPortStatus;
+
+/**
+ * Cost of {@link ServiceManager#addPortMappings} until Fred got the statuses of all ports, by
+ * number of ports.
+ * <p>
+ * {@link #refresh()} is the steady state, where Fred asks again for ports which are mapped
+ * already. {@link #map()} starts from an empty NAT table every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PortMappingBenchmark {
+
+    private static final int FIRST_PORT = 20000;
+
+    @Param({"2", "20", "200"})
+    public int ports;
+
+    private BenchmarkFixture fixture;
+    private Set<ForwardPort> forwardPorts;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = new BenchmarkFixture(1).start();
+        forwardPorts = new HashSet<>();
+        for (int i = 0; i < ports; i++) {
+            // Alternate like Fred's darknet (UDP) and FProxy-style (TCP) ports
+            int protocol = i % 2 == 0 ? ForwardPort.PROTOCOL_UDP_IPV4 :
+                    ForwardPort.PROTOCOL_TCP_IPV4;
+            forwardPorts.add(new ForwardPort("bench" + i, false, protocol, FIRST_PORT + i));
+        }
+        mapAndWait();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.shutdown();
+    }
+
+    @Benchmark
+    public void refresh() throws InterruptedException {
+        mapAndWait();
+    }
+
+    @Benchmark
+    public void map(EmptyTable emptyTable) throws InterruptedException {
+        mapAndWait();
+    }
+
+    private void mapAndWait() throws InterruptedException {
+        // A callback Fred didn't use before gets all statuses, not only the changed ones
+        final CountDownLatch done = new CountDownLatch(1);
+        fixture.serviceManager.addPortMappings(forwardPorts, new ForwardPortCallback() {
+            @Override
+            public void portForwardStatus(Map<ForwardPort, ForwardPortStatus> statuses) {
+                done.countDown();
+            }
+        });
+        if (!done.await(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("No port mapping statuses");
+        }
+    }
+
+    /**
+     * Clears the router's NAT table before each call
+     */
+    @State(Scope.Thread)
+    public static class EmptyTable {
+
+        @Setup(Level.Invocation)
+        public void clear(PortMappingBenchmark benchmark) {
+            benchmark.fixture.gateways.get(0).getNatTable().clear();
+        }
+    }
+}
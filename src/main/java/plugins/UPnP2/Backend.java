@@ -0,0 +1,57 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import java.util.Collection;
+import java.util.Set;
+
+import freenet.pluginmanager.DetectedIP;
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortCallback;
+
+/**
+ * A protocol to talk to gateways with. {@link ServiceManager} probes all of them at startup and
+ * uses the one whose gateway answered first.
+ */
+interface Backend {
+
+    /**
+     * @return name for logs and metrics, e.g. "UPnP IGD"
+     */
+    String getName();
+
+    /**
+     * Ask the gateways for their external IPs. This method blocks.
+     *
+     * @return the addresses, or null if none was found
+     */
+    Collection<DetectedIP> getExternalIPs();
+
+    /**
+     * Map the ports, and unmap those we mapped before but which aren't wanted anymore. Never
+     * blocks.
+     *
+     * @param cb called with the ports whose best status changed
+     */
+    void addPortMappings(Set<ForwardPort> ports, ForwardPortCallback cb);
+
+    /**
+     * Remove every mapping we made. This method blocks.
+     */
+    void removeAllPortMappings();
+}
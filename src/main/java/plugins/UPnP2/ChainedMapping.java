@@ -0,0 +1,229 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.support.model.PortMapping;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortCallback;
+import freenet.pluginmanager.ForwardPortStatus;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import plugins.UPnP2.models.PortMappingKey;
+
+/**
+ * Port mappings through two nested gateways, see {@link NatTopology}. The inner gateway maps the
+ * ports to us, the outer one maps the external ports the inner one got to the inner gateway.
+ * <p>
+ * Both hops are one unit as far as Fred is concerned: the outer hop follows the successes of the
+ * inner one, and Fred hears about a round once both are done. A port only counts as mapped if
+ * both hops are, with the external port of the outer one.
+ */
+class ChainedMapping {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    private final Service inner;
+    private final Service outer;
+
+    /**
+     * Address of the inner gateway on the LAN of the outer one
+     */
+    private final String innerAddress;
+
+    private final PortMappingReconciler reconciler;
+    private final PortMappingExecutor executor;
+    private final long leaseSeconds;
+
+    /**
+     * Receives the statuses of both hops merged
+     */
+    private final ForwardPortCallback fredCallback;
+
+    /**
+     * Receives the statuses of the inner hop
+     */
+    final ForwardPortCallback innerCallback = new ForwardPortCallback() {
+        @Override
+        public void portForwardStatus(Map<ForwardPort, ForwardPortStatus> statuses) {
+            innerStatusChanged(statuses);
+        }
+    };
+
+    /**
+     * Receives the statuses of the outer hop
+     */
+    final ForwardPortCallback outerCallback = new ForwardPortCallback() {
+        @Override
+        public void portForwardStatus(Map<ForwardPort, ForwardPortStatus> statuses) {
+            outerStatusChanged(statuses);
+        }
+    };
+
+    // All guarded by this
+
+    private Set<ForwardPort> ports = new HashSet<>();
+    private final Map<ForwardPort, ForwardPortStatus> innerStatuses = new HashMap<>();
+    private final Map<ForwardPort, ForwardPortStatus> outerStatuses = new HashMap<>();
+
+    /**
+     * What the outer hop was last asked to map
+     */
+    private Map<PortMappingKey, ForwardPort> outerDesired;
+
+    /**
+     * Fred asked again, so the outer hop gets checked even if nothing changed
+     */
+    private boolean outerRoundPending;
+
+    ChainedMapping(Service inner, Service outer, String innerAddress,
+                   PortMappingReconciler reconciler, PortMappingExecutor executor,
+                   long leaseSeconds, ForwardPortCallback fredCallback) {
+        this.inner = inner;
+        this.outer = outer;
+        this.innerAddress = innerAddress;
+        this.reconciler = reconciler;
+        this.executor = executor;
+        this.leaseSeconds = leaseSeconds;
+        this.fredCallback = fredCallback;
+    }
+
+    public Service getInner() {
+        return inner;
+    }
+
+    public Service getOuter() {
+        return outer;
+    }
+
+    public String getInnerAddress() {
+        return innerAddress;
+    }
+
+    /**
+     * Fred's ports of the current round. Call before the inner hop is reconciled.
+     */
+    public synchronized void setPorts(Set<ForwardPort> ports) {
+        this.ports = new HashSet<>(ports);
+        innerStatuses.keySet().retainAll(ports);
+        outerStatuses.keySet().retainAll(ports);
+        outerRoundPending = true;
+    }
+
+    /**
+     * Check the outer hop again along with the next statuses of the inner one, e.g. because a
+     * gateway's connection was re-established
+     */
+    public synchronized void recheckOuter() {
+        outerRoundPending = true;
+    }
+
+    private void innerStatusChanged(Map<ForwardPort, ForwardPortStatus> statuses) {
+        Map<PortMapping, ForwardPort> desired;
+        synchronized (this) {
+            for (Map.Entry<ForwardPort, ForwardPortStatus> entry : statuses.entrySet()) {
+                if (ports.contains(entry.getKey())) {
+                    innerStatuses.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            desired = new HashMap<>();
+            Map<PortMappingKey, ForwardPort> keys = new HashMap<>();
+            for (Map.Entry<ForwardPort, ForwardPortStatus> entry : innerStatuses.entrySet()) {
+                ForwardPortStatus status = entry.getValue();
+                if (status.status <= 0 || status.externalPort <= 0) continue;
+                PortMapping portMapping = outerPortMapping(entry.getKey(), status.externalPort);
+                desired.put(portMapping, entry.getKey());
+                keys.put(PortMappingKey.of(portMapping), entry.getKey());
+            }
+
+            if (!outerRoundPending && keys.equals(outerDesired)) {
+                // The outer hop has been asked for this already, e.g. on the renewal of an inner
+                // mapping. Its own renewals keep it alive.
+                desired = null;
+            } else {
+                outerDesired = keys;
+                outerRoundPending = false;
+            }
+        }
+
+        if (desired == null) {
+            deliver();
+            return;
+        }
+
+        if (logMINOR) {
+            Logger.minor(this, "Chaining " + desired.size() + " mappings on " + outer +
+                    " to " + innerAddress);
+        }
+        reconciler.setDesired(outer, desired);
+        executor.reconcile(outer, outerCallback);
+    }
+
+    private void outerStatusChanged(Map<ForwardPort, ForwardPortStatus> statuses) {
+        synchronized (this) {
+            outerStatuses.putAll(statuses);
+            outerStatuses.keySet().retainAll(ports);
+        }
+        deliver();
+    }
+
+    /**
+     * Tell Fred about every port both hops are done with, in one batch
+     */
+    private void deliver() {
+        Map<ForwardPort, ForwardPortStatus> merged = new HashMap<>();
+        synchronized (this) {
+            for (Map.Entry<ForwardPort, ForwardPortStatus> entry : innerStatuses.entrySet()) {
+                ForwardPortStatus status = entry.getValue();
+                if (status.status <= 0) {
+                    merged.put(entry.getKey(), status);
+                } else if (outerStatuses.containsKey(entry.getKey())) {
+                    merged.put(entry.getKey(), outerStatuses.get(entry.getKey()));
+                }
+            }
+        }
+        // Even an empty batch tells that the chain is done
+        fredCallback.portForwardStatus(merged);
+    }
+
+    private PortMapping outerPortMapping(ForwardPort port, int innerExternalPort) {
+        PortMapping portMapping = new PortMapping(innerExternalPort, innerAddress,
+                port.protocol == ForwardPort.PROTOCOL_TCP_IPV4 ?
+                        PortMapping.Protocol.TCP : PortMapping.Protocol.UDP,
+                "Freenet 0.7 " + port.name);
+        portMapping.setLeaseDurationSeconds(new UnsignedIntegerFourBytes(leaseSeconds));
+        return portMapping;
+    }
+}
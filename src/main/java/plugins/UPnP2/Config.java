@@ -0,0 +1,435 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunables of the plugin. Every value can be overridden with a Java system property named
+ * {@code plugins.UPnP2.<name>}, e.g. {@code -Dplugins.UPnP2.bootDeadlineMillis=5000} in Fred's
+ * wrapper.conf. Immutable.
+ */
+final class Config {
+
+    private static final String PREFIX = "plugins.UPnP2.";
+
+    static final String BANDWIDTH_LINK = "link";
+    static final String BANDWIDTH_PEAK = "peak";
+    static final String BANDWIDTH_SUSTAINED = "sustained";
+
+    /**
+     * How long to wait for more gateways once the first usable one showed up
+     */
+    private final long bootSettleMillis;
+
+    /**
+     * Upper bound for waiting on discovery, counted from {@link ServiceManager#init()}
+     */
+    private final long bootDeadlineMillis;
+
+    /**
+     * Number of gateways that must report a valid external IP before an active lookup returns.
+     * 0 means all of them.
+     */
+    private final int ipQueryQuorum;
+
+    /**
+     * Upper bound for an active external IP lookup across all gateways
+     */
+    private final long ipQueryTimeoutMillis;
+
+    /**
+     * Quiet period after a change of an external IP before Fred is told, see
+     * {@link ExternalIPMonitor}
+     */
+    private final long ipChangeDebounceMillis;
+
+    /**
+     * Interval of looking up the external IPs in case a GENA event got lost. 0 relies on the
+     * events alone.
+     */
+    private final long ipVerifyMillis;
+
+    /**
+     * Polling interval of the external IP of a gateway whose GENA events don't arrive, right
+     * after it changed. See {@link SubscriptionSupervisor}.
+     */
+    private final long ipPollMinMillis;
+
+    /**
+     * Polling interval the above relaxes to while the external IP stays the same. Bounds how
+     * long a change on such a gateway goes unnoticed.
+     */
+    private final long ipPollMaxMillis;
+
+    /**
+     * First delay before subscribing again after a GENA subscription failed. Doubles with every
+     * further failure.
+     */
+    private final long resubscribeMillis;
+
+    /**
+     * How long link rates of a gateway are served from cache before they are refreshed
+     */
+    private final long ratesTtlMillis;
+
+    /**
+     * Where the bit rates told to Fred come from: "link" for the link rates the gateways report,
+     * "peak" or "sustained" for the throughput they were seen passing, see
+     * {@link ThroughputSampler}. Measured rates only show what was used, so they may be well
+     * below what the link can do.
+     */
+    private final String bandwidthSource;
+
+    /**
+     * Interval of reading the byte counters of the gateways, unless the link rates are used
+     */
+    private final long throughputSampleMillis;
+
+    /**
+     * Number of throughput samples kept per gateway
+     */
+    private final int throughputHistorySize;
+
+    /**
+     * Maximum number of port mapping requests in flight per gateway
+     */
+    private final int maxActionsPerGateway;
+
+    /**
+     * Upper bound for a port mapping reconciliation round of a single service
+     */
+    private final long reconcileTimeoutMillis;
+
+    /**
+     * Upper bound for the entries of a router's table read one by one on IGDv1 routers before we
+     * fall back to looking up single ports
+     */
+    private final int maxTableWalkEntries;
+
+    /**
+     * Other external ports tried at once when another host has the one Fred asked for, on routers
+     * which can't pick a free one themselves. 0 reports the conflict instead.
+     */
+    private final int alternativePorts;
+
+    /**
+     * Lease requested for port mappings. 0 asks for permanent mappings.
+     */
+    private final long leaseSeconds;
+
+    /**
+     * Fraction of the remaining lease after which a mapping is renewed
+     */
+    private final double leaseRenewFraction;
+
+    /**
+     * Random spread applied to renewal times, as a fraction of the delay
+     */
+    private final double leaseRenewJitter;
+
+    /**
+     * First retry delay after a failed renewal. Doubles with every further failure.
+     */
+    private final long leaseRetryMillis;
+
+    /**
+     * Threads doing port mapping work, apart from Fred's and the ticker's
+     */
+    private final int portMappingThreads;
+
+    /**
+     * Port mapping jobs which may wait for a thread. Further jobs are dropped, the next sweep
+     * catches up with them.
+     */
+    private final int portMappingQueueSize;
+
+    /**
+     * Whether to look for NAT-PMP gateways besides UPnP ones
+     */
+    private final boolean natPmpEnabled;
+
+    /**
+     * NAT-PMP gateways as comma separated host[:port], instead of the default gateways of the
+     * network interfaces
+     */
+    private final String natPmpGateways;
+
+    /**
+     * Upper bound for a NAT-PMP request including retransmissions
+     */
+    private final long natPmpTimeoutMillis;
+
+    /**
+     * Global IPv6 address to open pinholes for. Empty means every global address of the
+     * interface the gateway was found on.
+     */
+    private final String pinholeAddress;
+
+    /**
+     * Quiet period after which the UPnP stack is released while IP checks and renewals go
+     * straight to the gateways, see {@link DormantMode}. 0 keeps the stack up.
+     */
+    private final long dormantAfterMillis;
+
+    /**
+     * Network interfaces the UPnP stack uses, comma separated, * matching any characters. Empty
+     * means all of them. See {@link InterfaceFilter}.
+     */
+    private final String interfaces;
+
+    /**
+     * Network interfaces the UPnP stack never uses, e.g. the bridges of containers and VPN
+     * tunnels, there is no gateway behind them. Wins over {@link #interfaces}.
+     */
+    private final String excludedInterfaces;
+
+    /**
+     * Whether the UPnP stack only uses interfaces carrying a default route
+     */
+    private final boolean defaultRouteOnly;
+
+    /**
+     * Whether IPv6 pinholes are opened and our global IPv6 addresses reported
+     */
+    private final boolean ipv6Enabled;
+
+    /**
+     * Interval of looking for changed network interfaces, which the stack is bound again to. 0
+     * binds once.
+     */
+    private final long interfaceCheckMillis;
+
+    Config() {
+        this(System.getProperties());
+    }
+
+    /**
+     * @param properties e.g. for tests. Names are prefixed like system properties.
+     */
+    Config(Properties properties) {
+        bootSettleMillis = getLong(properties, "bootSettleMillis", 500);
+        bootDeadlineMillis = getLong(properties, "bootDeadlineMillis", 10000);
+        ipQueryQuorum = getInt(properties, "ipQueryQuorum", 0);
+        ipQueryTimeoutMillis = getLong(properties, "ipQueryTimeoutMillis", 5000);
+        ipChangeDebounceMillis = getLong(properties, "ipChangeDebounceMillis", 2000);
+        ipVerifyMillis = getLong(properties, "ipVerifyMillis", TimeUnit.MINUTES.toMillis(5));
+        ipPollMinMillis = Math.max(1000, getLong(properties, "ipPollMinMillis",
+                TimeUnit.SECONDS.toMillis(30)));
+        ipPollMaxMillis = getLong(properties, "ipPollMaxMillis", TimeUnit.MINUTES.toMillis(5));
+        resubscribeMillis = Math.max(1000, getLong(properties, "resubscribeMillis",
+                TimeUnit.SECONDS.toMillis(30)));
+        ratesTtlMillis = getLong(properties, "ratesTtlMillis", TimeUnit.MINUTES.toMillis(10));
+        bandwidthSource = properties.getProperty(PREFIX + "bandwidthSource", BANDWIDTH_LINK)
+                .trim();
+        throughputSampleMillis = Math.max(1000, getLong(properties, "throughputSampleMillis",
+                TimeUnit.SECONDS.toMillis(10)));
+        throughputHistorySize = Math.max(1, getInt(properties, "throughputHistorySize", 360));
+        maxActionsPerGateway = Math.max(1, getInt(properties, "maxActionsPerGateway", 4));
+        reconcileTimeoutMillis = getLong(properties, "reconcileTimeoutMillis",
+                TimeUnit.MINUTES.toMillis(1));
+        maxTableWalkEntries = getInt(properties, "maxTableWalkEntries", 64);
+        alternativePorts = Math.max(0, getInt(properties, "alternativePorts", 8));
+        leaseSeconds = getLong(properties, "leaseSeconds", TimeUnit.HOURS.toSeconds(1));
+        leaseRenewFraction = getDouble(properties, "leaseRenewFraction", 0.5);
+        leaseRenewJitter = getDouble(properties, "leaseRenewJitter", 0.1);
+        leaseRetryMillis = getLong(properties, "leaseRetryMillis",
+                TimeUnit.SECONDS.toMillis(30));
+        portMappingThreads = Math.max(1, getInt(properties, "portMappingThreads", 2));
+        portMappingQueueSize = Math.max(1, getInt(properties, "portMappingQueueSize", 32));
+        natPmpEnabled = getBoolean(properties, "natPmpEnabled", true);
+        natPmpGateways = properties.getProperty(PREFIX + "natPmpGateways", "");
+        natPmpTimeoutMillis = getLong(properties, "natPmpTimeoutMillis", 2000);
+        pinholeAddress = properties.getProperty(PREFIX + "pinholeAddress", "").trim();
+        dormantAfterMillis = Math.max(0, getLong(properties, "dormantAfterMillis", 0));
+        interfaces = properties.getProperty(PREFIX + "interfaces", "");
+        excludedInterfaces = properties.getProperty(PREFIX + "excludedInterfaces",
+                "docker*,veth*,br-*,virbr*,tun*,tap*,wg*");
+        defaultRouteOnly = getBoolean(properties, "defaultRouteOnly", false);
+        ipv6Enabled = getBoolean(properties, "ipv6Enabled", true);
+        interfaceCheckMillis = Math.max(0, getLong(properties, "interfaceCheckMillis",
+                TimeUnit.MINUTES.toMillis(1)));
+    }
+
+    private static long getLong(Properties properties, String name, long defaultValue) {
+        String value = properties.getProperty(PREFIX + name);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static int getInt(Properties properties, String name, int defaultValue) {
+        long value = getLong(properties, name, defaultValue);
+        return value == (int) value ? (int) value : defaultValue;
+    }
+
+    private static double getDouble(Properties properties, String name, double defaultValue) {
+        String value = properties.getProperty(PREFIX + name);
+        if (value == null) return defaultValue;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static boolean getBoolean(Properties properties, String name, boolean defaultValue) {
+        String value = properties.getProperty(PREFIX + name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    // #############################
+    // Getters
+    // #############################
+
+    public long getBootSettleMillis() {
+        return bootSettleMillis;
+    }
+
+    public long getBootDeadlineMillis() {
+        return bootDeadlineMillis;
+    }
+
+    public int getIPQueryQuorum() {
+        return ipQueryQuorum;
+    }
+
+    public long getIPQueryTimeoutMillis() {
+        return ipQueryTimeoutMillis;
+    }
+
+    public long getIPChangeDebounceMillis() {
+        return ipChangeDebounceMillis;
+    }
+
+    public long getIPVerifyMillis() {
+        return ipVerifyMillis;
+    }
+
+    public long getIPPollMinMillis() {
+        return ipPollMinMillis;
+    }
+
+    public long getIPPollMaxMillis() {
+        return ipPollMaxMillis;
+    }
+
+    public long getResubscribeMillis() {
+        return resubscribeMillis;
+    }
+
+    public long getRatesTtlMillis() {
+        return ratesTtlMillis;
+    }
+
+    public String getBandwidthSource() {
+        return bandwidthSource;
+    }
+
+    public long getThroughputSampleMillis() {
+        return throughputSampleMillis;
+    }
+
+    public int getThroughputHistorySize() {
+        return throughputHistorySize;
+    }
+
+    public int getMaxActionsPerGateway() {
+        return maxActionsPerGateway;
+    }
+
+    public long getReconcileTimeoutMillis() {
+        return reconcileTimeoutMillis;
+    }
+
+    public int getMaxTableWalkEntries() {
+        return maxTableWalkEntries;
+    }
+
+    public int getAlternativePorts() {
+        return alternativePorts;
+    }
+
+    public long getLeaseSeconds() {
+        return leaseSeconds;
+    }
+
+    public double getLeaseRenewFraction() {
+        return leaseRenewFraction;
+    }
+
+    public double getLeaseRenewJitter() {
+        return leaseRenewJitter;
+    }
+
+    public long getLeaseRetryMillis() {
+        return leaseRetryMillis;
+    }
+
+    public int getPortMappingThreads() {
+        return portMappingThreads;
+    }
+
+    public int getPortMappingQueueSize() {
+        return portMappingQueueSize;
+    }
+
+    public boolean isNatPmpEnabled() {
+        return natPmpEnabled;
+    }
+
+    public String getNatPmpGateways() {
+        return natPmpGateways;
+    }
+
+    public long getNatPmpTimeoutMillis() {
+        return natPmpTimeoutMillis;
+    }
+
+    public String getPinholeAddress() {
+        return pinholeAddress;
+    }
+
+    public long getDormantAfterMillis() {
+        return dormantAfterMillis;
+    }
+
+    public String getInterfaces() {
+        return interfaces;
+    }
+
+    public String getExcludedInterfaces() {
+        return excludedInterfaces;
+    }
+
+    public boolean isDefaultRouteOnly() {
+        return defaultRouteOnly;
+    }
+
+    public boolean isIPv6Enabled() {
+        return ipv6Enabled;
+    }
+
+    public long getInterfaceCheckMillis() {
+        return interfaceCheckMillis;
+    }
+}
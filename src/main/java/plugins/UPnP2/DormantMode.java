@@ -0,0 +1,245 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.meta.RemoteService;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.support.model.PortMapping;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import freenet.pluginmanager.DetectedIP;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import plugins.UPnP2.soap.SoapClient;
+import plugins.UPnP2.soap.SoapException;
+
+/**
+ * Releases the Cling stack once nothing happened for a while: its sockets are closed, GENA
+ * subscriptions ended and the registry maintainer stopped. Meanwhile the external IP checks and
+ * lease renewals are sent straight to the control URLs the gateways had, see {@link SoapClient}.
+ * Anything unexpected, a failed call, a changed IP or other ports wanted by Fred, wakes the
+ * stack up again and lets it handle the matter as usual.
+ * <p>
+ * Opt-in, and only used while the plugin needs nothing but IP checks and renewals. See
+ * {@link ServiceManager#isDormancyPossible()}.
+ */
+class DormantMode {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    private final ServiceManager serviceManager;
+    private final Ticker ticker;
+    private final long afterMillis;
+    private final SoapClient soapClient;
+
+    private volatile boolean running;
+
+    /**
+     * Whether the stack is released. Only changed while holding this.
+     */
+    private volatile boolean dormant;
+
+    /**
+     * Control URLs of the connection services while dormant
+     */
+    private volatile Map<Service, URL> controlURLs = Collections.emptyMap();
+
+    private final Runnable sleepJob = new Runnable() {
+        @Override
+        public void run() {
+            // Ending subscriptions and closing sockets may take a while
+            if (!serviceManager.executePortMappingJob(sleep)) activity();
+        }
+    };
+
+    private final Runnable sleep = new Runnable() {
+        @Override
+        public void run() {
+            sleep();
+        }
+    };
+
+    /**
+     * @param afterMillis quiet period before the stack is released
+     */
+    DormantMode(ServiceManager serviceManager, Ticker ticker, long afterMillis,
+                int timeoutMillis) {
+        this.serviceManager = serviceManager;
+        this.ticker = ticker;
+        this.afterMillis = afterMillis;
+        this.soapClient = new SoapClient(timeoutMillis);
+    }
+
+    public void start() {
+        running = true;
+        activity();
+    }
+
+    /**
+     * Stop releasing the stack. If it is released, it stays so until {@link #wake}.
+     */
+    public void stop() {
+        running = false;
+        ticker.removeQueuedJob(sleepJob);
+    }
+
+    public boolean isDormant() {
+        return dormant;
+    }
+
+    /**
+     * Something happened the stack is needed for, restart the quiet period
+     */
+    public void activity() {
+        if (!running) return;
+        ticker.removeQueuedJob(sleepJob);
+        ticker.queueTimedJob(sleepJob, "UPnP2 dormancy", afterMillis, false, true);
+    }
+
+    private synchronized void sleep() {
+        if (!running || dormant) return;
+
+        if (!serviceManager.isDormancyPossible()) {
+            if (logMINOR) Logger.minor(this, "Stack still needed, not going dormant");
+            activity();
+            return;
+        }
+
+        Map<Service, URL> urls = new HashMap<>();
+        for (Service service : serviceManager.getConnectionServices()) {
+            RemoteService remoteService = (RemoteService) service;
+            URL controlURL = remoteService.getDevice().normalizeURI(remoteService.getControlURI());
+            if (controlURL == null) {
+                Logger.warning(this, "No control URL for " + service + ", not going dormant");
+                activity();
+                return;
+            }
+            urls.put(service, controlURL);
+        }
+        controlURLs = Collections.unmodifiableMap(urls);
+
+        Logger.normal(this, "Nothing to do for " + afterMillis + "ms, releasing the UPnP stack");
+        serviceManager.releaseStack();
+        dormant = true;
+    }
+
+    /**
+     * Bring the stack back, unless it is up anyway
+     *
+     * @param reason what it is needed for, for the log
+     */
+    public synchronized void wake(String reason) {
+        if (!dormant) return;
+
+        Logger.normal(this, "Waking the UPnP stack for " + reason);
+        dormant = false;
+        controlURLs = Collections.emptyMap();
+        serviceManager.restoreStack();
+        activity();
+    }
+
+    // #############################
+    // Direct actions
+    // #############################
+
+    /**
+     * Ask every gateway for its external IP
+     *
+     * @return whether all of them answered with the address we know
+     */
+    public boolean verifyExternalIPs() {
+        for (Map.Entry<Service, URL> entry : controlURLs.entrySet()) {
+            Service service = entry.getKey();
+            Device root = service.getDevice().getRoot();
+            long start = System.nanoTime();
+            try {
+                String address = soapClient.getExternalIPAddress(entry.getValue(),
+                        service.getServiceType().toString());
+                record("GetExternalIPAddress", root, start, true, -1);
+
+                DetectedIP known = serviceManager.getDetectedIP(root);
+                if (known == null || !known.publicAddress.equals(InetAddress.getByName(address))) {
+                    Logger.normal(this, "External IP of " + root.getDisplayString() +
+                            " is now " + address);
+                    return false;
+                }
+            } catch (IOException e) {
+                failed("GetExternalIPAddress", root, start, e);
+                return false;
+            }
+        }
+        if (logMINOR) Logger.minor(this, "External IPs unchanged");
+        return true;
+    }
+
+    /**
+     * Add a mapping again, e.g. to extend its lease
+     *
+     * @return whether the gateway accepted it
+     */
+    public boolean addPortMapping(Service service, PortMapping pm) {
+        URL controlURL = controlURLs.get(service);
+        if (controlURL == null) return false;
+
+        Device root = service.getDevice().getRoot();
+        long start = System.nanoTime();
+        try {
+            soapClient.addPortMapping(controlURL, service.getServiceType().toString(),
+                    pm.hasRemoteHost() ? pm.getRemoteHost() : "",
+                    pm.getExternalPort().getValue().intValue(), pm.getProtocol().name(),
+                    pm.getInternalPort().getValue().intValue(), pm.getInternalClient(),
+                    pm.hasDescription() ? pm.getDescription() : "",
+                    pm.getLeaseDurationSeconds() != null ?
+                            pm.getLeaseDurationSeconds().getValue() : 0);
+            record("AddPortMapping", root, start, true, -1);
+            return true;
+        } catch (IOException e) {
+            failed("AddPortMapping", root, start, e);
+            return false;
+        }
+    }
+
+    private void record(String action, Device root, long start, boolean success,
+                        int errorCode) {
+        serviceManager.getMetrics().actionCompleted(action, root, System.nanoTime() - start,
+                success, errorCode);
+    }
+
+    private void failed(String action, Device root, long start, IOException e) {
+        Logger.warning(this, action + " on dormant " + root.getDisplayString() + " failed: " + e);
+        record(action, root, start, false, e instanceof SoapException ?
+                ((SoapException) e).getErrorCode() : -1);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.meta.Device;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import freenet.pluginmanager.DetectedIP;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * Tells Fred right away when the external IP of a gateway changed, instead of waiting for its
+ * next {@link UPnP2#getAddress()}. Changes come from GENA events and from a periodic lookup
+ * which catches gateways whose events got lost.
+ * <p>
+ * Changes are debounced: a router reconnecting often reports several addresses in a row, only
+ * the last one counts. Once things are quiet, the port mappings on the affected gateways are
+ * checked again, they may have been dropped with the old connection, and the listener is told.
+ */
+class ExternalIPMonitor {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    /**
+     * Told once the external IPs settled after a change
+     */
+    interface Listener {
+        void externalIPChanged();
+    }
+
+    private final ServiceManager serviceManager;
+    private final Ticker ticker;
+    private final long debounceMillis;
+    private final long verifyMillis;
+
+    private volatile Listener listener;
+    private volatile boolean running;
+
+    /**
+     * Gateways whose IP changed since the last notification. Guarded by this.
+     */
+    private final Set<Device> changed = new HashSet<>();
+
+    private final Runnable notifyJob = new Runnable() {
+        @Override
+        public void run() {
+            settled();
+        }
+    };
+
+    private final Runnable verifyJob = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                if (logMINOR) Logger.minor(this, "Verifying external IPs");
+                // Changes found are reported through ipChanged() like events
+                serviceManager.verifyExternalIPs();
+            } finally {
+                if (running) scheduleVerification();
+            }
+        }
+    };
+
+    /**
+     * @param verifyMillis interval of the periodic lookup, 0 for none
+     */
+    ExternalIPMonitor(ServiceManager serviceManager, Ticker ticker, long debounceMillis,
+                      long verifyMillis) {
+        this.serviceManager = serviceManager;
+        this.ticker = ticker;
+        this.debounceMillis = debounceMillis;
+        this.verifyMillis = verifyMillis;
+    }
+
+    public void start() {
+        running = true;
+        if (verifyMillis > 0) scheduleVerification();
+    }
+
+    public void stop() {
+        running = false;
+        ticker.removeQueuedJob(verifyJob);
+        ticker.removeQueuedJob(notifyJob);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * The external IP of a gateway changed, or a gateway with an external IP showed up
+     *
+     * @param previous its address before, null if it had none
+     */
+    public void ipChanged(Device root, DetectedIP previous, DetectedIP current) {
+        Logger.normal(this, "External IP of " + root.getDisplayString() + " changed from " +
+                (previous != null ? previous.publicAddress.getHostAddress() : "none") + " to " +
+                current.publicAddress.getHostAddress());
+
+        synchronized (this) {
+            changed.add(root);
+        }
+
+        // Restart the quiet period
+        ticker.removeQueuedJob(notifyJob);
+        ticker.queueTimedJob(notifyJob, "UPnP2 external IP change", debounceMillis, false,
+                false);
+    }
+
+    private void settled() {
+        Set<Device> roots;
+        synchronized (this) {
+            roots = new HashSet<>(changed);
+            changed.clear();
+        }
+        if (roots.isEmpty()) return;
+
+        for (Device root : roots) {
+            serviceManager.revalidatePortMappings(root);
+        }
+
+        Listener listener = this.listener;
+        if (listener != null) {
+            Logger.normal(this, "Telling Fred about the new external IP");
+            listener.externalIPChanged();
+        }
+    }
+
+    private void scheduleVerification() {
+        ticker.queueTimedJob(verifyJob, "UPnP2 external IP verification", verifyMillis, false,
+                true);
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.UpnpServiceConfiguration;
+import org.fourthline.cling.binding.xml.DescriptorBindingException;
+import org.fourthline.cling.model.ValidationException;
+import org.fourthline.cling.model.message.StreamRequestMessage;
+import org.fourthline.cling.model.message.StreamResponseMessage;
+import org.fourthline.cling.model.message.UpnpRequest;
+import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.meta.Icon;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.meta.RemoteDeviceIdentity;
+import org.fourthline.cling.model.meta.RemoteService;
+import org.fourthline.cling.model.types.UDN;
+import org.fourthline.cling.registry.RegistrationException;
+import org.fourthline.cling.transport.RouterException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import freenet.pluginmanager.DetectedIP;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+
+/**
+ * Warm start cache of the gateways we found in earlier runs.
+ * <p>
+ * Keeps the device descriptor, the SCPDs of the services we use, the address the gateway was
+ * discovered on and its last external IP in a small file in the node's directory. On start the
+ * gateways are put into Cling's registry right away, without waiting for SSDP and without any
+ * HTTP request. Each gateway's descriptor is then fetched again in the background. A gateway
+ * that is gone or changed is dropped and discovered the normal way. One that is still there is
+ * asked for its external IP right away, the cached one may be outdated.
+ */
+class GatewayCache {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    /**
+     * Bump when the file layout changes. Files of other versions are ignored.
+     */
+    private static final String VERSION = "1";
+
+    /**
+     * Used if a gateway didn't tell. Cling's default for remote devices.
+     */
+    private static final int DEFAULT_MAX_AGE_SECONDS = 1800;
+
+    private final ServiceManager serviceManager;
+    private final File file;
+
+    /**
+     * Cached gateways by UDN of their root device
+     */
+    private final Map<UDN, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Gateways put into the registry from the cache which weren't revalidated yet
+     */
+    private final Set<UDN> hydrated =
+            Collections.newSetFromMap(new ConcurrentHashMap<UDN, Boolean>());
+
+    GatewayCache(ServiceManager serviceManager, File file) {
+        this.serviceManager = serviceManager;
+        this.file = file;
+    }
+
+    /**
+     * Put the cached gateways into the registry. Call before searching.
+     */
+    public void hydrate() {
+        load();
+
+        UpnpService upnpService = serviceManager.getUpnpService();
+        for (Entry entry : entries.values()) {
+            if (!isLocalAddress(entry.localAddress)) {
+                // We moved to another network or got a new address, the gateway may not be ours
+                Logger.normal(this, "Not using cached gateway " + entry.udn + ", " +
+                        entry.localAddress + " is no longer a local address");
+                continue;
+            }
+
+            RemoteDevice root;
+            try {
+                root = describe(upnpService.getConfiguration(), entry);
+            } catch (DescriptorBindingException | ValidationException e) {
+                Logger.warning(this, "Unable to restore cached gateway " + entry.udn, e);
+                continue;
+            }
+
+            hydrated.add(entry.udn);
+            if (entry.externalIP != null) {
+                serviceManager.restoreGateway(root, new DetectedIP(entry.externalIP,
+                        DetectedIP.NOT_SUPPORTED));
+            }
+            try {
+                upnpService.getRegistry().addDevice(root);
+                Logger.normal(this, "Restored cached gateway " + root.getDisplayString());
+            } catch (RegistrationException e) {
+                Logger.warning(this, "Unable to register cached gateway " + entry.udn, e);
+                hydrated.remove(entry.udn);
+                serviceManager.removeGateway(root);
+            }
+        }
+    }
+
+    /**
+     * A usable gateway was added to the registry, either from the cache or by discovery. Its
+     * descriptor is fetched in the background to revalidate respectively fill the cache.
+     */
+    public void gatewayAdded(final RemoteDevice root) {
+        serviceManager.getTicker().queueTimedJob(new Runnable() {
+            @Override
+            public void run() {
+                revalidate(root);
+            }
+        }, "UPnP2 gateway cache revalidation", 0, false, false);
+    }
+
+    /**
+     * Remember the last external IP of a gateway
+     */
+    public void externalIPChanged(Device root, InetAddress externalIP) {
+        UDN udn = root.getIdentity().getUdn();
+        Entry entry = entries.get(udn);
+        if (entry == null || externalIP.equals(entry.externalIP)) return;
+
+        entries.put(udn, entry.withExternalIP(externalIP));
+        save();
+    }
+
+    private void revalidate(RemoteDevice root) {
+        RemoteDeviceIdentity identity = root.getIdentity();
+        UDN udn = identity.getUdn();
+        boolean wasHydrated = hydrated.remove(udn);
+        Entry cached = entries.get(udn);
+
+        String descriptor = fetch(identity.getDescriptorURL());
+
+        if (wasHydrated && (descriptor == null || !descriptor.equals(cached.descriptor))) {
+            Logger.normal(this, "Cached gateway " + udn + (descriptor == null ? " is gone" :
+                    " changed") + ", discovering it again");
+            entries.remove(udn);
+            save();
+            serviceManager.getUpnpService().getRegistry().removeDevice(udn);
+            serviceManager.searchGateways();
+            return;
+        }
+        if (descriptor == null) return;
+        if (wasHydrated) {
+            // The external IP is the one of the last session, it may have changed meanwhile
+            serviceManager.verifyExternalIP(root);
+        }
+
+        Map<String, String> scpds = new HashMap<>();
+        try {
+            for (RemoteService service : root.findServices()) {
+                scpds.put(scpdKey(service), serviceManager.getUpnpService().getConfiguration()
+                        .getServiceDescriptorBinderUDA10().generate(service));
+            }
+        } catch (DescriptorBindingException e) {
+            Logger.warning(this, "Unable to cache gateway " + udn, e);
+            return;
+        }
+
+        DetectedIP detectedIP = serviceManager.getDetectedIP(root);
+        Entry entry = new Entry(udn, identity.getDescriptorURL(),
+                identity.getDiscoveredOnLocalAddress(), identity.getMaxAgeSeconds() != null ?
+                identity.getMaxAgeSeconds() : DEFAULT_MAX_AGE_SECONDS, descriptor,
+                scpds, detectedIP != null ? detectedIP.publicAddress :
+                cached != null ? cached.externalIP : null);
+        if (entry.equals(cached)) return;
+
+        if (logMINOR) Logger.minor(this, "Caching gateway " + udn);
+        entries.put(udn, entry);
+        save();
+    }
+
+    /**
+     * GET a descriptor. This method blocks.
+     *
+     * @return the descriptor, or null if the gateway didn't deliver it
+     */
+    private String fetch(URL descriptorURL) {
+        try {
+            StreamResponseMessage response = serviceManager.getUpnpService().getRouter().send(
+                    new StreamRequestMessage(UpnpRequest.Method.GET, descriptorURL));
+            if (response == null || response.getOperation().isFailed()) return null;
+            return response.getBodyString();
+        } catch (RouterException e) {
+            Logger.warning(this, "Unable to fetch " + descriptorURL, e);
+            return null;
+        }
+    }
+
+    // #############################
+    // Hydration
+    // #############################
+
+    private static RemoteDevice describe(UpnpServiceConfiguration configuration, Entry entry)
+            throws DescriptorBindingException, ValidationException {
+        RemoteDevice undescribed = new RemoteDevice(new RemoteDeviceIdentity(entry.udn,
+                entry.maxAgeSeconds, entry.descriptorURL, null, entry.localAddress));
+        RemoteDevice described = configuration.getDeviceDescriptorBinderUDA10()
+                .describe(undescribed, entry.descriptor);
+        return describeServices(configuration, described, entry.scpds);
+    }
+
+    /**
+     * Same as Cling's RetrieveRemoteDescriptors, but with the SCPDs from the cache. Services we
+     * have no SCPD for are left out, like Cling leaves out non-exclusive service types.
+     */
+    private static RemoteDevice describeServices(UpnpServiceConfiguration configuration,
+                                                 RemoteDevice device, Map<String, String> scpds)
+            throws DescriptorBindingException, ValidationException {
+        List<RemoteService> services = new ArrayList<>();
+        if (device.hasServices()) {
+            for (RemoteService service : device.getServices()) {
+                String scpd = scpds.get(scpdKey(service));
+                if (scpd == null) continue;
+                services.add(configuration.getServiceDescriptorBinderUDA10()
+                        .describe(service, scpd));
+            }
+        }
+
+        List<RemoteDevice> embeddedDevices = new ArrayList<>();
+        if (device.hasEmbeddedDevices()) {
+            for (RemoteDevice embeddedDevice : device.getEmbeddedDevices()) {
+                if (embeddedDevice == null) continue;
+                embeddedDevices.add(describeServices(configuration, embeddedDevice, scpds));
+            }
+        }
+
+        Icon[] icons = new Icon[device.getIcons().length];
+        for (int i = 0; i < icons.length; i++) {
+            icons[i] = device.getIcons()[i].deepCopy();
+        }
+
+        return device.newInstance(device.getIdentity().getUdn(), device.getVersion(),
+                device.getType(), device.getDetails(), icons, device.toServiceArray(services),
+                embeddedDevices);
+    }
+
+    /**
+     * Service IDs are only unique within their device
+     */
+    private static String scpdKey(RemoteService service) {
+        return service.getDevice().getIdentity().getUdn().getIdentifierString() + " " +
+                service.getServiceId();
+    }
+
+    private static boolean isLocalAddress(InetAddress address) {
+        try {
+            return NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    // #############################
+    // Persistence
+    // #############################
+
+    private void load() {
+        if (!file.exists()) return;
+
+        Properties properties = new Properties();
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            properties.load(in);
+        } catch (IOException e) {
+            Logger.warning(this, "Unable to read gateway cache " + file, e);
+            return;
+        }
+
+        if (!VERSION.equals(properties.getProperty("version"))) return;
+
+        for (int i = 0; properties.containsKey("gateway." + i + ".udn"); i++) {
+            try {
+                Entry entry = Entry.read(properties, "gateway." + i + ".");
+                entries.put(entry.udn, entry);
+            } catch (IOException | RuntimeException e) {
+                Logger.warning(this, "Ignoring corrupt gateway cache entry " + i, e);
+            }
+        }
+        if (logMINOR) Logger.minor(this, "Loaded " + entries.size() + " cached gateways");
+    }
+
+    private synchronized void save() {
+        Properties properties = new Properties();
+        properties.setProperty("version", VERSION);
+        int i = 0;
+        for (Entry entry : entries.values()) {
+            entry.write(properties, "gateway." + i++ + ".");
+        }
+
+        // Write a copy and replace, a crash must not leave a truncated cache behind
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)))) {
+            properties.store(out, null);
+        } catch (IOException e) {
+            Logger.warning(this, "Unable to write gateway cache " + tempFile, e);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            // Windows doesn't rename over existing files
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                Logger.warning(this, "Unable to replace gateway cache " + file);
+            }
+        }
+    }
+
+    /**
+     * A cached gateway. Immutable.
+     */
+    private static final class Entry {
+
+        private final UDN udn;
+        private final URL descriptorURL;
+        private final InetAddress localAddress;
+        private final int maxAgeSeconds;
+        private final String descriptor;
+        private final Map<String, String> scpds;
+        private final InetAddress externalIP;
+
+        Entry(UDN udn, URL descriptorURL, InetAddress localAddress, int maxAgeSeconds,
+              String descriptor, Map<String, String> scpds, InetAddress externalIP) {
+            this.udn = udn;
+            this.descriptorURL = descriptorURL;
+            this.localAddress = localAddress;
+            this.maxAgeSeconds = maxAgeSeconds;
+            this.descriptor = descriptor;
+            this.scpds = Collections.unmodifiableMap(scpds);
+            this.externalIP = externalIP;
+        }
+
+        Entry withExternalIP(InetAddress externalIP) {
+            return new Entry(udn, descriptorURL, localAddress, maxAgeSeconds, descriptor, scpds,
+                    externalIP);
+        }
+
+        static Entry read(Properties properties, String prefix) throws IOException {
+            Map<String, String> scpds = new HashMap<>();
+            for (int i = 0; properties.containsKey(prefix + "scpd." + i + ".key"); i++) {
+                scpds.put(properties.getProperty(prefix + "scpd." + i + ".key"),
+                        properties.getProperty(prefix + "scpd." + i + ".xml"));
+            }
+            String maxAge = properties.getProperty(prefix + "maxAge");
+            String externalIP = properties.getProperty(prefix + "externalIP");
+            return new Entry(
+                    UDN.valueOf(properties.getProperty(prefix + "udn")),
+                    new URL(properties.getProperty(prefix + "descriptorURL")),
+                    InetAddress.getByName(properties.getProperty(prefix + "localAddress")),
+                    maxAge != null ? Integer.parseInt(maxAge) : DEFAULT_MAX_AGE_SECONDS,
+                    properties.getProperty(prefix + "descriptor"),
+                    scpds,
+                    externalIP != null ? InetAddress.getByName(externalIP) : null);
+        }
+
+        void write(Properties properties, String prefix) {
+            properties.setProperty(prefix + "udn", udn.toString());
+            properties.setProperty(prefix + "descriptorURL", descriptorURL.toString());
+            properties.setProperty(prefix + "localAddress", localAddress.getHostAddress());
+            properties.setProperty(prefix + "maxAge", Integer.toString(maxAgeSeconds));
+            properties.setProperty(prefix + "descriptor", descriptor);
+            int i = 0;
+            for (Map.Entry<String, String> scpd : scpds.entrySet()) {
+                properties.setProperty(prefix + "scpd." + i + ".key", scpd.getKey());
+                properties.setProperty(prefix + "scpd." + i++ + ".xml", scpd.getValue());
+            }
+            if (externalIP != null) {
+                properties.setProperty(prefix + "externalIP", externalIP.getHostAddress());
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Entry)) return false;
+
+            Entry that = (Entry) o;
+            return udn.equals(that.udn) && descriptorURL.toString().equals(
+                    that.descriptorURL.toString()) && localAddress.equals(that.localAddress)
+                    && maxAgeSeconds == that.maxAgeSeconds
+                    && descriptor.equals(that.descriptor) && scpds.equals(that.scpds)
+                    && (externalIP == null ? that.externalIP == null :
+                    externalIP.equals(that.externalIP));
+        }
+
+        @Override
+        public int hashCode() {
+            return udn.hashCode();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.controlpoint.SubscriptionCallback;
+import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.meta.Service;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.pluginmanager.DetectedIP;
+
+/**
+ * What we know about one gateway, i.e. one root device. Immutable, every change returns a new
+ * snapshot. {@link ServiceManager} publishes the snapshots of all gateways at once.
+ * <p>
+ * Link rates, port mappings and pinholes have their own owners, {@link RatesCache},
+ * {@link PortMappingReconciler} and {@link PinholeManager}, which are keyed by the same root
+ * device respectively service.
+ */
+final class GatewayState {
+
+    private final Device root;
+
+    /**
+     * Services of type WANIPConnection or WANPPPConnection
+     */
+    private final List<Service> connectionServices;
+
+    /**
+     * Services of type WANCommonInterfaceConfig
+     */
+    private final List<Service> commonServices;
+
+    /**
+     * Services of type WANIPv6FirewallControl
+     */
+    private final List<Service> firewallServices;
+
+    /**
+     * Callbacks for UPnP events of the services above
+     */
+    private final Map<Service, SubscriptionCallback> subscriptionCallbacks;
+
+    /**
+     * External IP reported by the gateway, or null
+     */
+    private final DetectedIP detectedIP;
+
+    /**
+     * External IP reported by the gateway if it isn't a public one, i.e. the gateway is behind
+     * another NAT, or null. See {@link NatTopology}.
+     */
+    private final InetAddress privateExternalIP;
+
+    private GatewayState(Device root, List<Service> connectionServices,
+                         List<Service> commonServices, List<Service> firewallServices,
+                         Map<Service, SubscriptionCallback> subscriptionCallbacks,
+                         DetectedIP detectedIP, InetAddress privateExternalIP) {
+        this.root = root;
+        this.connectionServices = connectionServices;
+        this.commonServices = commonServices;
+        this.firewallServices = firewallServices;
+        this.subscriptionCallbacks = subscriptionCallbacks;
+        this.detectedIP = detectedIP;
+        this.privateExternalIP = privateExternalIP;
+    }
+
+    static GatewayState of(Device root) {
+        return new GatewayState(root, Collections.<Service>emptyList(),
+                Collections.<Service>emptyList(), Collections.<Service>emptyList(),
+                Collections.<Service, SubscriptionCallback>emptyMap(), null, null);
+    }
+
+    // #############################
+    // Copy-on-write updates
+    // #############################
+
+    GatewayState withConnectionService(Service service) {
+        if (connectionServices.contains(service)) return this;
+        return new GatewayState(root, with(connectionServices, service), commonServices,
+                firewallServices, subscriptionCallbacks, detectedIP, privateExternalIP);
+    }
+
+    GatewayState withCommonService(Service service) {
+        if (commonServices.contains(service)) return this;
+        return new GatewayState(root, connectionServices, with(commonServices, service),
+                firewallServices, subscriptionCallbacks, detectedIP, privateExternalIP);
+    }
+
+    GatewayState withFirewallService(Service service) {
+        if (firewallServices.contains(service)) return this;
+        return new GatewayState(root, connectionServices, commonServices,
+                with(firewallServices, service), subscriptionCallbacks, detectedIP,
+                privateExternalIP);
+    }
+
+    /**
+     * Callbacks of services we don't know are ignored, the gateway is gone already.
+     */
+    GatewayState withSubscriptionCallback(Service service, SubscriptionCallback callback) {
+        if (!hasService(service) || subscriptionCallbacks.get(service) == callback) return this;
+        Map<Service, SubscriptionCallback> callbacks = new HashMap<>(subscriptionCallbacks);
+        callbacks.put(service, callback);
+        return new GatewayState(root, connectionServices, commonServices, firewallServices,
+                Collections.unmodifiableMap(callbacks), detectedIP, privateExternalIP);
+    }
+
+    /**
+     * A public external IP replaces a private one
+     */
+    GatewayState withDetectedIP(DetectedIP detectedIP) {
+        if (detectedIP == this.detectedIP && privateExternalIP == null) return this;
+        return new GatewayState(root, connectionServices, commonServices, firewallServices,
+                subscriptionCallbacks, detectedIP, null);
+    }
+
+    /**
+     * A private external IP replaces a public one
+     */
+    GatewayState withPrivateExternalIP(InetAddress privateExternalIP) {
+        if (privateExternalIP.equals(this.privateExternalIP) && detectedIP == null) return this;
+        return new GatewayState(root, connectionServices, commonServices, firewallServices,
+                subscriptionCallbacks, null, privateExternalIP);
+    }
+
+    private static List<Service> with(List<Service> services, Service service) {
+        List<Service> result = new ArrayList<>(services.size() + 1);
+        result.addAll(services);
+        result.add(service);
+        return Collections.unmodifiableList(result);
+    }
+
+    // #############################
+    // Getters
+    // #############################
+
+    public Device getRoot() {
+        return root;
+    }
+
+    public List<Service> getConnectionServices() {
+        return connectionServices;
+    }
+
+    public List<Service> getCommonServices() {
+        return commonServices;
+    }
+
+    public List<Service> getFirewallServices() {
+        return firewallServices;
+    }
+
+    public SubscriptionCallback getSubscriptionCallback(Service service) {
+        return subscriptionCallbacks.get(service);
+    }
+
+    public Collection<SubscriptionCallback> getSubscriptionCallbacks() {
+        return subscriptionCallbacks.values();
+    }
+
+    public DetectedIP getDetectedIP() {
+        return detectedIP;
+    }
+
+    public InetAddress getPrivateExternalIP() {
+        return privateExternalIP;
+    }
+
+    public boolean hasService(Service service) {
+        return connectionServices.contains(service) || commonServices.contains(service)
+                || firewallServices.contains(service);
+    }
+
+    /**
+     * @return whether the gateway can be used for port mappings and IP detection
+     */
+    public boolean isUsable() {
+        return !connectionServices.isEmpty();
+    }
+
+    /**
+     * @return whether nothing is known about the gateway anymore
+     */
+    public boolean isEmpty() {
+        return connectionServices.isEmpty() && commonServices.isEmpty()
+                && firewallServices.isEmpty() && subscriptionCallbacks.isEmpty()
+                && detectedIP == null && privateExternalIP == null;
+    }
+}
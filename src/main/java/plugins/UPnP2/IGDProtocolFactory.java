@@ -0,0 +1,157 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.gena.RemoteGENASubscription;
+import org.fourthline.cling.model.message.IncomingDatagramMessage;
+import org.fourthline.cling.model.message.StreamRequestMessage;
+import org.fourthline.cling.model.message.UpnpRequest;
+import org.fourthline.cling.model.message.control.IncomingActionResponseMessage;
+import org.fourthline.cling.model.message.gena.IncomingSubscribeResponseMessage;
+import org.fourthline.cling.model.message.header.UpnpHeader;
+import org.fourthline.cling.model.types.InvalidValueException;
+import org.fourthline.cling.model.types.NamedDeviceType;
+import org.fourthline.cling.protocol.ProtocolCreationException;
+import org.fourthline.cling.protocol.ProtocolFactoryImpl;
+import org.fourthline.cling.protocol.ReceivingAsync;
+import org.fourthline.cling.protocol.ReceivingSync;
+import org.fourthline.cling.protocol.sync.SendingAction;
+import org.fourthline.cling.protocol.sync.SendingRenewal;
+import org.fourthline.cling.transport.RouterException;
+
+import java.net.URL;
+
+import plugins.UPnP2.actions.IGDErrorCodes;
+
+/**
+ * Drops SSDP advertisements and search responses of anything but Internet Gateway Devices before
+ * Cling starts retrieving descriptors.
+ * <p>
+ * Cling already filters by the configuration's exclusive service types. This also lets through
+ * advertisements of the IGD root device itself, which carry a device type instead of a service
+ * type.
+ * <p>
+ * We host no devices, so searches of other control points aren't answered, and the stream server
+ * only takes the GENA events of the gateways we subscribed to.
+ * <p>
+ * It also counts every action and subscription renewal sent, see {@link Metrics}.
+ */
+class IGDProtocolFactory extends ProtocolFactoryImpl {
+
+    IGDProtocolFactory(UpnpService upnpService) {
+        super(upnpService);
+    }
+
+    @Override
+    protected boolean isSupportedServiceAdvertisement(IncomingDatagramMessage message) {
+        if (super.isSupportedServiceAdvertisement(message)) return true;
+
+        String usn = message.getHeaders().getFirstHeader(UpnpHeader.Type.USN.getHttpName());
+        if (usn == null) return false;
+
+        try {
+            NamedDeviceType namedDeviceType = NamedDeviceType.valueOf(usn);
+            return namedDeviceType.getDeviceType()
+                    .implementsVersion(IGDUpnpServiceConfiguration.IGD_V1);
+        } catch (InvalidValueException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Cling would hold a thread for the random delay of every M-SEARCH on the LAN, only to find
+     * no local device to answer with
+     */
+    @Override
+    protected ReceivingAsync createReceivingSearch(
+            IncomingDatagramMessage<UpnpRequest> incomingRequest) {
+        return null;
+    }
+
+    /**
+     * Descriptor, control and subscription requests get a 501 from Cling
+     */
+    @Override
+    public ReceivingSync createReceivingSync(StreamRequestMessage message)
+            throws ProtocolCreationException {
+        if (message.getOperation().getMethod() != UpnpRequest.Method.NOTIFY) {
+            throw new ProtocolCreationException("Only GENA events are served: " + message);
+        }
+        return super.createReceivingSync(message);
+    }
+
+    @Override
+    public SendingAction createSendingAction(ActionInvocation actionInvocation, URL controlURL) {
+        return new MeteredSendingAction(getUpnpService(), actionInvocation, controlURL);
+    }
+
+    @Override
+    public SendingRenewal createSendingRenewal(RemoteGENASubscription subscription) {
+        return new MeteredSendingRenewal(getUpnpService(), subscription);
+    }
+
+    private static Metrics metricsOf(UpnpService upnpService) {
+        return ((IGDUpnpService) upnpService).getMetrics();
+    }
+
+    private static class MeteredSendingAction extends SendingAction {
+
+        MeteredSendingAction(UpnpService upnpService, ActionInvocation actionInvocation,
+                             URL controlURL) {
+            super(upnpService, actionInvocation, controlURL);
+        }
+
+        @Override
+        protected IncomingActionResponseMessage executeSync() throws RouterException {
+            long start = System.nanoTime();
+            IncomingActionResponseMessage response = null;
+            try {
+                response = super.executeSync();
+                return response;
+            } finally {
+                boolean success = response != null && !response.getOperation().isFailed()
+                        && actionInvocation.getFailure() == null;
+                metricsOf(getUpnpService()).actionCompleted(
+                        actionInvocation.getAction().getName(),
+                        actionInvocation.getAction().getService().getDevice().getRoot(),
+                        System.nanoTime() - start, success, IGDErrorCodes.of(actionInvocation));
+            }
+        }
+    }
+
+    private static class MeteredSendingRenewal extends SendingRenewal {
+
+        MeteredSendingRenewal(UpnpService upnpService, RemoteGENASubscription subscription) {
+            super(upnpService, subscription);
+        }
+
+        @Override
+        protected IncomingSubscribeResponseMessage executeSync() throws RouterException {
+            IncomingSubscribeResponseMessage response = null;
+            try {
+                response = super.executeSync();
+                return response;
+            } finally {
+                metricsOf(getUpnpService()).renewed(
+                        response != null && !response.getOperation().isFailed());
+            }
+        }
+    }
+}
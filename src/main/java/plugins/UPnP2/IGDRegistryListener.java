@@ -19,33 +19,23 @@ package plugins.UPnP2;
 
 import org.fourthline.cling.UpnpService;
 import org.fourthline.cling.controlpoint.SubscriptionCallback;
-import org.fourthline.cling.model.action.ActionInvocation;
 import org.fourthline.cling.model.gena.RemoteGENASubscription;
-import org.fourthline.cling.model.message.UpnpResponse;
 import org.fourthline.cling.model.meta.Device;
 import org.fourthline.cling.model.meta.Service;
 import org.fourthline.cling.model.types.UDADeviceType;
 import org.fourthline.cling.model.types.UDAServiceType;
 import org.fourthline.cling.registry.Registry;
 import org.fourthline.cling.support.igd.PortMappingListener;
-import org.fourthline.cling.support.igd.callback.PortMappingAdd;
 import org.fourthline.cling.support.model.PortMapping;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-
-import freenet.pluginmanager.ForwardPort;
-import freenet.pluginmanager.ForwardPortCallback;
-import freenet.pluginmanager.ForwardPortStatus;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
-import plugins.UPnP2.actions.GetSpecificPortMappingEntry;
 
 /**
- * Cling UpnpService registry listener. Extends PortMappingListener to reuse its port mapping code.
+ * Cling UpnpService registry listener. Extends PortMappingListener to reuse its IGD discovery code.
+ * Port mappings themselves are managed by {@link PortMappingReconciler}.
+ * <p>
+ * Not synchronized, unlike its parent. {@link ServiceManager} updates gateway state atomically.
  */
 public class IGDRegistryListener extends PortMappingListener {
 
@@ -71,7 +61,7 @@ public class IGDRegistryListener extends PortMappingListener {
     }
 
     @Override
-    synchronized public void deviceAdded(Registry registry, Device device) {
+    public void deviceAdded(Registry registry, Device device) {
 
         Logger.normal(this, "Remote device available: " + device.getDisplayString());
 
@@ -80,10 +70,28 @@ public class IGDRegistryListener extends PortMappingListener {
 
         serviceManager.addCommonService(commonService);
 
+        // Rates of a gateway we have seen before may be outdated
+        serviceManager.invalidateRates(device);
+
+        // Listen to PhysicalLinkStatus changes, they invalidate the cached rates
+        SubscriptionCallback commonCallback = new IGDSubscriptionCallback(commonService,
+                serviceManager);
+        upnpService.getControlPoint().execute(commonCallback);
+        serviceManager.addSubscriptionCallback(commonService, commonCallback);
+
+        // IGDv2 only, the firewall may exist without IPv4 connection services
+        Service firewallService;
+        if (serviceManager.getConfig().isIPv6Enabled() &&
+                (firewallService = discoverFirewallService(device)) != null) {
+            Logger.normal(this, "IGD has an IPv6 firewall: " + device.getDisplayString());
+            serviceManager.addFirewallService(firewallService);
+        }
+
         Service connectionService;
         if ((connectionService = discoverConnectionService(device)) == null) return;
 
         serviceManager.addConnectionService(connectionService);
+        serviceManager.gatewayAdded(device);
 
         // Add service events listener
         SubscriptionCallback callback = new IGDSubscriptionCallback(connectionService, serviceManager);
@@ -93,115 +101,75 @@ public class IGDRegistryListener extends PortMappingListener {
     }
 
     @Override
-    synchronized public void deviceRemoved(Registry registry, Device device) {
+    public void deviceRemoved(Registry registry, Device device) {
+
+        // Only the state of this gateway goes, other gateways keep their IPs and mappings
+        GatewayState gateway = serviceManager.removeGateway(device.getRoot());
+        if (gateway == null) {
+            // Not a gateway we use, nothing to clean up
+            if (logMINOR) Logger.minor(this, "Remote device unavailable: " +
+                    device.getDisplayString());
+            return;
+        }
 
         Logger.normal(this, "Remote device unavailable: " + device.getDisplayString());
 
         super.deviceRemoved(registry, device);
 
-        for (Service service : device.findServices()) {
+        for (SubscriptionCallback callback : gateway.getSubscriptionCallbacks()) {
             // End the subscription
-            SubscriptionCallback callback = serviceManager.getSubscriptionCallback(service);
+            callback.end();
 
-            if (callback != null) {
-                callback.end();
-
-                if (callback.getSubscription() instanceof RemoteGENASubscription) {
-                    // Remove subscription from registry
-                    upnpService.getRegistry().removeRemoteSubscription(
-                            (RemoteGENASubscription) callback.getSubscription());
-                }
-
-                // Remove subscription callback
-                serviceManager.removeSubscriptionCallback(service);
+            if (callback.getSubscription() instanceof RemoteGENASubscription) {
+                // Remove subscription from registry
+                upnpService.getRegistry().removeRemoteSubscription(
+                        (RemoteGENASubscription) callback.getSubscription());
             }
-            // Remove Services
-            serviceManager.removeConnectionService(service);
-            serviceManager.removeCommonService(service);
         }
 
-        // Clear detected IPs
-        serviceManager.clearDetectedIPs();
-
     }
 
-    synchronized public void addPortMappings(final Service connectionService, Set<PortMapping>
-            newPortMappings, final Map<PortMapping, ForwardPort> forwardPortMap, final
-                                             ForwardPortCallback cb) {
-
-        if (connectionService == null || newPortMappings.size() == 0) return;
-
-        Logger.normal(this, "Activating port mappings on: " + connectionService);
-
-        final List<PortMapping> activeForService = new ArrayList<>();
-        for (final PortMapping pm : newPortMappings) {
-
-            Logger.normal(this, "Checking if the Port is already Mapped: " + pm);
-
-            new GetSpecificPortMappingEntry(connectionService, upnpService.getControlPoint(),
-                    pm) {
-                @Override
-                public void success(ActionInvocation invocation) {
-                    Logger.normal(this, "Port is already Mapped: " + pm);
-                }
-
-                @Override
-                public void failure(ActionInvocation invocation, UpnpResponse operation,
-                                    String defaultMsg) {
-                    Logger.normal(this, "Port is not Mapped: " + pm);
-                    Logger.normal(this, "Adding Port Mapping: " + pm);
-
-                    final ForwardPort forwardPort = forwardPortMap.get(pm);
-
-                    new PortMappingAdd(connectionService, upnpService.getControlPoint(), pm) {
-
-                        @Override
-                        public void success(ActionInvocation invocation) {
-                            Logger.normal(this, "Port mapping added: " + pm);
-                            activeForService.add(pm);
-
-                            // Notify Fred the port mapping is successful
-                            ForwardPortStatus status = new ForwardPortStatus(ForwardPortStatus
-                                    .MAYBE_SUCCESS, "", pm.getExternalPort().getValue()
-                                    .intValue());
-
-                            Map<ForwardPort, ForwardPortStatus> statuses = new HashMap<>();
-                            statuses.put(forwardPort, status);
-
-                            cb.portForwardStatus(statuses);
-                        }
-
-                        @Override
-                        public void failure(ActionInvocation invocation, UpnpResponse operation,
-                                            String defaultMsg) {
-                            Logger.warning(this, "Failed to add port mapping: " + pm);
-                            Logger.warning(this, "Reason: " + defaultMsg);
-
-                            // Notify Fred the port mapping is failed
-                            ForwardPortStatus status = new ForwardPortStatus(ForwardPortStatus
-                                    .DEFINITE_FAILURE, defaultMsg, forwardPort.portNumber);
-
-                            Map<ForwardPort, ForwardPortStatus> statuses = new HashMap<>();
-                            statuses.put(forwardPort, status);
+    /**
+     * Same as the parent's, but IGDv2 devices are accepted as well. They are backwards
+     * compatible, and only they have an IPv6 firewall.
+     */
+    @Override
+    protected Service discoverConnectionService(Device device) {
+        if (!device.getType().implementsVersion(IGD_DEVICE_TYPE)) {
+            return null;
+        }
 
-                            cb.portForwardStatus(statuses);
-                        }
-                    }.run(); // Synchronous!
-                }
-            }.run(); // Synchronous!
+        Device[] connectionDevices = device.findDevices(CONNECTION_DEVICE_TYPE);
+        if (connectionDevices.length == 0) {
+            Logger.normal(this, "IGD doesn't support '" + CONNECTION_DEVICE_TYPE + "': " + device);
+            return null;
+        }
 
-            activePortMappings.put(connectionService, activeForService);
+        Device connectionDevice = connectionDevices[0];
+        Logger.normal(this, "Using first discovered WAN connection device: " + connectionDevice);
 
+        Service ipConnectionService = connectionDevice.findService(IP_SERVICE_TYPE);
+        Service pppConnectionService = connectionDevice.findService(PPP_SERVICE_TYPE);
+        if (ipConnectionService == null && pppConnectionService == null) {
+            Logger.normal(this, "IGD doesn't support IP or PPP WAN connection service: " +
+                    device);
         }
 
+        return ipConnectionService != null ? ipConnectionService : pppConnectionService;
     }
 
-    public void removeAllPortMappings() {
-        this.beforeShutdown(upnpService.getRegistry());
+    protected Service discoverFirewallService(Device device) {
+        if (!device.getType().implementsVersion(IGDUpnpServiceConfiguration.IGD_V2)) {
+            return null;
+        }
+
+        Service[] firewallServices =
+                device.findServices(IGDUpnpServiceConfiguration.WAN_IPV6_FIREWALL_CONTROL);
+        return firewallServices.length > 0 ? firewallServices[0] : null;
     }
 
     protected Service discoverCommonService(Device device) {
-        if (!device.getType().equals(IGD_DEVICE_TYPE)) {
+        if (!device.getType().implementsVersion(IGD_DEVICE_TYPE)) {
             return null;
         }
 
@@ -17,13 +17,13 @@
 
 package plugins.UPnP2;
 
-import org.fourthline.cling.UpnpService;
 import org.fourthline.cling.controlpoint.SubscriptionCallback;
 import org.fourthline.cling.model.UnsupportedDataException;
 import org.fourthline.cling.model.gena.CancelReason;
 import org.fourthline.cling.model.gena.GENASubscription;
 import org.fourthline.cling.model.gena.RemoteGENASubscription;
 import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.Device;
 import org.fourthline.cling.model.meta.Service;
 import org.fourthline.cling.model.state.StateVariableValue;
 
@@ -54,7 +54,7 @@ class IGDSubscriptionCallback extends SubscriptionCallback {
     }
 
     private ServiceManager serviceManager;
-    private int renewalFailedCount = 0;
+    private String lastPhysicalLinkStatus;
 
     public IGDSubscriptionCallback(Service connectionService, ServiceManager serviceManager) {
         super(connectionService, 600);
@@ -64,6 +64,8 @@ class IGDSubscriptionCallback extends SubscriptionCallback {
     @Override
     public void established(GENASubscription sub) {
         Logger.normal(this, "GENA Established: " + sub.getSubscriptionId());
+        serviceManager.getMetrics().subscriptionEstablished();
+        serviceManager.getSubscriptionSupervisor().established(service);
     }
 
     @Override
@@ -72,6 +74,8 @@ class IGDSubscriptionCallback extends SubscriptionCallback {
                           Exception exception,
                           String defaultMsg) {
         Logger.warning(this, "GENA Failed: " + defaultMsg);
+        serviceManager.getMetrics().subscriptionFailed();
+        serviceManager.getSubscriptionSupervisor().failed(service, null);
     }
 
     @Override
@@ -80,70 +84,78 @@ class IGDSubscriptionCallback extends SubscriptionCallback {
                       UpnpResponse response) {
         Logger.normal(this, "GENA Ended: " + reason);
         if (logMINOR) Logger.minor(this, "GENA Response: " + response);
-        if (reason == CancelReason.RENEWAL_FAILED) {
-            renewalFailedCount++;
-
-            if (renewalFailedCount == 5) {
-                // Some routers doesn't response correct header and Cling won't be able
-                // to renew it. Then we need to remove and re-subscribe.
-
-                Logger.warning(this, "Renewal failed. Try to re-subscribe.");
-
-                UpnpService upnpService = serviceManager.getUpnpService();
-
-                // Remove current subscription from registry
-                upnpService.getRegistry().removeRemoteSubscription((RemoteGENASubscription)
-                        sub);
-
-                SubscriptionCallback callback = new IGDSubscriptionCallback(service,
-                        serviceManager);
-                upnpService.getControlPoint().execute(callback);
-                serviceManager.addSubscriptionCallback(service, callback);
-            }
-
+        if (reason == null || reason == CancelReason.DEVICE_WAS_REMOVED ||
+                reason == CancelReason.UNSUBSCRIBE_FAILED) {
+            // We ended it, or there is nobody to subscribe to anymore
+            serviceManager.getSubscriptionSupervisor().ended(service);
+        } else {
+            // Cling dropped it, e.g. because a renewal failed. The supervisor subscribes again.
+            serviceManager.getSubscriptionSupervisor().failed(service, reason);
         }
     }
 
     @Override
     public void eventReceived(GENASubscription sub) {
-
-        // Once we received an event, it means Cling has found at least one device. So we can set
-        // booted to true.
-        serviceManager.setBooted(true);
+        serviceManager.getMetrics().eventReceived();
+        serviceManager.getSubscriptionSupervisor().eventReceived(service);
 
         Map values = sub.getCurrentValues();
 
+        // WANCommonInterfaceConfig: a changed link invalidates the cached link rates
+        StateVariableValue physicalLinkStatus =
+                (StateVariableValue) values.get("PhysicalLinkStatus");
+        if (physicalLinkStatus != null) {
+            String status = physicalLinkStatus.toString();
+            if (lastPhysicalLinkStatus != null && !lastPhysicalLinkStatus.equals(status)) {
+                Logger.normal(this, "Physical link status changed: " + status);
+                serviceManager.invalidateRates(sub.getService().getDevice().getRoot());
+            }
+            lastPhysicalLinkStatus = status;
+        }
+
+        // WANIPConnection or WANPPPConnection
         StateVariableValue externalIPAddress =
                 (StateVariableValue) values.get("ExternalIPAddress");
+        if (externalIPAddress == null) return;
 
         try {
             InetAddress inetAddress = InetAddress.getByName
                     (externalIPAddress.toString());
             if (IPUtil.isValidAddress(inetAddress, false)) {
                 DetectedIP detectedIP = new DetectedIP(inetAddress, DetectedIP.NOT_SUPPORTED);
-                if (!serviceManager.getDetectedIPs().values().contains(detectedIP)) {
+                Device root = sub.getService().getDevice().getRoot();
+                if (!detectedIP.equals(serviceManager.getDetectedIP(root))) {
                     Logger.normal(this, "New External IP found: " + externalIPAddress
                             .toString());
-                    Logger.normal(this, "For device: " +
-                            sub.getService().getDevice().getRoot().getDisplayString());
-                    serviceManager.addDetectedIP(sub.getService().getDevice().getRoot(),
-                            detectedIP);
+                    Logger.normal(this, "For device: " + root.getDisplayString());
+                    // This also tells the readiness gate that the gateway is usable, and Fred
+                    // once booted, see ExternalIPMonitor
+                    serviceManager.addDetectedIP(root, detectedIP);
                 }
+            } else if (NatTopology.isPrivateExternalIP(inetAddress)) {
+                // Behind another NAT, the outer gateway has the address Fred needs
+                serviceManager.addPrivateExternalIP(sub.getService().getDevice().getRoot(),
+                        inetAddress);
             }
         } catch (UnknownHostException e) {
-            e.printStackTrace();
+            Logger.warning(this, "Invalid external IP: " + externalIPAddress, e);
         }
     }
 
     @Override
     public void eventsMissed(GENASubscription sub, int numberOfMissedEvents) {
         Logger.warning(this, "Missed events: " + numberOfMissedEvents);
+        serviceManager.getMetrics().eventsMissed(numberOfMissedEvents);
+        serviceManager.getSubscriptionSupervisor().eventsMissed(service);
     }
 
     @Override
     protected void invalidMessage(RemoteGENASubscription sub,
                                   UnsupportedDataException ex) {
-        // Log/send an error report?
+        // Some routers send malformed event XML. Its values are lost like those of a missed one.
+        Logger.warning(this, "Invalid GENA event from " + service + ": " + ex.getMessage());
+        serviceManager.getMetrics().eventsMissed(1);
+        serviceManager.getSubscriptionSupervisor().eventsMissed(service);
     }
 
 }
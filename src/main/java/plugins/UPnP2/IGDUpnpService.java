@@ -0,0 +1,57 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.UpnpServiceImpl;
+import org.fourthline.cling.model.message.header.UpnpHeader;
+import org.fourthline.cling.protocol.ProtocolFactory;
+
+/**
+ * Cling UPnP stack limited to Internet Gateway Devices.
+ */
+class IGDUpnpService extends UpnpServiceImpl {
+
+    /**
+     * Assigned after Cling created the protocol factory, which only reads it later on
+     */
+    private final Metrics metrics;
+
+    IGDUpnpService(IGDUpnpServiceConfiguration configuration, Metrics metrics) {
+        super(configuration);
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected ProtocolFactory createProtocolFactory() {
+        return new IGDProtocolFactory(this);
+    }
+
+    /**
+     * Search for gateways only, instead of every device on the LAN.
+     */
+    public void searchGateways() {
+        for (UpnpHeader searchTarget :
+                ((IGDUpnpServiceConfiguration) getConfiguration()).getSearchTargets()) {
+            getControlPoint().search(searchTarget);
+        }
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.DefaultUpnpServiceConfiguration;
+import org.fourthline.cling.binding.xml.ServiceDescriptorBinder;
+import org.fourthline.cling.binding.xml.UDA10ServiceDescriptorBinderSAXImpl;
+import org.fourthline.cling.model.Constants;
+import org.fourthline.cling.model.message.header.UDADeviceTypeHeader;
+import org.fourthline.cling.model.message.header.UDAServiceTypeHeader;
+import org.fourthline.cling.model.message.header.UpnpHeader;
+import org.fourthline.cling.model.types.DeviceType;
+import org.fourthline.cling.model.types.ServiceType;
+import org.fourthline.cling.model.types.UDADeviceType;
+import org.fourthline.cling.model.types.UDAServiceType;
+import org.fourthline.cling.transport.impl.NetworkAddressFactoryImpl;
+import org.fourthline.cling.transport.spi.NetworkAddressFactory;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+
+/**
+ * Cling configuration for a control point that only cares about Internet Gateway Devices.
+ * <p>
+ * Cling only retrieves descriptors of devices advertising one of the
+ * {@link #getExclusiveServiceTypes() exclusive service types}, and of those devices only the
+ * SCPDs of these services. Media renderers, printers and the like on the LAN are dropped before
+ * any HTTP request is made.
+ * <p>
+ * Cling's default runs everything on one pool without a bound, which grows with the chatter on
+ * the LAN. We are a control point only, so the work is split into pools sized for that:
+ * <ul>
+ * <li>transport: the receiver loops, one per network interface, and the registry maintainer</li>
+ * <li>sync protocols: our actions and subscriptions, and the GENA events the gateways send us.
+ * When it is busy the caller runs the protocol itself, so nothing is lost.</li>
+ * <li>async protocols: SSDP messages and descriptor retrieval. When it is busy the oldest ones are
+ * dropped, the next advertisement or search brings them again.</li>
+ * <li>registry listener: one thread, so we see a device added before it is removed. When it
+ * is busy the caller waits for room in the queue.</li>
+ * </ul>
+ * Server side, {@link IGDProtocolFactory} only handles GENA events.
+ * <p>
+ * Only the network interfaces {@link InterfaceFilter} accepts are bound to and searched on.
+ */
+class IGDUpnpServiceConfiguration extends DefaultUpnpServiceConfiguration {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    /**
+     * Cling checks for expired devices and due GENA renewals this often. Its default of a second
+     * is meant for media devices coming and going, gateways stay for days.
+     */
+    private static final int REGISTRY_MAINTENANCE_MILLIS = 5000;
+
+    private static final int TRANSPORT_THREADS = 32;
+    static final int SYNC_PROTOCOL_THREADS = 8;
+    private static final int SYNC_PROTOCOL_QUEUE_SIZE = 64;
+    static final int ASYNC_PROTOCOL_THREADS = 4;
+    private static final int ASYNC_PROTOCOL_QUEUE_SIZE = 64;
+    private static final int REGISTRY_LISTENER_QUEUE_SIZE = 256;
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    static final DeviceType IGD_V1 = new UDADeviceType("InternetGatewayDevice", 1);
+    static final DeviceType IGD_V2 = new UDADeviceType("InternetGatewayDevice", 2);
+
+    static final UDAServiceType WAN_IP_CONNECTION = new UDAServiceType("WANIPConnection", 1);
+    static final UDAServiceType WAN_PPP_CONNECTION = new UDAServiceType("WANPPPConnection", 1);
+    static final UDAServiceType WAN_COMMON_INTERFACE_CONFIG =
+            new UDAServiceType("WANCommonInterfaceConfig", 1);
+    static final UDAServiceType WAN_IPV6_FIREWALL_CONTROL =
+            new UDAServiceType("WANIPv6FirewallControl", 1);
+
+    /**
+     * Services we use. Newer versions of them are accepted, too.
+     */
+    private static final ServiceType[] EXCLUSIVE_SERVICE_TYPES = {
+            WAN_IP_CONNECTION,
+            WAN_PPP_CONNECTION,
+            WAN_COMMON_INTERFACE_CONFIG,
+            WAN_IPV6_FIREWALL_CONTROL
+    };
+
+    private final InterfaceFilter interfaceFilter;
+
+    private final ThreadPoolExecutor syncProtocolExecutor = newPool("sync protocol",
+            SYNC_PROTOCOL_THREADS, new ArrayBlockingQueue<Runnable>(SYNC_PROTOCOL_QUEUE_SIZE),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private final ThreadPoolExecutor asyncProtocolExecutor = newPool("async protocol",
+            ASYNC_PROTOCOL_THREADS, new ArrayBlockingQueue<Runnable>(ASYNC_PROTOCOL_QUEUE_SIZE),
+            new ThreadPoolExecutor.DiscardOldestPolicy() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    if (logMINOR) Logger.minor(this, "Busy, dropping the oldest SSDP message");
+                    super.rejectedExecution(r, executor);
+                }
+            });
+
+    /**
+     * A caller running a listener itself would overtake the queued ones, so it waits for room
+     * instead. Listeners must not cause registry events themselves, they would wait for their
+     * own queue. Once we shut down the rest is dropped.
+     */
+    private final ThreadPoolExecutor registryListenerExecutor = newPool("registry listener", 1,
+            new ArrayBlockingQueue<Runnable>(REGISTRY_LISTENER_QUEUE_SIZE),
+            new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    if (executor.isShutdown()) return;
+                    try {
+                        executor.getQueue().put(r);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        Logger.warning(this, "Interrupted, dropping registry listener call");
+                    }
+                }
+            });
+
+    /**
+     * Every network interface Cling would take
+     */
+    IGDUpnpServiceConfiguration() {
+        this(new InterfaceFilter("", "", false));
+    }
+
+    IGDUpnpServiceConfiguration(InterfaceFilter interfaceFilter) {
+        this.interfaceFilter = interfaceFilter;
+    }
+
+    /**
+     * Called whenever the router is enabled, so interfaces which came or went since are taken
+     * into account
+     */
+    @Override
+    protected NetworkAddressFactory createNetworkAddressFactory(int streamListenPort) {
+        final Set<String> defaultRouteInterfaces = interfaceFilter.findDefaultRouteInterfaces();
+        // Cling looks at the interfaces in its constructor. Captured variables are assigned
+        // before it runs, fields of the subclass wouldn't be.
+        return new NetworkAddressFactoryImpl(streamListenPort) {
+            @Override
+            protected boolean isUsableNetworkInterface(NetworkInterface iface) throws Exception {
+                if (!super.isUsableNetworkInterface(iface)) return false;
+                if (interfaceFilter.accepts(iface, defaultRouteInterfaces)) return true;
+                if (logMINOR) Logger.minor(this, "Skipping network interface " + iface.getName());
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Called by Cling's constructor, before our fields are set
+     */
+    @Override
+    protected ExecutorService createDefaultExecutorService() {
+        return newPool("transport", TRANSPORT_THREADS, new SynchronousQueue<Runnable>(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    private static ThreadPoolExecutor newPool(final String name, int threads,
+                                              BlockingQueue<Runnable> queue,
+                                              RejectedExecutionHandler rejectedHandler) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, queue, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "UPnP2 Cling " + name + " " +
+                        threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, rejectedHandler);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    @Override
+    public Executor getMulticastReceiverExecutor() {
+        return getDefaultExecutorService();
+    }
+
+    @Override
+    public Executor getDatagramIOExecutor() {
+        return getDefaultExecutorService();
+    }
+
+    @Override
+    public ExecutorService getStreamServerExecutorService() {
+        return getDefaultExecutorService();
+    }
+
+    @Override
+    public Executor getRegistryMaintainerExecutor() {
+        return getDefaultExecutorService();
+    }
+
+    @Override
+    public ExecutorService getSyncProtocolExecutorService() {
+        return syncProtocolExecutor;
+    }
+
+    @Override
+    public Executor getAsyncProtocolExecutor() {
+        return asyncProtocolExecutor;
+    }
+
+    @Override
+    public Executor getRegistryListenerExecutor() {
+        return registryListenerExecutor;
+    }
+
+    @Override
+    public int getRegistryMaintenanceIntervalMillis() {
+        return REGISTRY_MAINTENANCE_MILLIS;
+    }
+
+    /**
+     * SAX instead of DOM, an SCPD doesn't need a document tree in memory
+     */
+    @Override
+    protected ServiceDescriptorBinder createServiceDescriptorBinderUDA10() {
+        return new UDA10ServiceDescriptorBinderSAXImpl();
+    }
+
+    /**
+     * @return threads alive in all of Cling's pools
+     */
+    public int getThreadCount() {
+        return ((ThreadPoolExecutor) getDefaultExecutorService()).getPoolSize() +
+                syncProtocolExecutor.getPoolSize() + asyncProtocolExecutor.getPoolSize() +
+                registryListenerExecutor.getPoolSize();
+    }
+
+    @Override
+    public void shutdown() {
+        syncProtocolExecutor.shutdownNow();
+        asyncProtocolExecutor.shutdownNow();
+        registryListenerExecutor.shutdownNow();
+        super.shutdown();
+    }
+
+    @Override
+    public ServiceType[] getExclusiveServiceTypes() {
+        return EXCLUSIVE_SERVICE_TYPES;
+    }
+
+    /**
+     * @return targets to search for instead of ssdp:all
+     */
+    public UpnpHeader[] getSearchTargets() {
+        return new UpnpHeader[]{
+                new UDADeviceTypeHeader(IGD_V1),
+                new UDADeviceTypeHeader(IGD_V2),
+                new UDAServiceTypeHeader(WAN_IP_CONNECTION),
+                new UDAServiceTypeHeader(WAN_PPP_CONNECTION)
+        };
+    }
+
+    /**
+     * @return where to send a unicast search for the gateway whose LAN the external IP of a
+     * nested gateway is on, see {@link OuterGatewayProbe}. Routers usually take the first or
+     * the last address of a /24.
+     */
+    public List<InetSocketAddress> getOuterGatewaySearchAddresses(InetAddress privateExternalIP) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        if (!(privateExternalIP instanceof Inet4Address)) return addresses;
+
+        byte[] address = privateExternalIP.getAddress();
+        for (int host : new int[]{1, 254}) {
+            address[3] = (byte) host;
+            try {
+                InetAddress candidate = InetAddress.getByAddress(address);
+                if (!candidate.equals(privateExternalIP)) {
+                    addresses.add(new InetSocketAddress(candidate, Constants.UPNP_MULTICAST_PORT));
+                }
+            } catch (UnknownHostException e) {
+                // Can't happen, the address has the right length
+                throw new IllegalStateException(e);
+            }
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+
+/**
+ * Picks the network interfaces the UPnP stack binds to and searches on. Cling takes every one
+ * that is up, so on hosts running containers or VPN tunnels searches go out on docker0, veth*
+ * and tun0 as well, and whatever answers there is fetched.
+ * <p>
+ * Names may contain * as a wildcard. The deny list wins over the allow list. Interfaces carrying
+ * a default route may be required on top, if none can be found this is ignored.
+ * <p>
+ * Point-to-point interfaces never count as carrying the default route. A full-tunnel VPN routes
+ * everything through its tunnel, which has no gateway behind it. The LAN interface can't be told
+ * by its route then, so the requirement is ignored and only the lists apply.
+ */
+class InterfaceFilter {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    /**
+     * Destinations to find the default routes with. Documentation ranges: nothing is sent,
+     * connecting a datagram socket only asks the kernel for the route.
+     */
+    private static final String[] DEFAULT_ROUTE_PROBES = {"192.0.2.1", "2001:db8::1"};
+    private static final int DISCARD_PORT = 9;
+
+    private final List<Pattern> allowed;
+    private final List<Pattern> denied;
+    private final boolean defaultRouteOnly;
+
+    /**
+     * @param allowed          comma separated names, empty for all
+     * @param denied           comma separated names
+     * @param defaultRouteOnly whether only interfaces with a default route are used
+     */
+    InterfaceFilter(String allowed, String denied, boolean defaultRouteOnly) {
+        this.allowed = patterns(allowed);
+        this.denied = patterns(denied);
+        this.defaultRouteOnly = defaultRouteOnly;
+    }
+
+    static InterfaceFilter of(Config config) {
+        return new InterfaceFilter(config.getInterfaces(), config.getExcludedInterfaces(),
+                config.isDefaultRouteOnly());
+    }
+
+    /**
+     * @param defaultRouteInterfaces names of the interfaces with a default route, see
+     *                               {@link #findDefaultRouteInterfaces()}
+     */
+    public boolean accepts(NetworkInterface networkInterface, Set<String> defaultRouteInterfaces) {
+        String name = networkInterface.getName();
+        if (matches(denied, name)) return false;
+        if (!allowed.isEmpty() && !matches(allowed, name)) return false;
+        return !defaultRouteOnly || defaultRouteInterfaces.isEmpty() ||
+                defaultRouteInterfaces.contains(name);
+    }
+
+    /**
+     * @return names of the interfaces traffic to the internet leaves through, empty if they are
+     * unknown or not needed
+     */
+    public Set<String> findDefaultRouteInterfaces() {
+        Set<String> names = new HashSet<>();
+        if (!defaultRouteOnly) return names;
+
+        for (String probe : DEFAULT_ROUTE_PROBES) {
+            try (DatagramSocket socket = new DatagramSocket()) {
+                socket.connect(InetAddress.getByName(probe), DISCARD_PORT);
+                InetAddress local = socket.getLocalAddress();
+                NetworkInterface networkInterface = local != null && !local.isAnyLocalAddress() ?
+                        NetworkInterface.getByInetAddress(local) : null;
+                if (networkInterface == null) continue;
+                if (networkInterface.isPointToPoint()) {
+                    Logger.normal(this, "Default route towards " + probe + " goes through " +
+                            networkInterface.getName() + ", a tunnel");
+                    continue;
+                }
+                names.add(networkInterface.getName());
+            } catch (IOException | RuntimeException e) {
+                // No route of this family
+                if (logMINOR) Logger.minor(this, "No default route towards " + probe + ": " + e);
+            }
+        }
+        if (names.isEmpty()) {
+            Logger.warning(this, "No interface with a default route found, using all the " +
+                    "lists allow");
+        }
+        return names;
+    }
+
+    private static boolean matches(List<Pattern> patterns, String name) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches()) return true;
+        }
+        return false;
+    }
+
+    private static List<Pattern> patterns(String names) {
+        List<Pattern> patterns = new ArrayList<>();
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) continue;
+
+            String[] parts = name.split("\\*", -1);
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < parts.length; i++) {
+                if (i > 0) regex.append(".*");
+                if (!parts[i].isEmpty()) regex.append(Pattern.quote(parts[i]));
+            }
+            patterns.add(Pattern.compile(regex.toString()));
+        }
+        return patterns;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.transport.spi.InitializationException;
+import org.fourthline.cling.transport.spi.NetworkAddressFactory;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * Binds the UPnP stack again when the network interfaces it would pick changed, e.g. because a
+ * laptop joined another network or a VPN came up, instead of waiting for a restart of the
+ * plugin. Interfaces are picked the way the stack does, see {@link InterfaceFilter}.
+ */
+class InterfaceWatcher {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    private final ServiceManager serviceManager;
+    private final Ticker ticker;
+    private final long checkMillis;
+
+    private volatile boolean running;
+
+    /**
+     * Interfaces and addresses the stack is bound to. Only used by the check.
+     */
+    private Set<String> bound;
+
+    private final Runnable checkJob = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                check();
+            } finally {
+                if (running) scheduleCheck();
+            }
+        }
+    };
+
+    /**
+     * @param checkMillis interval of the check
+     */
+    InterfaceWatcher(ServiceManager serviceManager, Ticker ticker, long checkMillis) {
+        this.serviceManager = serviceManager;
+        this.ticker = ticker;
+        this.checkMillis = checkMillis;
+    }
+
+    public void start() {
+        running = true;
+        bound = select();
+        scheduleCheck();
+    }
+
+    public void stop() {
+        running = false;
+        ticker.removeQueuedJob(checkJob);
+    }
+
+    private void check() {
+        Set<String> selected = select();
+        if (selected.equals(bound)) {
+            if (logMINOR) Logger.minor(this, "Network interfaces unchanged: " + selected);
+            return;
+        }
+
+        Logger.normal(this, "Network interfaces changed from " + bound + " to " + selected);
+        bound = selected;
+        serviceManager.rebindNetwork();
+    }
+
+    /**
+     * @return names of the interfaces the stack would use and the addresses it would bind to
+     */
+    private Set<String> select() {
+        Set<String> selected = new HashSet<>();
+        try {
+            NetworkAddressFactory factory = serviceManager.getUpnpService().getConfiguration()
+                    .createNetworkAddressFactory();
+            for (Iterator<NetworkInterface> it = factory.getNetworkInterfaces(); it.hasNext(); ) {
+                selected.add(it.next().getName());
+            }
+            for (Iterator<InetAddress> it = factory.getBindAddresses(); it.hasNext(); ) {
+                selected.add(it.next().getHostAddress());
+            }
+        } catch (InitializationException e) {
+            // No usable network right now
+            if (logMINOR) Logger.minor(this, "No usable network interface: " + e);
+        }
+        return selected;
+    }
+
+    private void scheduleCheck() {
+        ticker.queueTimedJob(checkJob, "UPnP2 network interface check", checkMillis, false,
+                true);
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.meta.DeviceDetails;
+import org.fourthline.cling.model.meta.ModelDetails;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the plugin's UPnP traffic: latency, outcome and error codes of every SOAP action,
+ * per action and per gateway model, and the GENA subscriptions. Lock free, so it is always on.
+ * <p>
+ * Actions are counted where Cling sends them (see {@link IGDProtocolFactory}), so actions of
+ * Cling Support callbacks are included.
+ */
+public class Metrics {
+
+    /**
+     * Upper bounds of the latency buckets in milliseconds. The last bucket has no bound.
+     */
+    private static final long[] LATENCY_BOUNDS_MILLIS =
+            {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    private final ConcurrentMap<String, ActionMetrics> actions = new ConcurrentHashMap<>();
+
+    /**
+     * Same as above, keyed by gateway model and action
+     */
+    private final ConcurrentMap<String, ActionMetrics> gatewayActions = new ConcurrentHashMap<>();
+
+    private final AtomicLong subscriptionsEstablished = new AtomicLong();
+    private final AtomicLong subscriptionsFailed = new AtomicLong();
+    private final AtomicLong resubscriptions = new AtomicLong();
+    private final AtomicLong renewals = new AtomicLong();
+    private final AtomicLong renewalsFailed = new AtomicLong();
+    private final AtomicLong eventsReceived = new AtomicLong();
+    private final AtomicLong eventsMissed = new AtomicLong();
+
+    // #############################
+    // Recording
+    // #############################
+
+    /**
+     * @param root      gateway the action was sent to
+     * @param errorCode UPnP error code of a failed action, -1 if there is none, e.g. because the
+     *                  gateway didn't answer
+     */
+    void actionCompleted(String action, Device root, long elapsedNanos, boolean success,
+                         int errorCode) {
+        actionCompleted(action, modelOf(root), elapsedNanos, success, errorCode);
+    }
+
+    /**
+     * Same for gateways which aren't UPnP devices, e.g. NAT-PMP ones
+     *
+     * @param gateway what the gateway is known as, e.g. its address
+     */
+    void actionCompleted(String action, String gateway, long elapsedNanos, boolean success,
+                         int errorCode) {
+        getOrCreate(actions, action).record(elapsedNanos, success, errorCode);
+        getOrCreate(gatewayActions, gateway + " " + action)
+                .record(elapsedNanos, success, errorCode);
+    }
+
+    void subscriptionEstablished() {
+        subscriptionsEstablished.incrementAndGet();
+    }
+
+    void subscriptionFailed() {
+        subscriptionsFailed.incrementAndGet();
+    }
+
+    void resubscribed() {
+        resubscriptions.incrementAndGet();
+    }
+
+    void renewed(boolean success) {
+        renewals.incrementAndGet();
+        if (!success) renewalsFailed.incrementAndGet();
+    }
+
+    void eventReceived() {
+        eventsReceived.incrementAndGet();
+    }
+
+    void eventsMissed(int numberOfMissedEvents) {
+        eventsMissed.addAndGet(numberOfMissedEvents);
+    }
+
+    private static ActionMetrics getOrCreate(ConcurrentMap<String, ActionMetrics> map,
+                                             String key) {
+        ActionMetrics metrics = map.get(key);
+        if (metrics == null) {
+            ActionMetrics created = new ActionMetrics();
+            metrics = map.putIfAbsent(key, created);
+            if (metrics == null) metrics = created;
+        }
+        return metrics;
+    }
+
+    private static String modelOf(Device root) {
+        if (root == null) return "unknown";
+        DeviceDetails details = root.getDetails();
+        ModelDetails model = details != null ? details.getModelDetails() : null;
+        if (model == null || model.getModelName() == null) return "unknown";
+        return model.getModelNumber() != null ?
+                model.getModelName() + " " + model.getModelNumber() : model.getModelName();
+    }
+
+    // #############################
+    // Reading
+    // #############################
+
+    /**
+     * @return metrics of a SOAP action, e.g. "AddPortMapping", or null if it was never sent
+     */
+    public ActionMetrics getActionMetrics(String action) {
+        return actions.get(action);
+    }
+
+    public long getSubscriptionsEstablished() {
+        return subscriptionsEstablished.get();
+    }
+
+    public long getSubscriptionsFailed() {
+        return subscriptionsFailed.get();
+    }
+
+    public long getResubscriptions() {
+        return resubscriptions.get();
+    }
+
+    public long getRenewals() {
+        return renewals.get();
+    }
+
+    public long getRenewalsFailed() {
+        return renewalsFailed.get();
+    }
+
+    public long getEventsReceived() {
+        return eventsReceived.get();
+    }
+
+    public long getEventsMissed() {
+        return eventsMissed.get();
+    }
+
+    /**
+     * @return all metrics as text, one line per action and gateway model
+     */
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("UPnP2 metrics\n");
+        for (Map.Entry<String, ActionMetrics> entry : new TreeMap<>(actions).entrySet()) {
+            sb.append("action ").append(entry.getKey()).append(": ")
+                    .append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, ActionMetrics> entry : new TreeMap<>(gatewayActions).entrySet()) {
+            sb.append("gateway ").append(entry.getKey()).append(": ")
+                    .append(entry.getValue()).append('\n');
+        }
+        sb.append("gena: ")
+                .append(eventsReceived.get()).append(" events, ")
+                .append(eventsMissed.get()).append(" missed, ")
+                .append(subscriptionsEstablished.get()).append(" subscriptions, ")
+                .append(subscriptionsFailed.get()).append(" failed, ")
+                .append(renewals.get()).append(" renewals, ")
+                .append(renewalsFailed.get()).append(" failed, ")
+                .append(resubscriptions.get()).append(" re-subscriptions\n");
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return snapshot();
+    }
+
+    // #############################
+    // Metrics of one action
+    // #############################
+
+    public static class ActionMetrics {
+
+        private final AtomicLong successes = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final ConcurrentMap<Integer, AtomicLong> errorCodes = new ConcurrentHashMap<>();
+
+        private final AtomicLongArray latencyBuckets =
+                new AtomicLongArray(LATENCY_BOUNDS_MILLIS.length + 1);
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long elapsedNanos, boolean success, int errorCode) {
+            if (success) {
+                successes.incrementAndGet();
+            } else {
+                failures.incrementAndGet();
+                AtomicLong count = errorCodes.get(errorCode);
+                if (count == null) {
+                    AtomicLong created = new AtomicLong();
+                    count = errorCodes.putIfAbsent(errorCode, created);
+                    if (count == null) count = created;
+                }
+                count.incrementAndGet();
+            }
+
+            long millis = elapsedNanos / 1000000;
+            int bucket = 0;
+            while (bucket < LATENCY_BOUNDS_MILLIS.length &&
+                    millis > LATENCY_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            latencyBuckets.incrementAndGet(bucket);
+            totalNanos.addAndGet(elapsedNanos);
+
+            long max;
+            do {
+                max = maxNanos.get();
+            } while (elapsedNanos > max && !maxNanos.compareAndSet(max, elapsedNanos));
+        }
+
+        public long getSuccesses() {
+            return successes.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return number of failures by UPnP error code, -1 standing for no answer
+         */
+        public SortedMap<Integer, Long> getErrorCodes() {
+            SortedMap<Integer, Long> result = new TreeMap<>();
+            for (Map.Entry<Integer, AtomicLong> entry : errorCodes.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().get());
+            }
+            return result;
+        }
+
+        /**
+         * @param fraction e.g. 0.9 for the 90th percentile
+         * @return upper bound of the latency bucket the percentile falls into, in milliseconds,
+         * or -1 if it is beyond the last bound
+         */
+        public long getLatencyPercentileMillis(double fraction) {
+            long count = 0;
+            for (int i = 0; i < latencyBuckets.length(); i++) {
+                count += latencyBuckets.get(i);
+            }
+            if (count == 0) return 0;
+
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < LATENCY_BOUNDS_MILLIS.length; i++) {
+                seen += latencyBuckets.get(i);
+                if (seen >= rank) return LATENCY_BOUNDS_MILLIS[i];
+            }
+            return -1;
+        }
+
+        public long getMeanLatencyMillis() {
+            long count = successes.get() + failures.get();
+            return count > 0 ? totalNanos.get() / count / 1000000 : 0;
+        }
+
+        public long getMaxLatencyMillis() {
+            return maxNanos.get() / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(getSuccesses()).append(" ok, ").append(getFailures()).append(" failed");
+            SortedMap<Integer, Long> codes = getErrorCodes();
+            if (!codes.isEmpty()) sb.append(' ').append(codes);
+            sb.append(", latency ms: mean ").append(getMeanLatencyMillis())
+                    .append(" p50 ").append(bound(getLatencyPercentileMillis(0.5)))
+                    .append(" p90 ").append(bound(getLatencyPercentileMillis(0.9)))
+                    .append(" p99 ").append(bound(getLatencyPercentileMillis(0.99)))
+                    .append(" max ").append(getMaxLatencyMillis());
+            return sb.toString();
+        }
+
+        private static String bound(long millis) {
+            return millis >= 0 ? "<=" + millis :
+                    ">" + LATENCY_BOUNDS_MILLIS[LATENCY_BOUNDS_MILLIS.length - 1];
+        }
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import freenet.pluginmanager.DetectedIP;
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortCallback;
+import freenet.pluginmanager.ForwardPortStatus;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.transport.ip.IPUtil;
+import plugins.UPnP2.natpmp.NatPmpClient;
+import plugins.UPnP2.natpmp.NatPmpException;
+
+/**
+ * Port mappings and external IP through a NAT-PMP gateway, RFC 6886. One UDP packet per request,
+ * no discovery and no XML, so much cheaper than UPnP where the gateway speaks it.
+ * <p>
+ * NAT-PMP mappings always have a lifetime. All desired ports are mapped again in one round at a
+ * fraction of the shortest lifetime, and whenever the gateway's epoch shows it lost its state.
+ */
+class NatPmpBackend implements Backend {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    /**
+     * Lifetime RFC 6886 recommends, used if the config asks for permanent mappings
+     */
+    private static final long DEFAULT_LIFETIME_SECONDS = 7200;
+
+    private static final File ROUTE_TABLE = new File("/proc/net/route");
+
+    private final NatPmpClient client;
+    private final Config config;
+    private final Ticker ticker;
+    private final Metrics metrics;
+    private final StatusAggregator statusAggregator;
+    private final PortMappingExecutor executor;
+
+    /**
+     * Collects the statuses of our rounds
+     */
+    private final ForwardPortCallback statusCallback;
+
+    private volatile Set<ForwardPort> desired = Collections.emptySet();
+
+    /**
+     * External port the gateway assigned per mapped port
+     */
+    private final Map<ForwardPort, Integer> mapped = new ConcurrentHashMap<>();
+
+    /**
+     * Whether a round waits for a thread. Requests meanwhile are folded into it.
+     */
+    private final AtomicBoolean roundQueued = new AtomicBoolean();
+
+    private final Runnable round = new Runnable() {
+        @Override
+        public void run() {
+            roundQueued.set(false);
+            reconcile();
+        }
+    };
+
+    /**
+     * Runs on the ticker, hands the round to a port mapping thread
+     */
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            queueRound();
+        }
+    };
+
+    // Guarded by this
+    private long lastEpoch;
+    private long lastEpochMillis;
+
+    NatPmpBackend(NatPmpClient.Probe probe, Config config, Ticker ticker, Metrics metrics,
+                  StatusAggregator statusAggregator, PortMappingExecutor executor) {
+        this.client = probe.getClient();
+        this.config = config;
+        this.ticker = ticker;
+        this.metrics = metrics;
+        this.statusAggregator = statusAggregator;
+        this.executor = executor;
+        statusCallback = statusAggregator.callbackFor(this);
+        epochReset(probe.getExternalAddress().getEpoch());
+    }
+
+    /**
+     * Look for a NAT-PMP gateway. This method blocks, at most for the NAT-PMP timeout.
+     *
+     * @return the gateway answering first, or null if none did
+     */
+    static NatPmpClient.Probe probe(Config config) {
+        List<InetSocketAddress> candidates = findGateways(config);
+        if (candidates.isEmpty()) {
+            Logger.normal(NatPmpBackend.class, "No candidates for a NAT-PMP gateway");
+            return null;
+        }
+
+        if (logMINOR) Logger.minor(NatPmpBackend.class, "NAT-PMP candidates: " + candidates);
+        try {
+            return NatPmpClient.probe(candidates, config.getNatPmpTimeoutMillis());
+        } catch (IOException e) {
+            Logger.warning(NatPmpBackend.class, "Unable to probe for NAT-PMP gateways", e);
+            return null;
+        }
+    }
+
+    // ###################################
+    // Backend method(s)
+    // ###################################
+
+    @Override
+    public String getName() {
+        return "NAT-PMP " + client.getGateway().getAddress().getHostAddress();
+    }
+
+    @Override
+    public Collection<DetectedIP> getExternalIPs() {
+        long start = System.nanoTime();
+        NatPmpClient.ExternalAddress externalAddress;
+        try {
+            externalAddress = client.getExternalAddress();
+            record("ExternalAddress", start, null);
+        } catch (IOException e) {
+            record("ExternalAddress", start, e);
+            Logger.warning(this, "Unable to get external IP from " + getName() + ". Reason: " +
+                    e.getMessage());
+            return null;
+        }
+
+        if (epochReset(externalAddress.getEpoch()) && !desired.isEmpty()) {
+            Logger.normal(this, getName() + " lost its mappings, mapping again");
+            queueRound();
+        }
+
+        InetAddress address = externalAddress.getAddress();
+        Logger.normal(this, "Get external IP: " + address.getHostAddress());
+        if (!IPUtil.isValidAddress(address, false)) return null;
+
+        return Collections.singletonList(new DetectedIP(address, DetectedIP.NOT_SUPPORTED));
+    }
+
+    @Override
+    public void addPortMappings(Set<ForwardPort> ports, ForwardPortCallback cb) {
+        statusAggregator.beginRound(Collections.singleton(this), ports, cb);
+        desired = Collections.unmodifiableSet(new HashSet<>(ports));
+        queueRound();
+    }
+
+    @Override
+    public void removeAllPortMappings() {
+        ticker.removeQueuedJob(refresh);
+        desired = Collections.emptySet();
+        for (Iterator<ForwardPort> it = mapped.keySet().iterator(); it.hasNext(); ) {
+            unmap(it.next());
+            it.remove();
+        }
+    }
+
+    // #############################
+    // Rounds
+    // #############################
+
+    private void queueRound() {
+        if (!roundQueued.compareAndSet(false, true)) {
+            if (logMINOR) Logger.minor(this, "NAT-PMP round already queued");
+            return;
+        }
+        if (!executor.execute(round)) {
+            roundQueued.set(false);
+            // Nothing to retry once we shut down
+            if (!desired.isEmpty()) schedule(config.getLeaseRetryMillis());
+        }
+    }
+
+    /**
+     * Map every desired port, unmap the others. This method blocks.
+     */
+    private void reconcile() {
+        Set<ForwardPort> desired = this.desired;
+        long lifetime = config.getLeaseSeconds() > 0 ?
+                config.getLeaseSeconds() : DEFAULT_LIFETIME_SECONDS;
+
+        Map<ForwardPort, ForwardPortStatus> statuses = new HashMap<>();
+        long shortestLifetime = Long.MAX_VALUE;
+        boolean failed = false;
+        for (ForwardPort port : desired) {
+            // NAT-PMP is IPv4 only
+            if (port.isIP6) continue;
+            NatPmpClient.Protocol protocol = protocolOf(port);
+            // Ask for the port we got last time, the gateway may have given us another one
+            Integer previous = mapped.get(port);
+            int suggested = previous != null ? previous : port.portNumber;
+
+            long start = System.nanoTime();
+            try {
+                NatPmpClient.Mapping mapping = client.map(protocol, port.portNumber, suggested,
+                        lifetime);
+                record("Map" + protocol, start, null);
+                epochReset(mapping.getEpoch());
+
+                mapped.put(port, mapping.getExternalPort());
+                shortestLifetime = Math.min(shortestLifetime, mapping.getLifetimeSeconds());
+                statuses.put(port, new ForwardPortStatus(ForwardPortStatus.MAYBE_SUCCESS,
+                        "Port mapped by " + getName(), mapping.getExternalPort()));
+            } catch (NatPmpException e) {
+                record("Map" + protocol, start, e);
+                failed = true;
+                Logger.warning(this, "Unable to map " + protocol + " " + port.portNumber +
+                        " on " + getName() + ". Reason: " + e.getMessage());
+                statuses.put(port, new ForwardPortStatus(ForwardPortStatus.DEFINITE_FAILURE,
+                        e.getMessage(), port.portNumber));
+            } catch (IOException e) {
+                record("Map" + protocol, start, e);
+                failed = true;
+                Logger.warning(this, "Unable to map " + protocol + " " + port.portNumber +
+                        " on " + getName() + ". Reason: " + e.getMessage());
+                statuses.put(port, new ForwardPortStatus(ForwardPortStatus.MAYBE_FAILURE,
+                        getName() + " didn't answer", port.portNumber));
+            }
+        }
+
+        for (Iterator<ForwardPort> it = mapped.keySet().iterator(); it.hasNext(); ) {
+            ForwardPort port = it.next();
+            if (desired.contains(port)) continue;
+            unmap(port);
+            it.remove();
+        }
+
+        statusCallback.portForwardStatus(statuses);
+
+        if (desired.isEmpty()) return;
+        long delay = shortestLifetime == Long.MAX_VALUE ? config.getLeaseRetryMillis() :
+                (long) (TimeUnit.SECONDS.toMillis(shortestLifetime) *
+                        config.getLeaseRenewFraction());
+        if (failed) delay = Math.min(delay, config.getLeaseRetryMillis());
+        schedule(delay);
+    }
+
+    private void unmap(ForwardPort port) {
+        NatPmpClient.Protocol protocol = protocolOf(port);
+        long start = System.nanoTime();
+        try {
+            client.unmap(protocol, port.portNumber);
+            record("Unmap" + protocol, start, null);
+        } catch (IOException e) {
+            record("Unmap" + protocol, start, e);
+            // It runs out with its lifetime anyway
+            Logger.warning(this, "Unable to unmap " + protocol + " " + port.portNumber +
+                    " on " + getName() + ". Reason: " + e.getMessage());
+        }
+    }
+
+    private void schedule(long delay) {
+        ticker.removeQueuedJob(refresh);
+        ticker.queueTimedJob(refresh, "UPnP2 NAT-PMP refresh", delay, false, false);
+    }
+
+    private static NatPmpClient.Protocol protocolOf(ForwardPort port) {
+        return port.protocol == ForwardPort.PROTOCOL_TCP_IPV4 ?
+                NatPmpClient.Protocol.TCP : NatPmpClient.Protocol.UDP;
+    }
+
+    /**
+     * Check the gateway's epoch, RFC 6886 section 3.6. It is expected to advance with our clock,
+     * give or take 1/8 and 2 seconds.
+     *
+     * @return whether the gateway restarted or lost its mappings since the last answer
+     */
+    private synchronized boolean epochReset(long epoch) {
+        long now = System.currentTimeMillis();
+        boolean reset = lastEpochMillis != 0 &&
+                epoch + 2 < lastEpoch + (now - lastEpochMillis) * 7 / 8000;
+        lastEpoch = epoch;
+        lastEpochMillis = now;
+        return reset;
+    }
+
+    private void record(String action, long start, IOException failure) {
+        int errorCode = failure instanceof NatPmpException ?
+                ((NatPmpException) failure).getResultCode() : -1;
+        metrics.actionCompleted("NAT-PMP " + action,
+                client.getGateway().getAddress().getHostAddress(), System.nanoTime() - start,
+                failure == null, errorCode);
+    }
+
+    // #############################
+    // Gateway candidates
+    // #############################
+
+    /**
+     * NAT-PMP gateways are the default gateways. Java can't tell them, so they come from the
+     * config, the kernel's routing table or, as a guess, the first address of each private
+     * network we are on.
+     */
+    static List<InetSocketAddress> findGateways(Config config) {
+        List<InetSocketAddress> gateways = new ArrayList<>();
+
+        if (!config.getNatPmpGateways().isEmpty()) {
+            for (String gateway : config.getNatPmpGateways().split(",")) {
+                gateway = gateway.trim();
+                if (gateway.isEmpty()) continue;
+                int colon = gateway.lastIndexOf(':');
+                try {
+                    gateways.add(colon < 0 ?
+                            new InetSocketAddress(gateway, NatPmpClient.PORT) :
+                            new InetSocketAddress(gateway.substring(0, colon),
+                                    Integer.parseInt(gateway.substring(colon + 1))));
+                } catch (IllegalArgumentException e) {
+                    Logger.warning(NatPmpBackend.class, "Invalid NAT-PMP gateway: " + gateway);
+                }
+            }
+            return gateways;
+        }
+
+        for (InetAddress address : readRouteTable()) {
+            gateways.add(new InetSocketAddress(address, NatPmpClient.PORT));
+        }
+        if (!gateways.isEmpty()) return gateways;
+
+        try {
+            for (NetworkInterface networkInterface :
+                    Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || networkInterface.isLoopback()) continue;
+                for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                    if (!(address instanceof Inet4Address) || !address.isSiteLocalAddress()) {
+                        continue;
+                    }
+                    byte[] bytes = address.getAddress();
+                    // We are the router ourselves
+                    if (bytes[3] == 1) continue;
+                    bytes[3] = 1;
+                    InetSocketAddress gateway = new InetSocketAddress(
+                            InetAddress.getByAddress(bytes), NatPmpClient.PORT);
+                    if (!gateways.contains(gateway)) gateways.add(gateway);
+                }
+            }
+        } catch (IOException e) {
+            Logger.warning(NatPmpBackend.class, "Unable to list network interfaces", e);
+        }
+        return gateways;
+    }
+
+    /**
+     * @return default gateways of the Linux routing table, empty elsewhere
+     */
+    private static List<InetAddress> readRouteTable() {
+        List<InetAddress> gateways = new ArrayList<>();
+        if (!ROUTE_TABLE.canRead()) return gateways;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(ROUTE_TABLE))) {
+            // Iface Destination Gateway Flags ..., addresses in little endian hex
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 3 || !fields[1].equals("00000000")) continue;
+
+                long gateway = Long.parseLong(fields[2], 16);
+                if (gateway == 0) continue;
+                InetAddress address = InetAddress.getByAddress(new byte[]{
+                        (byte) gateway, (byte) (gateway >> 8), (byte) (gateway >> 16),
+                        (byte) (gateway >> 24)});
+                if (!gateways.contains(address)) gateways.add(address);
+            }
+        } catch (IOException | NumberFormatException e) {
+            Logger.warning(NatPmpBackend.class, "Unable to read " + ROUTE_TABLE, e);
+        }
+        return gateways;
+    }
+}
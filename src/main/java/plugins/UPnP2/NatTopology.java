@@ -0,0 +1,135 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.types.UDN;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import freenet.support.Logger;
+
+/**
+ * Spots nested gateways, i.e. double NAT like an ISP modem with a home router behind it. The
+ * external IP of the inner gateway is a private address on the LAN of the outer one.
+ * <p>
+ * The outer gateway is the one which answered the {@link OuterGatewayProbe} of the inner one.
+ * Failing that, it is the one whose LAN address is on the subnet of the inner gateway's external
+ * IP. We only know the LAN address of a gateway from its descriptor URL, and not its netmask, so
+ * the usual /24 of home networks is assumed.
+ * <p>
+ * Only outer gateways with a public external IP count, as only their mappings make us reachable.
+ * An outer gateway is chained to one nested gateway at most, our mappings can't go through two.
+ */
+final class NatTopology {
+
+    private NatTopology() {
+    }
+
+    /**
+     * @param probed UDN of the gateway which answered the probe, by root device of the nested
+     *               gateway
+     * @return the outer gateway of each nested gateway, by nested gateway
+     */
+    static Map<GatewayState, GatewayState> findOuterGateways(Collection<GatewayState> gateways,
+                                                             Map<Device, UDN> probed) {
+        Map<GatewayState, GatewayState> outerGateways = new HashMap<>();
+        Set<GatewayState> chained = new HashSet<>();
+        for (GatewayState inner : gateways) {
+            if (inner.getPrivateExternalIP() == null || !inner.isUsable()) continue;
+
+            GatewayState outer = findOuterGateway(inner, gateways, chained,
+                    probed.get(inner.getRoot()));
+            if (outer != null) {
+                outerGateways.put(inner, outer);
+                chained.add(outer);
+            }
+        }
+        return outerGateways;
+    }
+
+    /**
+     * @return whether the external IP a gateway reported is a private address (RFC 1918) or a
+     * shared one of carrier-grade NAT (RFC 6598), i.e. the gateway is behind another NAT
+     */
+    static boolean isPrivateExternalIP(InetAddress address) {
+        if (!(address instanceof Inet4Address)) return false;
+        byte[] bytes = address.getAddress();
+        int first = bytes[0] & 0xff;
+        int second = bytes[1] & 0xff;
+        return first == 10 ||
+                (first == 172 && (second & 0xf0) == 16) ||
+                (first == 192 && second == 168) ||
+                (first == 100 && (second & 0xc0) == 64);
+    }
+
+    /**
+     * @param probedUDN gateway which answered the probe of the nested gateway, or null
+     * @return the outer gateway of a nested gateway, or null if we don't know one
+     */
+    private static GatewayState findOuterGateway(GatewayState inner,
+                                                 Collection<GatewayState> gateways,
+                                                 Set<GatewayState> chained, UDN probedUDN) {
+        GatewayState onSubnet = null;
+        for (GatewayState outer : gateways) {
+            if (outer == inner || outer.getDetectedIP() == null || !outer.isUsable() ||
+                    chained.contains(outer)) {
+                continue;
+            }
+            if (outer.getRoot().getIdentity().getUdn().equals(probedUDN)) return outer;
+
+            InetAddress outerLanIP = getLanAddress(outer.getRoot());
+            if (onSubnet == null && outerLanIP != null &&
+                    sameSubnet(inner.getPrivateExternalIP(), outerLanIP)) {
+                onSubnet = outer;
+            }
+        }
+        return onSubnet;
+    }
+
+    /**
+     * @return the address the gateway has on its LAN, or null if we don't know it
+     */
+    private static InetAddress getLanAddress(Device root) {
+        if (!(root instanceof RemoteDevice)) return null;
+        URL descriptorURL = ((RemoteDevice) root).getIdentity().getDescriptorURL();
+        if (descriptorURL == null) return null;
+        try {
+            return InetAddress.getByName(descriptorURL.getHost());
+        } catch (UnknownHostException e) {
+            Logger.warning(NatTopology.class, "Unknown gateway host: " + descriptorURL, e);
+            return null;
+        }
+    }
+
+    private static boolean sameSubnet(InetAddress a, InetAddress b) {
+        if (!(a instanceof Inet4Address) || !(b instanceof Inet4Address)) return false;
+        byte[] x = a.getAddress();
+        byte[] y = b.getAddress();
+        return x[0] == y[0] && x[1] == y[1] && x[2] == y[2];
+    }
+}
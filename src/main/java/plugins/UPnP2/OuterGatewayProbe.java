@@ -0,0 +1,218 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.model.UnsupportedDataException;
+import org.fourthline.cling.model.message.IncomingDatagramMessage;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.message.discovery.IncomingSearchResponse;
+import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.types.UDN;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+
+/**
+ * Finds the outer gateway of a nested one, see {@link NatTopology}. The SSDP multicasts of the
+ * outer gateway don't get through the inner one, so it is never discovered the usual way.
+ * <p>
+ * Once a gateway reports a private external IP, we send a unicast M-SEARCH to the addresses
+ * routers usually have on that subnet. It goes out through the inner gateway's NAT like any
+ * other datagram. Answers are handed to Cling like those of a multicast search, which fetches
+ * the descriptors and registers the gateway. The gateway which answered is remembered for the
+ * inner one, so they are paired even if its LAN address doesn't tell.
+ */
+class OuterGatewayProbe {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    /**
+     * Gateways wait up to this long before they answer
+     */
+    private static final int MX_SECONDS = 1;
+
+    private static final long ANSWER_MILLIS = TimeUnit.SECONDS.toMillis(MX_SECONDS + 2);
+
+    private static final int MAX_DATAGRAM_BYTES = 2048;
+
+    private final ServiceManager serviceManager;
+
+    /**
+     * UDN of the outer gateway by root device of the inner one
+     */
+    private final ConcurrentMap<Device, UDN> outerGateways = new ConcurrentHashMap<>();
+
+    OuterGatewayProbe(ServiceManager serviceManager) {
+        this.serviceManager = serviceManager;
+    }
+
+    /**
+     * Search for the gateway whose LAN the external IP of a gateway is on. Never blocks.
+     */
+    public void probe(final Device inner, final InetAddress privateExternalIP) {
+        serviceManager.getTicker().queueTimedJob(new Runnable() {
+            @Override
+            public void run() {
+                search(inner, privateExternalIP);
+            }
+        }, "UPnP2 outer gateway probe", 0, false, false);
+    }
+
+    /**
+     * Forget what we found for a gateway, e.g. because it went away
+     */
+    public void forget(Device inner) {
+        outerGateways.remove(inner);
+    }
+
+    /**
+     * @return UDN of the gateway which answered the probe, by root device of the inner gateway
+     */
+    public Map<Device, UDN> getOuterGateways() {
+        return Collections.unmodifiableMap(outerGateways);
+    }
+
+    // #############################
+    // Search
+    // #############################
+
+    /**
+     * Send the M-SEARCH and collect the answers. This method blocks.
+     */
+    private void search(Device inner, InetAddress privateExternalIP) {
+        UpnpService upnpService = serviceManager.getUpnpService();
+        List<InetSocketAddress> targets = ((IGDUpnpServiceConfiguration)
+                upnpService.getConfiguration()).getOuterGatewaySearchAddresses(privateExternalIP);
+        if (targets.isEmpty()) return;
+
+        Logger.normal(this, "Searching for the gateway in front of " + inner.getDisplayString() +
+                " at " + targets);
+
+        InetAddress localAddress = getLocalAddress(targets.get(0));
+        if (localAddress == null) return;
+
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress(localAddress, 0))) {
+            for (InetSocketAddress target : targets) {
+                byte[] request = searchRequest(target);
+                socket.send(new DatagramPacket(request, request.length, target));
+            }
+
+            long deadline = System.currentTimeMillis() + ANSWER_MILLIS;
+            byte[] buffer = new byte[MAX_DATAGRAM_BYTES];
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) break;
+                socket.setSoTimeout((int) remaining);
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                answered(upnpService, inner, localAddress, packet);
+            }
+        } catch (IOException e) {
+            Logger.warning(this, "Unable to search for the gateway in front of " +
+                    inner.getDisplayString(), e);
+        }
+
+        if (!outerGateways.containsKey(inner)) {
+            Logger.normal(this, "No gateway in front of " + inner.getDisplayString() +
+                    " answered");
+        }
+    }
+
+    private void answered(UpnpService upnpService, Device inner, InetAddress localAddress,
+                          DatagramPacket packet) {
+        IncomingDatagramMessage message;
+        try {
+            message = upnpService.getConfiguration().getDatagramProcessor()
+                    .read(localAddress, packet);
+        } catch (UnsupportedDataException e) {
+            if (logMINOR) Logger.minor(this, "Invalid answer from " + packet.getAddress() +
+                    ": " + e);
+            return;
+        }
+        if (!(message.getOperation() instanceof UpnpResponse)) return;
+
+        @SuppressWarnings("unchecked")
+        IncomingSearchResponse response = new IncomingSearchResponse(
+                (IncomingDatagramMessage<UpnpResponse>) message);
+        UDN udn = response.getRootDeviceUDN();
+        if (!response.isSearchResponseMessage() || udn == null ||
+                udn.equals(inner.getIdentity().getUdn())) {
+            return;
+        }
+
+        if (!udn.equals(outerGateways.put(inner, udn))) {
+            Logger.normal(this, "Gateway " + udn + " at " + response.getLocationURL() +
+                    " is in front of " + inner.getDisplayString());
+        }
+        // Cling registers it like one which answered a multicast search
+        upnpService.getRouter().received(message);
+    }
+
+    /**
+     * @return our address on the interface towards the target, or null if there is no route
+     */
+    private InetAddress getLocalAddress(InetSocketAddress target) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(target);
+            InetAddress local = socket.getLocalAddress();
+            if (local != null && !local.isAnyLocalAddress()) return local;
+        } catch (IOException e) {
+            if (logMINOR) Logger.minor(this, "No route towards " + target + ": " + e);
+        }
+        Logger.normal(this, "No route towards " + target);
+        return null;
+    }
+
+    private static byte[] searchRequest(InetSocketAddress target) {
+        return ("M-SEARCH * HTTP/1.1\r\n" +
+                "HOST: " + target.getAddress().getHostAddress() + ":" + target.getPort() +
+                "\r\n" +
+                "MAN: \"ssdp:discover\"\r\n" +
+                "MX: " + MX_SECONDS + "\r\n" +
+                "ST: " + IGDUpnpServiceConfiguration.IGD_V1 + "\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
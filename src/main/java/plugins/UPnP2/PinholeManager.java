@@ -0,0 +1,480 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.meta.Service;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortCallback;
+import freenet.pluginmanager.ForwardPortStatus;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import plugins.UPnP2.actions.AddPinhole;
+import plugins.UPnP2.actions.DeletePinhole;
+import plugins.UPnP2.actions.GetOutboundPinholeTimeout;
+import plugins.UPnP2.actions.IGDErrorCodes;
+import plugins.UPnP2.actions.UpdatePinhole;
+
+/**
+ * Keeps inbound IPv6 pinholes open in the firewalls of IGDv2 gateways, WANIPv6FirewallControl.
+ * IPv6 needs no NAT, so a pinhole lets peers reach our own global addresses on the port.
+ * <p>
+ * Every desired port gets a pinhole per global address, for UDP and TCP alike. Pinholes always
+ * have a lease. It is extended with UpdatePinhole at a fraction of the lease, or of the
+ * firewall's outbound pinhole timeout if that is shorter, since some firewalls close idle
+ * pinholes on that timeout whatever lease they granted.
+ */
+class PinholeManager {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    /**
+     * Lease if the config asks for permanent mappings, pinholes can't be permanent
+     */
+    private static final long DEFAULT_LEASE_SECONDS = TimeUnit.HOURS.toSeconds(1);
+
+    /**
+     * Longest lease WANIPv6FirewallControl allows
+     */
+    private static final long MAX_LEASE_SECONDS = TimeUnit.DAYS.toSeconds(1);
+
+    private final ServiceManager serviceManager;
+
+    private final ConcurrentMap<Service, FirewallState> states = new ConcurrentHashMap<>();
+
+    PinholeManager(ServiceManager serviceManager) {
+        this.serviceManager = serviceManager;
+    }
+
+    /**
+     * Replace the desired ports of a firewall and queue a round on a port mapping thread. Never
+     * blocks.
+     *
+     * @param cb receives the statuses of the IPv6 ports, the others are only opened as a bonus
+     */
+    public void setDesired(Service service, Set<ForwardPort> ports, ForwardPortCallback cb) {
+        FirewallState state = getState(service);
+        state.desired = Collections.unmodifiableSet(new HashSet<>(ports));
+        state.cb = cb;
+        queueRound(service, state);
+    }
+
+    private void queueRound(final Service service, final FirewallState state) {
+        if (!state.roundQueued.compareAndSet(false, true)) {
+            if (logMINOR) Logger.minor(this, "Pinhole round already queued for " + service);
+            return;
+        }
+
+        boolean queued = serviceManager.executePortMappingJob(new Runnable() {
+            @Override
+            public void run() {
+                state.roundQueued.set(false);
+                reconcile(service, state);
+            }
+        });
+        if (!queued) {
+            state.roundQueued.set(false);
+            // Nothing to retry once we shut down
+            if (!state.desired.isEmpty()) {
+                schedule(state, serviceManager.getConfig().getLeaseRetryMillis());
+            }
+        }
+    }
+
+    /**
+     * Open or extend the pinholes of all desired ports and close the others. This method blocks.
+     */
+    private void reconcile(Service service, FirewallState state) {
+        // Gone meanwhile
+        if (states.get(service) != state) return;
+
+        Config config = serviceManager.getConfig();
+        long leaseSeconds = config.getLeaseSeconds() > 0 ?
+                Math.min(config.getLeaseSeconds(), MAX_LEASE_SECONDS) : DEFAULT_LEASE_SECONDS;
+
+        synchronized (state) {
+            Set<ForwardPort> desired = state.desired;
+            List<String> clients = getInternalClients(service);
+            if (clients.isEmpty()) {
+                Logger.normal(this, "No global IPv6 address to open pinholes for");
+            }
+
+            if (state.outboundTimeoutSeconds < 0 && !clients.isEmpty() && !desired.isEmpty()) {
+                state.outboundTimeoutSeconds = getOutboundTimeout(service, clients.get(0),
+                        desired.iterator().next());
+            }
+
+            Map<ForwardPort, ForwardPortStatus> statuses = new HashMap<>();
+            boolean failed = false;
+            Set<PinholeKey> wanted = new HashSet<>();
+            for (ForwardPort port : desired) {
+                for (String client : clients) {
+                    PinholeKey key = new PinholeKey(port, client);
+                    wanted.add(key);
+
+                    int errorCode = open(service, state, key, leaseSeconds);
+                    if (errorCode != 0) failed = true;
+                    if (port.isIP6) {
+                        statuses.put(port, status(port, errorCode, statuses.get(port)));
+                    }
+                }
+            }
+
+            // Ports Fred dropped and addresses we don't have anymore
+            for (Iterator<Map.Entry<PinholeKey, Integer>> it = state.pinholes.entrySet()
+                    .iterator(); it.hasNext(); ) {
+                Map.Entry<PinholeKey, Integer> entry = it.next();
+                if (wanted.contains(entry.getKey())) continue;
+                delete(service, entry.getValue());
+                it.remove();
+            }
+
+            // Even no statuses tell that the firewall is done with the round, see
+            // StatusAggregator
+            ForwardPortCallback cb = state.cb;
+            if (cb != null) cb.portForwardStatus(statuses);
+
+            if (desired.isEmpty()) return;
+            long refreshSeconds = state.outboundTimeoutSeconds > 0 ?
+                    Math.min(leaseSeconds, state.outboundTimeoutSeconds) : leaseSeconds;
+            long delay = (long) (TimeUnit.SECONDS.toMillis(refreshSeconds) *
+                    config.getLeaseRenewFraction());
+            if (failed) delay = Math.min(delay, config.getLeaseRetryMillis());
+            schedule(state, delay);
+        }
+    }
+
+    /**
+     * Extend the pinhole, or add it if there is none
+     *
+     * @return 0 on success, the UPnP error code otherwise, -1 if there is none
+     */
+    private int open(Service service, FirewallState state, PinholeKey key,
+                     final long leaseSeconds) {
+        ControlPoint controlPoint = serviceManager.getUpnpService().getControlPoint();
+
+        Integer uniqueID = state.pinholes.get(key);
+        if (uniqueID != null) {
+            final int[] errorCode = {0};
+            new UpdatePinhole(service, controlPoint, uniqueID, leaseSeconds) {
+                @Override
+                public void success(ActionInvocation invocation) {
+                }
+
+                @Override
+                public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                    String defaultMsg) {
+                    errorCode[0] = IGDErrorCodes.of(invocation);
+                    Logger.warning(this, "Unable to update pinhole. Reason: " + defaultMsg);
+                }
+            }.run(); // Synchronous!
+
+            // The firewall forgot it, e.g. because it restarted. Add it again.
+            if (errorCode[0] != IGDErrorCodes.NO_SUCH_PINHOLE) return errorCode[0];
+            state.pinholes.remove(key);
+        }
+
+        final int[] result = {-1, 0};
+        new AddPinhole(service, controlPoint, key.client, key.port.portNumber,
+                key.port.protocol, leaseSeconds) {
+            @Override
+            protected void success(int uniqueID) {
+                result[0] = uniqueID;
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                result[1] = IGDErrorCodes.of(invocation);
+                Logger.warning(this, "Unable to add pinhole. Reason: " + defaultMsg);
+            }
+        }.run(); // Synchronous!
+
+        if (result[0] < 0) return result[1] != 0 ? result[1] : -1;
+
+        Logger.normal(this, "Opened pinhole for [" + key.client + "]:" + key.port.portNumber +
+                " (" + key.port.name + ")");
+        state.pinholes.put(key, result[0]);
+        return 0;
+    }
+
+    private void delete(Service service, int uniqueID) {
+        new DeletePinhole(service, serviceManager.getUpnpService().getControlPoint(), uniqueID) {
+            @Override
+            public void success(ActionInvocation invocation) {
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                // It runs out with its lease anyway
+                Logger.warning(this, "Unable to delete pinhole. Reason: " + defaultMsg);
+            }
+        }.run(); // Synchronous!
+    }
+
+    /**
+     * @return the firewall's outbound pinhole timeout in seconds, 0 if it didn't tell
+     */
+    private long getOutboundTimeout(Service service, String client, ForwardPort port) {
+        final long[] timeout = {0};
+        new GetOutboundPinholeTimeout(service, serviceManager.getUpnpService().getControlPoint(),
+                client, port.portNumber, port.protocol) {
+            @Override
+            protected void success(long outboundPinholeTimeoutSeconds) {
+                timeout[0] = outboundPinholeTimeoutSeconds;
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                if (logMINOR) Logger.minor(this, "No outbound pinhole timeout: " + defaultMsg);
+            }
+        }.run(); // Synchronous!
+        return timeout[0];
+    }
+
+    /**
+     * @return status of a port, the better one if it has several addresses
+     */
+    private static ForwardPortStatus status(ForwardPort port, int errorCode,
+                                            ForwardPortStatus previous) {
+        if (previous != null && previous.status > 0) return previous;
+        if (errorCode == 0) {
+            return new ForwardPortStatus(ForwardPortStatus.MAYBE_SUCCESS,
+                    "IPv6 pinhole opened", port.portNumber);
+        }
+        if (previous != null) return previous;
+
+        switch (errorCode) {
+            case IGDErrorCodes.ACTION_NOT_AUTHORIZED:
+            case IGDErrorCodes.INBOUND_PINHOLE_NOT_ALLOWED:
+                return new ForwardPortStatus(ForwardPortStatus.DEFINITE_FAILURE,
+                        "Router doesn't allow IPv6 pinholes", port.portNumber);
+            case IGDErrorCodes.FIREWALL_DISABLED:
+                // Nothing blocks the port
+                return new ForwardPortStatus(ForwardPortStatus.PROBABLE_SUCCESS,
+                        "IPv6 firewall disabled", port.portNumber);
+            default:
+                return new ForwardPortStatus(ForwardPortStatus.MAYBE_FAILURE,
+                        "Unable to open IPv6 pinhole, error " + errorCode, port.portNumber);
+        }
+    }
+
+    private void schedule(FirewallState state, long delay) {
+        serviceManager.getTicker().removeQueuedJob(state.refresh);
+        serviceManager.getTicker().queueTimedJob(state.refresh, "UPnP2 pinhole refresh", delay,
+                false, false);
+    }
+
+    // #############################
+    // Cleanup
+    // #############################
+
+    /**
+     * Close all pinholes we opened. This method blocks.
+     */
+    public void removeAll() {
+        for (Map.Entry<Service, FirewallState> entry : states.entrySet()) {
+            FirewallState state = entry.getValue();
+            serviceManager.getTicker().removeQueuedJob(state.refresh);
+            synchronized (state) {
+                state.desired = Collections.emptySet();
+                for (Integer uniqueID : state.pinholes.values()) {
+                    delete(entry.getKey(), uniqueID);
+                }
+                state.pinholes.clear();
+            }
+        }
+    }
+
+    /**
+     * Drop the state of a firewall, e.g. because its gateway went away.
+     */
+    public void forget(Service service) {
+        FirewallState state = states.remove(service);
+        if (state != null) serviceManager.getTicker().removeQueuedJob(state.refresh);
+    }
+
+    private FirewallState getState(final Service service) {
+        FirewallState state = states.get(service);
+        if (state == null) {
+            FirewallState created = new FirewallState(service);
+            state = states.putIfAbsent(service, created);
+            if (state == null) state = created;
+        }
+        return state;
+    }
+
+    // #############################
+    // Addresses
+    // #############################
+
+    /**
+     * @return addresses to open pinholes for in the firewall
+     */
+    List<String> getInternalClients(Service service) {
+        List<String> clients = new ArrayList<>();
+        String configured = serviceManager.getConfig().getPinholeAddress();
+        if (!configured.isEmpty()) {
+            clients.add(configured);
+            return clients;
+        }
+
+        for (Inet6Address address : getGlobalAddresses(service)) {
+            clients.add(address.getHostAddress());
+        }
+        return clients;
+    }
+
+    /**
+     * @return global IPv6 addresses of the interface the gateway was found on, or of all
+     * interfaces if that is unknown
+     */
+    static List<Inet6Address> getGlobalAddresses(Service service) {
+        List<Inet6Address> addresses = new ArrayList<>();
+        try {
+            List<NetworkInterface> networkInterfaces = new ArrayList<>();
+            Device device = service.getDevice();
+            if (device instanceof RemoteDevice) {
+                InetAddress local = ((RemoteDevice) device).getIdentity()
+                        .getDiscoveredOnLocalAddress();
+                NetworkInterface networkInterface = local != null ?
+                        NetworkInterface.getByInetAddress(local) : null;
+                if (networkInterface != null) networkInterfaces.add(networkInterface);
+            }
+            if (networkInterfaces.isEmpty()) {
+                networkInterfaces.addAll(Collections.list(NetworkInterface.getNetworkInterfaces()));
+            }
+
+            for (NetworkInterface networkInterface : networkInterfaces) {
+                for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                    if (isGlobal(address)) addresses.add((Inet6Address) address);
+                }
+            }
+        } catch (IOException e) {
+            Logger.warning(PinholeManager.class, "Unable to list network interfaces", e);
+        }
+        return addresses;
+    }
+
+    private static boolean isGlobal(InetAddress address) {
+        if (!(address instanceof Inet6Address)) return false;
+        if (address.isLoopbackAddress() || address.isLinkLocalAddress() ||
+                address.isSiteLocalAddress() || address.isMulticastAddress() ||
+                address.isAnyLocalAddress()) {
+            return false;
+        }
+        // Unique local addresses, fc00::/7
+        return (address.getAddress()[0] & 0xFE) != 0xFC;
+    }
+
+    // #############################
+    // State
+    // #############################
+
+    private class FirewallState {
+
+        volatile Set<ForwardPort> desired = Collections.emptySet();
+        volatile ForwardPortCallback cb;
+
+        /**
+         * Unique IDs of our pinholes. Guarded by this.
+         */
+        final Map<PinholeKey, Integer> pinholes = new HashMap<>();
+
+        /**
+         * Seconds, 0 if the firewall didn't tell, -1 if we didn't ask yet. Guarded by this.
+         */
+        long outboundTimeoutSeconds = -1;
+
+        final AtomicBoolean roundQueued = new AtomicBoolean();
+
+        /**
+         * Runs on the ticker, hands the round to a port mapping thread
+         */
+        final Runnable refresh;
+
+        FirewallState(final Service service) {
+            refresh = new Runnable() {
+                @Override
+                public void run() {
+                    queueRound(service, FirewallState.this);
+                }
+            };
+        }
+    }
+
+    /**
+     * Identifies a pinhole of a firewall
+     */
+    private static final class PinholeKey {
+        private final ForwardPort port;
+        private final String client;
+
+        PinholeKey(ForwardPort port, String client) {
+            this.port = port;
+            this.client = client;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PinholeKey)) return false;
+
+            PinholeKey that = (PinholeKey) o;
+            return port.equals(that.port) && client.equals(that.client);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * port.hashCode() + client.hashCode();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.meta.Service;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortCallback;
+import freenet.pluginmanager.ForwardPortStatus;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+
+/**
+ * Runs port mapping work on threads of its own, so neither Fred's threads nor the ticker wait
+ * for a slow router. Bounded by a fixed number of threads and a bounded queue.
+ * <p>
+ * Reconciliation rounds are queued per service. While a round of a service is waiting, further
+ * requests for it are folded into that round, which works on the latest desired mappings anyway.
+ */
+class PortMappingExecutor {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Stands in for a missing callback, the map below can't hold null
+     */
+    private static final ForwardPortCallback NO_CALLBACK = new ForwardPortCallback() {
+        @Override
+        public void portForwardStatus(Map<ForwardPort, ForwardPortStatus> statuses) {
+        }
+    };
+
+    private final PortMappingReconciler reconciler;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Callback of the waiting round per service
+     */
+    private final ConcurrentMap<Service, ForwardPortCallback> waitingRounds =
+            new ConcurrentHashMap<>();
+
+    PortMappingExecutor(PortMappingReconciler reconciler, int threads, int queueSize) {
+        this.reconciler = reconciler;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "UPnP2 port mapping " +
+                        threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue a reconciliation round of the service. Never blocks.
+     *
+     * @param cb receives the statuses of the service's mappings in one batch, may be null
+     */
+    public void reconcile(final Service service, ForwardPortCallback cb) {
+        if (waitingRounds.put(service, cb != null ? cb : NO_CALLBACK) != null) {
+            if (logMINOR) Logger.minor(this, "Reconciliation already queued for " + service);
+            return;
+        }
+
+        boolean queued = execute(new Runnable() {
+            @Override
+            public void run() {
+                // Requests from now on need another round
+                ForwardPortCallback cb = waitingRounds.remove(service);
+                reconciler.reconcile(service, cb == NO_CALLBACK ? null : cb);
+            }
+        });
+        if (!queued) waitingRounds.remove(service);
+    }
+
+    /**
+     * Run a job on a port mapping thread. Never blocks.
+     *
+     * @return whether the job was queued. It isn't if the queue is full or we shut down.
+     */
+    public boolean execute(Runnable job) {
+        try {
+            executor.execute(job);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Logger.warning(this, "Port mapping queue is full, dropping job: " + job);
+            return false;
+        }
+    }
+
+    /**
+     * @return threads alive right now
+     */
+    public int getThreadCount() {
+        return executor.getPoolSize();
+    }
+
+    /**
+     * Stop all threads. Running rounds are interrupted.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Logger.warning(this, "Port mapping threads didn't stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        waitingRounds.clear();
+    }
+}
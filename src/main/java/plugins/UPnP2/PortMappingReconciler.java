@@ -0,0 +1,1046 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+import org.fourthline.cling.model.types.UnsignedVariableInteger;
+import org.fourthline.cling.support.igd.callback.PortMappingAdd;
+import org.fourthline.cling.support.igd.callback.PortMappingDelete;
+import org.fourthline.cling.support.model.PortMapping;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortCallback;
+import freenet.pluginmanager.ForwardPortStatus;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import plugins.UPnP2.actions.AddAnyPortMapping;
+import plugins.UPnP2.actions.GetSpecificPortMappingEntry;
+import plugins.UPnP2.actions.IGDErrorCodes;
+import plugins.UPnP2.models.PortMappingKey;
+import plugins.UPnP2.models.PortMappingTable;
+
+/**
+ * Keeps the port mappings on the routers in line with what Fred asked for.
+ * <p>
+ * For every connection service we keep the desired mappings and the mappings we observed on the
+ * router. A reconciliation round reads the router's table in bulk where possible (see
+ * {@link PortMappingTableReader}) and looks up single ports otherwise. It then adds the missing
+ * mappings and deletes the ones which are no longer desired. Requests to the same router are
+ * pipelined with a bounded number in flight. Rounds of different services don't block each
+ * other.
+ * <p>
+ * If another host has the external port Fred asked for, we map a different one: IGDv2 routers
+ * pick a free port themselves, on IGDv1 routers we look up a few random ones at once and take
+ * the first free one. The port we got is kept for later rounds and reported to Fred.
+ */
+class PortMappingReconciler {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    private final ServiceManager serviceManager;
+    private final PortMappingTableReader tableReader;
+
+    private final ConcurrentMap<Service, ServiceState> states = new ConcurrentHashMap<>();
+
+    /**
+     * Limits the requests in flight per root device
+     */
+    private final ConcurrentMap<Device, Semaphore> permits = new ConcurrentHashMap<>();
+
+    private volatile LeaseListener leaseListener;
+
+    /**
+     * Picks the alternative ports tried on IGDv1 routers
+     */
+    private final Random random = new Random();
+
+    /**
+     * Told whenever the lease of one of our mappings starts or ends.
+     */
+    interface LeaseListener {
+        /**
+         * The router confirmed the mapping.
+         *
+         * @param leaseSeconds remaining lease, 0 if the mapping is permanent
+         */
+        void leased(Service service, PortMappingKey key, long leaseSeconds);
+
+        /**
+         * The mapping is gone and won't be renewed.
+         */
+        void released(Service service, PortMappingKey key);
+    }
+
+    PortMappingReconciler(ServiceManager serviceManager) {
+        this.serviceManager = serviceManager;
+        tableReader = new PortMappingTableReader(new PortMappingTableReader.Requests() {
+            @Override
+            public boolean sendAndWait(Service service, ActionCallback request, long deadline) {
+                return PortMappingReconciler.this.sendAndWait(service, request, deadline);
+            }
+        });
+    }
+
+    /**
+     * Replace the desired mappings of a service. Takes effect on the next {@link #reconcile}.
+     * Never blocks, a round in progress keeps the mappings it started with.
+     *
+     * @param forwardPortMap desired mappings and the Fred ports they belong to
+     */
+    public void setDesired(Service service, Map<PortMapping, ForwardPort> forwardPortMap) {
+        ServiceState state = getState(service);
+        Map<PortMappingKey, Desired> desired = new HashMap<>();
+        Set<PortMappingKey> requested = new HashSet<>();
+        for (Map.Entry<PortMapping, ForwardPort> entry : forwardPortMap.entrySet()) {
+            PortMappingKey key = PortMappingKey.of(entry.getKey());
+            requested.add(key);
+            // Stick to the port we got instead last time
+            Integer alternative = state.alternatives.get(key);
+            PortMapping pm = alternative == null ? entry.getKey() :
+                    withExternalPort(entry.getKey(), alternative);
+            desired.put(PortMappingKey.of(pm), new Desired(pm, entry.getValue(), key));
+        }
+        state.alternatives.keySet().retainAll(requested);
+
+        state.desired.set(Collections.unmodifiableMap(desired));
+    }
+
+    /**
+     * Bring the router in line with the desired mappings of the service. Blocks until all
+     * requests are answered, at most for the reconciliation timeout.
+     *
+     * @param fredCallback receives the statuses of all desired mappings in one batch once the
+     *                     round is done, may be null. Statuses arriving after a timeout follow
+     *                     one by one.
+     */
+    public void reconcile(final Service service, ForwardPortCallback fredCallback) {
+        ServiceState state = getState(service);
+        StatusBatch cb = fredCallback == null ? null : new StatusBatch(fredCallback);
+
+        // One round per service at a time
+        synchronized (state) {
+            Map<PortMappingKey, Desired> desired = state.desired.get();
+
+            List<PortMapping> stale = new ArrayList<>();
+            for (Map.Entry<PortMappingKey, PortMapping> entry : state.observed.entrySet()) {
+                if (!desired.containsKey(entry.getKey())) {
+                    stale.add(entry.getValue());
+                }
+            }
+
+            if (desired.isEmpty() && stale.isEmpty()) {
+                // Nothing to do, but the service is done as far as the statuses go
+                if (cb != null) cb.flush();
+                return;
+            }
+
+            Logger.normal(this, "Reconciling port mappings on: " + service + " (" +
+                    desired.size() + " desired, " + stale.size() + " stale)");
+
+            long deadline = deadline();
+            CountDownLatch done = new CountDownLatch(desired.size() + stale.size());
+
+            for (PortMapping pm : stale) {
+                delete(service, state, pm, done, deadline);
+            }
+
+            // One bulk read instead of a lookup per port, where the router supports it. An IGDv1
+            // table walk costs a request per entry, so it is only worth it for small tables.
+            PortMappingTable table = desired.isEmpty() ? null : tableReader.read(service,
+                    Math.min(serviceManager.getConfig().getMaxTableWalkEntries(),
+                            2 * desired.size()), state.table, deadline);
+            if (table != null) state.table = table;
+
+            for (Desired d : desired.values()) {
+                if (table != null && table.knows(PortMappingKey.of(d.portMapping))) {
+                    check(service, state, d, table, cb, done, deadline);
+                } else {
+                    check(service, state, d, cb, done, deadline);
+                }
+            }
+
+            if (!awaitQuietly(done, deadline)) {
+                Logger.warning(this, "Reconciliation of " + service + " timed out");
+                // The router may still answer, but Fred shouldn't wait for it
+                if (cb != null) {
+                    for (Desired d : desired.values()) {
+                        cb.timedOut(d.forwardPort);
+                    }
+                }
+            }
+
+            resolveConflicts(service, state, cb);
+        }
+
+        if (cb != null) cb.flush();
+    }
+
+    /**
+     * Delete every mapping we made. Blocks.
+     */
+    public void removeAll() {
+        for (Service service : states.keySet()) {
+            setDesired(service, Collections.<PortMapping, ForwardPort>emptyMap());
+            reconcile(service, null);
+        }
+    }
+
+    /**
+     * Forget everything about a service, e.g. because its device went away.
+     */
+    public void forget(Service service) {
+        ServiceState state = states.remove(service);
+        if (state != null) {
+            for (PortMappingKey key : state.observed.keySet()) {
+                released(service, key);
+            }
+        }
+
+        Device root = service.getDevice().getRoot();
+        for (Service other : states.keySet()) {
+            if (other.getDevice().getRoot().equals(root)) return;
+        }
+        permits.remove(root);
+    }
+
+    /**
+     * @return mappings we believe exist on the router of the service
+     */
+    public Map<PortMappingKey, PortMapping> getObserved(Service service) {
+        ServiceState state = states.get(service);
+        if (state == null) return Collections.emptyMap();
+        return Collections.unmodifiableMap(state.observed);
+    }
+
+    /**
+     * @return the latest snapshot of the router's NAT table, or null if it couldn't be read
+     */
+    public PortMappingTable getTable(Service service) {
+        ServiceState state = states.get(service);
+        return state == null ? null : state.table;
+    }
+
+    // #############################
+    // Reconciliation steps
+    // #############################
+
+    /**
+     * Decide from the table snapshot whether the router has the mapping and add it if not.
+     */
+    private void check(Service service, ServiceState state, Desired d, PortMappingTable table,
+                       ForwardPortCallback cb, CountDownLatch done, long deadline) {
+        PortMappingKey key = PortMappingKey.of(d.portMapping);
+        PortMapping existing = table.get(key);
+
+        if (existing == null) {
+            Logger.normal(this, "Port is not Mapped: " + d.portMapping);
+            state.observed.remove(key);
+            if (!execute(service, newAdd(null, service, state, d, cb, done), deadline)) {
+                busy(service, d, cb, done);
+            }
+            return;
+        }
+
+        try {
+            checked(null, service, state, d, existing.getInternalClient(),
+                    toSeconds(existing.getLeaseDurationSeconds()), cb, deadline);
+        } finally {
+            done.countDown();
+        }
+    }
+
+    /**
+     * Ask the router whether it has the mapping and add it if not.
+     */
+    private void check(final Service service, final ServiceState state, final Desired d,
+                       final ForwardPortCallback cb, final CountDownLatch done,
+                       final long deadline) {
+        final PortMapping pm = d.portMapping;
+        final PortMappingKey key = PortMappingKey.of(pm);
+
+        boolean sent = execute(service, new GetSpecificPortMappingEntry(service, pm) {
+            @Override
+            public void success(ActionInvocation invocation) {
+                try {
+                    Object internalClient = invocation.getOutput("NewInternalClient").getValue();
+                    Object lease = invocation.getOutput("NewLeaseDuration").getValue();
+                    checked(getControlPoint(), service, state, d, String.valueOf(internalClient),
+                            lease instanceof UnsignedVariableInteger ?
+                                    toSeconds((UnsignedVariableInteger) lease) : 0, cb,
+                            deadline);
+                } finally {
+                    finish(service, done);
+                }
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                try {
+                    if (IGDErrorCodes.of(invocation) == IGDErrorCodes.NO_SUCH_ENTRY_IN_ARRAY) {
+                        Logger.normal(this, "Port is not Mapped: " + pm);
+                        state.observed.remove(key);
+                        newAdd(getControlPoint(), service, state, d, cb, null).run();
+                    } else {
+                        // No answer or an error of the router, it may still have the mapping
+                        Logger.warning(this, "Unable to look up port mapping: " + pm +
+                                ". Reason: " + defaultMsg);
+                        report(cb, d.forwardPort, ForwardPortStatus.MAYBE_FAILURE, defaultMsg,
+                                d.forwardPort.portNumber);
+                    }
+                } finally {
+                    finish(service, done);
+                }
+            }
+        }, deadline);
+        if (!sent) busy(service, d, cb, done);
+    }
+
+    /**
+     * The router has a mapping for the port. Keep it if it is ours, replace it if it is an old
+     * one of ours and report a conflict otherwise.
+     *
+     * @param controlPoint if not null, a replacement is added synchronously with it. Otherwise
+     *                     it is queued like any other request.
+     * @param leaseSeconds remaining lease of the router's mapping, 0 if it is permanent
+     * @param deadline     until when to wait for a queued replacement
+     */
+    private void checked(ControlPoint controlPoint, Service service, ServiceState state,
+                         Desired d, String internalClient, long leaseSeconds,
+                         ForwardPortCallback cb, long deadline) {
+        PortMapping pm = d.portMapping;
+        PortMappingKey key = PortMappingKey.of(pm);
+
+        if (pm.getInternalClient().equals(internalClient)) {
+            if (logMINOR) Logger.minor(this, "Port is already Mapped: " + pm);
+            state.observed.put(key, pm);
+            leased(service, key, leaseSeconds);
+            report(cb, d.forwardPort, ForwardPortStatus.MAYBE_SUCCESS, "",
+                    key.getExternalPort());
+        } else if (state.observed.containsKey(key)) {
+            // Our old mapping for a different local address. Replace it.
+            addAndWait(controlPoint, service, state, d, cb, deadline);
+        } else {
+            Logger.warning(this, "Port " + key + " is mapped to another host: " +
+                    internalClient);
+            conflict(service, state, d, "Port is mapped to " + internalClient, cb);
+        }
+    }
+
+    /**
+     * Add a mapping and wait for the answer.
+     *
+     * @param controlPoint if not null, the request runs on the calling thread which must hold a
+     *                     permit already. Otherwise it is queued like any other request.
+     */
+    private void addAndWait(ControlPoint controlPoint, Service service, ServiceState state,
+                            Desired d, ForwardPortCallback cb, long deadline) {
+        if (controlPoint != null) {
+            newAdd(controlPoint, service, state, d, cb, null).run();
+        } else {
+            CountDownLatch added = new CountDownLatch(1);
+            if (execute(service, newAdd(null, service, state, d, cb, added), deadline)) {
+                awaitQuietly(added, deadline);
+            } else {
+                busy(service, d, cb, added);
+            }
+        }
+    }
+
+    /**
+     * Create a request adding a mapping. Routers which only support permanent mappings get one
+     * without lease.
+     *
+     * @param controlPoint for running it synchronously, or null if it is passed to
+     *                     {@link #execute}
+     * @param done         counted down once it is answered if the request holds a permit,
+     *                     otherwise null
+     */
+    private PortMappingAdd newAdd(final ControlPoint controlPoint, final Service service,
+                                  final ServiceState state, final Desired d,
+                                  final ForwardPortCallback cb, final CountDownLatch done) {
+        final PortMapping pm = state.permanentOnly ? permanent(d.portMapping) : d.portMapping;
+        final PortMappingKey key = PortMappingKey.of(pm);
+
+        Logger.normal(this, "Adding Port Mapping: " + pm);
+
+        return new PortMappingAdd(service, controlPoint, pm) {
+
+            @Override
+            public void success(ActionInvocation invocation) {
+                Logger.normal(this, "Port mapping added: " + pm);
+                state.observed.put(key, pm);
+                leased(service, key, toSeconds(pm.getLeaseDurationSeconds()));
+
+                // Notify Fred the port mapping is successful
+                report(cb, d.forwardPort, ForwardPortStatus.MAYBE_SUCCESS, "",
+                        key.getExternalPort());
+
+                if (done != null) finish(service, done);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                if (IGDErrorCodes.of(invocation) == IGDErrorCodes.ONLY_PERMANENT_LEASES_SUPPORTED
+                        && !state.permanentOnly) {
+                    Logger.normal(this, "Router only supports permanent port mappings: " +
+                            service);
+                    state.permanentOnly = true;
+
+                    // Retry right away without lease, we still hold the permit
+                    newAdd(getControlPoint(), service, state, d, cb, null).run();
+                } else if (IGDErrorCodes.of(invocation) ==
+                        IGDErrorCodes.CONFLICT_IN_MAPPING_ENTRY) {
+                    Logger.warning(this, "Port " + key + " is mapped to another host");
+                    conflict(service, state, d, defaultMsg, cb);
+                } else {
+                    Logger.warning(this, "Failed to add port mapping: " + pm);
+                    Logger.warning(this, "Reason: " + defaultMsg);
+
+                    // Notify Fred the port mapping is failed
+                    report(cb, d.forwardPort, ForwardPortStatus.DEFINITE_FAILURE, defaultMsg,
+                            d.forwardPort.portNumber);
+                }
+
+                if (done != null) finish(service, done);
+            }
+        };
+    }
+
+    private void delete(final Service service, final ServiceState state, final PortMapping pm,
+                        final CountDownLatch done, long deadline) {
+        final PortMappingKey key = PortMappingKey.of(pm);
+
+        Logger.normal(this, "Deleting stale port mapping: " + pm);
+
+        boolean sent = execute(service, new PortMappingDelete(service, pm) {
+            @Override
+            public void success(ActionInvocation invocation) {
+                state.observed.remove(key);
+                released(service, key);
+                finish(service, done);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                if (IGDErrorCodes.of(invocation) == IGDErrorCodes.NO_SUCH_ENTRY_IN_ARRAY) {
+                    // Gone already
+                    state.observed.remove(key);
+                    released(service, key);
+                } else {
+                    Logger.warning(this, "Failed to delete port mapping: " + pm + ". Reason: " +
+                            defaultMsg);
+                }
+                finish(service, done);
+            }
+        }, deadline);
+        // Stays observed, the next round tries again
+        if (!sent) done.countDown();
+    }
+
+    // #############################
+    // External port conflicts
+    // #############################
+
+    /**
+     * Another host has the external port of a desired mapping. It is resolved once the requests
+     * of the round are answered, see {@link #resolveConflicts}, unless there is no way to get
+     * another port.
+     */
+    private void conflict(Service service, ServiceState state, Desired d, String reason,
+                          ForwardPortCallback cb) {
+        if (AddAnyPortMapping.isSupported(service) ||
+                serviceManager.getConfig().getAlternativePorts() > 0) {
+            state.conflicts.add(new Conflict(d, reason));
+        } else {
+            report(cb, d.forwardPort, ForwardPortStatus.DEFINITE_FAILURE, reason,
+                    d.forwardPort.portNumber);
+        }
+    }
+
+    /**
+     * Swap a desired mapping for the one on another external port. Fred may have replaced the
+     * desired mappings meanwhile, see {@link #setDesired}. If the mapping is still among them
+     * it is swapped there, otherwise the alternative port is picked up from there.
+     */
+    private static void replaceDesired(ServiceState state, Desired d, Desired replacement) {
+        PortMappingKey key = PortMappingKey.of(d.portMapping);
+        while (true) {
+            Map<PortMappingKey, Desired> current = state.desired.get();
+            if (!current.containsKey(key)) return;
+
+            Map<PortMappingKey, Desired> desired = new HashMap<>(current);
+            desired.remove(key);
+            desired.put(PortMappingKey.of(replacement.portMapping), replacement);
+            if (state.desired.compareAndSet(current, Collections.unmodifiableMap(desired))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Map the conflicting mappings to other external ports. This method blocks, the caller must
+     * hold the lock of the state but no permit.
+     */
+    private void resolveConflicts(Service service, ServiceState state, ForwardPortCallback cb) {
+        Conflict conflict;
+        while ((conflict = state.conflicts.poll()) != null) {
+            // Fred may have dropped the port meanwhile
+            Desired d = state.desired.get().get(PortMappingKey.of(conflict.desired.portMapping));
+            if (d == null) continue;
+
+            PortMapping pm = AddAnyPortMapping.isSupported(service) ?
+                    addAnyAndWait(service, state, d) : searchAndWait(service, state, d);
+            if (pm == null) {
+                Logger.warning(this, "No other external port for " + d.portMapping + " on " +
+                        service);
+                report(cb, d.forwardPort, ForwardPortStatus.DEFINITE_FAILURE, conflict.reason,
+                        d.forwardPort.portNumber);
+                continue;
+            }
+
+            PortMappingKey key = PortMappingKey.of(pm);
+            Logger.normal(this, "Mapped " + d.requested + " to external port " +
+                    key.getExternalPort() + " instead: " + pm);
+
+            if (key.equals(d.requested)) {
+                state.alternatives.remove(d.requested);
+            } else {
+                state.alternatives.put(d.requested, key.getExternalPort());
+            }
+            replaceDesired(state, d, new Desired(withExternalPort(d.portMapping,
+                    key.getExternalPort()), d.forwardPort, d.requested));
+
+            state.observed.put(key, pm);
+            leased(service, key, toSeconds(pm.getLeaseDurationSeconds()));
+            report(cb, d.forwardPort, ForwardPortStatus.MAYBE_SUCCESS, "",
+                    key.getExternalPort());
+        }
+    }
+
+    /**
+     * Let an IGDv2 router pick a free external port. Blocks.
+     *
+     * @return the mapping the router made, or null if it didn't
+     */
+    private PortMapping addAnyAndWait(final Service service, ServiceState state, Desired d) {
+        final PortMapping pm = state.permanentOnly ? permanent(d.portMapping) : d.portMapping;
+        final PortMapping[] added = new PortMapping[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        long deadline = deadline();
+
+        boolean sent = execute(service, new AddAnyPortMapping(service, pm) {
+            @Override
+            protected void success(int reservedPort) {
+                added[0] = withExternalPort(pm, reservedPort);
+                finish(service, done);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                Logger.warning(this, "Router didn't assign a port for " + pm + ": " +
+                        defaultMsg);
+                finish(service, done);
+            }
+        }, deadline);
+
+        if (sent) awaitQuietly(done, deadline);
+        return added[0];
+    }
+
+    /**
+     * Look up random external ports all at once, bounded by the permits of the router, and map
+     * the first free one. Blocks.
+     *
+     * @return the mapping we made, or null if all of them were taken
+     */
+    private PortMapping searchAndWait(final Service service, ServiceState state, Desired d) {
+        List<Integer> candidates = candidates(state, d,
+                serviceManager.getConfig().getAlternativePorts());
+        final Set<Integer> free = Collections.newSetFromMap(
+                new ConcurrentHashMap<Integer, Boolean>());
+        final String internalClient = d.portMapping.getInternalClient();
+        final CountDownLatch looked = new CountDownLatch(candidates.size());
+        long deadline = deadline();
+
+        for (final Integer port : candidates) {
+            boolean sent = execute(service, new GetSpecificPortMappingEntry(service,
+                    withExternalPort(d.portMapping, port)) {
+                @Override
+                public void success(ActionInvocation invocation) {
+                    // A leftover of ours may be replaced
+                    Object client = invocation.getOutput("NewInternalClient").getValue();
+                    if (internalClient.equals(String.valueOf(client))) free.add(port);
+                    finish(service, looked);
+                }
+
+                @Override
+                public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                    String defaultMsg) {
+                    free.add(port);
+                    finish(service, looked);
+                }
+            }, deadline);
+            // Unknown counts as taken
+            if (!sent) looked.countDown();
+        }
+        awaitQuietly(looked, deadline);
+
+        if (logMINOR) Logger.minor(this, "Free external ports on " + service + ": " + free);
+
+        for (Integer port : candidates) {
+            if (!free.contains(port)) continue;
+            PortMapping pm = withExternalPort(d.portMapping, port);
+            if (addQuietly(service, state, pm)) {
+                return state.permanentOnly ? permanent(pm) : pm;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return random external ports which none of our mappings and none the router is known to
+     * have use
+     */
+    private List<Integer> candidates(ServiceState state, Desired d, int count) {
+        Set<Integer> used = new HashSet<>();
+        used.add(d.requested.getExternalPort());
+        for (PortMappingKey key : state.desired.get().keySet()) {
+            used.add(key.getExternalPort());
+        }
+        for (PortMappingKey key : state.observed.keySet()) {
+            used.add(key.getExternalPort());
+        }
+        PortMappingTable table = state.table;
+        if (table != null) {
+            for (PortMappingKey key : table.getEntries().keySet()) {
+                used.add(key.getExternalPort());
+            }
+        }
+
+        Set<Integer> candidates = new LinkedHashSet<>();
+        // Bounded in case nearly every port is taken
+        for (int i = 0; candidates.size() < count && i < 4 * count; i++) {
+            int port = 1024 + random.nextInt(65536 - 1024);
+            if (!used.contains(port)) candidates.add(port);
+        }
+        return new ArrayList<>(candidates);
+    }
+
+    /**
+     * Add a mapping without reporting anything. Blocks.
+     *
+     * @return whether the router accepted it
+     */
+    private boolean addQuietly(final Service service, final ServiceState state, PortMapping pm) {
+        final PortMapping sent = state.permanentOnly ? permanent(pm) : pm;
+        final AtomicBoolean added = new AtomicBoolean();
+        final AtomicBoolean permanentOnly = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        long deadline = deadline();
+
+        boolean queued = execute(service, new PortMappingAdd(service, sent) {
+            @Override
+            public void success(ActionInvocation invocation) {
+                added.set(true);
+                finish(service, done);
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                permanentOnly.set(IGDErrorCodes.of(invocation) ==
+                        IGDErrorCodes.ONLY_PERMANENT_LEASES_SUPPORTED && !state.permanentOnly);
+                if (logMINOR) Logger.minor(this, "Failed to add " + sent + ": " + defaultMsg);
+                finish(service, done);
+            }
+        }, deadline);
+        if (!queued) return false;
+        awaitQuietly(done, deadline);
+
+        if (permanentOnly.get()) {
+            Logger.normal(this, "Router only supports permanent port mappings: " + service);
+            state.permanentOnly = true;
+            return addQuietly(service, state, pm);
+        }
+        return added.get();
+    }
+
+    // #############################
+    // Leases
+    // #############################
+
+    /**
+     * Renew a single mapping by adding it again. This method blocks.
+     *
+     * @return whether the router accepted it. If so, {@link LeaseListener#leased} has been
+     * called with the new lease.
+     */
+    public boolean renew(Service service, PortMappingKey key, ForwardPortCallback cb) {
+        ServiceState state = states.get(service);
+        if (state == null) return false;
+
+        Desired d = state.desired.get().get(key);
+        if (d == null) return false;
+
+        synchronized (state) {
+            // Whether it is back after the request tells us if it worked
+            state.observed.remove(key);
+            addAndWait(null, service, state, d, cb, deadline());
+            // Someone took the port meanwhile. A mapping on another port replaces this one.
+            resolveConflicts(service, state, cb);
+            return state.observed.containsKey(key);
+        }
+    }
+
+    /**
+     * A mapping was added again without us, e.g. straight to the router while the stack was
+     * released. See {@link DormantMode}.
+     */
+    public void renewed(Service service, PortMappingKey key) {
+        ServiceState state = states.get(service);
+        if (state == null) return;
+
+        PortMapping pm = state.observed.get(key);
+        if (pm != null) leased(service, key, toSeconds(pm.getLeaseDurationSeconds()));
+    }
+
+    /**
+     * @return whether the mapping is still wanted on the service's router
+     */
+    public boolean isDesired(Service service, PortMappingKey key) {
+        ServiceState state = states.get(service);
+        return state != null && state.desired.get().containsKey(key);
+    }
+
+    public void setLeaseListener(LeaseListener leaseListener) {
+        this.leaseListener = leaseListener;
+    }
+
+    private void leased(Service service, PortMappingKey key, long leaseSeconds) {
+        LeaseListener listener = leaseListener;
+        if (listener != null) listener.leased(service, key, leaseSeconds);
+    }
+
+    private void released(Service service, PortMappingKey key) {
+        LeaseListener listener = leaseListener;
+        if (listener != null) listener.released(service, key);
+    }
+
+    private static long toSeconds(UnsignedVariableInteger value) {
+        return value == null ? 0 : value.getValue();
+    }
+
+    /**
+     * @return copy of the mapping on another external port
+     */
+    private static PortMapping withExternalPort(PortMapping pm, int externalPort) {
+        return new PortMapping(pm.isEnabled(), pm.getLeaseDurationSeconds(),
+                pm.getRemoteHost(), new UnsignedIntegerTwoBytes(externalPort),
+                pm.getInternalPort(), pm.getInternalClient(), pm.getProtocol(),
+                pm.getDescription());
+    }
+
+    /**
+     * @return copy of the mapping without lease
+     */
+    private static PortMapping permanent(PortMapping pm) {
+        return new PortMapping(pm.isEnabled(), new UnsignedIntegerFourBytes(0),
+                pm.getRemoteHost(), pm.getExternalPort(), pm.getInternalPort(),
+                pm.getInternalClient(), pm.getProtocol(), pm.getDescription());
+    }
+
+    // #############################
+    // Helpers
+    // #############################
+
+    /**
+     * Run the callback asynchronously once the router of the service has a free slot. The
+     * callback must call {@link #finish} exactly once if it was run.
+     *
+     * @param deadline until when to wait for a slot. A router which stopped answering holds on
+     *                 to all of them.
+     * @return whether the callback was run
+     */
+    private boolean execute(Service service, ActionCallback callback, long deadline) {
+        try {
+            if (!getPermits(service).tryAcquire(
+                    Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                Logger.warning(this, "No free slot for " + callback + " on " + service);
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        serviceManager.getUpnpService().getControlPoint().execute(callback);
+        return true;
+    }
+
+    /**
+     * Run the callback once the router of the service has a free slot and wait for the answer.
+     * Blocks, at most until the deadline.
+     *
+     * @return whether the router answered in time
+     */
+    private boolean sendAndWait(final Service service, final ActionCallback request,
+                                long deadline) {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        boolean sent = execute(service, new ActionCallback(request.getActionInvocation()) {
+            @Override
+            public void success(ActionInvocation invocation) {
+                try {
+                    request.success(invocation);
+                } finally {
+                    finish(service, done);
+                }
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                try {
+                    request.failure(invocation, operation, defaultMsg);
+                } finally {
+                    finish(service, done);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return request.toString();
+            }
+        }, deadline);
+
+        return sent && awaitQuietly(done, deadline);
+    }
+
+    /**
+     * A request for a mapping couldn't be sent in time. We don't know whether the router still
+     * has the mapping.
+     */
+    private void busy(Service service, Desired d, ForwardPortCallback cb, CountDownLatch done) {
+        report(cb, d.forwardPort, ForwardPortStatus.MAYBE_FAILURE,
+                "Gateway didn't answer in time", d.forwardPort.portNumber);
+        done.countDown();
+    }
+
+    /**
+     * @return deadline for the requests of a round, from now on
+     */
+    private long deadline() {
+        return System.currentTimeMillis() + serviceManager.getConfig().getReconcileTimeoutMillis();
+    }
+
+    /**
+     * Wait for outstanding requests, at most until the deadline.
+     *
+     * @return whether all of them were answered
+     */
+    private boolean awaitQuietly(CountDownLatch done, long deadline) {
+        try {
+            return done.await(Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void finish(Service service, CountDownLatch done) {
+        getPermits(service).release();
+        done.countDown();
+    }
+
+    private void report(ForwardPortCallback cb, ForwardPort forwardPort, int status,
+                        String reason, int externalPort) {
+        if (cb == null) return;
+
+        Map<ForwardPort, ForwardPortStatus> statuses = new HashMap<>();
+        statuses.put(forwardPort, new ForwardPortStatus(status, reason, externalPort));
+
+        cb.portForwardStatus(statuses);
+    }
+
+    private ServiceState getState(Service service) {
+        ServiceState state = states.get(service);
+        if (state == null) {
+            ServiceState newState = new ServiceState();
+            state = states.putIfAbsent(service, newState);
+            if (state == null) state = newState;
+        }
+        return state;
+    }
+
+    private Semaphore getPermits(Service service) {
+        Device root = service.getDevice().getRoot();
+        Semaphore semaphore = permits.get(root);
+        if (semaphore == null) {
+            Semaphore newSemaphore = new Semaphore(
+                    serviceManager.getConfig().getMaxActionsPerGateway());
+            semaphore = permits.putIfAbsent(root, newSemaphore);
+            if (semaphore == null) semaphore = newSemaphore;
+        }
+        return semaphore;
+    }
+
+    /**
+     * Desired mapping and the Fred port it belongs to. Immutable.
+     */
+    private static final class Desired {
+        final PortMapping portMapping;
+        final ForwardPort forwardPort;
+        /**
+         * The mapping Fred asked for, which only differs if its external port was taken
+         */
+        final PortMappingKey requested;
+
+        Desired(PortMapping portMapping, ForwardPort forwardPort, PortMappingKey requested) {
+            this.portMapping = portMapping;
+            this.forwardPort = forwardPort;
+            this.requested = requested;
+        }
+    }
+
+    /**
+     * A desired mapping whose external port another host has
+     */
+    private static final class Conflict {
+        final Desired desired;
+        final String reason;
+
+        Conflict(Desired desired, String reason) {
+            this.desired = desired;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * Mappings of a single connection service. Rounds synchronize on it.
+     */
+    private static final class ServiceState {
+        /**
+         * Swapped as a whole, Fred's thread never waits for the lock of a round
+         */
+        final AtomicReference<Map<PortMappingKey, Desired>> desired =
+                new AtomicReference<>(Collections.<PortMappingKey, Desired>emptyMap());
+        final Map<PortMappingKey, PortMapping> observed = new ConcurrentHashMap<>();
+        volatile PortMappingTable table;
+        /**
+         * The router rejected a finite lease before
+         */
+        volatile boolean permanentOnly;
+        /**
+         * External ports we got instead of the ones Fred asked for
+         */
+        final Map<PortMappingKey, Integer> alternatives = new ConcurrentHashMap<>();
+        /**
+         * Left for the end of the round, see {@link #resolveConflicts}
+         */
+        final Queue<Conflict> conflicts = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Collects the statuses of a round to pass them to Fred at once. Forwards them right away
+     * once flushed.
+     */
+    private static class StatusBatch implements ForwardPortCallback {
+
+        private final ForwardPortCallback cb;
+
+        /**
+         * Null once flushed. Guarded by this.
+         */
+        private Map<ForwardPort, ForwardPortStatus> statuses = new HashMap<>();
+
+        StatusBatch(ForwardPortCallback cb) {
+            this.cb = cb;
+        }
+
+        @Override
+        public void portForwardStatus(Map<ForwardPort, ForwardPortStatus> statuses) {
+            synchronized (this) {
+                if (this.statuses != null) {
+                    this.statuses.putAll(statuses);
+                    return;
+                }
+            }
+            cb.portForwardStatus(statuses);
+        }
+
+        /**
+         * Report a port whose status is still due as maybe failed. Its late status follows
+         * after the flush.
+         */
+        synchronized void timedOut(ForwardPort port) {
+            if (statuses != null && !statuses.containsKey(port)) {
+                statuses.put(port, new ForwardPortStatus(ForwardPortStatus.MAYBE_FAILURE,
+                        "Gateway didn't answer in time", port.portNumber));
+            }
+        }
+
+        void flush() {
+            Map<ForwardPort, ForwardPortStatus> batch;
+            synchronized (this) {
+                batch = statuses;
+                statuses = null;
+            }
+            // Even an empty batch tells that the service is done
+            if (batch != null) cb.portForwardStatus(batch);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.support.model.PortMapping;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import plugins.UPnP2.actions.GetGenericPortMappingEntry;
+import plugins.UPnP2.actions.GetListOfPortMappings;
+import plugins.UPnP2.actions.IGDErrorCodes;
+import plugins.UPnP2.models.PortMappingTable;
+
+/**
+ * Reads a router's whole NAT table in bulk. Uses GetListOfPortMappings where the router supports
+ * it (IGDv2) and walks GetGenericPortMappingEntry otherwise (IGDv1).
+ * <p>
+ * All requests go through {@link Requests}, so a read shares the router's slots and the deadline
+ * with the rest of a reconciliation round.
+ */
+class PortMappingTableReader {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    /**
+     * Sends the requests of a read.
+     */
+    interface Requests {
+        /**
+         * Send a request once the router has a free slot and wait for the answer. Blocks.
+         *
+         * @return whether the request was answered before the deadline
+         */
+        boolean sendAndWait(Service service, ActionCallback request, long deadline);
+    }
+
+    private final Requests requests;
+
+    PortMappingTableReader(Requests requests) {
+        this.requests = requests;
+    }
+
+    /**
+     * Read the NAT table behind a connection service. This method blocks, at most until the
+     * deadline.
+     * <p>
+     * A walk costs a request per entry and one to find the end. We only walk if the last
+     * snapshot shows that the whole table fits into the budget, or if there is none yet. Bigger
+     * tables are left to the lookups of single ports.
+     *
+     * @param walkBudget how many entries may be read one by one if the router doesn't support
+     *                   listing them in bulk
+     * @param last       previous snapshot of the table, or null
+     * @return snapshot of the table, or null if it wasn't read
+     */
+    public PortMappingTable read(Service service, int walkBudget, PortMappingTable last,
+                                 long deadline) {
+        if (service.getAction("GetListOfPortMappings") != null) {
+            PortMappingTable table = readList(service, true, deadline);
+            if (table != null) return table;
+        }
+
+        if (service.getAction("GetGenericPortMappingEntry") != null) {
+            if (last != null && (!last.isComplete() || last.size() >= walkBudget)) {
+                if (logMINOR) Logger.minor(this, "Table of " + service + " is too big to walk");
+                return null;
+            }
+            return walk(service, walkBudget, deadline);
+        }
+
+        return null;
+    }
+
+    /**
+     * One GetListOfPortMappings request per protocol.
+     *
+     * @param manage whether to ask for the mappings of other hosts, too
+     */
+    private PortMappingTable readList(Service service, boolean manage, long deadline) {
+        List<PortMapping> portMappings = new ArrayList<>();
+
+        for (PortMapping.Protocol protocol : PortMapping.Protocol.values()) {
+            // Written by the request only, a late answer mustn't touch what we already have
+            final List<PortMapping> listed = new ArrayList<>();
+            final int[] errorCode = {0};
+
+            boolean answered = requests.sendAndWait(service, new GetListOfPortMappings(service,
+                    0, 65535, protocol, manage, 65535) {
+                @Override
+                protected void success(List<PortMapping> entries) {
+                    listed.addAll(entries);
+                }
+
+                @Override
+                public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                    String defaultMsg) {
+                    int code = IGDErrorCodes.of(invocation);
+                    // No mappings in range is a valid answer
+                    if (code != IGDErrorCodes.PORT_MAPPING_NOT_FOUND) {
+                        errorCode[0] = code;
+                        Logger.normal(this, "Unable to list port mappings. Reason: " +
+                                defaultMsg);
+                    }
+                }
+            }, deadline);
+
+            if (!answered) return null;
+            if (errorCode[0] == IGDErrorCodes.ACTION_NOT_AUTHORIZED && manage) {
+                // Not allowed to see other hosts' mappings. Ours are all we need to reconcile.
+                return readList(service, false, deadline);
+            }
+            if (errorCode[0] != 0) return null;
+            portMappings.addAll(listed);
+        }
+
+        if (logMINOR) Logger.minor(this, "Listed " + portMappings.size() + " port mappings on " +
+                service);
+
+        return new PortMappingTable(portMappings, true);
+    }
+
+    /**
+     * Walk the table index by index until the router says there are no more entries. Stops
+     * early at the budget, in which case the snapshot is incomplete.
+     */
+    private PortMappingTable walk(Service service, int max, long deadline) {
+        List<PortMapping> portMappings = new ArrayList<>();
+
+        for (int index = 0; index < max; index++) {
+            final PortMapping[] entry = new PortMapping[1];
+            final int[] errorCode = {0};
+
+            boolean answered = requests.sendAndWait(service, new GetGenericPortMappingEntry(
+                    service, index) {
+                @Override
+                protected void success(PortMapping portMapping) {
+                    entry[0] = portMapping;
+                }
+
+                @Override
+                public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                    String defaultMsg) {
+                    errorCode[0] = IGDErrorCodes.of(invocation);
+                    if (errorCode[0] == 0) errorCode[0] = -1;
+                }
+            }, deadline);
+
+            if (!answered) {
+                if (logMINOR) Logger.minor(this, "Walk of " + service + " ran out of time");
+                return new PortMappingTable(portMappings, false);
+            }
+            if (errorCode[0] != 0) {
+                // Some routers use NoSuchEntryInArray instead of SpecifiedArrayIndexInvalid
+                boolean end = errorCode[0] == IGDErrorCodes.SPECIFIED_ARRAY_INDEX_INVALID
+                        || errorCode[0] == IGDErrorCodes.NO_SUCH_ENTRY_IN_ARRAY;
+                if (logMINOR) Logger.minor(this, "Walked " + portMappings.size() +
+                        " port mappings on " + service + (end ? "" : ", incomplete"));
+                return new PortMappingTable(portMappings, end);
+            }
+            portMappings.add(entry[0]);
+        }
+
+        // Table is bigger than we are willing to walk
+        return new PortMappingTable(portMappings, false);
+    }
+}
@@ -17,7 +17,13 @@
 
 package plugins.UPnP2;
 
+import org.fourthline.cling.model.meta.Service;
+
+import java.util.Collections;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import freenet.pluginmanager.ForwardPort;
@@ -25,11 +31,17 @@ import freenet.pluginmanager.ForwardPortCallback;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Ticker;
+import plugins.UPnP2.models.PortMappingKey;
 
 /**
  * Created by xiaoyu on 1/18/16. 2
+ * <p>
+ * Keeps port mappings alive. Mappings with a lease are renewed one by one at a fraction of their
+ * remaining lease, see {@link Renewal}. A full reconciliation round runs every
+ * {@link #PERMANENT_SWEEP_INTERVAL} while permanent mappings exist, and once per lease otherwise
+ * to pick up new gateways.
  */
-public class PortMappingTicker {
+public class PortMappingTicker implements PortMappingReconciler.LeaseListener {
 
     private static volatile boolean logMINOR;
 
@@ -42,26 +54,56 @@ public class PortMappingTicker {
         });
     }
 
+    private static final long PERMANENT_SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+
     private ServiceManager serviceManager;
     private Ticker ticker;
-    private Set<ForwardPort> ports;
-    private ForwardPortCallback cb;
+    private volatile Set<ForwardPort> ports;
+    private volatile ForwardPortCallback cb;
     private Runnable portMappingRunnable = new Runnable() {
         @Override
         public void run() {
-            serviceManager.addPortMappings(ports, cb);
+            realDoPortMapping();
         }
     };
     private boolean started = false;
 
+    private final Random random = new Random();
+
+    /**
+     * Scheduled renewals of leased mappings
+     */
+    private final ConcurrentMap<RenewalKey, Renewal> renewals = new ConcurrentHashMap<>();
+
+    /**
+     * Mappings the routers hold without lease. They need the periodic sweep.
+     */
+    private final Set<RenewalKey> permanentMappings =
+            Collections.newSetFromMap(new ConcurrentHashMap<RenewalKey, Boolean>());
+
     PortMappingTicker(ServiceManager serviceManager, Ticker ticker) {
         this.serviceManager = serviceManager;
         this.ticker = ticker;
+
+        serviceManager.setLeaseListener(this);
     }
 
-    public void startPortMapping(Set<ForwardPort> ports, ForwardPortCallback cb) {
+    /**
+     * Start mapping the ports once discovery is ready. Returns immediately, the routers are
+     * talked to on port mapping threads.
+     */
+    public void startPortMapping(final Set<ForwardPort> ports, final ForwardPortCallback cb) {
+
+        serviceManager.whenBooted(new Runnable() {
+            @Override
+            public void run() {
+                realStartPortMapping(ports, cb);
+            }
+        });
+
+    }
 
-        serviceManager.waitForBooting();
+    private void realStartPortMapping(Set<ForwardPort> ports, ForwardPortCallback cb) {
 
         synchronized (this) {
             if (started) {
@@ -70,8 +112,8 @@ public class PortMappingTicker {
                     return;
                 }
 
-                // Something changed. Remove old port mappings
-                serviceManager.removeAllPortMappings();
+                // Something changed. Mappings which are no longer wanted are deleted by the
+                // next reconciliation.
             }
 
             started = true;
@@ -80,6 +122,7 @@ public class PortMappingTicker {
             this.cb = cb;
         }
 
+        ticker.removeQueuedJob(portMappingRunnable);
         realDoPortMapping();
 
         Logger.normal(this, "Port Mapping ticker started.");
@@ -90,6 +133,10 @@ public class PortMappingTicker {
         if (!started) return;
 
         ticker.removeQueuedJob(portMappingRunnable);
+        for (Renewal renewal : renewals.values()) {
+            ticker.removeQueuedJob(renewal);
+        }
+        renewals.clear();
 
         Logger.normal(this, "Port Mapping ticker stopped.");
 
@@ -99,10 +146,150 @@ public class PortMappingTicker {
 
         serviceManager.addPortMappings(ports, cb);
 
-        long now = System.currentTimeMillis();
-        ticker.queueTimedJob(portMappingRunnable, "portMappingRunnable" + now,
-                TimeUnit.MINUTES.toMillis(5), false, false);
+        long leaseMillis = TimeUnit.SECONDS.toMillis(serviceManager.getConfig().getLeaseSeconds());
+        long interval = leaseMillis > 0 && permanentMappings.isEmpty() ?
+                Math.max(leaseMillis, PERMANENT_SWEEP_INTERVAL) : PERMANENT_SWEEP_INTERVAL;
+
+        ticker.queueTimedJob(portMappingRunnable, "UPnP2 port mapping sweep", interval, false,
+                true);
+
+    }
+
+    // ###################################
+    // PortMappingReconciler.LeaseListener method(s)
+    // ###################################
+
+    @Override
+    public void leased(Service service, PortMappingKey key, long leaseSeconds) {
+        RenewalKey renewalKey = new RenewalKey(service, key);
+
+        if (leaseSeconds <= 0) {
+            cancelRenewal(renewalKey);
+            permanentMappings.add(renewalKey);
+            return;
+        }
+        permanentMappings.remove(renewalKey);
+
+        Renewal renewal = renewals.get(renewalKey);
+        if (renewal == null) {
+            Renewal newRenewal = new Renewal(service, key);
+            renewal = renewals.putIfAbsent(renewalKey, newRenewal);
+            if (renewal == null) renewal = newRenewal;
+        }
+
+        renewal.failures = 0;
+        renewal.leaseSeconds = leaseSeconds;
+
+        Config config = serviceManager.getConfig();
+        long delay = (long) (TimeUnit.SECONDS.toMillis(leaseSeconds) *
+                config.getLeaseRenewFraction());
+        // Spread renewals so mappings added together don't keep hitting the router together
+        delay += (long) (delay * config.getLeaseRenewJitter() * (2 * random.nextDouble() - 1));
+
+        renewal.schedule(delay);
+    }
+
+    @Override
+    public void released(Service service, PortMappingKey key) {
+        RenewalKey renewalKey = new RenewalKey(service, key);
+        cancelRenewal(renewalKey);
+        permanentMappings.remove(renewalKey);
+    }
+
+    private void cancelRenewal(RenewalKey renewalKey) {
+        Renewal renewal = renewals.remove(renewalKey);
+        if (renewal != null) ticker.removeQueuedJob(renewal);
+    }
+
+    /**
+     * Renews a single leased mapping. On success the reconciler reports the new lease through
+     * {@link #leased}, which schedules the next renewal. Failures are retried with exponential
+     * backoff.
+     * <p>
+     * The ticker only hands it to a port mapping thread, renewing blocks until the router
+     * answered.
+     */
+    private class Renewal implements Runnable {
 
+        private final Service service;
+        private final PortMappingKey key;
+
+        volatile int failures;
+        volatile long leaseSeconds;
+
+        private final Runnable renew = new Runnable() {
+            @Override
+            public void run() {
+                renew();
+            }
+        };
+
+        Renewal(Service service, PortMappingKey key) {
+            this.service = service;
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            if (!serviceManager.executePortMappingJob(renew)) {
+                schedule(serviceManager.getConfig().getLeaseRetryMillis());
+            }
+        }
+
+        private void renew() {
+            if (logMINOR) Logger.minor(this, "Renewing port mapping " + key + " on " + service);
+
+            if (serviceManager.renewPortMapping(service, key)) return;
+
+            if (!serviceManager.isPortMappingDesired(service, key)) {
+                released(service, key);
+                return;
+            }
+
+            failures++;
+            long backoff = serviceManager.getConfig().getLeaseRetryMillis() <<
+                    Math.min(failures - 1, 16);
+            // Keep trying well before the lease runs out, but never hammer the router
+            long delay = Math.min(backoff, Math.max(serviceManager.getConfig()
+                    .getLeaseRetryMillis(), TimeUnit.SECONDS.toMillis(leaseSeconds) / 4));
+
+            Logger.warning(this, "Renewal of port mapping " + key + " failed " + failures +
+                    " times, retrying in " + delay + "ms");
+
+            schedule(delay);
+        }
+
+        void schedule(long delay) {
+            ticker.removeQueuedJob(this);
+            ticker.queueTimedJob(this, "UPnP2 lease renewal", delay, false, false);
+        }
+    }
+
+    /**
+     * Identifies a mapping across services.
+     */
+    private static final class RenewalKey {
+        private final Service service;
+        private final PortMappingKey key;
+
+        RenewalKey(Service service, PortMappingKey key) {
+            this.service = service;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof RenewalKey)) return false;
+
+            RenewalKey that = (RenewalKey) o;
+            return service.equals(that.service) && key.equals(that.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * service.hashCode() + key.hashCode();
+        }
     }
 
 }
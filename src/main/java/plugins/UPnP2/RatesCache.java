@@ -0,0 +1,215 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.meta.Device;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import plugins.UPnP2.models.IGDRates;
+
+/**
+ * Caches {@link IGDRates} per root device for a limited time.
+ * <p>
+ * Only one query per device is in flight at a time: concurrent callers without a cached value
+ * wait for the running one. Once a value expires, callers keep getting it while a single
+ * background refresh fetches a new one. A refresh that fails keeps the rates we have and is
+ * retried sooner.
+ */
+class RatesCache {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    /**
+     * Fetches rates of a single gateway. Blocks.
+     */
+    interface Loader {
+        /**
+         * @return rates of the gateway, or null if it didn't tell
+         */
+        IGDRates load(Device root);
+    }
+
+    /**
+     * Upper bound for the time until a failed refresh is retried
+     */
+    private static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final Loader loader;
+    private final Ticker ticker;
+    private final long ttlMillis;
+
+    private final ConcurrentMap<Device, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Whether stale rates are served without refreshing them
+     */
+    private volatile boolean frozen;
+
+    RatesCache(Loader loader, Ticker ticker, long ttlMillis) {
+        this.loader = loader;
+        this.ticker = ticker;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Get the rates of a gateway. Only blocks if nothing has been fetched yet.
+     *
+     * @return rates of the gateway, or null if it didn't tell
+     */
+    public IGDRates get(Device root) {
+        Entry entry = entries.get(root);
+        if (entry == null) {
+            Entry newEntry = new Entry();
+            entry = entries.putIfAbsent(root, newEntry);
+            if (entry == null) entry = newEntry;
+        }
+
+        synchronized (entry) {
+            if (entry.loaded && !entry.invalidated) {
+                if (System.currentTimeMillis() >= entry.expiryTime && !entry.loading && !frozen) {
+                    // Stale. Serve what we have and refresh in the background.
+                    entry.loading = true;
+                    refreshLater(root, entry);
+                }
+                return entry.rates;
+            }
+
+            if (entry.loading) {
+                // Somebody else is already asking the gateway
+                while (entry.loading) {
+                    try {
+                        entry.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return entry.rates;
+                    }
+                }
+                return entry.rates;
+            }
+
+            entry.loading = true;
+        }
+
+        return load(root, entry);
+    }
+
+    /**
+     * Drop the rates of a gateway, e.g. because its link changed. Callers waiting for a query
+     * already running get its answer, later ones ask the gateway again.
+     */
+    public void invalidate(Device root) {
+        Entry entry = entries.get(root);
+        if (entry == null) return;
+
+        synchronized (entry) {
+            // A running query may have been answered before the change
+            entry.generation++;
+            entry.invalidated = true;
+        }
+        if (logMINOR) Logger.minor(this, "Invalidated rates of " + root.getDisplayString());
+    }
+
+    /**
+     * Forget a gateway which went away
+     */
+    public void forget(Device root) {
+        entries.remove(root);
+    }
+
+    /**
+     * Keep serving the rates we have, however old, e.g. while the gateways aren't talked to.
+     * Gateways whose rates weren't fetched yet are still asked.
+     */
+    public void setFrozen(boolean frozen) {
+        this.frozen = frozen;
+    }
+
+    private void refreshLater(final Device root, final Entry entry) {
+        ticker.queueTimedJob(new Runnable() {
+            @Override
+            public void run() {
+                load(root, entry);
+            }
+        }, "UPnP2 rates refresh", 0, false, false);
+    }
+
+    private IGDRates load(Device root, Entry entry) {
+        int generation;
+        synchronized (entry) {
+            generation = entry.generation;
+        }
+
+        IGDRates rates = null;
+        try {
+            rates = loader.load(root);
+        } finally {
+            synchronized (entry) {
+                long now = System.currentTimeMillis();
+                if (rates == null && entry.loaded && entry.rates != null &&
+                        !entry.invalidated) {
+                    // One lost answer shouldn't cost the rates for a whole TTL
+                    if (logMINOR) Logger.minor(this, "Refreshing rates of " +
+                            root.getDisplayString() + " failed, keeping the old ones");
+                    entry.expiryTime = now + Math.min(ttlMillis, RETRY_MILLIS);
+                } else {
+                    entry.rates = rates;
+                    entry.expiryTime = now + ttlMillis;
+                }
+                entry.loaded = true;
+                entry.invalidated = entry.generation != generation;
+                entry.loading = false;
+                entry.notifyAll();
+                rates = entry.rates;
+            }
+        }
+        return rates;
+    }
+
+    /**
+     * Cached rates of a single gateway. Guarded by itself.
+     */
+    private static class Entry {
+        IGDRates rates;
+        boolean loaded;
+        long expiryTime;
+        boolean loading;
+        /**
+         * Whether the rates are outdated and must not be served anymore
+         */
+        boolean invalidated;
+        /**
+         * Counts the invalidations, so a query running across one doesn't count as fresh
+         */
+        int generation;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * One-shot gate telling whether discovery is far enough to answer requests. It opens a settle
+ * window after the first gateway with a connection service and an external IP has been reported,
+ * or when the deadline passes, whichever comes first.
+ * <p>
+ * Callers that can't block register a listener with {@link #whenOpen(Runnable)}. Listeners are
+ * run on the ticker's executor, never on the thread that opened the gate.
+ */
+class ReadinessGate {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    private final Ticker ticker;
+    private final long settleMillis;
+    private final long deadlineMillis;
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    /**
+     * Listeners waiting for the gate to open. Guarded by this.
+     */
+    private final List<Runnable> listeners = new ArrayList<>();
+
+    /**
+     * Whether the settle window is already running. Guarded by this.
+     */
+    private boolean settling = false;
+
+    private final Runnable openJob = new Runnable() {
+        @Override
+        public void run() {
+            open();
+        }
+    };
+
+    ReadinessGate(Ticker ticker, long settleMillis, long deadlineMillis) {
+        this.ticker = ticker;
+        this.settleMillis = settleMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Start the deadline countdown. The gate will open at the latest when it expires.
+     */
+    public void arm() {
+        ticker.queueTimedJob(openJob, "UPnP2 boot deadline", deadlineMillis, false, false);
+    }
+
+    /**
+     * Report that a gateway is usable. The gate opens once the settle window has passed, giving
+     * other gateways on the LAN a chance to report as well.
+     */
+    public void gatewayReady() {
+        synchronized (this) {
+            if (isOpen() || settling) return;
+            settling = true;
+        }
+
+        if (logMINOR) Logger.minor(this, "Gateway ready, opening in " + settleMillis + "ms");
+
+        if (settleMillis <= 0) {
+            open();
+        } else {
+            ticker.queueTimedJob(openJob, "UPnP2 boot settle", settleMillis, false, false);
+        }
+    }
+
+    /**
+     * Open the gate right away and run all waiting listeners.
+     */
+    public void open() {
+        List<Runnable> waiting;
+        synchronized (this) {
+            if (isOpen()) return;
+            latch.countDown();
+            waiting = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+
+        // Whichever of settle or deadline fired, the other one is pointless now
+        ticker.removeQueuedJob(openJob);
+
+        Logger.normal(this, "UPnP discovery ready");
+
+        for (Runnable listener : waiting) {
+            dispatch(listener);
+        }
+    }
+
+    public boolean isOpen() {
+        return latch.getCount() == 0;
+    }
+
+    /**
+     * Run the listener once the gate is open. Never blocks.
+     */
+    public void whenOpen(Runnable listener) {
+        synchronized (this) {
+            if (!isOpen()) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        dispatch(listener);
+    }
+
+    /**
+     * Block until the gate is open, at most until the deadline.
+     *
+     * @return whether the gate is open
+     */
+    public boolean await() {
+        return await(deadlineMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Block until the gate is open or the timeout passes.
+     *
+     * @return whether the gate is open
+     */
+    public boolean await(long timeout, TimeUnit unit) {
+        try {
+            return latch.await(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return isOpen();
+        }
+    }
+
+    private void dispatch(Runnable listener) {
+        ticker.queueTimedJob(listener, "UPnP2 boot listener", 0, false, false);
+    }
+}
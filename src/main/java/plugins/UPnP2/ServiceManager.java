@@ -18,37 +18,50 @@
 package plugins.UPnP2;
 
 import org.fourthline.cling.UpnpService;
-import org.fourthline.cling.UpnpServiceImpl;
 import org.fourthline.cling.controlpoint.SubscriptionCallback;
 import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.gena.RemoteGENASubscription;
 import org.fourthline.cling.model.message.UpnpResponse;
 import org.fourthline.cling.model.meta.Device;
 import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.meta.RemoteService;
 import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.protocol.sync.SendingUnsubscribe;
 import org.fourthline.cling.support.model.PortMapping;
+import org.fourthline.cling.transport.RouterException;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import freenet.pluginmanager.DetectedIP;
 import freenet.pluginmanager.ForwardPort;
 import freenet.pluginmanager.ForwardPortCallback;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
+import freenet.support.Ticker;
 import freenet.support.transport.ip.IPUtil;
 import plugins.UPnP2.actions.GetCommonLinkProperties;
 import plugins.UPnP2.actions.GetExternalIPSync;
 import plugins.UPnP2.actions.GetLinkLayerMaxBitRates;
 import plugins.UPnP2.models.IGDRates;
+import plugins.UPnP2.models.PortMappingKey;
+import plugins.UPnP2.natpmp.NatPmpClient;
 
 /**
  * Manage UPnP Services.
@@ -70,31 +83,239 @@ class ServiceManager {
     /**
      * Cling Core UPnP stack
      */
-    private UpnpService upnpService = new UpnpServiceImpl();
+    private final IGDUpnpService upnpService;
 
     /**
-     * Services of type WANIPConnection or WANPPPConnection
+     * Counters of the UPnP traffic
      */
-    private Set<Service> connectionServices = new CopyOnWriteArraySet<>();
+    private final Metrics metrics = new Metrics();
 
     /**
-     * Services of type WANCommonInterfaceConfig
+     * State of all gateways by root device. The map and the states in it are immutable and
+     * replaced as a whole, so readers always see a consistent view.
      */
-    private Set<Service> commonServices = new CopyOnWriteArraySet<>();
+    private final AtomicReference<Map<Device, GatewayState>> gateways =
+            new AtomicReference<>(Collections.<Device, GatewayState>emptyMap());
+
+    private final Config config;
+    private final Ticker ticker;
+
+    /**
+     * Opens once discovery found a usable gateway or gave up
+     */
+    private final ReadinessGate readinessGate;
+
+    /**
+     * Actively asks for external IPs if no GENA event brought one during boot
+     */
+    private final Runnable bootIPProbe = new Runnable() {
+        @Override
+        public void run() {
+            if (!readinessGate.isOpen()) {
+                realGetExternalIPs();
+            }
+        }
+    };
 
     /**
-     * Callbacks for UPnP events
+     * Pushes changes of the external IPs to Fred
      */
-    private Map<Service, SubscriptionCallback> subscriptionCallbacks = new ConcurrentHashMap<>();
+    private final ExternalIPMonitor externalIPMonitor;
+
     /**
-     * Store detected External IPs for different services
+     * Link rates per gateway
      */
-    private Map<Device, DetectedIP> detectedIPs = new ConcurrentHashMap<>();
+    private final RatesCache ratesCache;
 
-    private volatile boolean booted = false;
+    /**
+     * Throughput the gateways pass, an alternative to their link rates
+     */
+    private final ThroughputSampler throughputSampler;
+
+    /**
+     * Port mappings per connection service
+     */
+    private final PortMappingReconciler reconciler = new PortMappingReconciler(this);
+
+    /**
+     * IPv6 pinholes per firewall service
+     */
+    private final PinholeManager pinholeManager = new PinholeManager(this);
+
+    /**
+     * Threads the reconciliation rounds and renewals run on
+     */
+    private final PortMappingExecutor portMappingExecutor;
+
+    /**
+     * Merges the port mapping statuses of all services for Fred
+     */
+    private final StatusAggregator statusAggregator;
+
+    /**
+     * Chained mappings through nested gateways by inner connection service, see
+     * {@link NatTopology}. Found again on every round.
+     */
+    private volatile Map<Service, ChainedMapping> chains = Collections.emptyMap();
+
+    /**
+     * Searches for the outer gateways of nested ones
+     */
+    private final OuterGatewayProbe outerGatewayProbe = new OuterGatewayProbe(this);
+
+    /**
+     * Gateways of earlier runs
+     */
+    private final GatewayCache gatewayCache;
 
     private IGDRegistryListener registryListener;
 
+    /**
+     * Subscribes again when GENA subscriptions fail, polls gateways whose events don't arrive
+     */
+    private final SubscriptionSupervisor subscriptionSupervisor;
+
+    /**
+     * Binds the stack again when the network interfaces changed
+     */
+    private final InterfaceWatcher interfaceWatcher;
+
+    /**
+     * Releases the stack while there is nothing to do
+     */
+    private final DormantMode dormantMode;
+
+    /**
+     * Ports of the last round, they are refreshed directly while dormant
+     */
+    private volatile Set<ForwardPort> lastPorts;
+
+    /**
+     * Search answers arrive within MX seconds, 3 by default, and refresh the expiry of the
+     * gateways before the registry maintainer looks at them again after a wake up
+     */
+    private static final long REGISTRY_RESUME_DELAY_MILLIS = 5000;
+
+    private final Runnable registryResume = new Runnable() {
+        @Override
+        public void run() {
+            if (!dormantMode.isDormant()) upnpService.getRegistry().resume();
+        }
+    };
+
+    /**
+     * Adds every mapping we observed again while dormant, instead of a reconciliation round
+     */
+    private final Runnable dormantRefresh = new Runnable() {
+        @Override
+        public void run() {
+            for (Service connectionService : getConnectionServices()) {
+                for (Map.Entry<PortMappingKey, PortMapping> entry :
+                        reconciler.getObserved(connectionService).entrySet()) {
+                    if (!dormantMode.addPortMapping(connectionService, entry.getValue())) {
+                        // The stack finds out what went wrong
+                        dormantMode.wake("port mappings");
+                        for (Device root : gateways.get().keySet()) {
+                            revalidatePortMappings(root);
+                        }
+                        return;
+                    }
+                    reconciler.renewed(connectionService, entry.getKey());
+                }
+            }
+        }
+    };
+
+    /**
+     * UPnP IGD, our original and default backend
+     */
+    private final Backend igdBackend = new Backend() {
+        @Override
+        public String getName() {
+            return "UPnP IGD";
+        }
+
+        @Override
+        public Collection<DetectedIP> getExternalIPs() {
+            return getIGDExternalIPs();
+        }
+
+        @Override
+        public void addPortMappings(Set<ForwardPort> ports, ForwardPortCallback cb) {
+            addIGDPortMappings(ports, cb);
+        }
+
+        @Override
+        public void removeAllPortMappings() {
+            reconciler.removeAll();
+        }
+    };
+
+    /**
+     * NAT-PMP gateway, null unless one answered the probe
+     */
+    private volatile NatPmpBackend natPmpBackend;
+
+    /**
+     * Backend whose gateway answered first, null until one did
+     */
+    private final AtomicReference<Backend> fastestBackend = new AtomicReference<>();
+
+    /**
+     * Looks for a NAT-PMP gateway while UPnP discovery runs
+     */
+    private final Runnable natPmpProbe = new Runnable() {
+        @Override
+        public void run() {
+            NatPmpClient.Probe probe = NatPmpBackend.probe(config);
+            if (probe == null) return;
+
+            NatPmpBackend backend = new NatPmpBackend(probe, config, ticker, metrics,
+                    statusAggregator, portMappingExecutor);
+            Logger.normal(ServiceManager.this, "Found " + backend.getName());
+            natPmpBackend = backend;
+            backendReady(backend);
+        }
+    };
+
+    ServiceManager(Config config, Ticker ticker, File gatewayCacheFile) {
+        this(config, ticker, gatewayCacheFile,
+                new IGDUpnpServiceConfiguration(InterfaceFilter.of(config)));
+    }
+
+    /**
+     * Tests run the stack on their own configuration, e.g. one bound to loopback
+     */
+    ServiceManager(Config config, Ticker ticker, File gatewayCacheFile,
+                   IGDUpnpServiceConfiguration upnpServiceConfiguration) {
+        this.config = config;
+        this.ticker = ticker;
+        upnpService = new IGDUpnpService(upnpServiceConfiguration, metrics);
+        gatewayCache = new GatewayCache(this, gatewayCacheFile);
+        readinessGate = new ReadinessGate(ticker, config.getBootSettleMillis(),
+                config.getBootDeadlineMillis());
+        portMappingExecutor = new PortMappingExecutor(reconciler,
+                config.getPortMappingThreads(), config.getPortMappingQueueSize());
+        // A round may wait for a thread before it runs into its own timeout
+        statusAggregator = new StatusAggregator(ticker, 2 * config.getReconcileTimeoutMillis());
+        ratesCache = new RatesCache(new RatesCache.Loader() {
+            @Override
+            public IGDRates load(Device root) {
+                return loadRates(root);
+            }
+        }, ticker, config.getRatesTtlMillis());
+        externalIPMonitor = new ExternalIPMonitor(this, ticker,
+                config.getIPChangeDebounceMillis(), config.getIPVerifyMillis());
+        throughputSampler = new ThroughputSampler(this, ticker,
+                config.getThroughputSampleMillis(), config.getThroughputHistorySize());
+        subscriptionSupervisor = new SubscriptionSupervisor(this, ticker,
+                config.getResubscribeMillis(), config.getIPPollMinMillis(),
+                config.getIPPollMaxMillis());
+        interfaceWatcher = new InterfaceWatcher(this, ticker, config.getInterfaceCheckMillis());
+        dormantMode = new DormantMode(this, ticker, config.getDormantAfterMillis(),
+                (int) config.getIPQueryTimeoutMillis());
+    }
+
     /**
      * Initialize service manager
      */
@@ -103,77 +324,219 @@ class ServiceManager {
         // This will create necessary network resources for UPnP right away
         Logger.normal(this, "Starting Cling...");
 
+        readinessGate.arm();
+        subscriptionSupervisor.start();
+
         // Add listeners for upnpService
         registryListener = new IGDRegistryListener(this);
         upnpService.getRegistry().addListener(registryListener);
 
-        // Send a search message to all devices and services, they should respond soon
-        upnpService.getControlPoint().search();
+        // Gateways of the last run are usable right away, discovery will confirm them
+        gatewayCache.hydrate();
+
+        // Send a search message to gateways, they should respond soon
+        searchGateways();
+
+        // NAT-PMP gateways answer a single packet, they may well beat discovery
+        if (config.isNatPmpEnabled()) {
+            portMappingExecutor.execute(natPmpProbe);
+        }
+
+        externalIPMonitor.start();
+
+        if (!Config.BANDWIDTH_LINK.equals(config.getBandwidthSource())) {
+            throughputSampler.start();
+        }
+
+        if (config.getInterfaceCheckMillis() > 0) {
+            interfaceWatcher.start();
+        }
+
+        if (config.getDormantAfterMillis() > 0) {
+            dormantMode.start();
+        }
+
+    }
 
+    public void searchGateways() {
+        upnpService.searchGateways();
     }
 
     public void shutdown() {
+        subscriptionSupervisor.stop();
+        externalIPMonitor.stop();
+        throughputSampler.stop();
+        interfaceWatcher.stop();
+        dormantMode.stop();
+
+        // Remove our port mappings while the stack is still up
+        dormantMode.wake("shutdown");
+        portMappingExecutor.shutdown();
+        removeAllPortMappings();
+
         // Release all resources and advertise BYEBYE to other UPnP devices
+        ticker.removeQueuedJob(registryResume);
         upnpService.shutdown();
     }
 
-    synchronized public void waitForBooting() {
-        // If no connection services available and it's the first call,
-        // we retry 10 times for the plugin to get enough IGDs
-        if (!booted) {
-            for (int count = 0; count < 10; count++) {
-                if (connectionServices.size() == 0) {
-                    // No devices found yet
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                } else {
-                    // Devices found. Wait for 5 more seconds for more devices
+    /**
+     * Block until discovery found a usable gateway, at most until the boot deadline. Prefer
+     * {@link #whenBooted(Runnable)} where the caller doesn't need an answer right away.
+     */
+    public void waitForBooting() {
+        readinessGate.await();
+    }
+
+    /**
+     * Run the job once discovery found a usable gateway or the boot deadline passed. Never
+     * blocks the caller.
+     */
+    public void whenBooted(Runnable job) {
+        readinessGate.whenOpen(job);
+    }
+
+    /**
+     * Ask the backend which answered first for the external IPs, the others if it has none.
+     * Global IPv6 addresses behind an IGDv2 firewall are included. This method blocks.
+     */
+    public Collection<DetectedIP> getExternalIPs() {
+        waitForBooting();
+
+        List<DetectedIP> detectedIPs = new ArrayList<>();
+        for (Backend backend : getBackends()) {
+            Collection<DetectedIP> backendIPs = backend.getExternalIPs();
+            if (backendIPs != null) {
+                detectedIPs.addAll(backendIPs);
+                break;
+            }
+        }
+        detectedIPs.addAll(getIPv6Addresses());
+
+        return detectedIPs.isEmpty() ? null : detectedIPs;
+    }
+
+    /**
+     * IPv6 needs no NAT. Our own global addresses are reachable once the gateway's firewall
+     * lets peers in, so they are what we report.
+     */
+    private List<DetectedIP> getIPv6Addresses() {
+        List<DetectedIP> detectedIPs = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (GatewayState gateway : gateways.get().values()) {
+            for (Service firewallService : gateway.getFirewallServices()) {
+                for (String client : pinholeManager.getInternalClients(firewallService)) {
+                    if (!seen.add(client)) continue;
                     try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
+                        InetAddress address = InetAddress.getByName(client);
+                        if (IPUtil.isValidAddress(address, false)) {
+                            detectedIPs.add(new DetectedIP(address, DetectedIP.NOT_SUPPORTED));
+                        }
+                    } catch (UnknownHostException e) {
+                        Logger.warning(this, "Invalid IPv6 address: " + client, e);
                     }
-                    break;
                 }
-                // Whatever any devices found, we won't sleep any more. If new devices later
-                // added, Cling will automatically subscribe the service's event and report IPs
             }
-            booted = true;
         }
-
+        return detectedIPs;
     }
 
-    public Collection<DetectedIP> getExternalIPs() {
-        waitForBooting();
-
-        if (connectionServices.size() == 0) {
+    private Collection<DetectedIP> getIGDExternalIPs() {
+        if (getConnectionServices().size() == 0) {
             return null;
         }
 
+        Collection<DetectedIP> detectedIPs = getDetectedIPs();
         if (detectedIPs.size() > 0) {
             // IP is found from Service event callback
-            return detectedIPs.values();
+            return detectedIPs;
         } else {
             // Maybe the event is not fired for some reason. We need to request the IP manually.
             realGetExternalIPs();
 
+            detectedIPs = getDetectedIPs();
             if (detectedIPs.size() > 0) {
-                return detectedIPs.values();
+                return detectedIPs;
             } else {
                 return null;
             }
         }
     }
 
+    /**
+     * Look the external IPs up again, e.g. in case a GENA event got lost. Changes are handled
+     * like events. Gateways whose events don't arrive are polled more often anyway, see
+     * {@link SubscriptionSupervisor}, and skipped. This method blocks.
+     */
+    public void verifyExternalIPs() {
+        if (!readinessGate.isOpen()) return;
+        if (dormantMode.isDormant()) {
+            if (dormantMode.verifyExternalIPs()) return;
+            // The stack looks the change up again and handles it like an event
+            dormantMode.wake("external IP check");
+        }
+
+        List<Service> services = getConnectionServices();
+        for (Iterator<Service> it = services.iterator(); it.hasNext(); ) {
+            if (subscriptionSupervisor.isPolled(it.next())) it.remove();
+        }
+        if (!services.isEmpty()) realGetExternalIPs(services);
+    }
+
+    /**
+     * Look the external IP of a single gateway up again, e.g. because it came from the cache of
+     * the last session. Changes are handled like events. Never blocks.
+     */
+    public void verifyExternalIP(Device root) {
+        GatewayState gateway = gateways.get().get(root);
+        if (gateway == null || gateway.getConnectionServices().isEmpty()) return;
+
+        final List<Service> services = gateway.getConnectionServices();
+        executePortMappingJob(new Runnable() {
+            @Override
+            public void run() {
+                realGetExternalIPs(services);
+            }
+        });
+    }
+
+    /**
+     * Ask a single gateway for its external IP. This method blocks.
+     *
+     * @return whether it changed
+     */
+    public boolean pollExternalIP(Service connectionService) {
+        Device root = connectionService.getDevice().getRoot();
+        GatewayState before = gateways.get().get(root);
+        realGetExternalIPs(Collections.singletonList(connectionService));
+        GatewayState after = gateways.get().get(root);
+        if (before == null || after == null) return false;
+
+        return !same(before.getDetectedIP(), after.getDetectedIP()) ||
+                !same(before.getPrivateExternalIP(), after.getPrivateExternalIP());
+    }
+
+    private static boolean same(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
     /**
      * Actively request external IP addresses. This method blocks.
+     * <p>
+     * All connection services are queried at once. We return as soon as a quorum of them reported
+     * a valid address, all of them answered, or the timeout passed, so the cost is that of the
+     * slowest live gateway rather than the sum of all of them. Late answers are still recorded.
      */
     private void realGetExternalIPs() {
+        realGetExternalIPs(getConnectionServices());
+    }
+
+    /**
+     * Same for some connection services only
+     */
+    private void realGetExternalIPs(final List<Service> services) {
+        dormantMode.wake("external IP lookup");
 
-        if (connectionServices.size() == 0) {
+        if (services.size() == 0) {
             Logger.warning(this, "No internet gateway device detected. Unable to get external " +
                     "address.");
             return;
@@ -181,27 +544,36 @@ class ServiceManager {
 
         Logger.normal(this, "Try to get external IP");
 
-        for (Service connectionService : connectionServices) {
+        final int quorum = config.getIPQueryQuorum() > 0 ?
+                Math.min(config.getIPQueryQuorum(), services.size()) : services.size();
+        final AtomicInteger answered = new AtomicInteger();
+        final AtomicInteger succeeded = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
 
-            new GetExternalIPSync(connectionService, upnpService.getControlPoint()) {
+        List<Future<?>> invocations = new ArrayList<>();
+        for (Service connectionService : services) {
+            GetExternalIPSync callback = new GetExternalIPSync(connectionService) {
 
                 @Override
                 protected void success(String externalIPAddress) {
                     try {
-                        System.out.println("Get external IP: " + externalIPAddress);
+                        Logger.normal(this, "Get external IP: " + externalIPAddress);
 
-                        InetAddress inetAddress = InetAddress.getByName
-                                (externalIPAddress);
+                        InetAddress inetAddress = InetAddress.getByName(externalIPAddress);
+                        Device root = getActionInvocation().getAction().getService()
+                                .getDevice().getRoot();
                         if (IPUtil.isValidAddress(inetAddress, false)) {
-                            detectedIPs.put(getActionInvocation().getAction()
-                                            .getService().getDevice().getRoot(),
-                                    new DetectedIP(inetAddress,
-                                            DetectedIP.NOT_SUPPORTED));
+                            addDetectedIP(root, new DetectedIP(inetAddress,
+                                    DetectedIP.NOT_SUPPORTED));
+                            succeeded.incrementAndGet();
+                        } else if (NatTopology.isPrivateExternalIP(inetAddress)) {
+                            addPrivateExternalIP(root, inetAddress);
                         }
 
                     } catch (UnknownHostException e) {
-                        e.printStackTrace();
+                        Logger.warning(this, "Invalid external IP: " + externalIPAddress, e);
                     }
+                    answer();
                 }
 
                 @Override
@@ -210,9 +582,36 @@ class ServiceManager {
                                     String defaultMsg) {
                     Logger.warning(this, "Unable to get external IP. Reason: " +
                             defaultMsg);
+                    answer();
+                }
+
+                private void answer() {
+                    if (answered.incrementAndGet() == services.size()
+                            || succeeded.get() >= quorum) {
+                        done.countDown();
+                    }
                 }
-            }.run(); // Synchronous!
+            };
+            invocations.add(upnpService.getControlPoint().execute(callback));
+        }
 
+        try {
+            if (!done.await(config.getIPQueryTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                Logger.warning(this, "Only " + answered.get() + " of " + services.size() +
+                        " gateways answered within " + config.getIPQueryTimeoutMillis() + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (answered.get() == services.size()) return;
+
+        // Past the deadline nobody waits for the remaining answers. Quorum reached means the
+        // others are still welcome to report.
+        if (succeeded.get() < quorum) {
+            for (Future<?> invocation : invocations) {
+                invocation.cancel(true);
+            }
         }
     }
 
@@ -221,12 +620,11 @@ class ServiceManager {
 
         waitForBooting();
 
-        if (connectionServices.size() < 0 && commonServices.size() < 0) {
+        if (gateways.get().isEmpty()) {
             return -1;
         }
 
-        IGDRates rates = getRates();
-
+        IGDRates rates = getBandwidthRates();
 
         if (rates == null) {
             return -1;
@@ -242,11 +640,11 @@ class ServiceManager {
 
         waitForBooting();
 
-        if (connectionServices.size() < 0 && commonServices.size() < 0) {
+        if (gateways.get().isEmpty()) {
             return -1;
         }
 
-        IGDRates rates = getRates();
+        IGDRates rates = getBandwidthRates();
 
         if (rates == null) {
             return -1;
@@ -258,18 +656,72 @@ class ServiceManager {
     }
 
 
+    /**
+     * Rates from the configured source. Measured ones fall back to the link rates until there
+     * are enough samples, and never exceed them.
+     */
+    private IGDRates getBandwidthRates() {
+        IGDRates link = getRates();
+
+        IGDRates measured;
+        switch (config.getBandwidthSource()) {
+            case Config.BANDWIDTH_PEAK:
+                measured = throughputSampler.getPeak();
+                break;
+            case Config.BANDWIDTH_SUSTAINED:
+                measured = throughputSampler.getSustained();
+                break;
+            default:
+                return link;
+        }
+
+        if (measured == null) return link;
+        if (link == null) return measured;
+        return new IGDRates(Math.min(measured.getUpstreamMax(), link.getUpstreamMax()),
+                Math.min(measured.getDownstreamMax(), link.getDownstreamMax()));
+    }
+
+    /**
+     * Sum up the rates of all gateways which have a valid external IP. Rates are cached per
+     * gateway, see {@link RatesCache}.
+     */
     private IGDRates getRates() {
 
+        int upRatesSum = 0;
+        int downRatesSum = 0;
+        boolean found = false;
+        for (GatewayState gateway : gateways.get().values()) {
+            // Make sure the device isn't double natted
+            // Double natted devices won't have a valid external IP
+            if (!gateway.isUsable() || gateway.getDetectedIP() == null) continue;
+
+            IGDRates rates = ratesCache.get(gateway.getRoot());
+            if (rates != null) {
+                upRatesSum += rates.getUpstreamMax();
+                downRatesSum += rates.getDownstreamMax();
+                found = true;
+            }
+        }
+
+        return found ? new IGDRates(upRatesSum, downRatesSum) : null;
+    }
+
+    /**
+     * Ask a single gateway for its rates. Tries GetLinkLayerMaxBitRates on its WANPPPConnection
+     * services first and falls back to GetCommonLinkProperties. This method blocks.
+     */
+    private IGDRates loadRates(Device root) {
+        dormantMode.wake("link rates");
+
+        GatewayState gateway = gateways.get().get(root);
+        if (gateway == null) return null;
+
         final List<Integer> upRates = new ArrayList<>();
         final List<Integer> downRates = new ArrayList<>();
 
-        for (final Service service : connectionServices) {
+        for (final Service service : gateway.getConnectionServices()) {
             if (logMINOR) Logger.minor(this, "Service Type: " + service.getServiceType().getType());
-            if (service.getServiceType().getType().equals("WANPPPConnection")
-                    // Make sure the device isn't double natted
-                    // Double natted devices won't have a valid external IP
-                    && detectedIPs.containsKey(service.getDevice().getRoot())
-                    ) {
+            if (service.getServiceType().getType().equals("WANPPPConnection")) {
 
                 new GetLinkLayerMaxBitRates(service, upnpService.getControlPoint()) {
                     @Override
@@ -295,29 +747,13 @@ class ServiceManager {
             }
         }
 
-        if (upRates.size() > 0) {
-            int upRatesSum = 0;
-            for (int rate : upRates) {
-                upRatesSum += rate;
-            }
-            int downRatesSum = 0;
-            for (int rate : downRates) {
-                downRatesSum += rate;
-            }
-            return new IGDRates(upRatesSum, downRatesSum);
-        }
-
-        // We get nothing from GetLinkLayerMaxBitRates. Try GetCommonLinkProperties
+        if (upRates.size() == 0) {
+            // We get nothing from GetLinkLayerMaxBitRates. Try GetCommonLinkProperties
 
-        final List<Integer> upRates2 = new ArrayList<>();
-        final List<Integer> downRates2 = new ArrayList<>();
-
-        for (final Service service : commonServices) {
-            if (logMINOR) Logger.minor(this, "Service Type: " + service.getServiceType().getType());
+            for (final Service service : gateway.getCommonServices()) {
+                if (logMINOR)
+                    Logger.minor(this, "Service Type: " + service.getServiceType().getType());
 
-            // Make sure the device isn't double natted
-            // Double natted devices won't have a valid external IP
-            if (detectedIPs.containsKey(service.getDevice().getRoot())) {
                 new GetCommonLinkProperties(service, upnpService.getControlPoint()) {
                     @Override
                     protected void success(int newUpstreamMaxBitRate, int newDownstreamMaxBitRate) {
@@ -327,8 +763,8 @@ class ServiceManager {
                             Logger.minor(this, "newDownstreamMaxBitRate: " +
                                     newDownstreamMaxBitRate);
 
-                        upRates2.add(newUpstreamMaxBitRate);
-                        downRates2.add(newDownstreamMaxBitRate);
+                        upRates.add(newUpstreamMaxBitRate);
+                        downRates.add(newDownstreamMaxBitRate);
                     }
 
                     @Override
@@ -341,13 +777,13 @@ class ServiceManager {
             }
         }
 
-        if (upRates2.size() > 0) {
+        if (upRates.size() > 0) {
             int upRatesSum = 0;
-            for (int rate : upRates2) {
+            for (int rate : upRates) {
                 upRatesSum += rate;
             }
             int downRatesSum = 0;
-            for (int rate : downRates2) {
+            for (int rate : downRates) {
                 downRatesSum += rate;
             }
             return new IGDRates(upRatesSum, downRatesSum);
@@ -356,13 +792,78 @@ class ServiceManager {
         return null;
     }
 
+    /**
+     * @return link rates of a single gateway, or null if it didn't tell. Only blocks if they
+     * weren't asked for before.
+     */
+    public IGDRates getLinkRates(Device root) {
+        return ratesCache.get(root);
+    }
+
+    /**
+     * Drop cached rates of a gateway, e.g. because it was added, removed or its link changed.
+     */
+    public void invalidateRates(Device root) {
+        ratesCache.invalidate(root);
+    }
+
+    /**
+     * Map the ports through the backend which answered first, UPnP IGD if none did yet.
+     * Returns right away, the gateways are talked to on port mapping threads.
+     *
+     * @param cb called with the ports whose best status changed
+     */
     public void addPortMappings(Set<ForwardPort> ports, ForwardPortCallback cb) {
+        List<Service> firewallServices = new ArrayList<>();
+        for (GatewayState gateway : gateways.get().values()) {
+            firewallServices.addAll(gateway.getFirewallServices());
+        }
+        // The IPv6 statuses are part of the round, the backend adds its own services to it
+        if (!firewallServices.isEmpty()) {
+            statusAggregator.beginRound(firewallServices, ports, cb);
+        }
+
+        Backend backend = fastestBackend.get();
+        (backend != null ? backend : igdBackend).addPortMappings(ports, cb);
+
+        // IPv6 pinholes don't depend on how IPv4 gets through the NAT
+        for (Service firewallService : firewallServices) {
+            pinholeManager.setDesired(firewallService, ports,
+                    statusAggregator.callbackFor(firewallService));
+        }
+    }
+
+    /**
+     * Map the ports on every connection service
+     *
+     * @param cb called once all services are done with the ports whose best status changed
+     */
+    private void addIGDPortMappings(Set<ForwardPort> ports, ForwardPortCallback cb) {
+        boolean changed = !ports.equals(lastPorts);
+        lastPorts = new HashSet<>(ports);
+        if (dormantMode.isDormant()) {
+            if (!changed && portMappingExecutor.execute(dormantRefresh)) return;
+            dormantMode.wake("port mappings");
+        } else if (changed) {
+            dormantMode.activity();
+        }
+
+        Map<Service, ChainedMapping> chains = findChains();
+        this.chains = chains;
+
+        List<Service> connectionServices = getConnectionServices();
+        // The outer gateway of a chain maps to the nested gateway, not to us
+        for (ChainedMapping chain : chains.values()) {
+            connectionServices.remove(chain.getOuter());
+        }
         if (connectionServices.size() > 0) {
+            statusAggregator.beginRound(connectionServices, ports, cb);
 
-            Set<PortMapping> portMappings = new HashSet<>();
-            Map<PortMapping, ForwardPort> forwardPortMap = new HashMap<>();
             for (Service connectionService : connectionServices) {
+                Map<PortMapping, ForwardPort> forwardPortMap = new HashMap<>();
                 for (ForwardPort port : ports) {
+                    // IPv6 ports get pinholes instead, see PinholeManager
+                    if (port.isIP6) continue;
 
                     PortMapping.Protocol protocol;
                     String protocolName;
@@ -400,21 +901,26 @@ class ServiceManager {
                             protocol,
                             "Freenet 0.7 " + port.name
                     );
+                    // Routers rejecting finite leases get a permanent mapping from the reconciler
+                    portMapping.setLeaseDurationSeconds(
+                            new UnsignedIntegerFourBytes(config.getLeaseSeconds()));
 
 
                     // Mapping for each local IP
-                    portMappings.add(portMapping);
-
                     forwardPortMap.put(portMapping, port);
                 }
 
-                // Add this port's mappings for this service
-                registryListener.addPortMappings(connectionService, portMappings,
-                        forwardPortMap,
-                        cb);
-                // Clear portMappings and get ready for next action
-                portMappings.clear();
-                forwardPortMap.clear();
+                // Only what differs from the router's state is sent
+                reconciler.setDesired(connectionService, forwardPortMap);
+
+                ChainedMapping chain = chains.get(connectionService);
+                if (chain != null) {
+                    chain.setPorts(ports);
+                    portMappingExecutor.reconcile(connectionService, chain.innerCallback);
+                } else {
+                    portMappingExecutor.reconcile(connectionService,
+                            statusAggregator.callbackFor(connectionService));
+                }
 
             }
         } else {
@@ -423,8 +929,267 @@ class ServiceManager {
 
     }
 
+    /**
+     * Chain the first connection services of every nested gateway and its outer gateway. Chains
+     * between the same services are kept, with what they know about the mappings.
+     *
+     * @return chains by inner connection service
+     */
+    private Map<Service, ChainedMapping> findChains() {
+        Map<Service, ChainedMapping> previous = chains;
+        Map<Service, ChainedMapping> found = new HashMap<>();
+
+        Map<GatewayState, GatewayState> outerGateways =
+                NatTopology.findOuterGateways(gateways.get().values(),
+                        outerGatewayProbe.getOuterGateways());
+        for (Map.Entry<GatewayState, GatewayState> entry : outerGateways.entrySet()) {
+            GatewayState inner = entry.getKey();
+            GatewayState outer = entry.getValue();
+            Service innerService = inner.getConnectionServices().get(0);
+            Service outerService = outer.getConnectionServices().get(0);
+            String innerAddress = inner.getPrivateExternalIP().getHostAddress();
+
+            ChainedMapping chain = previous.get(innerService);
+            if (chain == null || !chain.getOuter().equals(outerService) ||
+                    !chain.getInnerAddress().equals(innerAddress)) {
+                Logger.normal(this, "Gateway " + inner.getRoot().getDisplayString() + " at " +
+                        innerAddress + " is behind " + outer.getRoot().getDisplayString() +
+                        ", mapping ports through both");
+                chain = new ChainedMapping(innerService, outerService, innerAddress, reconciler,
+                        portMappingExecutor, config.getLeaseSeconds(),
+                        statusAggregator.callbackFor(innerService));
+            }
+            found.put(innerService, chain);
+        }
+        return Collections.unmodifiableMap(found);
+    }
+
+    /**
+     * @return callback for the statuses of a connection service. Those of a chain go through it.
+     */
+    private ForwardPortCallback statusCallbackFor(Service connectionService) {
+        for (ChainedMapping chain : chains.values()) {
+            if (chain.getInner().equals(connectionService)) return chain.innerCallback;
+            if (chain.getOuter().equals(connectionService)) return chain.outerCallback;
+        }
+        return statusAggregator.callbackFor(connectionService);
+    }
+
+    /**
+     * Remove our mappings on the gateways of all backends. This method blocks.
+     */
     public void removeAllPortMappings() {
-        registryListener.removeAllPortMappings();
+        for (Backend backend : getBackends()) {
+            backend.removeAllPortMappings();
+        }
+        pinholeManager.removeAll();
+    }
+
+    /**
+     * Add a mapping again to extend its lease. This method blocks.
+     *
+     * @return whether the router accepted it
+     */
+    public boolean renewPortMapping(Service connectionService, PortMappingKey key) {
+        if (dormantMode.isDormant()) {
+            PortMapping pm = reconciler.getObserved(connectionService).get(key);
+            if (pm != null && dormantMode.addPortMapping(connectionService, pm)) {
+                reconciler.renewed(connectionService, key);
+                return true;
+            }
+            dormantMode.wake("lease renewal");
+        }
+        return reconciler.renew(connectionService, key, statusCallbackFor(connectionService));
+    }
+
+    /**
+     * Run port mapping work which blocks, e.g. {@link #renewPortMapping}, on a port mapping
+     * thread. Never blocks.
+     *
+     * @return whether the job was queued
+     */
+    public boolean executePortMappingJob(Runnable job) {
+        return portMappingExecutor.execute(job);
+    }
+
+    public boolean isPortMappingDesired(Service connectionService, PortMappingKey key) {
+        return reconciler.isDesired(connectionService, key);
+    }
+
+    public void setLeaseListener(PortMappingReconciler.LeaseListener leaseListener) {
+        reconciler.setLeaseListener(leaseListener);
+    }
+
+    /**
+     * Bind the stack to the network interfaces there are now and discover the gateways on them
+     * again. The local addresses they were found through, which our mappings point to, may be
+     * gone. The mappings are added again by the next round. This method blocks.
+     */
+    public void rebindNetwork() {
+        dormantMode.wake("network change");
+        Logger.normal(this, "Binding to the network interfaces again");
+
+        try {
+            upnpService.getRouter().disable();
+            // Their subscriptions expire, the router can't tell them anymore
+            upnpService.getRegistry().removeAllRemoteDevices();
+            upnpService.getRouter().enable();
+        } catch (RouterException e) {
+            Logger.error(this, "Unable to bind to the network interfaces", e);
+        }
+
+        upnpService.searchGateways();
+    }
+
+    // #############################
+    // Dormancy
+    // #############################
+
+    /**
+     * @return whether the plugin needs nothing but IP checks and lease renewals of mappings
+     * which exist, so the stack may be released. Pinholes, chained mappings and throughput
+     * sampling need it.
+     */
+    boolean isDormancyPossible() {
+        if (!readinessGate.isOpen() || fastestBackend.get() != igdBackend) return false;
+        if (!Config.BANDWIDTH_LINK.equals(config.getBandwidthSource())) return false;
+        if (lastPorts == null || !chains.isEmpty()) return false;
+
+        boolean mapped = false;
+        for (GatewayState gateway : gateways.get().values()) {
+            if (!gateway.getFirewallServices().isEmpty()) return false;
+            if (gateway.getConnectionServices().isEmpty()) continue;
+            if (gateway.getDetectedIP() == null) return false;
+
+            for (Service connectionService : gateway.getConnectionServices()) {
+                if (!(connectionService instanceof RemoteService)) return false;
+                if (reconciler.getObserved(connectionService).isEmpty()) return false;
+                mapped = true;
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * End the GENA subscriptions, stop the registry maintainer and close the sockets. The
+     * gateways stay in the registry, so their services can be used again once restored.
+     * Cling's stack can't be started again once shut down, hence the router is disabled
+     * instead. This method blocks.
+     */
+    void releaseStack() {
+        ticker.removeQueuedJob(registryResume);
+        ratesCache.setFrozen(true);
+
+        for (GatewayState gateway : gateways.get().values()) {
+            for (SubscriptionCallback callback : gateway.getSubscriptionCallbacks()) {
+                if (callback.getSubscription() instanceof RemoteGENASubscription) {
+                    // Also removes it from the registry
+                    new SendingUnsubscribe(upnpService,
+                            (RemoteGENASubscription) callback.getSubscription())
+                            .run(); // Synchronous!
+                }
+            }
+        }
+
+        subscriptionSupervisor.clear();
+
+        upnpService.getRegistry().pause();
+        try {
+            upnpService.getRouter().disable();
+        } catch (RouterException e) {
+            Logger.error(this, "Unable to release the network resources", e);
+        }
+    }
+
+    /**
+     * Open the sockets again, subscribe to the gateways again and look for changes. The
+     * registry maintainer follows once the gateways answered the search. Never blocks for
+     * long.
+     */
+    void restoreStack() {
+        try {
+            upnpService.getRouter().enable();
+        } catch (RouterException e) {
+            Logger.error(this, "Unable to bind the network resources again", e);
+        }
+        ratesCache.setFrozen(false);
+
+        for (GatewayState gateway : gateways.get().values()) {
+            for (SubscriptionCallback ended : gateway.getSubscriptionCallbacks()) {
+                Service service = ended.getService();
+                SubscriptionCallback callback = new IGDSubscriptionCallback(service, this);
+                upnpService.getControlPoint().execute(callback);
+                addSubscriptionCallback(service, callback);
+            }
+        }
+
+        upnpService.searchGateways();
+        ticker.queueTimedJob(registryResume, "UPnP2 registry resume",
+                REGISTRY_RESUME_DELAY_MILLIS, false, true);
+    }
+
+    // #############################
+    // Backends
+    // #############################
+
+    /**
+     * @return backends with a gateway, the one which answered first first. UPnP IGD is always
+     * included, its gateways may still show up.
+     */
+    List<Backend> getBackends() {
+        List<Backend> backends = new ArrayList<>(2);
+        Backend fastest = fastestBackend.get();
+        if (fastest != null) backends.add(fastest);
+        if (fastest != igdBackend) backends.add(igdBackend);
+        NatPmpBackend natPmpBackend = this.natPmpBackend;
+        if (natPmpBackend != null && fastest != natPmpBackend) backends.add(natPmpBackend);
+        return backends;
+    }
+
+    /**
+     * A backend found a usable gateway. The first one to do so is used from now on.
+     */
+    private void backendReady(Backend backend) {
+        if (fastestBackend.compareAndSet(null, backend)) {
+            Logger.normal(this, "Using " + backend.getName() + ", it answered first");
+        }
+        readinessGate.gatewayReady();
+    }
+
+    // #############################
+    // Gateway state
+    // #############################
+
+    private interface StateUpdate {
+        GatewayState apply(GatewayState state);
+    }
+
+    /**
+     * Replace the state of a gateway. Retried until no other writer came in between, so the
+     * update must not have side effects. Gateways nothing is known about anymore are dropped.
+     *
+     * @param create whether a gateway we don't know gets a state. Only its services make it
+     *               one of ours, a late answer or event of a removed gateway must not.
+     * @return the new state, or null if the gateway is unknown and none was created
+     */
+    private GatewayState update(Device root, boolean create, StateUpdate update) {
+        while (true) {
+            Map<Device, GatewayState> current = gateways.get();
+            GatewayState state = current.get(root);
+            if (state == null && !create) return null;
+            GatewayState updated = update.apply(state != null ? state : GatewayState.of(root));
+            if (updated == state) return state;
+
+            Map<Device, GatewayState> next = new HashMap<>(current);
+            if (updated.isEmpty()) {
+                next.remove(root);
+            } else {
+                next.put(root, updated);
+            }
+            if (gateways.compareAndSet(current, Collections.unmodifiableMap(next))) {
+                return updated;
+            }
+        }
     }
 
     // #############################
@@ -435,67 +1200,306 @@ class ServiceManager {
         return upnpService;
     }
 
-    public Set<Service> getConnectionServices() {
-        return connectionServices;
+    SubscriptionSupervisor getSubscriptionSupervisor() {
+        return subscriptionSupervisor;
+    }
+
+    ThroughputSampler getThroughputSampler() {
+        return throughputSampler;
+    }
+
+    public GatewayState getGateway(Device root) {
+        return gateways.get().get(root);
+    }
+
+    public Collection<GatewayState> getGateways() {
+        return gateways.get().values();
     }
 
-    public void addConnectionService(Service connectionService) {
-        connectionServices.add(connectionService);
+    /**
+     * @return connection services of all gateways
+     */
+    public List<Service> getConnectionServices() {
+        List<Service> connectionServices = new ArrayList<>();
+        for (GatewayState gateway : gateways.get().values()) {
+            connectionServices.addAll(gateway.getConnectionServices());
+        }
+        return connectionServices;
     }
 
-    public void removeConnectionService(Service connectionService) {
-        connectionServices.remove(connectionService);
+    public void addConnectionService(final Service connectionService) {
+        Device root = connectionService.getDevice().getRoot();
+        GatewayState gateway = update(root, true, new StateUpdate() {
+            @Override
+            public GatewayState apply(GatewayState state) {
+                return state.withConnectionService(connectionService);
+            }
+        });
+
+        if (gateway.getDetectedIP() != null) {
+            backendReady(igdBackend);
+        } else if (!readinessGate.isOpen()) {
+            // Normally the initial GENA event brings the external IP. If it didn't arrive within
+            // the settle window, ask the gateway ourselves so the gate doesn't wait for the
+            // deadline.
+            ticker.queueTimedJob(bootIPProbe, "UPnP2 boot IP probe", config.getBootSettleMillis(),
+                    false, true);
+        }
+        dormantMode.activity();
     }
 
-    public Set<Service> getCommonServices() {
-        return commonServices;
+    /**
+     * A gateway with a usable connection service was added to the registry
+     */
+    public void gatewayAdded(Device root) {
+        if (root instanceof RemoteDevice) {
+            gatewayCache.gatewayAdded((RemoteDevice) root);
+        }
     }
 
-    public void addCommonService(Service commonService) {
-        commonServices.add(commonService);
+    public void addCommonService(final Service commonService) {
+        update(commonService.getDevice().getRoot(), true, new StateUpdate() {
+            @Override
+            public GatewayState apply(GatewayState state) {
+                return state.withCommonService(commonService);
+            }
+        });
     }
 
-    public void removeCommonService(Service commonService) {
-        commonServices.remove(commonService);
+    /**
+     * Forget everything about a gateway. Other gateways are not affected.
+     *
+     * @return its last state, or null if it wasn't a gateway we know
+     */
+    public GatewayState removeGateway(Device root) {
+        while (true) {
+            Map<Device, GatewayState> current = gateways.get();
+            GatewayState state = current.get(root);
+            if (state == null) return null;
+
+            Map<Device, GatewayState> next = new HashMap<>(current);
+            next.remove(root);
+            if (gateways.compareAndSet(current, Collections.unmodifiableMap(next))) {
+                for (Service connectionService : state.getConnectionServices()) {
+                    reconciler.forget(connectionService);
+                    statusAggregator.forget(connectionService);
+                }
+                for (Service firewallService : state.getFirewallServices()) {
+                    pinholeManager.forget(firewallService);
+                    statusAggregator.forget(firewallService);
+                }
+                for (SubscriptionCallback callback : state.getSubscriptionCallbacks()) {
+                    subscriptionSupervisor.ended(callback.getService());
+                }
+                ratesCache.forget(root);
+                throughputSampler.forget(root);
+                outerGatewayProbe.forget(root);
+                forgetChains(root);
+                dormantMode.activity();
+                return state;
+            }
+        }
     }
 
-    public Map<Service, SubscriptionCallback> getSubscriptionCallbacks() {
-        return subscriptionCallbacks;
+    /**
+     * Drop the chains through a gateway. The next round finds the topology again.
+     */
+    private void forgetChains(Device root) {
+        Map<Service, ChainedMapping> remaining = new HashMap<>(chains);
+        for (Iterator<ChainedMapping> it = remaining.values().iterator(); it.hasNext(); ) {
+            ChainedMapping chain = it.next();
+            if (chain.getInner().getDevice().getRoot().equals(root) ||
+                    chain.getOuter().getDevice().getRoot().equals(root)) {
+                it.remove();
+            }
+        }
+        chains = Collections.unmodifiableMap(remaining);
     }
 
-    public void addSubscriptionCallback(Service service, SubscriptionCallback callback) {
-        subscriptionCallbacks.put(service, callback);
+    public void addFirewallService(final Service firewallService) {
+        update(firewallService.getDevice().getRoot(), true, new StateUpdate() {
+            @Override
+            public GatewayState apply(GatewayState state) {
+                return state.withFirewallService(firewallService);
+            }
+        });
     }
 
-    public void removeSubscriptionCallback(Service service) {
-        subscriptionCallbacks.remove(service);
+    public void addSubscriptionCallback(final Service service,
+                                        final SubscriptionCallback callback) {
+        // The gateway may have gone meanwhile
+        update(service.getDevice().getRoot(), false, new StateUpdate() {
+            @Override
+            public GatewayState apply(GatewayState state) {
+                return state.withSubscriptionCallback(service, callback);
+            }
+        });
     }
 
     public SubscriptionCallback getSubscriptionCallback(Service service) {
-        return subscriptionCallbacks.get(service);
+        GatewayState gateway = gateways.get().get(service.getDevice().getRoot());
+        return gateway != null ? gateway.getSubscriptionCallback(service) : null;
+    }
+
+    /**
+     * Subscribe to a service again, e.g. because Cling dropped its subscription. Never blocks.
+     */
+    public void resubscribe(Service service) {
+        SubscriptionCallback previous = getSubscriptionCallback(service);
+        if (previous == null) return;
+
+        Logger.normal(this, "Subscribing again to " + service);
+        if (previous.getSubscription() instanceof RemoteGENASubscription) {
+            // Cling usually dropped it already
+            upnpService.getRegistry().removeRemoteSubscription(
+                    (RemoteGENASubscription) previous.getSubscription());
+        }
+
+        SubscriptionCallback callback = new IGDSubscriptionCallback(service, this);
+        upnpService.getControlPoint().execute(callback);
+        addSubscriptionCallback(service, callback);
+        metrics.resubscribed();
     }
 
-    public Map<Device, DetectedIP> getDetectedIPs() {
+    public boolean isConnectionService(Service service) {
+        GatewayState gateway = gateways.get().get(service.getDevice().getRoot());
+        return gateway != null && gateway.getConnectionServices().contains(service);
+    }
+
+    /**
+     * @return external IPs of all usable gateways. Gateways behind another NAT have none, so
+     * only the public address of the outermost gateway is reported.
+     */
+    public Collection<DetectedIP> getDetectedIPs() {
+        List<DetectedIP> detectedIPs = new ArrayList<>();
+        for (GatewayState gateway : gateways.get().values()) {
+            if (gateway.isUsable() && gateway.getDetectedIP() != null) {
+                detectedIPs.add(gateway.getDetectedIP());
+            }
+        }
         return detectedIPs;
     }
 
     public DetectedIP getDetectedIP(Device device) {
-        return detectedIPs.get(device);
+        GatewayState gateway = gateways.get().get(device);
+        return gateway != null ? gateway.getDetectedIP() : null;
+    }
+
+    /**
+     * Start the state of a gateway from the cache with its last external IP, before it is put
+     * into the registry. See {@link GatewayCache}.
+     */
+    void restoreGateway(Device root, final DetectedIP detectedIP) {
+        update(root, true, new StateUpdate() {
+            @Override
+            public GatewayState apply(GatewayState state) {
+                return state.withDetectedIP(detectedIP);
+            }
+        });
+    }
+
+    public void addDetectedIP(Device device, final DetectedIP detectedIP) {
+        final DetectedIP[] previous = new DetectedIP[1];
+        GatewayState gateway = update(device, false, new StateUpdate() {
+            @Override
+            public GatewayState apply(GatewayState state) {
+                previous[0] = state.getDetectedIP();
+                return state.withDetectedIP(detectedIP);
+            }
+        });
+        // A late answer or event of a gateway which went away
+        if (gateway == null) return;
+
+        if (gateway.isUsable()) {
+            backendReady(igdBackend);
+        }
+
+        if (!detectedIP.equals(previous[0])) {
+            gatewayCache.externalIPChanged(device, detectedIP.publicAddress);
+
+            // During boot Fred asks for the addresses anyway
+            if (readinessGate.isOpen()) {
+                externalIPMonitor.ipChanged(device, previous[0], detectedIP);
+                dormantMode.activity();
+            }
+        }
+    }
+
+    /**
+     * The gateway reported an external IP which isn't public, so it may be behind another
+     * gateway. See {@link NatTopology}.
+     */
+    public void addPrivateExternalIP(Device device, final InetAddress address) {
+        final InetAddress[] previous = new InetAddress[1];
+        GatewayState gateway = update(device, false, new StateUpdate() {
+            @Override
+            public GatewayState apply(GatewayState state) {
+                previous[0] = state.getPrivateExternalIP();
+                return state.withPrivateExternalIP(address);
+            }
+        });
+        if (gateway == null) return;
+
+        if (!address.equals(previous[0])) {
+            Logger.normal(this, "Private external IP " + address.getHostAddress() + " for " +
+                    device.getDisplayString() + ", it is behind another NAT");
+            outerGatewayProbe.probe(gateway.getRoot(), address);
+        }
     }
 
-    public void addDetectedIP(Device device, DetectedIP detectedIP) {
-        detectedIPs.put(device, detectedIP);
+    /**
+     * Check the port mappings on a gateway against the router again, e.g. because its
+     * connection was re-established. Never blocks.
+     */
+    public void revalidatePortMappings(Device root) {
+        dormantMode.wake("revalidation");
+
+        GatewayState gateway = gateways.get().get(root);
+        if (gateway == null) return;
+
+        for (Service connectionService : gateway.getConnectionServices()) {
+            ChainedMapping chain = chains.get(connectionService);
+            if (chain != null) chain.recheckOuter();
+            portMappingExecutor.reconcile(connectionService, statusCallbackFor(connectionService));
+        }
     }
 
-    public void clearDetectedIPs() {
-        detectedIPs.clear();
+    /**
+     * @param listener told once the external IPs settled after a change
+     */
+    public void setExternalIPListener(ExternalIPMonitor.Listener listener) {
+        externalIPMonitor.setListener(listener);
     }
 
     public boolean isBooted() {
-        return booted;
+        return readinessGate.isOpen();
+    }
+
+    /**
+     * @return whether the stack is released, see {@link DormantMode}
+     */
+    public boolean isDormant() {
+        return dormantMode.isDormant();
+    }
+
+    /**
+     * @return threads the plugin runs right now, Cling's and the port mapping ones. Fred's ticker
+     * isn't counted.
+     */
+    public int getThreadCount() {
+        return ((IGDUpnpServiceConfiguration) upnpService.getConfiguration()).getThreadCount() +
+                portMappingExecutor.getThreadCount();
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public Config getConfig() {
+        return config;
     }
 
-    public void setBooted(boolean booted) {
-        this.booted = booted;
+    public Ticker getTicker() {
+        return ticker;
     }
 }
@@ -0,0 +1,234 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortCallback;
+import freenet.pluginmanager.ForwardPortStatus;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * Merges the port mapping statuses of all services into what Fred sees. Per port the best status
+ * of any source wins. Sources are the connection services of the IGDs and the NAT-PMP gateway.
+ * Statuses of a round are delivered together once every source of the round reported, and only
+ * ports whose status changed since the last delivery are included.
+ * <p>
+ * Sources which never report, e.g. because their gateway went away, don't hold a round back
+ * longer than the flush timeout.
+ */
+class StatusAggregator {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    private final Ticker ticker;
+    private final long flushTimeoutMillis;
+
+    private final Runnable flushJob = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // All guarded by this
+
+    private ForwardPortCallback cb;
+
+    /**
+     * Ports Fred asked for
+     */
+    private Set<ForwardPort> ports = new HashSet<>();
+
+    /**
+     * Latest status of each port per source
+     */
+    private final Map<ForwardPort, Map<Object, ForwardPortStatus>> statuses = new HashMap<>();
+
+    /**
+     * What Fred was told last
+     */
+    private final Map<ForwardPort, ForwardPortStatus> reported = new HashMap<>();
+
+    /**
+     * Sources of the current round which haven't reported yet
+     */
+    private final Set<Object> awaiting = new HashSet<>();
+
+    StatusAggregator(Ticker ticker, long flushTimeoutMillis) {
+        this.ticker = ticker;
+        this.flushTimeoutMillis = flushTimeoutMillis;
+    }
+
+    /**
+     * Start a round on the sources. A callback Fred didn't use before gets the statuses of all
+     * ports, not only the changed ones.
+     */
+    public void beginRound(Collection<?> sources, Set<ForwardPort> ports,
+                           ForwardPortCallback cb) {
+        synchronized (this) {
+            if (cb != this.cb) {
+                this.cb = cb;
+                reported.clear();
+            }
+
+            this.ports = new HashSet<>(ports);
+            statuses.keySet().retainAll(ports);
+            reported.keySet().retainAll(ports);
+
+            awaiting.addAll(sources);
+        }
+
+        ticker.removeQueuedJob(flushJob);
+        ticker.queueTimedJob(flushJob, "UPnP2 port status flush", flushTimeoutMillis, false,
+                false);
+    }
+
+    /**
+     * @return callback collecting the statuses of the source
+     */
+    public ForwardPortCallback callbackFor(final Object source) {
+        return new ForwardPortCallback() {
+            @Override
+            public void portForwardStatus(Map<ForwardPort, ForwardPortStatus> statuses) {
+                update(source, statuses);
+            }
+        };
+    }
+
+    /**
+     * Drop the statuses of a source, e.g. because its gateway went away.
+     */
+    public void forget(Object source) {
+        boolean complete;
+        synchronized (this) {
+            for (Iterator<Map<Object, ForwardPortStatus>> it = statuses.values().iterator();
+                 it.hasNext(); ) {
+                Map<Object, ForwardPortStatus> bySource = it.next();
+                bySource.remove(source);
+                if (bySource.isEmpty()) it.remove();
+            }
+            complete = awaiting.remove(source) && awaiting.isEmpty();
+        }
+        if (complete) flush();
+    }
+
+    private void update(Object source, Map<ForwardPort, ForwardPortStatus> update) {
+        boolean complete;
+        synchronized (this) {
+            for (Map.Entry<ForwardPort, ForwardPortStatus> entry : update.entrySet()) {
+                // Late answers for ports Fred dropped meanwhile
+                if (!ports.contains(entry.getKey())) continue;
+
+                Map<Object, ForwardPortStatus> bySource = statuses.get(entry.getKey());
+                if (bySource == null) {
+                    bySource = new HashMap<>();
+                    statuses.put(entry.getKey(), bySource);
+                }
+                bySource.put(source, entry.getValue());
+            }
+            awaiting.remove(source);
+            // Also true outside of a round, e.g. for a renewal
+            complete = awaiting.isEmpty();
+        }
+        if (complete) flush();
+    }
+
+    /**
+     * Tell Fred about every port whose best status changed
+     */
+    private void flush() {
+        ticker.removeQueuedJob(flushJob);
+
+        ForwardPortCallback cb;
+        Map<ForwardPort, ForwardPortStatus> changed = new HashMap<>();
+        synchronized (this) {
+            awaiting.clear();
+            cb = this.cb;
+
+            for (Map.Entry<ForwardPort, Map<Object, ForwardPortStatus>> entry :
+                    statuses.entrySet()) {
+                ForwardPortStatus best = best(entry.getValue().values());
+                ForwardPortStatus last = reported.get(entry.getKey());
+                if (last == null || !same(last, best)) {
+                    reported.put(entry.getKey(), best);
+                    changed.put(entry.getKey(), best);
+                }
+            }
+        }
+
+        if (changed.isEmpty() || cb == null) return;
+
+        if (logMINOR) Logger.minor(this, "Reporting " + changed.size() + " port statuses");
+        cb.portForwardStatus(changed);
+    }
+
+    private static ForwardPortStatus best(Collection<ForwardPortStatus> statuses) {
+        ForwardPortStatus best = null;
+        for (ForwardPortStatus status : statuses) {
+            if (best == null || rank(status.status) > rank(best.status)) best = status;
+        }
+        return best;
+    }
+
+    /**
+     * Successes rank above failures. A failure is the better the less certain it is. Spelled
+     * out, the order doesn't follow from the values of the constants.
+     */
+    private static int rank(int status) {
+        switch (status) {
+            case ForwardPortStatus.DEFINITE_SUCCESS:
+                return 6;
+            case ForwardPortStatus.PROBABLE_SUCCESS:
+                return 5;
+            case ForwardPortStatus.MAYBE_SUCCESS:
+                return 4;
+            case ForwardPortStatus.MAYBE_FAILURE:
+                return 3;
+            case ForwardPortStatus.PROBABLE_FAILURE:
+                return 2;
+            case ForwardPortStatus.DEFINITE_FAILURE:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    private static boolean same(ForwardPortStatus a, ForwardPortStatus b) {
+        return a.status == b.status && a.externalPort == b.externalPort &&
+                (a.reasonString == null ? b.reasonString == null :
+                        a.reasonString.equals(b.reasonString));
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.gena.CancelReason;
+import org.fourthline.cling.model.meta.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * Keeps an eye on the GENA subscription of every service. A subscription is live once the
+ * gateway sent the initial event, which GENA requires right after subscribing. Cling drops a
+ * subscription whose renewal failed, so failed subscriptions and renewals are retried with
+ * exponential backoff.
+ * <p>
+ * Connection services without a live subscription have their external IP polled instead:
+ * right after a change at the shortest interval, relaxing towards the longest one while it
+ * stays the same. Missed events are made up for by a single poll right away. Gateways with live
+ * subscriptions are left to their events and the periodic verification, see
+ * {@link ServiceManager#verifyExternalIPs()}.
+ * <p>
+ * A single ticker job runs when something is due next. Nothing is queued while all
+ * subscriptions are live.
+ */
+class SubscriptionSupervisor {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    /**
+     * How long a gateway may take for the initial event before its events count as broken
+     */
+    private static final long INITIAL_EVENT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Upper bound of the delay between attempts to subscribe
+     */
+    private static final long MAX_RESUBSCRIBE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private final ServiceManager serviceManager;
+    private final Ticker ticker;
+    private final long resubscribeMillis;
+    private final long pollMinMillis;
+    private final long pollMaxMillis;
+
+    private volatile boolean running;
+
+    /**
+     * Guarded by this
+     */
+    private final Map<Service, Liveness> states = new HashMap<>();
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    /**
+     * @param resubscribeMillis first delay before subscribing again. Doubles with every further
+     *                          failure.
+     * @param pollMinMillis     polling interval right after a change of the external IP
+     * @param pollMaxMillis     polling interval once it is stable
+     */
+    SubscriptionSupervisor(ServiceManager serviceManager, Ticker ticker, long resubscribeMillis,
+                           long pollMinMillis, long pollMaxMillis) {
+        this.serviceManager = serviceManager;
+        this.ticker = ticker;
+        this.resubscribeMillis = resubscribeMillis;
+        this.pollMinMillis = pollMinMillis;
+        this.pollMaxMillis = Math.max(pollMinMillis, pollMaxMillis);
+    }
+
+    public void start() {
+        running = true;
+        schedule();
+    }
+
+    public void stop() {
+        running = false;
+        ticker.removeQueuedJob(tick);
+    }
+
+    // #############################
+    // Subscription events
+    // #############################
+
+    public void established(Service service) {
+        synchronized (this) {
+            Liveness liveness = getOrCreate(service);
+            liveness.establishedTime = System.currentTimeMillis();
+            liveness.resubscribeTime = 0;
+        }
+        schedule();
+    }
+
+    public void eventReceived(Service service) {
+        synchronized (this) {
+            Liveness liveness = getOrCreate(service);
+            if (!liveness.live && logMINOR) {
+                Logger.minor(this, "GENA subscription of " + service + " is live");
+            }
+            liveness.live = true;
+            liveness.establishedTime = 0;
+            liveness.failures = 0;
+            liveness.resubscribeTime = 0;
+            liveness.pollInterval = 0;
+        }
+        schedule();
+    }
+
+    /**
+     * Events got lost, the external IP may have changed meanwhile
+     */
+    public void eventsMissed(final Service service) {
+        if (!running || !serviceManager.isConnectionService(service)) return;
+        // Right away, the next event makes the subscription count as live again
+        serviceManager.executePortMappingJob(new Runnable() {
+            @Override
+            public void run() {
+                serviceManager.pollExternalIP(service);
+            }
+        });
+    }
+
+    /**
+     * Subscribing failed, or a subscription ended
+     *
+     * @param reason why it ended, null if it failed or we ended it
+     */
+    public void failed(Service service, CancelReason reason) {
+        synchronized (this) {
+            Liveness liveness = getOrCreate(service);
+            liveness.live = false;
+            liveness.establishedTime = 0;
+            liveness.failures++;
+            long delay = Math.min(resubscribeMillis << Math.min(liveness.failures - 1, 16),
+                    MAX_RESUBSCRIBE_MILLIS);
+            liveness.resubscribeTime = System.currentTimeMillis() + delay;
+            startPolling(liveness);
+
+            Logger.warning(this, "GENA subscription of " + service + " " +
+                    (reason != null ? "ended: " + reason : "failed") + ", " + liveness.failures +
+                    " times in a row, subscribing again in " + delay + "ms");
+        }
+        schedule();
+    }
+
+    /**
+     * We ended the subscription, e.g. because the gateway went away or the stack is released
+     */
+    public synchronized void ended(Service service) {
+        states.remove(service);
+    }
+
+    /**
+     * Forget all subscriptions, e.g. because the stack is released
+     */
+    public synchronized void clear() {
+        states.clear();
+    }
+
+    // #############################
+    // State
+    // #############################
+
+    /**
+     * @return whether the external IP of the service is polled because its events don't arrive
+     */
+    public synchronized boolean isPolled(Service service) {
+        Liveness liveness = states.get(service);
+        return liveness != null && liveness.pollInterval > 0;
+    }
+
+    public synchronized boolean isLive(Service service) {
+        Liveness liveness = states.get(service);
+        return liveness != null && liveness.live;
+    }
+
+    private Liveness getOrCreate(Service service) {
+        Liveness liveness = states.get(service);
+        if (liveness == null) {
+            liveness = new Liveness(service);
+            states.put(service, liveness);
+        }
+        return liveness;
+    }
+
+    private void startPolling(Liveness liveness) {
+        if (liveness.pollInterval > 0 || !serviceManager.isConnectionService(liveness.service)) {
+            return;
+        }
+        liveness.pollInterval = pollMinMillis;
+        liveness.pollTime = System.currentTimeMillis() + pollMinMillis;
+    }
+
+    // #############################
+    // Scheduling
+    // #############################
+
+    private void tick() {
+        // Dormant, the stack isn't there to subscribe or poll with
+        if (!running || serviceManager.isDormant()) return;
+
+        long now = System.currentTimeMillis();
+        List<Service> resubscribe = new ArrayList<>();
+        List<Liveness> poll = new ArrayList<>();
+        synchronized (this) {
+            for (Liveness liveness : new ArrayList<>(states.values())) {
+                if (serviceManager.getSubscriptionCallback(liveness.service) == null) {
+                    // The gateway went away
+                    states.remove(liveness.service);
+                    continue;
+                }
+
+                if (liveness.establishedTime > 0 &&
+                        now - liveness.establishedTime >= INITIAL_EVENT_MILLIS) {
+                    Logger.warning(this, "No initial GENA event from " + liveness.service +
+                            ", polling its external IP");
+                    liveness.establishedTime = 0;
+                    startPolling(liveness);
+                }
+                if (liveness.resubscribeTime > 0 && now >= liveness.resubscribeTime) {
+                    liveness.resubscribeTime = 0;
+                    resubscribe.add(liveness.service);
+                }
+                if (liveness.pollInterval > 0 && now >= liveness.pollTime && !liveness.polling) {
+                    liveness.polling = true;
+                    poll.add(liveness);
+                }
+            }
+        }
+
+        for (Service service : resubscribe) {
+            serviceManager.resubscribe(service);
+        }
+        for (final Liveness liveness : poll) {
+            boolean queued = serviceManager.executePortMappingJob(new Runnable() {
+                @Override
+                public void run() {
+                    poll(liveness);
+                }
+            });
+            if (!queued) {
+                synchronized (this) {
+                    liveness.polling = false;
+                    liveness.pollTime = now + pollMinMillis;
+                }
+            }
+        }
+
+        schedule();
+    }
+
+    /**
+     * Ask for the external IP, on a port mapping thread
+     */
+    private void poll(Liveness liveness) {
+        boolean changed = false;
+        try {
+            changed = serviceManager.pollExternalIP(liveness.service);
+        } finally {
+            synchronized (this) {
+                liveness.polling = false;
+                if (liveness.pollInterval > 0) {
+                    liveness.pollInterval = changed ? pollMinMillis :
+                            Math.min(2 * liveness.pollInterval, pollMaxMillis);
+                    liveness.pollTime = System.currentTimeMillis() + liveness.pollInterval;
+                    if (logMINOR) Logger.minor(this, "Polling " + liveness.service +
+                            " again in " + liveness.pollInterval + "ms");
+                }
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * Queue the tick for whatever is due first
+     */
+    private void schedule() {
+        if (!running) return;
+
+        long due = Long.MAX_VALUE;
+        synchronized (this) {
+            for (Liveness liveness : states.values()) {
+                if (liveness.establishedTime > 0) {
+                    due = Math.min(due, liveness.establishedTime + INITIAL_EVENT_MILLIS);
+                }
+                if (liveness.resubscribeTime > 0) due = Math.min(due, liveness.resubscribeTime);
+                if (liveness.pollInterval > 0 && !liveness.polling) {
+                    due = Math.min(due, liveness.pollTime);
+                }
+            }
+        }
+
+        ticker.removeQueuedJob(tick);
+        if (due == Long.MAX_VALUE) return;
+        ticker.queueTimedJob(tick, "UPnP2 subscription supervision",
+                Math.max(0, due - System.currentTimeMillis()), false, true);
+    }
+
+    /**
+     * What we know about the subscription of a service. Guarded by the supervisor.
+     */
+    private static class Liveness {
+        final Service service;
+
+        /**
+         * Whether events arrive
+         */
+        boolean live;
+
+        /**
+         * When the subscription was established if the initial event is still due, else 0
+         */
+        long establishedTime;
+
+        /**
+         * Failed subscriptions in a row
+         */
+        int failures;
+
+        /**
+         * When to subscribe again, 0 if not
+         */
+        long resubscribeTime;
+
+        /**
+         * Current polling interval, 0 while events are relied on
+         */
+        long pollInterval;
+        long pollTime;
+        boolean polling;
+
+        Liveness(Service service) {
+            this.service = service;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.meta.Service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import plugins.UPnP2.actions.GetTotalBytesReceived;
+import plugins.UPnP2.actions.GetTotalBytesSent;
+import plugins.UPnP2.models.IGDRates;
+import plugins.UPnP2.models.ThroughputHistory;
+
+/**
+ * Measures the throughput the gateways actually pass. Their WANCommonInterfaceConfig byte
+ * counters are read on a fixed interval, the rates in between go into a
+ * {@link ThroughputHistory} per gateway.
+ * <p>
+ * The counters are 32 bits wide and wrap after 4 GiB, i.e. within a minute at 600 Mbit/s. The
+ * interval must be shorter than that, a wrap within one interval is taken care of. A counter
+ * which went back by more than the link could have passed was reset, e.g. by a reboot of the
+ * router, and its sample is dropped.
+ */
+class ThroughputSampler {
+
+    private static volatile boolean logMINOR;
+
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+            @Override
+            public void shouldUpdate() {
+                logMINOR = Logger.shouldLog(Logger.LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    private static final long COUNTER_RANGE = 1L << 32;
+
+    /**
+     * How long a rate must have held to count as sustained
+     */
+    private static final long SUSTAIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final ServiceManager serviceManager;
+    private final Ticker ticker;
+    private final long intervalMillis;
+    private final int historySize;
+
+    private final ConcurrentMap<Device, Counters> counters = new ConcurrentHashMap<>();
+
+    private volatile boolean running;
+
+    private final Runnable sampleJob = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                sample();
+            } finally {
+                if (running) schedule();
+            }
+        }
+    };
+
+    ThroughputSampler(ServiceManager serviceManager, Ticker ticker, long intervalMillis,
+                      int historySize) {
+        this.serviceManager = serviceManager;
+        this.ticker = ticker;
+        this.intervalMillis = intervalMillis;
+        this.historySize = historySize;
+    }
+
+    public void start() {
+        running = true;
+        schedule();
+    }
+
+    public void stop() {
+        running = false;
+        ticker.removeQueuedJob(sampleJob);
+    }
+
+    /**
+     * Forget a gateway's counters, e.g. because it went away
+     */
+    public void forget(Device root) {
+        counters.remove(root);
+    }
+
+    /**
+     * @return the highest rates seen, summed up over the gateways, or null if none has a sample
+     * yet
+     */
+    public IGDRates getPeak() {
+        return sum(1);
+    }
+
+    /**
+     * @return the highest rates held for a minute, summed up over the gateways, or null if no
+     * gateway was sampled for that long
+     */
+    public IGDRates getSustained() {
+        return sum((int) Math.max(1, SUSTAIN_MILLIS / intervalMillis));
+    }
+
+    private IGDRates sum(int samples) {
+        int up = 0;
+        int down = 0;
+        boolean found = false;
+        for (Counters c : counters.values()) {
+            IGDRates rates = c.history.getSustained(samples);
+            if (rates != null) {
+                up = (int) Math.min((long) up + rates.getUpstreamMax(), Integer.MAX_VALUE);
+                down = (int) Math.min((long) down + rates.getDownstreamMax(), Integer.MAX_VALUE);
+                found = true;
+            }
+        }
+        return found ? new IGDRates(up, down) : null;
+    }
+
+    private void schedule() {
+        ticker.queueTimedJob(sampleJob, "UPnP2 throughput sample", intervalMillis, false, true);
+    }
+
+    // #############################
+    // Sampling
+    // #############################
+
+    /**
+     * Read the counters of every gateway with an external IP once. This method blocks.
+     */
+    void sample() {
+        sample(0);
+    }
+
+    /**
+     * Like {@link #sample()}, but with a fixed time for the readings, e.g. in tests
+     *
+     * @param nanoTime System.nanoTime() the readings count for, 0 for when they were answered
+     */
+    void sample(long nanoTime) {
+        ControlPoint controlPoint = serviceManager.getUpnpService().getControlPoint();
+        for (GatewayState gateway : serviceManager.getGateways()) {
+            // Like the link rates, only gateways facing the internet count
+            if (gateway.getDetectedIP() == null || gateway.getCommonServices().isEmpty()) {
+                continue;
+            }
+
+            Counters c = counters.get(gateway.getRoot());
+            if (c == null) {
+                Counters newCounters = new Counters(historySize);
+                c = counters.putIfAbsent(gateway.getRoot(), newCounters);
+                if (c == null) c = newCounters;
+            }
+            sample(controlPoint, gateway, c, nanoTime);
+        }
+    }
+
+    private void sample(ControlPoint controlPoint, GatewayState gateway, final Counters c,
+                        long nanoTime) {
+        Service service = gateway.getCommonServices().get(0);
+        final long[] reading = {-1, -1};
+
+        new GetTotalBytesSent(service, controlPoint) {
+            @Override
+            protected void success(long totalBytesSent) {
+                reading[0] = totalBytesSent;
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                if (logMINOR) Logger.minor(this, "Unable to get TotalBytesSent: " + defaultMsg);
+            }
+        }.run(); // Synchronous!
+
+        new GetTotalBytesReceived(service, controlPoint) {
+            @Override
+            protected void success(long totalBytesReceived) {
+                reading[1] = totalBytesReceived;
+            }
+
+            @Override
+            public void failure(ActionInvocation invocation, UpnpResponse operation,
+                                String defaultMsg) {
+                if (logMINOR) {
+                    Logger.minor(this, "Unable to get TotalBytesReceived: " + defaultMsg);
+                }
+            }
+        }.run(); // Synchronous!
+
+        long now = nanoTime != 0 ? nanoTime : System.nanoTime();
+        synchronized (c) {
+            if (reading[0] < 0 || reading[1] < 0) {
+                // Start over, a rate across the gap would be averaged over an unknown time
+                c.time = 0;
+                return;
+            }
+
+            if (c.time != 0) {
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(now - c.time);
+                if (elapsedMillis > 0) {
+                    IGDRates link = serviceManager.getLinkRates(gateway.getRoot());
+                    long up = rate(c.sent, reading[0], elapsedMillis,
+                            link != null ? link.getUpstreamMax() : 0);
+                    long down = rate(c.received, reading[1], elapsedMillis,
+                            link != null ? link.getDownstreamMax() : 0);
+                    if (up >= 0 && down >= 0) {
+                        c.history.add(up, down);
+                        if (logMINOR) Logger.minor(this, "Throughput of " +
+                                gateway.getRoot().getDisplayString() + ": " + up + " bit/s up, " +
+                                down + " bit/s down");
+                    } else {
+                        Logger.normal(this, "Byte counters of " +
+                                gateway.getRoot().getDisplayString() + " were reset");
+                    }
+                }
+            }
+            c.sent = reading[0];
+            c.received = reading[1];
+            c.time = now;
+        }
+    }
+
+    /**
+     * @param linkBitsPerSecond what the link can pass at most, 0 if unknown
+     * @return bits per second between the readings, or -1 if the counter was reset
+     */
+    private static long rate(long previous, long current, long elapsedMillis,
+                             long linkBitsPerSecond) {
+        // Unsigned arithmetic takes care of a wrap
+        long bytes = (current - previous + COUNTER_RANGE) % COUNTER_RANGE;
+        long rate = bytes * 8 * 1000 / elapsedMillis;
+        if (current < previous && linkBitsPerSecond > 0 && rate > linkBitsPerSecond) return -1;
+        return rate;
+    }
+
+    /**
+     * Last reading of a gateway's counters and the rates so far
+     */
+    private static final class Counters {
+        final ThroughputHistory history;
+
+        // Guarded by this
+
+        long sent;
+        long received;
+        /**
+         * System.nanoTime() of the last reading, 0 if there is none
+         */
+        long time;
+
+        Counters(int historySize) {
+            history = new ThroughputHistory(historySize);
+        }
+    }
+}
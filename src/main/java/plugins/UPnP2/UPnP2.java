@@ -17,6 +17,7 @@
 
 package plugins.UPnP2;
 
+import java.io.File;
 import java.util.Collection;
 import java.util.Set;
 
@@ -33,6 +34,7 @@ import freenet.pluginmanager.FredPluginVersioned;
 import freenet.pluginmanager.PluginRespirator;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
+import freenet.support.Ticker;
 
 /**
  * Second generation of UPnP plugin for Fred which is based on Cling.
@@ -67,17 +69,35 @@ public class UPnP2 implements FredPlugin, FredPluginThreadless, FredPluginIPDete
         portMappingTicker.stopPortMapping();
         serviceManager.shutdown();
 
+        Logger.normal(this, getMetrics().snapshot());
         Logger.normal(this, "UPnP2 plugin ended");
     }
 
     @Override
-    public void runPlugin(PluginRespirator pr) {
+    public void runPlugin(final PluginRespirator pr) {
         Logger.normal(this, "UPnP2 plugin started");
 
-        serviceManager = new ServiceManager();
+        Ticker ticker = pr.getNode().getTicker();
+
+        serviceManager = new ServiceManager(new Config(), ticker,
+                new File(pr.getNode().getUserDir(), "upnp2-gateways.cache"));
+        // Peers should learn the new address now, not once Fred polls getAddress() again
+        serviceManager.setExternalIPListener(new ExternalIPMonitor.Listener() {
+            @Override
+            public void externalIPChanged() {
+                pr.getNode().ipDetector.redetectAddress();
+            }
+        });
         serviceManager.init();
 
-        portMappingTicker = new PortMappingTicker(serviceManager, pr.getNode().getTicker());
+        portMappingTicker = new PortMappingTicker(serviceManager, ticker);
+    }
+
+    /**
+     * @return counters of the plugin's UPnP traffic, {@link Metrics#snapshot()} for a text dump
+     */
+    public Metrics getMetrics() {
+        return serviceManager.getMetrics();
     }
 
     // ###################################
@@ -0,0 +1,78 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedVariableInteger;
+import org.fourthline.cling.support.model.PortMapping;
+
+/**
+ * Add a port mapping on an IGDv2, WANIPConnection:2. The external port of the mapping is only a
+ * wish, the router picks a free one if it is taken.
+ */
+public abstract class AddAnyPortMapping extends ActionCallback {
+
+    final protected PortMapping portMapping;
+
+    public AddAnyPortMapping(Service service, PortMapping portMapping) {
+        this(service, null, portMapping);
+    }
+
+    @SuppressWarnings("unchecked")
+    public AddAnyPortMapping(Service service, ControlPoint controlPoint,
+                             PortMapping portMapping) {
+        super(new ActionInvocation(service.getAction("AddAnyPortMapping")), controlPoint);
+
+        this.portMapping = portMapping;
+
+        UnsignedIntegerFourBytes lease = portMapping.getLeaseDurationSeconds();
+        getActionInvocation().setInput("NewRemoteHost",
+                portMapping.hasRemoteHost() ? portMapping.getRemoteHost() : "");
+        getActionInvocation().setInput("NewExternalPort", portMapping.getExternalPort());
+        getActionInvocation().setInput("NewProtocol", portMapping.getProtocol());
+        getActionInvocation().setInput("NewInternalPort", portMapping.getInternalPort());
+        getActionInvocation().setInput("NewInternalClient", portMapping.getInternalClient());
+        getActionInvocation().setInput("NewEnabled", portMapping.isEnabled());
+        getActionInvocation().setInput("NewPortMappingDescription",
+                portMapping.hasDescription() ? portMapping.getDescription() : "");
+        getActionInvocation().setInput("NewLeaseDuration",
+                lease != null ? lease : new UnsignedIntegerFourBytes(0));
+    }
+
+    /**
+     * @return whether the router of the service has the action, i.e. it is an IGDv2
+     */
+    public static boolean isSupported(Service service) {
+        return service.getAction("AddAnyPortMapping") != null;
+    }
+
+    @Override
+    public void success(ActionInvocation invocation) {
+        success(((UnsignedVariableInteger) invocation.getOutput("NewReservedPort").getValue())
+                .getValue().intValue());
+    }
+
+    /**
+     * @param reservedPort external port the router assigned
+     */
+    protected abstract void success(int reservedPort);
+}
@@ -0,0 +1,65 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+import org.fourthline.cling.model.types.UnsignedVariableInteger;
+
+/**
+ * Open an inbound pinhole in the IPv6 firewall of an IGDv2, WANIPv6FirewallControl:1. Any remote
+ * host and port may come in.
+ */
+public abstract class AddPinhole extends ActionCallback {
+
+    public AddPinhole(Service service, String internalClient, int internalPort, int protocol,
+                      long leaseSeconds) {
+        this(service, null, internalClient, internalPort, protocol, leaseSeconds);
+    }
+
+    /**
+     * @param protocol IANA protocol number, like {@link freenet.pluginmanager.ForwardPort}'s
+     */
+    @SuppressWarnings("unchecked")
+    public AddPinhole(Service service, ControlPoint controlPoint, String internalClient,
+                      int internalPort, int protocol, long leaseSeconds) {
+        super(new ActionInvocation(service.getAction("AddPinhole")), controlPoint);
+
+        getActionInvocation().setInput("RemoteHost", "");
+        getActionInvocation().setInput("RemotePort", new UnsignedIntegerTwoBytes(0));
+        getActionInvocation().setInput("InternalClient", internalClient);
+        getActionInvocation().setInput("InternalPort", new UnsignedIntegerTwoBytes(internalPort));
+        getActionInvocation().setInput("Protocol", new UnsignedIntegerTwoBytes(protocol));
+        getActionInvocation().setInput("LeaseTime", new UnsignedIntegerFourBytes(leaseSeconds));
+    }
+
+    @Override
+    public void success(ActionInvocation invocation) {
+        success(((UnsignedVariableInteger) invocation.getOutput("UniqueID").getValue())
+                .getValue().intValue());
+    }
+
+    /**
+     * @param uniqueID identifies the pinhole in later requests
+     */
+    protected abstract void success(int uniqueID);
+}
@@ -0,0 +1,41 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+
+/**
+ * Close a pinhole, WANIPv6FirewallControl:1
+ */
+public abstract class DeletePinhole extends ActionCallback {
+
+    public DeletePinhole(Service service, int uniqueID) {
+        this(service, null, uniqueID);
+    }
+
+    @SuppressWarnings("unchecked")
+    public DeletePinhole(Service service, ControlPoint controlPoint, int uniqueID) {
+        super(new ActionInvocation(service.getAction("DeletePinhole")), controlPoint);
+
+        getActionInvocation().setInput("UniqueID", new UnsignedIntegerTwoBytes(uniqueID));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+import org.fourthline.cling.support.model.PortMapping;
+
+/**
+ * Reads the port mapping at the given index of the router's table (IGDv1). Walking the indices
+ * from 0 until the router answers with {@link IGDErrorCodes#SPECIFIED_ARRAY_INDEX_INVALID}
+ * enumerates the whole table.
+ */
+public abstract class GetGenericPortMappingEntry extends ActionCallback {
+
+    final protected int index;
+
+    public GetGenericPortMappingEntry(Service service, int index) {
+        this(service, null, index);
+    }
+
+    @SuppressWarnings("unchecked")
+    public GetGenericPortMappingEntry(Service service, ControlPoint controlPoint, int index) {
+        super(new ActionInvocation(service.getAction("GetGenericPortMappingEntry")), controlPoint);
+
+        this.index = index;
+
+        getActionInvocation().setInput("NewPortMappingIndex", new UnsignedIntegerTwoBytes(index));
+    }
+
+    @Override
+    public void success(ActionInvocation invocation) {
+        PortMapping portMapping = new PortMapping(
+                toBoolean(invocation.getOutput("NewEnabled").getValue()),
+                (UnsignedIntegerFourBytes) invocation.getOutput("NewLeaseDuration").getValue(),
+                (String) invocation.getOutput("NewRemoteHost").getValue(),
+                (UnsignedIntegerTwoBytes) invocation.getOutput("NewExternalPort").getValue(),
+                (UnsignedIntegerTwoBytes) invocation.getOutput("NewInternalPort").getValue(),
+                (String) invocation.getOutput("NewInternalClient").getValue(),
+                PortMapping.Protocol.valueOf(invocation.getOutput("NewProtocol").toString()),
+                (String) invocation.getOutput("NewPortMappingDescription").getValue()
+        );
+
+        success(portMapping);
+    }
+
+    private static boolean toBoolean(Object value) {
+        return value instanceof Boolean ? (Boolean) value : "1".equals(String.valueOf(value));
+    }
+
+    protected abstract void success(PortMapping portMapping);
+
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+import org.fourthline.cling.support.model.PortMapping;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Reads all port mappings of a protocol within a port range in one request (IGDv2). The router
+ * answers with an XML document, see {@link #parsePortListing(String)}.
+ */
+public abstract class GetListOfPortMappings extends ActionCallback {
+
+    public GetListOfPortMappings(Service service, int startPort, int endPort,
+                                 PortMapping.Protocol protocol, boolean manage,
+                                 int numberOfPorts) {
+        this(service, null, startPort, endPort, protocol, manage, numberOfPorts);
+    }
+
+    /**
+     * @param manage        whether mappings of other hosts should be listed, too. Routers may
+     *                      refuse this with {@link IGDErrorCodes#ACTION_NOT_AUTHORIZED}.
+     * @param numberOfPorts maximum number of mappings to return
+     */
+    @SuppressWarnings("unchecked")
+    public GetListOfPortMappings(Service service, ControlPoint controlPoint, int startPort,
+                                 int endPort, PortMapping.Protocol protocol, boolean manage,
+                                 int numberOfPorts) {
+        super(new ActionInvocation(service.getAction("GetListOfPortMappings")), controlPoint);
+
+        getActionInvocation().setInput("NewStartPort", new UnsignedIntegerTwoBytes(startPort));
+        getActionInvocation().setInput("NewEndPort", new UnsignedIntegerTwoBytes(endPort));
+        getActionInvocation().setInput("NewProtocol", protocol.toString());
+        getActionInvocation().setInput("NewManage", manage);
+        getActionInvocation().setInput("NewNumberOfPorts",
+                new UnsignedIntegerTwoBytes(numberOfPorts));
+    }
+
+    @Override
+    public void success(ActionInvocation invocation) {
+        String listing = (String) invocation.getOutput("NewPortListing").getValue();
+
+        List<PortMapping> portMappings;
+        try {
+            portMappings = parsePortListing(listing);
+        } catch (Exception e) {
+            failure(invocation, null, "Unable to parse port listing: " + e.getMessage());
+            return;
+        }
+
+        success(portMappings);
+    }
+
+    protected abstract void success(List<PortMapping> portMappings);
+
+    /**
+     * Parse the PortMappingList document returned by GetListOfPortMappings. Namespace prefixes
+     * differ between routers, so elements are matched by their local name only.
+     */
+    public static List<PortMapping> parsePortListing(String listing) throws Exception {
+        List<PortMapping> portMappings = new ArrayList<>();
+        if (listing == null || listing.trim().isEmpty()) return portMappings;
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        // The document comes from the network
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        factory.setExpandEntityReferences(false);
+
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        Document document = builder.parse(new InputSource(new StringReader(listing)));
+
+        NodeList entries = document.getElementsByTagNameNS("*", "PortMappingEntry");
+        for (int i = 0; i < entries.getLength(); i++) {
+            Element entry = (Element) entries.item(i);
+
+            String enabled = getChildText(entry, "NewEnabled");
+            String leaseTime = getChildText(entry, "NewLeaseTime");
+
+            portMappings.add(new PortMapping(
+                    enabled == null || "1".equals(enabled) || "true".equalsIgnoreCase(enabled),
+                    new UnsignedIntegerFourBytes(leaseTime == null ? "0" : leaseTime),
+                    getChildText(entry, "NewRemoteHost"),
+                    new UnsignedIntegerTwoBytes(getChildText(entry, "NewExternalPort")),
+                    new UnsignedIntegerTwoBytes(getChildText(entry, "NewInternalPort")),
+                    getChildText(entry, "NewInternalClient"),
+                    PortMapping.Protocol.valueOf(getChildText(entry, "NewProtocol")),
+                    getChildText(entry, "NewDescription")
+            ));
+        }
+
+        return portMappings;
+    }
+
+    private static String getChildText(Element parent, String localName) {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && localName.equals(child.getLocalName())) {
+                return child.getTextContent().trim();
+            }
+        }
+        return null;
+    }
+
+}
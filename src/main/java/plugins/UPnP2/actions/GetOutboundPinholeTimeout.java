@@ -0,0 +1,56 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+import org.fourthline.cling.model.types.UnsignedVariableInteger;
+
+/**
+ * How long the IPv6 firewall keeps state of an idle outbound flow, WANIPv6FirewallControl:1
+ */
+public abstract class GetOutboundPinholeTimeout extends ActionCallback {
+
+    public GetOutboundPinholeTimeout(Service service, String internalClient, int internalPort,
+                                     int protocol) {
+        this(service, null, internalClient, internalPort, protocol);
+    }
+
+    @SuppressWarnings("unchecked")
+    public GetOutboundPinholeTimeout(Service service, ControlPoint controlPoint,
+                                     String internalClient, int internalPort, int protocol) {
+        super(new ActionInvocation(service.getAction("GetOutboundPinholeTimeout")), controlPoint);
+
+        getActionInvocation().setInput("RemoteHost", "");
+        getActionInvocation().setInput("RemotePort", new UnsignedIntegerTwoBytes(0));
+        getActionInvocation().setInput("InternalClient", internalClient);
+        getActionInvocation().setInput("InternalPort", new UnsignedIntegerTwoBytes(internalPort));
+        getActionInvocation().setInput("Protocol", new UnsignedIntegerTwoBytes(protocol));
+    }
+
+    @Override
+    public void success(ActionInvocation invocation) {
+        success(((UnsignedVariableInteger) invocation.getOutput("OutboundPinholeTimeout")
+                .getValue()).getValue().longValue());
+    }
+
+    protected abstract void success(long outboundPinholeTimeoutSeconds);
+}
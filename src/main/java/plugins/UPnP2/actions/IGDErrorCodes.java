@@ -0,0 +1,51 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.actions;
+
+import org.fourthline.cling.model.action.ActionInvocation;
+
+/**
+ * UPnP error codes defined by the WANIPConnection, WANPPPConnection and WANIPv6FirewallControl
+ * specifications.
+ */
+public final class IGDErrorCodes {
+
+    public static final int ACTION_NOT_AUTHORIZED = 606;
+    public static final int SPECIFIED_ARRAY_INDEX_INVALID = 713;
+    public static final int NO_SUCH_ENTRY_IN_ARRAY = 714;
+    public static final int CONFLICT_IN_MAPPING_ENTRY = 718;
+    public static final int ONLY_PERMANENT_LEASES_SUPPORTED = 725;
+    public static final int PORT_MAPPING_NOT_FOUND = 730;
+
+    // WANIPv6FirewallControl
+    public static final int PINHOLE_SPACE_EXHAUSTED = 701;
+    public static final int FIREWALL_DISABLED = 702;
+    public static final int INBOUND_PINHOLE_NOT_ALLOWED = 703;
+    public static final int NO_SUCH_PINHOLE = 704;
+
+    private IGDErrorCodes() {
+    }
+
+    /**
+     * @return error code the invocation failed with, or -1 if there is none
+     */
+    public static int of(ActionInvocation invocation) {
+        if (invocation == null || invocation.getFailure() == null) return -1;
+        return invocation.getFailure().getErrorCode();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.models;
+
+import org.fourthline.cling.support.model.PortMapping;
+
+/**
+ * Identifies a port mapping on a router the same way the router does: by protocol and external
+ * port. {@link PortMapping} itself has no value equality. Immutable.
+ */
+public final class PortMappingKey {
+
+    private final PortMapping.Protocol protocol;
+    private final int externalPort;
+
+    public PortMappingKey(PortMapping.Protocol protocol, int externalPort) {
+        this.protocol = protocol;
+        this.externalPort = externalPort;
+    }
+
+    public static PortMappingKey of(PortMapping portMapping) {
+        return new PortMappingKey(portMapping.getProtocol(),
+                portMapping.getExternalPort().getValue().intValue());
+    }
+
+    public PortMapping.Protocol getProtocol() {
+        return protocol;
+    }
+
+    public int getExternalPort() {
+        return externalPort;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PortMappingKey)) return false;
+
+        PortMappingKey that = (PortMappingKey) o;
+        return externalPort == that.externalPort && protocol == that.protocol;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * protocol.hashCode() + externalPort;
+    }
+
+    @Override
+    public String toString() {
+        return protocol + " " + externalPort;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.models;
+
+import org.fourthline.cling.support.model.PortMapping;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Snapshot of a router's NAT table. Immutable.
+ * <p>
+ * A snapshot is incomplete if the router's table couldn't be read to the end. Missing entries
+ * then don't mean that the router has no such mapping.
+ */
+public final class PortMappingTable {
+
+    private final Map<PortMappingKey, PortMapping> entries;
+    private final boolean complete;
+    private final long time;
+
+    public PortMappingTable(Collection<PortMapping> portMappings, boolean complete) {
+        Map<PortMappingKey, PortMapping> entries = new HashMap<>();
+        for (PortMapping portMapping : portMappings) {
+            entries.put(PortMappingKey.of(portMapping), portMapping);
+        }
+        this.entries = Collections.unmodifiableMap(entries);
+        this.complete = complete;
+        this.time = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the router's mapping, or null if it is not in the snapshot
+     */
+    public PortMapping get(PortMappingKey key) {
+        return entries.get(key);
+    }
+
+    /**
+     * @return whether the snapshot tells for sure if the router has the mapping
+     */
+    public boolean knows(PortMappingKey key) {
+        return complete || entries.containsKey(key);
+    }
+
+    public Map<PortMappingKey, PortMapping> getEntries() {
+        return entries;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.models;
+
+/**
+ * Ring buffer of the throughput a gateway was seen passing, in bits per second. Keeps the latest
+ * samples only. Thread safe.
+ */
+public final class ThroughputHistory {
+
+    private final long[] upstream;
+    private final long[] downstream;
+
+    // Guarded by this
+
+    /**
+     * Where the next sample goes
+     */
+    private int next;
+    private int size;
+
+    /**
+     * @param capacity number of samples kept
+     */
+    public ThroughputHistory(int capacity) {
+        upstream = new long[Math.max(1, capacity)];
+        downstream = new long[upstream.length];
+    }
+
+    public synchronized void add(long upstreamBitsPerSecond, long downstreamBitsPerSecond) {
+        upstream[next] = upstreamBitsPerSecond;
+        downstream[next] = downstreamBitsPerSecond;
+        next = (next + 1) % upstream.length;
+        size = Math.min(size + 1, upstream.length);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return highest rates of a single sample, or null if there is none
+     */
+    public synchronized IGDRates getPeak() {
+        return getSustained(1);
+    }
+
+    /**
+     * @param samples how many consecutive samples the rate must have held
+     * @return highest rates held over that many samples in a row, or null if there aren't as
+     * many
+     */
+    public synchronized IGDRates getSustained(int samples) {
+        if (samples < 1 || samples > size) return null;
+        return new IGDRates(clamp(sustained(upstream, samples)),
+                clamp(sustained(downstream, samples)));
+    }
+
+    /**
+     * Sliding minimum over the window, the best of which wins. Windows are short, so a plain
+     * scan does.
+     */
+    private long sustained(long[] rates, int samples) {
+        int oldest = (next - size + rates.length) % rates.length;
+        long best = 0;
+        for (int start = 0; start + samples <= size; start++) {
+            long min = Long.MAX_VALUE;
+            for (int i = start; i < start + samples; i++) {
+                min = Math.min(min, rates[(oldest + i) % rates.length]);
+            }
+            best = Math.max(best, min);
+        }
+        return best;
+    }
+
+    private static int clamp(long rate) {
+        return (int) Math.min(rate, Integer.MAX_VALUE);
+    }
+}
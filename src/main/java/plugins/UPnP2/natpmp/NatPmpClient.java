@@ -0,0 +1,328 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.natpmp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Client of the NAT Port Mapping Protocol, RFC 6886. A request is a single UDP packet to the
+ * gateway, retransmitted with doubling intervals until it is answered or the timeout passes.
+ */
+public class NatPmpClient {
+
+    public static final int PORT = 5351;
+
+    private static final int VERSION = 0;
+    private static final int OPCODE_EXTERNAL_ADDRESS = 0;
+    private static final int OPCODE_MAP_UDP = 1;
+    private static final int OPCODE_MAP_TCP = 2;
+    private static final int RESPONSE = 128;
+
+    /**
+     * First retransmission interval, RFC 6886 section 3.1
+     */
+    private static final int INITIAL_INTERVAL_MILLIS = 250;
+
+    public enum Protocol {
+        UDP(OPCODE_MAP_UDP), TCP(OPCODE_MAP_TCP);
+
+        private final int opcode;
+
+        Protocol(int opcode) {
+            this.opcode = opcode;
+        }
+    }
+
+    private final InetSocketAddress gateway;
+    private final long timeoutMillis;
+
+    public NatPmpClient(InetSocketAddress gateway, long timeoutMillis) {
+        this.gateway = gateway;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public InetSocketAddress getGateway() {
+        return gateway;
+    }
+
+    // #############################
+    // Requests
+    // #############################
+
+    /**
+     * @throws SocketTimeoutException if the gateway didn't answer
+     * @throws NatPmpException        if it refused
+     */
+    public ExternalAddress getExternalAddress() throws IOException {
+        ByteBuffer response = request(externalAddressRequest(), OPCODE_EXTERNAL_ADDRESS, 12);
+        return externalAddressOf(response);
+    }
+
+    /**
+     * Create, renew or delete a mapping.
+     *
+     * @param suggestedExternalPort the gateway may assign another one, 0 lets it choose
+     * @param lifetimeSeconds       0 together with suggestedExternalPort 0 deletes the mapping
+     * @throws SocketTimeoutException if the gateway didn't answer
+     * @throws NatPmpException        if it refused
+     */
+    public Mapping map(Protocol protocol, int internalPort, int suggestedExternalPort,
+                       long lifetimeSeconds) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(12);
+        request.put((byte) VERSION);
+        request.put((byte) protocol.opcode);
+        request.putShort((short) 0);
+        request.putShort((short) internalPort);
+        request.putShort((short) suggestedExternalPort);
+        request.putInt((int) lifetimeSeconds);
+
+        ByteBuffer response = request(request.array(), protocol.opcode, 16);
+        return new Mapping(protocol, epochOf(response), response.getShort(8) & 0xFFFF,
+                response.getShort(10) & 0xFFFF, response.getInt(12) & 0xFFFFFFFFL);
+    }
+
+    public void unmap(Protocol protocol, int internalPort) throws IOException {
+        map(protocol, internalPort, 0, 0);
+    }
+
+    /**
+     * Ask all candidates for their external address at once.
+     *
+     * @return the first candidate answering, or null if none did within the timeout
+     */
+    public static Probe probe(List<InetSocketAddress> candidates, long timeoutMillis)
+            throws IOException {
+        if (candidates.isEmpty()) return null;
+
+        byte[] request = externalAddressRequest();
+        try (DatagramSocket socket = new DatagramSocket()) {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            int interval = INITIAL_INTERVAL_MILLIS;
+            while (true) {
+                for (InetSocketAddress candidate : candidates) {
+                    socket.send(new DatagramPacket(request, request.length, candidate));
+                }
+
+                long nextSend = Math.min(deadline, System.currentTimeMillis() + interval);
+                DatagramPacket packet = new DatagramPacket(new byte[16], 16);
+                while (true) {
+                    long remaining = nextSend - System.currentTimeMillis();
+                    if (remaining <= 0) break;
+                    socket.setSoTimeout((int) remaining);
+                    try {
+                        socket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+
+                    InetSocketAddress from = (InetSocketAddress) packet.getSocketAddress();
+                    if (!candidates.contains(from)) continue;
+                    ByteBuffer response = validate(packet, OPCODE_EXTERNAL_ADDRESS, 12);
+                    if (response == null) continue;
+
+                    try {
+                        return new Probe(new NatPmpClient(from, timeoutMillis),
+                                externalAddressOf(response));
+                    } catch (NatPmpException e) {
+                        // A NAT-PMP gateway, but not one which serves us
+                    }
+                }
+
+                if (System.currentTimeMillis() >= deadline) return null;
+                interval *= 2;
+            }
+        }
+    }
+
+    private ByteBuffer request(byte[] request, int opcode, int length) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(gateway);
+
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            int interval = INITIAL_INTERVAL_MILLIS;
+            DatagramPacket packet = new DatagramPacket(new byte[16], 16);
+            while (true) {
+                socket.send(new DatagramPacket(request, request.length));
+
+                long nextSend = Math.min(deadline, System.currentTimeMillis() + interval);
+                while (true) {
+                    long remaining = nextSend - System.currentTimeMillis();
+                    if (remaining <= 0) break;
+                    socket.setSoTimeout((int) remaining);
+                    try {
+                        socket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+                    ByteBuffer response = validate(packet, opcode, length);
+                    if (response != null) {
+                        int resultCode = response.getShort(2) & 0xFFFF;
+                        if (resultCode != 0) throw new NatPmpException(resultCode);
+                        return response;
+                    }
+                }
+
+                if (System.currentTimeMillis() >= deadline) {
+                    throw new SocketTimeoutException("No NAT-PMP answer from " + gateway);
+                }
+                interval *= 2;
+            }
+        }
+    }
+
+    // #############################
+    // Encoding
+    // #############################
+
+    private static byte[] externalAddressRequest() {
+        return new byte[]{VERSION, OPCODE_EXTERNAL_ADDRESS};
+    }
+
+    /**
+     * @return the response, or null if it isn't an answer to the opcode
+     */
+    private static ByteBuffer validate(DatagramPacket packet, int opcode, int length) {
+        if (packet.getLength() < 4) return null;
+        ByteBuffer response = ByteBuffer.wrap(packet.getData(), packet.getOffset(),
+                packet.getLength()).slice();
+        if (response.get(0) != VERSION || (response.get(1) & 0xFF) != RESPONSE + opcode) {
+            return null;
+        }
+        // Errors may come without the body
+        int resultCode = response.getShort(2) & 0xFFFF;
+        if (resultCode == 0 && packet.getLength() < length) return null;
+        return response;
+    }
+
+    private static ExternalAddress externalAddressOf(ByteBuffer response) throws IOException {
+        int resultCode = response.getShort(2) & 0xFFFF;
+        if (resultCode != 0) throw new NatPmpException(resultCode);
+
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            address[i] = response.get(8 + i);
+        }
+        return new ExternalAddress(epochOf(response), InetAddress.getByAddress(address));
+    }
+
+    private static long epochOf(ByteBuffer response) {
+        return response.getInt(4) & 0xFFFFFFFFL;
+    }
+
+    // #############################
+    // Responses
+    // #############################
+
+    /**
+     * Base of all responses
+     */
+    public abstract static class Response {
+
+        private final long epoch;
+
+        Response(long epoch) {
+            this.epoch = epoch;
+        }
+
+        /**
+         * @return seconds since the gateway started or lost its mappings
+         */
+        public long getEpoch() {
+            return epoch;
+        }
+    }
+
+    public static final class ExternalAddress extends Response {
+
+        private final InetAddress address;
+
+        ExternalAddress(long epoch, InetAddress address) {
+            super(epoch);
+            this.address = address;
+        }
+
+        public InetAddress getAddress() {
+            return address;
+        }
+    }
+
+    public static final class Mapping extends Response {
+
+        private final Protocol protocol;
+        private final int internalPort;
+        private final int externalPort;
+        private final long lifetimeSeconds;
+
+        Mapping(Protocol protocol, long epoch, int internalPort, int externalPort,
+                long lifetimeSeconds) {
+            super(epoch);
+            this.protocol = protocol;
+            this.internalPort = internalPort;
+            this.externalPort = externalPort;
+            this.lifetimeSeconds = lifetimeSeconds;
+        }
+
+        public Protocol getProtocol() {
+            return protocol;
+        }
+
+        public int getInternalPort() {
+            return internalPort;
+        }
+
+        /**
+         * @return port the gateway assigned, which may differ from the suggested one
+         */
+        public int getExternalPort() {
+            return externalPort;
+        }
+
+        public long getLifetimeSeconds() {
+            return lifetimeSeconds;
+        }
+    }
+
+    /**
+     * The gateway which answered a probe first
+     */
+    public static final class Probe {
+
+        private final NatPmpClient client;
+        private final ExternalAddress externalAddress;
+
+        Probe(NatPmpClient client, ExternalAddress externalAddress) {
+            this.client = client;
+            this.externalAddress = externalAddress;
+        }
+
+        public NatPmpClient getClient() {
+            return client;
+        }
+
+        public ExternalAddress getExternalAddress() {
+            return externalAddress;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.natpmp;
+
+import java.io.IOException;
+
+/**
+ * A NAT-PMP gateway answered with a result code other than success.
+ */
+public class NatPmpException extends IOException {
+
+    public static final int UNSUPPORTED_VERSION = 1;
+    public static final int NOT_AUTHORIZED = 2;
+    public static final int NETWORK_FAILURE = 3;
+    public static final int OUT_OF_RESOURCES = 4;
+    public static final int UNSUPPORTED_OPCODE = 5;
+
+    private final int resultCode;
+
+    public NatPmpException(int resultCode) {
+        super("NAT-PMP result code " + resultCode + " (" + describe(resultCode) + ")");
+        this.resultCode = resultCode;
+    }
+
+    public int getResultCode() {
+        return resultCode;
+    }
+
+    private static String describe(int resultCode) {
+        switch (resultCode) {
+            case UNSUPPORTED_VERSION:
+                return "Unsupported Version";
+            case NOT_AUTHORIZED:
+                return "Not Authorized/Refused";
+            case NETWORK_FAILURE:
+                return "Network Failure";
+            case OUT_OF_RESOURCES:
+                return "Out of resources";
+            case UNSUPPORTED_OPCODE:
+                return "Unsupported opcode";
+            default:
+                return "Unknown";
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.soap;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Minimal UPnP control client: one SOAP action per HTTP request to a control URL we already
+ * know, without a UPnP stack. Only flat string arguments, which is all IGD actions use.
+ */
+public class SoapClient {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String ENVELOPE_START = "<?xml version=\"1.0\"?>\r\n" +
+            "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" " +
+            "s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"><s:Body>";
+    private static final String ENVELOPE_END = "</s:Body></s:Envelope>";
+
+    private static final int MAX_RESPONSE_BYTES = 64 * 1024;
+
+    private final int timeoutMillis;
+
+    public SoapClient(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // #############################
+    // IGD actions
+    // #############################
+
+    /**
+     * @param serviceType e.g. urn:schemas-upnp-org:service:WANIPConnection:1
+     * @return the external IP as the gateway reported it
+     */
+    public String getExternalIPAddress(URL controlURL, String serviceType) throws IOException {
+        Map<String, String> out = invoke(controlURL, serviceType, "GetExternalIPAddress",
+                new LinkedHashMap<String, String>());
+        String address = out.get("NewExternalIPAddress");
+        if (address == null) throw new IOException("No external IP in answer of " + controlURL);
+        return address.trim();
+    }
+
+    /**
+     * Add a mapping, or renew it if it exists
+     *
+     * @param remoteHost   empty for any
+     * @param protocol     TCP or UDP
+     * @param leaseSeconds 0 for a permanent mapping
+     */
+    public void addPortMapping(URL controlURL, String serviceType, String remoteHost,
+                               int externalPort, String protocol, int internalPort,
+                               String internalClient, String description, long leaseSeconds)
+            throws IOException {
+        Map<String, String> in = new LinkedHashMap<>();
+        in.put("NewRemoteHost", remoteHost);
+        in.put("NewExternalPort", Integer.toString(externalPort));
+        in.put("NewProtocol", protocol);
+        in.put("NewInternalPort", Integer.toString(internalPort));
+        in.put("NewInternalClient", internalClient);
+        in.put("NewEnabled", "1");
+        in.put("NewPortMappingDescription", description);
+        in.put("NewLeaseDuration", Long.toString(leaseSeconds));
+        invoke(controlURL, serviceType, "AddPortMapping", in);
+    }
+
+    // #############################
+    // SOAP
+    // #############################
+
+    /**
+     * Send an action and wait for the answer
+     *
+     * @param in arguments in the order of the action's declaration
+     * @return output arguments by name
+     * @throws SoapException if the gateway answered with a UPnP error
+     */
+    public Map<String, String> invoke(URL controlURL, String serviceType, String action,
+                                      Map<String, String> in) throws IOException {
+        StringBuilder body = new StringBuilder(ENVELOPE_START);
+        body.append("<u:").append(action).append(" xmlns:u=\"").append(escape(serviceType))
+                .append("\">");
+        for (Map.Entry<String, String> argument : in.entrySet()) {
+            body.append('<').append(argument.getKey()).append('>')
+                    .append(escape(argument.getValue()))
+                    .append("</").append(argument.getKey()).append('>');
+        }
+        body.append("</u:").append(action).append('>').append(ENVELOPE_END);
+        byte[] request = body.toString().getBytes(UTF_8);
+
+        HttpURLConnection connection = (HttpURLConnection) controlURL.openConnection();
+        try {
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setUseCaches(false);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "text/xml; charset=\"utf-8\"");
+            connection.setRequestProperty("SOAPACTION", "\"" + serviceType + "#" + action + "\"");
+            connection.setFixedLengthStreamingMode(request.length);
+
+            OutputStream os = connection.getOutputStream();
+            try {
+                os.write(request);
+            } finally {
+                os.close();
+            }
+
+            int status = connection.getResponseCode();
+            InputStream is = status < 400 ? connection.getInputStream() :
+                    connection.getErrorStream();
+            if (is == null) throw new IOException("HTTP " + status + " from " + controlURL);
+
+            Document response = parse(read(is));
+            if (status == HttpURLConnection.HTTP_OK) return outputsOf(response, action);
+            throw faultOf(response, status, controlURL);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static Map<String, String> outputsOf(Document response, String action)
+            throws IOException {
+        NodeList nodes = response.getElementsByTagNameNS("*", action + "Response");
+        if (nodes.getLength() == 0) throw new IOException("No " + action + "Response");
+
+        Map<String, String> out = new HashMap<>();
+        for (Node child = nodes.item(0).getFirstChild(); child != null;
+             child = child.getNextSibling()) {
+            if (child instanceof Element) {
+                out.put(localName(child), child.getTextContent());
+            }
+        }
+        return out;
+    }
+
+    private static IOException faultOf(Document response, int status, URL controlURL) {
+        String errorCode = text(response, "errorCode");
+        if (errorCode == null) return new IOException("HTTP " + status + " from " + controlURL);
+
+        String errorDescription = text(response, "errorDescription");
+        try {
+            return new SoapException(Integer.parseInt(errorCode.trim()),
+                    errorDescription != null ? errorDescription.trim() : "");
+        } catch (NumberFormatException e) {
+            return new SoapException(-1, errorCode);
+        }
+    }
+
+    private static String text(Document document, String localName) {
+        NodeList nodes = document.getElementsByTagNameNS("*", localName);
+        return nodes.getLength() > 0 ? nodes.item(0).getTextContent() : null;
+    }
+
+    private static String localName(Node node) {
+        return node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+                if (bytes.size() > MAX_RESPONSE_BYTES) throw new IOException("Answer too long");
+            }
+            return bytes.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static Document parse(byte[] xml) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            // Gateways have no business sending a DTD
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            return builder.parse(new ByteArrayInputStream(xml));
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Invalid SOAP answer", e);
+        }
+    }
+
+    private static String escape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
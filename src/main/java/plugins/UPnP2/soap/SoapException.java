@@ -0,0 +1,40 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.soap;
+
+import java.io.IOException;
+
+/**
+ * A gateway answered a SOAP action with a UPnP error.
+ */
+public class SoapException extends IOException {
+
+    private final int errorCode;
+
+    public SoapException(int errorCode, String errorDescription) {
+        super("UPnP error " + errorCode + " (" + errorDescription + ")");
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * @return UPnP error code, e.g. 718 for a conflicting mapping, -1 if the gateway sent none
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+}
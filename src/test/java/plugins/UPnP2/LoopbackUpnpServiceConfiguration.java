@@ -0,0 +1,58 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.transport.spi.MulticastReceiver;
+import org.fourthline.cling.transport.spi.NetworkAddressFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import plugins.UPnP2.simulator.LoopbackNetworkAddressFactory;
+import plugins.UPnP2.simulator.SimulatedNetwork;
+
+/**
+ * The plugin's Cling configuration bound to loopback, to talk to a {@link SimulatedNetwork}.
+ */
+class LoopbackUpnpServiceConfiguration extends IGDUpnpServiceConfiguration {
+
+    private final SimulatedNetwork network;
+
+    LoopbackUpnpServiceConfiguration(SimulatedNetwork network) {
+        this.network = network;
+    }
+
+    @Override
+    protected NetworkAddressFactory createNetworkAddressFactory(int streamListenPort) {
+        return new LoopbackNetworkAddressFactory(streamListenPort);
+    }
+
+    @Override
+    public MulticastReceiver createMulticastReceiver(NetworkAddressFactory networkAddressFactory) {
+        return null;
+    }
+
+    /**
+     * Only the simulated gateways are on loopback, whatever the subnet
+     */
+    @Override
+    public List<InetSocketAddress> getOuterGatewaySearchAddresses(InetAddress privateExternalIP) {
+        return network.getSearchAddresses();
+    }
+}
@@ -0,0 +1,767 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import org.fourthline.cling.model.gena.CancelReason;
+import org.fourthline.cling.model.gena.RemoteGENASubscription;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.support.model.PortMapping;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import freenet.pluginmanager.DetectedIP;
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortCallback;
+import freenet.pluginmanager.ForwardPortStatus;
+import plugins.UPnP2.models.PortMappingKey;
+import plugins.UPnP2.simulator.NatTable;
+import plugins.UPnP2.simulator.PinholeTable;
+import plugins.UPnP2.simulator.SimulatedGateway;
+import plugins.UPnP2.simulator.SimulatedNatPmpGateway;
+import plugins.UPnP2.simulator.SimulatedNetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the ServiceManager against simulated gateways over loopback.
+ */
+public class ServiceManagerTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+    private static final long POLL_MILLIS = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SimulatedNetwork network;
+    private TestTicker ticker;
+    private ServiceManager serviceManager;
+
+    private SimulatedNatPmpGateway natPmpGateway;
+
+    @Before
+    public void setUp() {
+        network = new SimulatedNetwork();
+        ticker = new TestTicker();
+        start();
+    }
+
+    @After
+    public void tearDown() {
+        serviceManager.shutdown();
+        network.shutdown();
+        if (natPmpGateway != null) natPmpGateway.shutdown();
+        ticker.shutdown();
+    }
+
+    @Test
+    public void externalIPFromGateway() throws Exception {
+        connect(new SimulatedGateway("198.51.100.7"));
+
+        assertEquals(Collections.singleton("198.51.100.7"), externalIPs());
+    }
+
+    @Test
+    public void externalIPChangeIsEvented() throws Exception {
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7"));
+        assertEquals(Collections.singleton("198.51.100.7"), externalIPs());
+
+        gateway.setExternalIPAddress("198.51.100.8");
+
+        awaitExternalIPs(Collections.singleton("198.51.100.8"));
+    }
+
+    @Test
+    public void externalIPChangeIsPushedAndMappingsRevalidated() throws Exception {
+        restart("ipChangeDebounceMillis=100");
+        final CountDownLatch told = new CountDownLatch(1);
+        serviceManager.setExternalIPListener(new ExternalIPMonitor.Listener() {
+            @Override
+            public void externalIPChanged() {
+                told.countDown();
+            }
+        });
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7"));
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+        addPortMappings(port).await(port);
+
+        // The router reconnected with a new address and lost its mappings
+        gateway.getNatTable().clear();
+        gateway.setExternalIPAddress("198.51.100.8");
+
+        assertTrue(told.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitMapping(gateway.getNatTable(), "UDP", 12345);
+    }
+
+    @Test
+    public void departedGatewayKeepsOthers() throws Exception {
+        SimulatedGateway first = connect(new SimulatedGateway("198.51.100.7"));
+        connect(new SimulatedGateway("203.0.113.9", SimulatedGateway.ConnectionType.PPP));
+        awaitExternalIPs(new HashSet<>(Arrays.asList("198.51.100.7", "203.0.113.9")));
+
+        network.byebye(serviceManager.getUpnpService(), first);
+
+        awaitExternalIPs(Collections.singleton("203.0.113.9"));
+    }
+
+    @Test
+    public void portMappingIsAdded() throws Exception {
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7"));
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+
+        StatusCollector statuses = addPortMappings(port);
+
+        assertEquals(ForwardPortStatus.MAYBE_SUCCESS, statuses.await(port).status);
+        NatTable.Entry entry = gateway.getNatTable().get("UDP", 12345);
+        assertNotNull(entry);
+        assertEquals("127.0.0.1", entry.getInternalClient());
+        assertFalse(entry.isPermanent());
+    }
+
+    @Test
+    public void failedLookupKeepsMapping() throws Exception {
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7"));
+        // More than the walk budget, so the ports are looked up one by one
+        for (int port = 40000; port < 40003; port++) {
+            gateway.getNatTable().put(new NatTable.Entry(null, port, "UDP", port, "192.0.2.50",
+                    true, "someone else", 0));
+        }
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+        StatusCollector statuses = addPortMappings(port);
+        assertEquals(ForwardPortStatus.MAYBE_SUCCESS, statuses.await(port).status);
+        gateway.resetRequests();
+
+        // Only NoSuchEntryInArray tells that the mapping is gone
+        gateway.failNext("GetSpecificPortMappingEntry", 501);
+        serviceManager.addPortMappings(Collections.singleton(port), statuses);
+
+        statuses.await(port, ForwardPortStatus.MAYBE_FAILURE);
+        assertEquals(0, gateway.getRequests("AddPortMapping"));
+        assertNotNull(gateway.getNatTable().get("UDP", 12345));
+    }
+
+    @Test
+    public void bigTableIsNotWalkedAgain() throws Exception {
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7"));
+        for (int port = 40000; port < 40003; port++) {
+            gateway.getNatTable().put(new NatTable.Entry(null, port, "UDP", port, "192.0.2.50",
+                    true, "someone else", 0));
+        }
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+        StatusCollector statuses = addPortMappings(port);
+        assertEquals(ForwardPortStatus.MAYBE_SUCCESS, statuses.await(port).status);
+        assertEquals(2, gateway.getRequests("GetGenericPortMappingEntry"));
+        gateway.resetRequests();
+
+        // The first walk showed that the table doesn't fit into the budget
+        statuses = addPortMappings(port);
+
+        assertEquals(ForwardPortStatus.MAYBE_SUCCESS, statuses.await(port).status);
+        assertEquals(0, gateway.getRequests("GetGenericPortMappingEntry"));
+        assertEquals(1, gateway.getRequests("GetSpecificPortMappingEntry"));
+    }
+
+    @Test
+    public void conflictingPortMappingFails() throws Exception {
+        restart("alternativePorts=0");
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7"));
+        gateway.getNatTable().put(new NatTable.Entry(null, 12345, "UDP", 12345, "192.0.2.50",
+                true, "someone else", 0));
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+
+        StatusCollector statuses = addPortMappings(port);
+
+        assertEquals(ForwardPortStatus.DEFINITE_FAILURE, statuses.await(port).status);
+        assertEquals("192.0.2.50", gateway.getNatTable().get("UDP", 12345).getInternalClient());
+        assertEquals(1, gateway.getNatTable().size());
+    }
+
+    @Test
+    public void conflictingPortIsMappedToAnotherPort() throws Exception {
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7"));
+        gateway.getNatTable().put(new NatTable.Entry(null, 12345, "UDP", 12345, "192.0.2.50",
+                true, "someone else", 0));
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+
+        StatusCollector statuses = addPortMappings(port);
+
+        ForwardPortStatus status = statuses.await(port);
+        assertEquals(ForwardPortStatus.MAYBE_SUCCESS, status.status);
+        assertTrue(status.externalPort != 12345);
+        NatTable.Entry entry = gateway.getNatTable().get("UDP", status.externalPort);
+        assertNotNull(entry);
+        assertEquals("127.0.0.1", entry.getInternalClient());
+        assertEquals(12345, entry.getInternalPort().getValue().intValue());
+        assertEquals("192.0.2.50", gateway.getNatTable().get("UDP", 12345).getInternalClient());
+
+        // The next sweep keeps the port we got
+        statuses = addPortMappings(port);
+        assertEquals(status.externalPort, statuses.await(port).externalPort);
+        assertEquals(2, gateway.getNatTable().size());
+    }
+
+    @Test
+    public void igdv2AssignsFreePortOnConflict() throws Exception {
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7",
+                SimulatedGateway.ConnectionType.IP, true));
+        gateway.getNatTable().put(new NatTable.Entry(null, 23456, "TCP", 23456, "192.0.2.50",
+                true, "someone else", 0));
+        ForwardPort port = new ForwardPort("opennet", false, ForwardPort.PROTOCOL_TCP_IPV4, 23456);
+
+        StatusCollector statuses = addPortMappings(port);
+
+        ForwardPortStatus status = statuses.await(port);
+        assertEquals(ForwardPortStatus.MAYBE_SUCCESS, status.status);
+        assertEquals(23457, status.externalPort);
+        assertEquals("127.0.0.1", gateway.getNatTable().get("TCP", 23457).getInternalClient());
+        assertEquals(1, gateway.getRequests("AddAnyPortMapping"));
+    }
+
+    @Test
+    public void doubleNatIsMappedThroughBothGateways() throws Exception {
+        // Not announced, its multicasts don't get through the inner gateway
+        SimulatedGateway outer = new SimulatedGateway("198.51.100.7");
+        network.add(outer);
+        network.answerSearches(outer);
+        SimulatedGateway inner = connect(new SimulatedGateway("192.168.1.2"));
+
+        // Found by the probe the private external IP of the inner gateway set off
+        awaitPrivateExternalIP();
+        awaitExternalIPs(Collections.singleton("198.51.100.7"));
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+
+        StatusCollector statuses = addPortMappings(port);
+
+        assertEquals(ForwardPortStatus.MAYBE_SUCCESS, statuses.await(port).status);
+        assertEquals("127.0.0.1", inner.getNatTable().get("UDP", 12345).getInternalClient());
+        assertEquals("192.168.1.2", outer.getNatTable().get("UDP", 12345).getInternalClient());
+        // Only the outermost address is reachable
+        assertEquals(Collections.singleton("198.51.100.7"), externalIPs());
+    }
+
+    @Test
+    public void onlyPermanentLeasesFallBack() throws Exception {
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7"));
+        gateway.setOnlyPermanentLeases(true);
+        ForwardPort port = new ForwardPort("opennet", false, ForwardPort.PROTOCOL_TCP_IPV4, 23456);
+
+        StatusCollector statuses = addPortMappings(port);
+
+        assertEquals(ForwardPortStatus.MAYBE_SUCCESS, statuses.await(port).status);
+        NatTable.Entry entry = gateway.getNatTable().get("TCP", 23456);
+        assertNotNull(entry);
+        assertTrue(entry.isPermanent());
+    }
+
+    @Test
+    public void slowGatewayDoesNotBlockCaller() throws Exception {
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7"));
+        serviceManager.waitForBooting();
+        gateway.hold();
+        ForwardPort darknet = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4,
+                12345);
+        ForwardPort opennet = new ForwardPort("opennet", false, ForwardPort.PROTOCOL_UDP_IPV4,
+                12346);
+
+        // Returns while the gateway keeps all requests waiting
+        StatusCollector statuses = addPortMappings(darknet, opennet);
+        assertEquals(0, statuses.getCalls());
+        gateway.release();
+
+        assertEquals(ForwardPortStatus.MAYBE_SUCCESS, statuses.await(darknet).status);
+        assertEquals(ForwardPortStatus.MAYBE_SUCCESS, statuses.await(opennet).status);
+        // Both in one batch of the single service
+        assertEquals(1, statuses.getCalls());
+    }
+
+    @Test
+    public void onlyChangedStatusesAreReported() throws Exception {
+        connect(new SimulatedGateway("198.51.100.7"));
+        ForwardPort darknet = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4,
+                12345);
+        ForwardPort opennet = new ForwardPort("opennet", false, ForwardPort.PROTOCOL_UDP_IPV4,
+                12346);
+        StatusCollector statuses = addPortMappings(darknet);
+        statuses.await(darknet);
+
+        serviceManager.addPortMappings(new HashSet<>(Arrays.asList(darknet, opennet)), statuses);
+
+        assertEquals(ForwardPortStatus.MAYBE_SUCCESS, statuses.await(opennet).status);
+        assertEquals(Collections.singleton(opennet), statuses.getLastBatch().keySet());
+    }
+
+    @Test
+    public void bestStatusWinsAcrossGateways() throws Exception {
+        SimulatedGateway conflicting = connect(new SimulatedGateway("198.51.100.7"));
+        conflicting.getNatTable().put(new NatTable.Entry(null, 12345, "UDP", 12345, "192.0.2.50",
+                true, "someone else", 0));
+        connect(new SimulatedGateway("203.0.113.9"));
+        awaitExternalIPs(new HashSet<>(Arrays.asList("198.51.100.7", "203.0.113.9")));
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+
+        StatusCollector statuses = addPortMappings(port);
+
+        assertEquals(ForwardPortStatus.MAYBE_SUCCESS, statuses.await(port).status);
+        assertEquals(1, statuses.getCalls());
+    }
+
+    @Test
+    public void uncertainFailureWinsOverDefiniteOne() throws Exception {
+        restart("alternativePorts=0", "reconcileTimeoutMillis=500");
+        SimulatedGateway conflicting = connect(new SimulatedGateway("198.51.100.7"));
+        SimulatedGateway slow = connect(new SimulatedGateway("203.0.113.9"));
+        awaitExternalIPs(new HashSet<>(Arrays.asList("198.51.100.7", "203.0.113.9")));
+        conflicting.failNext("AddPortMapping", 718);
+        slow.setLatencyMillis(3000);
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+
+        StatusCollector statuses = addPortMappings(port);
+
+        // The conflict is certain, the gateway which timed out may have mapped the port
+        statuses.await(port, ForwardPortStatus.MAYBE_FAILURE);
+    }
+
+    @Test
+    public void actionsAreMetered() throws Exception {
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7"));
+        gateway.failNext("AddPortMapping", 606);
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+
+        addPortMappings(port).await(port);
+
+        Metrics.ActionMetrics addPortMapping =
+                serviceManager.getMetrics().getActionMetrics("AddPortMapping");
+        assertNotNull(addPortMapping);
+        assertEquals(1, addPortMapping.getFailures());
+        assertEquals(Long.valueOf(1), addPortMapping.getErrorCodes().get(606));
+        assertTrue(serviceManager.getMetrics().getEventsReceived() > 0);
+        assertTrue(serviceManager.getMetrics().snapshot().contains("AddPortMapping"));
+    }
+
+    @Test
+    public void throughputIsMeasuredAcrossCounterWrap() throws Exception {
+        // Only the test takes samples
+        restart("bandwidthSource=peak", "throughputSampleMillis=3600000");
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7"));
+        awaitExternalIPs(Collections.singleton("198.51.100.7"));
+        // Just below the wrap of the 32 bit counters
+        gateway.addTraffic((1L << 32) - 1000, (1L << 32) - 2000);
+
+        // Link rates until there is a sample
+        assertEquals(10000000, serviceManager.getUpstreamMaxBitRate());
+
+        ThroughputSampler sampler = serviceManager.getThroughputSampler();
+        long time = TimeUnit.SECONDS.toNanos(1);
+        sampler.sample(time);
+        gateway.addTraffic(100000, 200000);
+        sampler.sample(time + TimeUnit.MILLISECONDS.toNanos(500));
+
+        // Bytes in half a second as bits per second
+        assertEquals(100000 * 8 * 2, serviceManager.getUpstreamMaxBitRate());
+        assertEquals(200000 * 8 * 2, serviceManager.getDownstreamMaxBitRate());
+    }
+
+    @Test
+    public void threadsDoNotGrowWithGateways() throws Exception {
+        Set<String> addresses = new HashSet<>();
+        for (int i = 1; i <= 16; i++) {
+            connect(new SimulatedGateway("198.51.100." + i));
+            addresses.add("198.51.100." + i);
+        }
+        awaitExternalIPs(addresses);
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+
+        addPortMappings(port).await(port);
+
+        // On loopback the transport pool holds a datagram loop, the stream server and the
+        // registry maintainer
+        int bound = 3 + IGDUpnpServiceConfiguration.SYNC_PROTOCOL_THREADS +
+                IGDUpnpServiceConfiguration.ASYNC_PROTOCOL_THREADS + 1 +
+                serviceManager.getConfig().getPortMappingThreads();
+        int threads = serviceManager.getThreadCount();
+        assertTrue(threads + " threads", threads <= bound);
+    }
+
+    @Test
+    public void natPmpWithoutIGD() throws Exception {
+        startWithNatPmp();
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+
+        assertEquals(Collections.singleton("198.51.100.7"), externalIPs());
+        StatusCollector statuses = addPortMappings(port);
+
+        assertEquals(ForwardPortStatus.MAYBE_SUCCESS, statuses.await(port).status);
+        assertEquals(12345, statuses.await(port).externalPort);
+        assertNotNull(natPmpGateway.getNatTable().get("UDP", 12345));
+        assertEquals(1, serviceManager.getMetrics().getActionMetrics("NAT-PMP MapUDP")
+                .getSuccesses());
+    }
+
+    @Test
+    public void natPmpReportsAssignedPort() throws Exception {
+        startWithNatPmp();
+        natPmpGateway.getNatTable().put(new NatTable.Entry(null, 12345, "UDP", 12345,
+                "192.0.2.50", true, "someone else", 0));
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+
+        StatusCollector statuses = addPortMappings(port);
+
+        assertEquals(12346, statuses.await(port).externalPort);
+    }
+
+    @Test
+    public void natPmpMapsAgainAfterRestart() throws Exception {
+        startWithNatPmp();
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+        addPortMappings(port).await(port);
+
+        natPmpGateway.restart();
+        assertNull(natPmpGateway.getNatTable().get("UDP", 12345));
+        // Any answer tells the gateway lost its state
+        externalIPs();
+
+        awaitMapping(natPmpGateway.getNatTable(), "UDP", 12345);
+    }
+
+    @Test
+    public void natPmpMappingsAreRemovedOnShutdown() throws Exception {
+        startWithNatPmp();
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+        addPortMappings(port).await(port);
+
+        serviceManager.shutdown();
+
+        assertEquals(0, natPmpGateway.getNatTable().size());
+    }
+
+    @Test
+    public void pinholeIsOpenedForIPv6Port() throws Exception {
+        startWithPinholeAddress("2001:db8::7");
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7",
+                SimulatedGateway.ConnectionType.IP, true));
+        ForwardPort port = new ForwardPort("darknet", true, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+
+        awaitExternalIPs(new HashSet<>(Arrays.asList("198.51.100.7", "2001:db8:0:0:0:0:0:7")));
+        StatusCollector statuses = addPortMappings(port);
+
+        assertEquals(ForwardPortStatus.MAYBE_SUCCESS, statuses.await(port).status);
+        PinholeTable.Entry pinhole = gateway.getPinholeTable().find("2001:db8::7", 12345,
+                ForwardPort.PROTOCOL_UDP_IPV4);
+        assertNotNull(pinhole);
+        // Only IPv4 ports are mapped in the NAT
+        assertNull(gateway.getNatTable().get("UDP", 12345));
+    }
+
+    @Test
+    public void refusedPinholeFails() throws Exception {
+        startWithPinholeAddress("2001:db8::7");
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7",
+                SimulatedGateway.ConnectionType.IP, true));
+        gateway.setInboundPinholeAllowed(false);
+        ForwardPort port = new ForwardPort("darknet", true, ForwardPort.PROTOCOL_TCP_IPV4, 23456);
+
+        StatusCollector statuses = addPortMappings(port);
+
+        assertEquals(ForwardPortStatus.DEFINITE_FAILURE, statuses.await(port).status);
+        assertEquals(0, gateway.getPinholeTable().size());
+    }
+
+    @Test
+    public void pinholesAreClosedOnShutdown() throws Exception {
+        startWithPinholeAddress("2001:db8::7");
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7",
+                SimulatedGateway.ConnectionType.IP, true));
+        ForwardPort port = new ForwardPort("darknet", true, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+        addPortMappings(port).await(port);
+        assertEquals(1, gateway.getPinholeTable().size());
+
+        serviceManager.shutdown();
+
+        assertEquals(0, gateway.getPinholeTable().size());
+    }
+
+    @Test
+    public void dormantStackRenewsDirectlyAndWakesOnChange() throws Exception {
+        restart("dormantAfterMillis=200");
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7"));
+        ForwardPort port = new ForwardPort("darknet", false, ForwardPort.PROTOCOL_UDP_IPV4, 12345);
+        addPortMappings(port).await(port);
+        awaitDormant();
+
+        // The gateway lost the mapping, the renewal goes straight to it
+        gateway.getNatTable().clear();
+        Service connectionService = serviceManager.getConnectionServices().get(0);
+        assertTrue(serviceManager.renewPortMapping(connectionService,
+                new PortMappingKey(PortMapping.Protocol.UDP, 12345)));
+        assertNotNull(gateway.getNatTable().get("UDP", 12345));
+        assertTrue(serviceManager.isDormant());
+
+        // Only the check sees the new address, there are no events while dormant
+        gateway.setExternalIPAddress("198.51.100.8");
+        serviceManager.verifyExternalIPs();
+
+        awaitExternalIPs(Collections.singleton("198.51.100.8"));
+    }
+
+    @Test
+    public void rebindingDiscoversGatewaysAgain() throws Exception {
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7"));
+        assertEquals(Collections.singleton("198.51.100.7"), externalIPs());
+
+        serviceManager.rebindNetwork();
+
+        await("gateways to be forgotten", new Condition() {
+            @Override
+            public boolean holds() {
+                return serviceManager.getGateways().isEmpty();
+            }
+        });
+        // Stands in for the answer to the search, SSDP doesn't work on loopback
+        network.announce(serviceManager.getUpnpService(), gateway);
+        awaitExternalIPs(Collections.singleton("198.51.100.7"));
+    }
+
+    @Test
+    public void brokenSubscriptionIsPolledAndRenewed() throws Exception {
+        restart("resubscribeMillis=2000", "ipPollMinMillis=1000");
+        SimulatedGateway gateway = connect(new SimulatedGateway("198.51.100.7"));
+        awaitExternalIPs(Collections.singleton("198.51.100.7"));
+        final Service connectionService = serviceManager.getConnectionServices().get(0);
+        final SubscriptionSupervisor supervisor = serviceManager.getSubscriptionSupervisor();
+        assertTrue(supervisor.isLive(connectionService));
+
+        // Cling dropped the subscription, its events go nowhere
+        serviceManager.getUpnpService().getRegistry().removeRemoteSubscription(
+                (RemoteGENASubscription) serviceManager.getSubscriptionCallback(
+                        connectionService).getSubscription());
+        supervisor.failed(connectionService, CancelReason.RENEWAL_FAILED);
+        assertTrue(supervisor.isPolled(connectionService));
+        gateway.setExternalIPAddress("198.51.100.8");
+
+        awaitExternalIPs(Collections.singleton("198.51.100.8"));
+        await("a new subscription", new Condition() {
+            @Override
+            public boolean holds() {
+                return supervisor.isLive(connectionService);
+            }
+        });
+        assertFalse(supervisor.isPolled(connectionService));
+        assertEquals(1, serviceManager.getMetrics().getResubscriptions());
+    }
+
+    // #############################
+    // Helpers
+    // #############################
+
+    /**
+     * @param settings "name=value", without the plugins.UPnP2 prefix
+     */
+    private void start(String... settings) {
+        Properties properties = new Properties();
+        // A NAT-PMP router on the LAN must not take part
+        properties.setProperty("plugins.UPnP2.natPmpEnabled", "false");
+        for (String setting : settings) {
+            int split = setting.indexOf('=');
+            properties.setProperty("plugins.UPnP2." + setting.substring(0, split),
+                    setting.substring(split + 1));
+        }
+        serviceManager = new ServiceManager(new Config(properties), ticker,
+                new File(folder.getRoot(), "upnp2-gateways.cache"),
+                new LoopbackUpnpServiceConfiguration(network));
+        serviceManager.init();
+    }
+
+    /**
+     * Replace the service manager by one with other settings
+     *
+     * @param settings "name=value", without the plugins.UPnP2 prefix
+     */
+    private void restart(String... settings) {
+        serviceManager.shutdown();
+        start(settings);
+    }
+
+    /**
+     * Replace the service manager by one which opens pinholes for a fixed IPv6 address, the
+     * host may not have a global one
+     */
+    private void startWithPinholeAddress(String address) {
+        restart("pinholeAddress=" + address);
+    }
+
+    /**
+     * Replace the service manager by one which talks to a simulated NAT-PMP gateway
+     */
+    private void startWithNatPmp() throws Exception {
+        natPmpGateway = new SimulatedNatPmpGateway("198.51.100.7");
+        restart("natPmpEnabled=true", "natPmpGateways=" + natPmpGateway.getAddress());
+        serviceManager.waitForBooting();
+    }
+
+    private SimulatedGateway connect(SimulatedGateway gateway) throws Exception {
+        network.add(gateway);
+        network.announce(serviceManager.getUpnpService(), gateway);
+        return gateway;
+    }
+
+    private StatusCollector addPortMappings(ForwardPort... ports) {
+        StatusCollector statuses = new StatusCollector();
+        serviceManager.waitForBooting();
+        serviceManager.addPortMappings(new HashSet<>(Arrays.asList(ports)), statuses);
+        return statuses;
+    }
+
+    private Set<String> externalIPs() {
+        Set<String> addresses = new HashSet<>();
+        Collection<DetectedIP> detectedIPs = serviceManager.getExternalIPs();
+        if (detectedIPs != null) {
+            for (DetectedIP detectedIP : detectedIPs) {
+                addresses.add(detectedIP.publicAddress.getHostAddress());
+            }
+        }
+        return addresses;
+    }
+
+    private void awaitExternalIPs(final Set<String> expected) throws Exception {
+        await("external IPs " + expected, new Condition() {
+            @Override
+            public boolean holds() {
+                return expected.equals(externalIPs());
+            }
+        });
+    }
+
+    private void awaitPrivateExternalIP() throws Exception {
+        await("a gateway behind another NAT", new Condition() {
+            @Override
+            public boolean holds() {
+                for (GatewayState gateway : serviceManager.getGateways()) {
+                    if (gateway.getPrivateExternalIP() != null) return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    private void awaitDormant() throws Exception {
+        await("the stack to go dormant", new Condition() {
+            @Override
+            public boolean holds() {
+                return serviceManager.isDormant();
+            }
+        });
+    }
+
+    private void awaitMapping(final NatTable natTable, final String protocol, final int port)
+            throws Exception {
+        await(protocol + " port " + port + " to be mapped", new Condition() {
+            @Override
+            public boolean holds() {
+                return natTable.get(protocol, port) != null;
+            }
+        });
+    }
+
+    /**
+     * Poll until the condition holds, fail once the timeout is over
+     */
+    private static void await(String what, Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) fail("Timed out waiting for " + what);
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Something a test waits for
+     */
+    private interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    /**
+     * Keeps the latest status reported per port
+     */
+    private static class StatusCollector implements ForwardPortCallback {
+
+        private final Map<ForwardPort, ForwardPortStatus> statuses = new HashMap<>();
+        private int calls;
+        private Map<ForwardPort, ForwardPortStatus> lastBatch;
+
+        @Override
+        public synchronized void portForwardStatus(Map<ForwardPort, ForwardPortStatus> statuses) {
+            this.statuses.putAll(statuses);
+            lastBatch = statuses;
+            calls++;
+            notifyAll();
+        }
+
+        synchronized Map<ForwardPort, ForwardPortStatus> getLastBatch() {
+            return lastBatch;
+        }
+
+        synchronized int getCalls() {
+            return calls;
+        }
+
+        synchronized ForwardPortStatus await(ForwardPort port) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (!statuses.containsKey(port)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) fail("No status for " + port.name);
+                wait(remaining);
+            }
+            return statuses.get(port);
+        }
+
+        /**
+         * Wait until the port has the status, e.g. once late answers changed it
+         */
+        synchronized ForwardPortStatus await(ForwardPort port, int status)
+                throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (!statuses.containsKey(port) || statuses.get(port).status != status) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) fail("Status of " + port.name + " is not " + status);
+                wait(remaining);
+            }
+            return statuses.get(port);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.Executor;
+import freenet.support.Ticker;
+
+/**
+ * Ticker running jobs on a thread pool, in place of the node's.
+ */
+class TestTicker implements Ticker {
+
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(4);
+
+    /**
+     * Pending runs per job, for noDupes and removeQueuedJob
+     */
+    private final Map<Runnable, List<ScheduledFuture<?>>> queued = new HashMap<>();
+
+    @Override
+    public void queueTimedJob(Runnable job, long offset) {
+        queueTimedJob(job, job.toString(), offset, false, false);
+    }
+
+    @Override
+    public synchronized void queueTimedJob(final Runnable job, String name, long offset,
+                                           boolean runOnTickerAnyway, boolean noDupes) {
+        List<ScheduledFuture<?>> futures = queued.get(job);
+        if (futures == null) {
+            futures = new ArrayList<>();
+            queued.put(job, futures);
+        }
+        for (Iterator<ScheduledFuture<?>> it = futures.iterator(); it.hasNext(); ) {
+            if (it.next().isDone()) it.remove();
+        }
+        if (noDupes && !futures.isEmpty()) return;
+
+        futures.add(executor.schedule(job, Math.max(0, offset), TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public void queueTimedJobAbsolute(Runnable runner, String name, long time,
+                                      boolean runOnTickerAnyway, boolean noDupes) {
+        queueTimedJob(runner, name, time - System.currentTimeMillis(), runOnTickerAnyway,
+                noDupes);
+    }
+
+    @Override
+    public synchronized void removeQueuedJob(Runnable job) {
+        List<ScheduledFuture<?>> futures = queued.remove(job);
+        if (futures == null) return;
+        for (ScheduledFuture<?> future : futures) {
+            future.cancel(false);
+        }
+    }
+
+    @Override
+    public Executor getExecutor() {
+        throw new UnsupportedOperationException();
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
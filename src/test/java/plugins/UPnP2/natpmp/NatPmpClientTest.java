@@ -0,0 +1,146 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.natpmp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+import plugins.UPnP2.simulator.NatTable;
+import plugins.UPnP2.simulator.SimulatedNatPmpGateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the NAT-PMP client against a simulated gateway over loopback.
+ */
+public class NatPmpClientTest {
+
+    private static final long TIMEOUT_MILLIS = 1000;
+
+    private SimulatedNatPmpGateway gateway;
+    private NatPmpClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        gateway = new SimulatedNatPmpGateway("198.51.100.7");
+        client = new NatPmpClient(gateway.getSocketAddress(), TIMEOUT_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        gateway.shutdown();
+    }
+
+    @Test
+    public void externalAddress() throws Exception {
+        NatPmpClient.ExternalAddress externalAddress = client.getExternalAddress();
+
+        assertEquals(InetAddress.getByName("198.51.100.7"), externalAddress.getAddress());
+        assertEquals(gateway.getEpoch(), externalAddress.getEpoch(), 1);
+    }
+
+    @Test
+    public void mapAndUnmap() throws Exception {
+        NatPmpClient.Mapping mapping = client.map(NatPmpClient.Protocol.UDP, 12345, 12345, 600);
+
+        assertEquals(12345, mapping.getInternalPort());
+        assertEquals(12345, mapping.getExternalPort());
+        assertEquals(600, mapping.getLifetimeSeconds());
+        NatTable.Entry entry = gateway.getNatTable().get("UDP", 12345);
+        assertNotNull(entry);
+        assertEquals("127.0.0.1", entry.getInternalClient());
+
+        client.unmap(NatPmpClient.Protocol.UDP, 12345);
+
+        assertNull(gateway.getNatTable().get("UDP", 12345));
+    }
+
+    @Test
+    public void gatewayAssignsAnotherPort() throws Exception {
+        gateway.getNatTable().put(new NatTable.Entry(null, 23456, "TCP", 23456, "192.0.2.50",
+                true, "someone else", 0));
+
+        NatPmpClient.Mapping mapping = client.map(NatPmpClient.Protocol.TCP, 23456, 23456, 600);
+
+        assertEquals(23457, mapping.getExternalPort());
+        assertEquals("127.0.0.1", gateway.getNatTable().get("TCP", 23457).getInternalClient());
+    }
+
+    @Test
+    public void resultCodeIsReported() throws Exception {
+        gateway.failNext(NatPmpException.NOT_AUTHORIZED);
+
+        try {
+            client.map(NatPmpClient.Protocol.UDP, 12345, 12345, 600);
+            fail("Mapping was refused");
+        } catch (NatPmpException e) {
+            assertEquals(NatPmpException.NOT_AUTHORIZED, e.getResultCode());
+        }
+    }
+
+    @Test
+    public void requestsAreRetransmitted() throws Exception {
+        gateway.setOffline(true);
+
+        long start = System.currentTimeMillis();
+        try {
+            client.getExternalAddress();
+            fail("Offline gateway answered");
+        } catch (SocketTimeoutException e) {
+            // Expected
+        }
+
+        assertEquals(TIMEOUT_MILLIS, System.currentTimeMillis() - start, 250);
+        // Sent at 0, 250 and 750ms
+        assertEquals(3, gateway.getRequests());
+    }
+
+    @Test
+    public void probeFindsGatewayAmongCandidates() throws Exception {
+        InetSocketAddress silent;
+        try (DatagramSocket socket = new DatagramSocket(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            silent = (InetSocketAddress) socket.getLocalSocketAddress();
+        }
+
+        NatPmpClient.Probe probe = NatPmpClient.probe(
+                Arrays.asList(silent, gateway.getSocketAddress()), TIMEOUT_MILLIS);
+
+        assertNotNull(probe);
+        assertEquals(gateway.getSocketAddress(), probe.getClient().getGateway());
+        assertEquals(InetAddress.getByName("198.51.100.7"),
+                probe.getExternalAddress().getAddress());
+    }
+
+    @Test
+    public void probeWithoutGateway() throws Exception {
+        gateway.setOffline(true);
+
+        assertNull(NatPmpClient.probe(Arrays.asList(gateway.getSocketAddress()), 500));
+    }
+}
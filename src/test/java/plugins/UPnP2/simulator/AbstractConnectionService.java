@@ -0,0 +1,169 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.simulator;
+
+import org.fourthline.cling.binding.annotations.UpnpAction;
+import org.fourthline.cling.binding.annotations.UpnpInputArgument;
+import org.fourthline.cling.binding.annotations.UpnpOutputArgument;
+import org.fourthline.cling.model.action.ActionException;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+
+import java.beans.PropertyChangeSupport;
+
+/**
+ * Actions WANIPConnection and WANPPPConnection have in common. The state variables are declared
+ * on the subclasses because Cling doesn't inherit them.
+ */
+public abstract class AbstractConnectionService {
+
+    protected final SimulatedGateway gateway;
+    private final PropertyChangeSupport propertyChangeSupport;
+
+    protected AbstractConnectionService(SimulatedGateway gateway) {
+        this.gateway = gateway;
+        propertyChangeSupport = new PropertyChangeSupport(this);
+    }
+
+    /**
+     * Found by Cling's DefaultServiceManager, which sends a GENA event for each change
+     */
+    public PropertyChangeSupport getPropertyChangeSupport() {
+        return propertyChangeSupport;
+    }
+
+    void externalIPAddressChanged(String oldValue, String newValue) {
+        propertyChangeSupport.firePropertyChange("ExternalIPAddress", oldValue, newValue);
+    }
+
+    void portMappingNumberOfEntriesChanged() {
+        propertyChangeSupport.firePropertyChange("PortMappingNumberOfEntries", null,
+                getPortMappingNumberOfEntries());
+    }
+
+    // #############################
+    // Evented state variables
+    // #############################
+
+    public String getExternalIPAddress() {
+        return gateway.getExternalIPAddress();
+    }
+
+    public UnsignedIntegerTwoBytes getPortMappingNumberOfEntries() {
+        return new UnsignedIntegerTwoBytes(gateway.getNatTable().size());
+    }
+
+    // #############################
+    // Actions
+    // #############################
+
+    @UpnpAction(name = "GetExternalIPAddress", out = @UpnpOutputArgument(
+            name = "NewExternalIPAddress", stateVariable = "ExternalIPAddress"))
+    public String getExternalIPAddressAction() throws ActionException {
+        gateway.enter("GetExternalIPAddress");
+        return gateway.getExternalIPAddress();
+    }
+
+    @UpnpAction(name = "AddPortMapping")
+    public void addPortMapping(
+            @UpnpInputArgument(name = "NewRemoteHost", stateVariable = "RemoteHost")
+                    String remoteHost,
+            @UpnpInputArgument(name = "NewExternalPort", stateVariable = "ExternalPort")
+                    UnsignedIntegerTwoBytes externalPort,
+            @UpnpInputArgument(name = "NewProtocol", stateVariable = "PortMappingProtocol")
+                    String protocol,
+            @UpnpInputArgument(name = "NewInternalPort", stateVariable = "InternalPort")
+                    UnsignedIntegerTwoBytes internalPort,
+            @UpnpInputArgument(name = "NewInternalClient", stateVariable = "InternalClient")
+                    String internalClient,
+            @UpnpInputArgument(name = "NewEnabled", stateVariable = "PortMappingEnabled")
+                    Boolean enabled,
+            @UpnpInputArgument(name = "NewPortMappingDescription",
+                    stateVariable = "PortMappingDescription")
+                    String description,
+            @UpnpInputArgument(name = "NewLeaseDuration",
+                    stateVariable = "PortMappingLeaseDuration")
+                    UnsignedIntegerFourBytes leaseDuration) throws ActionException {
+        gateway.enter("AddPortMapping");
+        gateway.addPortMapping(new NatTable.Entry(remoteHost,
+                externalPort.getValue().intValue(), protocol, internalPort.getValue().intValue(),
+                internalClient, enabled == null || enabled, description,
+                leaseDuration != null ? leaseDuration.getValue() : 0));
+    }
+
+    @UpnpAction(name = "DeletePortMapping")
+    public void deletePortMapping(
+            @UpnpInputArgument(name = "NewRemoteHost", stateVariable = "RemoteHost")
+                    String remoteHost,
+            @UpnpInputArgument(name = "NewExternalPort", stateVariable = "ExternalPort")
+                    UnsignedIntegerTwoBytes externalPort,
+            @UpnpInputArgument(name = "NewProtocol", stateVariable = "PortMappingProtocol")
+                    String protocol) throws ActionException {
+        gateway.enter("DeletePortMapping");
+        gateway.deletePortMapping(protocol, externalPort.getValue().intValue());
+    }
+
+    @UpnpAction(name = "GetSpecificPortMappingEntry", out = {
+            @UpnpOutputArgument(name = "NewInternalPort", stateVariable = "InternalPort",
+                    getterName = "getInternalPort"),
+            @UpnpOutputArgument(name = "NewInternalClient", stateVariable = "InternalClient",
+                    getterName = "getInternalClient"),
+            @UpnpOutputArgument(name = "NewEnabled", stateVariable = "PortMappingEnabled",
+                    getterName = "getEnabled"),
+            @UpnpOutputArgument(name = "NewPortMappingDescription",
+                    stateVariable = "PortMappingDescription", getterName = "getDescription"),
+            @UpnpOutputArgument(name = "NewLeaseDuration",
+                    stateVariable = "PortMappingLeaseDuration", getterName = "getLeaseDuration")
+    })
+    public NatTable.Entry getSpecificPortMappingEntry(
+            @UpnpInputArgument(name = "NewRemoteHost", stateVariable = "RemoteHost")
+                    String remoteHost,
+            @UpnpInputArgument(name = "NewExternalPort", stateVariable = "ExternalPort")
+                    UnsignedIntegerTwoBytes externalPort,
+            @UpnpInputArgument(name = "NewProtocol", stateVariable = "PortMappingProtocol")
+                    String protocol) throws ActionException {
+        gateway.enter("GetSpecificPortMappingEntry");
+        return gateway.getSpecificPortMappingEntry(protocol, externalPort.getValue().intValue());
+    }
+
+    @UpnpAction(name = "GetGenericPortMappingEntry", out = {
+            @UpnpOutputArgument(name = "NewRemoteHost", stateVariable = "RemoteHost",
+                    getterName = "getRemoteHost"),
+            @UpnpOutputArgument(name = "NewExternalPort", stateVariable = "ExternalPort",
+                    getterName = "getExternalPort"),
+            @UpnpOutputArgument(name = "NewProtocol", stateVariable = "PortMappingProtocol",
+                    getterName = "getProtocol"),
+            @UpnpOutputArgument(name = "NewInternalPort", stateVariable = "InternalPort",
+                    getterName = "getInternalPort"),
+            @UpnpOutputArgument(name = "NewInternalClient", stateVariable = "InternalClient",
+                    getterName = "getInternalClient"),
+            @UpnpOutputArgument(name = "NewEnabled", stateVariable = "PortMappingEnabled",
+                    getterName = "getEnabled"),
+            @UpnpOutputArgument(name = "NewPortMappingDescription",
+                    stateVariable = "PortMappingDescription", getterName = "getDescription"),
+            @UpnpOutputArgument(name = "NewLeaseDuration",
+                    stateVariable = "PortMappingLeaseDuration", getterName = "getLeaseDuration")
+    })
+    public NatTable.Entry getGenericPortMappingEntry(
+            @UpnpInputArgument(name = "NewPortMappingIndex",
+                    stateVariable = "PortMappingNumberOfEntries")
+                    UnsignedIntegerTwoBytes index) throws ActionException {
+        gateway.enter("GetGenericPortMappingEntry");
+        return gateway.getGenericPortMappingEntry(index.getValue().intValue());
+    }
+}
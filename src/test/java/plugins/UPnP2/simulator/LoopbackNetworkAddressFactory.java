@@ -0,0 +1,49 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.simulator;
+
+import org.fourthline.cling.transport.impl.NetworkAddressFactoryImpl;
+import org.fourthline.cling.transport.spi.InitializationException;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+
+/**
+ * Binds a Cling stack to the loopback interface only, which Cling skips by default. Keeps tests
+ * off the real LAN and its routers.
+ * <p>
+ * Loopback has no multicast on most systems, so stacks using this must not start a multicast
+ * receiver, and SSDP doesn't work between them. {@link SimulatedNetwork#announce} stands in for
+ * discovery.
+ */
+public class LoopbackNetworkAddressFactory extends NetworkAddressFactoryImpl {
+
+    public LoopbackNetworkAddressFactory(int streamListenPort) throws InitializationException {
+        super(streamListenPort);
+    }
+
+    @Override
+    protected boolean isUsableNetworkInterface(NetworkInterface iface) throws Exception {
+        return iface.isUp() && iface.isLoopback();
+    }
+
+    @Override
+    protected boolean isUsableAddress(NetworkInterface networkInterface, InetAddress address) {
+        return address.equals(InetAddress.getLoopbackAddress());
+    }
+}
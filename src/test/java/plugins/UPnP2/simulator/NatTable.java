@@ -0,0 +1,183 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.simulator;
+
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory NAT table of a simulated gateway. Entries expire when their lease runs out, like on a
+ * real router.
+ */
+public class NatTable {
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * @return the entry, or null if there is none
+     */
+    public synchronized Entry get(String protocol, int externalPort) {
+        expire();
+        return entries.get(key(protocol, externalPort));
+    }
+
+    /**
+     * @return the entry at the index, or null if the index is out of range
+     */
+    public synchronized Entry get(int index) {
+        expire();
+        if (index < 0 || index >= entries.size()) return null;
+        return new ArrayList<>(entries.values()).get(index);
+    }
+
+    /**
+     * Add or replace an entry
+     *
+     * @return the entry it replaced, or null
+     */
+    public synchronized Entry put(Entry entry) {
+        expire();
+        return entries.put(key(entry.protocol, entry.externalPort), entry);
+    }
+
+    /**
+     * @return whether there was such an entry
+     */
+    public synchronized boolean remove(String protocol, int externalPort) {
+        expire();
+        return entries.remove(key(protocol, externalPort)) != null;
+    }
+
+    public synchronized List<Entry> getEntries() {
+        expire();
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized int size() {
+        expire();
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.expires != 0 && entry.expires <= now) it.remove();
+        }
+    }
+
+    private static String key(String protocol, int externalPort) {
+        return protocol + " " + externalPort;
+    }
+
+    /**
+     * A port mapping. Immutable. The getters double as output arguments of the SOAP actions.
+     */
+    public static final class Entry {
+
+        private final String remoteHost;
+        private final int externalPort;
+        private final String protocol;
+        private final int internalPort;
+        private final String internalClient;
+        private final boolean enabled;
+        private final String description;
+        private final long leaseSeconds;
+
+        /**
+         * When the lease runs out, 0 for permanent mappings
+         */
+        private final long expires;
+
+        public Entry(String remoteHost, int externalPort, String protocol, int internalPort,
+                     String internalClient, boolean enabled, String description,
+                     long leaseSeconds) {
+            this.remoteHost = remoteHost != null ? remoteHost : "";
+            this.externalPort = externalPort;
+            this.protocol = protocol;
+            this.internalPort = internalPort;
+            this.internalClient = internalClient;
+            this.enabled = enabled;
+            this.description = description != null ? description : "";
+            this.leaseSeconds = leaseSeconds;
+            this.expires = leaseSeconds > 0 ?
+                    System.currentTimeMillis() + leaseSeconds * 1000 : 0;
+        }
+
+        public String getRemoteHost() {
+            return remoteHost;
+        }
+
+        public UnsignedIntegerTwoBytes getExternalPort() {
+            return new UnsignedIntegerTwoBytes(externalPort);
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        public UnsignedIntegerTwoBytes getInternalPort() {
+            return new UnsignedIntegerTwoBytes(internalPort);
+        }
+
+        public String getInternalClient() {
+            return internalClient;
+        }
+
+        public Boolean getEnabled() {
+            return enabled;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * @return the remaining lease, like routers report it
+         */
+        public UnsignedIntegerFourBytes getLeaseDuration() {
+            if (expires == 0) return new UnsignedIntegerFourBytes(0);
+            return new UnsignedIntegerFourBytes(Math.max(1,
+                    (expires - System.currentTimeMillis()) / 1000));
+        }
+
+        public long getLeaseSeconds() {
+            return leaseSeconds;
+        }
+
+        public boolean isPermanent() {
+            return leaseSeconds == 0;
+        }
+
+        @Override
+        public String toString() {
+            return protocol + " " + externalPort + " -> " + internalClient + ":" + internalPort +
+                    " (" + description + ", lease " + leaseSeconds + "s)";
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.simulator;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory IPv6 pinholes of a simulated gateway. Pinholes expire when their lease runs out.
+ */
+public class PinholeTable {
+
+    private final Map<Integer, Entry> entries = new LinkedHashMap<>();
+    private int nextUniqueID = 1;
+
+    /**
+     * @return the unique ID of the new pinhole
+     */
+    public synchronized int add(Entry entry) {
+        expire();
+        int uniqueID = nextUniqueID++;
+        entries.put(uniqueID, entry);
+        return uniqueID;
+    }
+
+    /**
+     * @return the entry, or null if there is none
+     */
+    public synchronized Entry get(int uniqueID) {
+        expire();
+        return entries.get(uniqueID);
+    }
+
+    /**
+     * @return the pinhole of the client's port, or null if there is none
+     */
+    public synchronized Entry find(String internalClient, int internalPort, int protocol) {
+        expire();
+        for (Entry entry : entries.values()) {
+            if (entry.internalClient.equals(internalClient) &&
+                    entry.internalPort == internalPort && entry.protocol == protocol) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether there was such a pinhole
+     */
+    public synchronized boolean update(int uniqueID, long leaseSeconds) {
+        expire();
+        Entry entry = entries.get(uniqueID);
+        if (entry == null) return false;
+        entries.put(uniqueID, new Entry(entry.internalClient, entry.internalPort,
+                entry.protocol, leaseSeconds));
+        return true;
+    }
+
+    /**
+     * @return whether there was such a pinhole
+     */
+    public synchronized boolean remove(int uniqueID) {
+        expire();
+        return entries.remove(uniqueID) != null;
+    }
+
+    public synchronized List<Entry> getEntries() {
+        expire();
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized int size() {
+        expire();
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().expires <= now) it.remove();
+        }
+    }
+
+    /**
+     * An inbound pinhole from any remote host and port. Immutable.
+     */
+    public static final class Entry {
+
+        private final String internalClient;
+        private final int internalPort;
+        private final int protocol;
+        private final long leaseSeconds;
+        private final long expires;
+
+        public Entry(String internalClient, int internalPort, int protocol, long leaseSeconds) {
+            this.internalClient = internalClient;
+            this.internalPort = internalPort;
+            this.protocol = protocol;
+            this.leaseSeconds = leaseSeconds;
+            this.expires = System.currentTimeMillis() + leaseSeconds * 1000;
+        }
+
+        public String getInternalClient() {
+            return internalClient;
+        }
+
+        public int getInternalPort() {
+            return internalPort;
+        }
+
+        public int getProtocol() {
+            return protocol;
+        }
+
+        public long getLeaseSeconds() {
+            return leaseSeconds;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + internalClient + "]:" + internalPort + " protocol " + protocol +
+                    " (lease " + leaseSeconds + "s)";
+        }
+    }
+}
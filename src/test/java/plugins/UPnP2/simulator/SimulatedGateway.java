@@ -0,0 +1,462 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.simulator;
+
+import org.fourthline.cling.binding.annotations.AnnotationLocalServiceBinder;
+import org.fourthline.cling.model.DefaultServiceManager;
+import org.fourthline.cling.model.ValidationException;
+import org.fourthline.cling.model.action.ActionException;
+import org.fourthline.cling.model.meta.DeviceDetails;
+import org.fourthline.cling.model.meta.DeviceIdentity;
+import org.fourthline.cling.model.meta.LocalDevice;
+import org.fourthline.cling.model.meta.LocalService;
+import org.fourthline.cling.model.meta.ManufacturerDetails;
+import org.fourthline.cling.model.meta.ModelDetails;
+import org.fourthline.cling.model.types.UDADeviceType;
+import org.fourthline.cling.model.types.UDN;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An Internet Gateway Device for tests. Built from Cling local devices:
+ * InternetGatewayDevice - WANDevice (WANCommonInterfaceConfig) - WANConnectionDevice
+ * (WANIPConnection and/or WANPPPConnection), backed by an in-memory {@link NatTable}.
+ * <p>
+ * Behaves like a well-mannered IGDv1 router by default. With an IPv6 firewall it is an IGDv2 one,
+ * which also has WANIPv6FirewallControl next to the connection services and picks free external
+ * ports itself. Latency, failures and drop-outs can be switched on at any time, also while a
+ * test runs. Host it with {@link SimulatedNetwork}.
+ */
+public class SimulatedGateway {
+
+    public enum ConnectionType {
+        IP, PPP, BOTH
+    }
+
+    /**
+     * Longest time an offline gateway keeps a request hanging before it fails it
+     */
+    private static final long OFFLINE_HANG_MILLIS = 60 * 1000;
+
+    private final NatTable natTable = new NatTable();
+    private final PinholeTable pinholeTable = new PinholeTable();
+    private final LocalDevice device;
+
+    private final List<AbstractConnectionService> connectionServices = new ArrayList<>();
+    private final WANCommonInterfaceConfigService commonService;
+
+    private volatile String externalIPAddress;
+    private volatile String physicalLinkStatus = "Up";
+    private volatile long upstreamMaxBitRate = 10000000;
+    private volatile long downstreamMaxBitRate = 50000000;
+    private final AtomicLong totalBytesSent = new AtomicLong();
+    private final AtomicLong totalBytesReceived = new AtomicLong();
+
+    private volatile boolean inboundPinholeAllowed = true;
+    private volatile long outboundPinholeTimeoutSeconds = 300;
+
+    private volatile long latencyMillis;
+    private volatile boolean onlyPermanentLeases;
+    private volatile boolean offline;
+
+    /**
+     * Requests wait for it while the gateway is held, null otherwise
+     */
+    private volatile CountDownLatch held;
+
+    /**
+     * Error codes to answer the next requests of an action with
+     */
+    private final ConcurrentMap<String, Queue<Integer>> faults = new ConcurrentHashMap<>();
+
+    /**
+     * Requests received per action
+     */
+    private final ConcurrentMap<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+
+    public SimulatedGateway(String externalIPAddress) throws ValidationException {
+        this(externalIPAddress, ConnectionType.IP);
+    }
+
+    public SimulatedGateway(String externalIPAddress, ConnectionType connectionType)
+            throws ValidationException {
+        this(externalIPAddress, connectionType, false);
+    }
+
+    public SimulatedGateway(String externalIPAddress, ConnectionType connectionType,
+                            boolean ipv6Firewall) throws ValidationException {
+        this.externalIPAddress = externalIPAddress;
+        int version = ipv6Firewall ? 2 : 1;
+
+        List<LocalService> services = new ArrayList<>();
+        if (connectionType != ConnectionType.PPP && ipv6Firewall) {
+            WANIPConnectionV2Service ipService = new WANIPConnectionV2Service(this);
+            connectionServices.add(ipService);
+            services.add(bind(WANIPConnectionV2Service.class, ipService));
+        } else if (connectionType != ConnectionType.PPP) {
+            WANIPConnectionService ipService = new WANIPConnectionService(this);
+            connectionServices.add(ipService);
+            services.add(bind(WANIPConnectionService.class, ipService));
+        }
+        if (connectionType != ConnectionType.IP) {
+            WANPPPConnectionService pppService = new WANPPPConnectionService(this);
+            connectionServices.add(pppService);
+            services.add(bind(WANPPPConnectionService.class, pppService));
+        }
+        if (ipv6Firewall) {
+            services.add(bind(WANIPv6FirewallControlService.class,
+                    new WANIPv6FirewallControlService(this)));
+        }
+        commonService = new WANCommonInterfaceConfigService(this);
+
+        LocalDevice connectionDevice = new LocalDevice(
+                new DeviceIdentity(new UDN(UUID.randomUUID())),
+                new UDADeviceType("WANConnectionDevice", version),
+                details("WANConnectionDevice"),
+                services.toArray(new LocalService[services.size()]),
+                (LocalDevice[]) null);
+        LocalDevice wanDevice = new LocalDevice(
+                new DeviceIdentity(new UDN(UUID.randomUUID())),
+                new UDADeviceType("WANDevice", version),
+                details("WANDevice"),
+                new LocalService[]{bind(WANCommonInterfaceConfigService.class, commonService)},
+                new LocalDevice[]{connectionDevice});
+        device = new LocalDevice(
+                new DeviceIdentity(new UDN(UUID.randomUUID())),
+                new UDADeviceType("InternetGatewayDevice", version),
+                details("Simulated Gateway " + externalIPAddress),
+                (LocalService[]) null,
+                new LocalDevice[]{wanDevice});
+    }
+
+    /**
+     * Bind an annotated service class to an instance we control, Cling would create its own
+     * otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> LocalService<T> bind(Class<T> serviceClass, final T implementation) {
+        LocalService<T> service = new AnnotationLocalServiceBinder().read(serviceClass);
+        service.setManager(new DefaultServiceManager<T>(service, serviceClass) {
+            @Override
+            protected T createServiceInstance() throws Exception {
+                return implementation;
+            }
+        });
+        return service;
+    }
+
+    private static DeviceDetails details(String friendlyName) {
+        return new DeviceDetails(friendlyName, new ManufacturerDetails("UPnP2"),
+                new ModelDetails("SimulatedGateway", "Simulated IGD for tests", "1"));
+    }
+
+    // #############################
+    // Behaviour of the SOAP actions
+    // #############################
+
+    /**
+     * Called first by every action. Counts the request, applies latency and fails it if asked
+     * to.
+     */
+    void enter(String action) throws ActionException {
+        requests.putIfAbsent(action, new AtomicInteger());
+        requests.get(action).incrementAndGet();
+
+        try {
+            if (latencyMillis > 0) Thread.sleep(latencyMillis);
+            CountDownLatch latch = held;
+            if (latch != null) latch.await(OFFLINE_HANG_MILLIS, TimeUnit.MILLISECONDS);
+
+            // A router which dropped off the network doesn't answer at all
+            long deadline = System.currentTimeMillis() + OFFLINE_HANG_MILLIS;
+            while (offline && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (offline) throw new ActionException(501, "Gateway is offline");
+
+        Queue<Integer> queue = faults.get(action);
+        Integer errorCode = queue != null ? queue.poll() : null;
+        if (errorCode != null) {
+            throw new ActionException(errorCode, "Simulated failure of " + action);
+        }
+    }
+
+    void addPortMapping(NatTable.Entry entry) throws ActionException {
+        if (onlyPermanentLeases && !entry.isPermanent()) {
+            throw new ActionException(725, "OnlyPermanentLeasesSupported");
+        }
+
+        int size;
+        synchronized (natTable) {
+            NatTable.Entry existing = natTable.get(entry.getProtocol(),
+                    entry.getExternalPort().getValue().intValue());
+            if (existing != null &&
+                    !existing.getInternalClient().equals(entry.getInternalClient())) {
+                throw new ActionException(718, "ConflictInMappingEntry");
+            }
+            size = natTable.size();
+            natTable.put(entry);
+        }
+        if (natTable.size() != size) portMappingNumberOfEntriesChanged();
+    }
+
+    /**
+     * Like {@link #addPortMapping}, but a taken external port is replaced with the next free one
+     *
+     * @return the external port of the mapping
+     */
+    int addAnyPortMapping(NatTable.Entry entry) throws ActionException {
+        int size;
+        int externalPort = entry.getExternalPort().getValue().intValue();
+        synchronized (natTable) {
+            for (int i = 0; ; i++) {
+                if (i == 65536 - 1024) throw new ActionException(728, "NoPortMapsAvailable");
+                NatTable.Entry existing = natTable.get(entry.getProtocol(), externalPort);
+                if (existing == null ||
+                        existing.getInternalClient().equals(entry.getInternalClient())) {
+                    break;
+                }
+                externalPort = externalPort == 65535 ? 1024 : externalPort + 1;
+            }
+            size = natTable.size();
+            natTable.put(new NatTable.Entry(entry.getRemoteHost(), externalPort,
+                    entry.getProtocol(), entry.getInternalPort().getValue().intValue(),
+                    entry.getInternalClient(), entry.getEnabled(), entry.getDescription(),
+                    entry.getLeaseSeconds()));
+        }
+        if (natTable.size() != size) portMappingNumberOfEntriesChanged();
+        return externalPort;
+    }
+
+    void deletePortMapping(String protocol, int externalPort) throws ActionException {
+        if (!natTable.remove(protocol, externalPort)) {
+            throw new ActionException(714, "NoSuchEntryInArray");
+        }
+        portMappingNumberOfEntriesChanged();
+    }
+
+    NatTable.Entry getSpecificPortMappingEntry(String protocol, int externalPort)
+            throws ActionException {
+        NatTable.Entry entry = natTable.get(protocol, externalPort);
+        if (entry == null) throw new ActionException(714, "NoSuchEntryInArray");
+        return entry;
+    }
+
+    NatTable.Entry getGenericPortMappingEntry(int index) throws ActionException {
+        NatTable.Entry entry = natTable.get(index);
+        if (entry == null) throw new ActionException(713, "SpecifiedArrayIndexInvalid");
+        return entry;
+    }
+
+    int addPinhole(PinholeTable.Entry entry) throws ActionException {
+        if (!inboundPinholeAllowed) {
+            throw new ActionException(703, "InboundPinholeNotAllowed");
+        }
+        if (entry.getLeaseSeconds() < 1 || entry.getLeaseSeconds() > 86400) {
+            throw new ActionException(402, "Invalid Args");
+        }
+        return pinholeTable.add(entry);
+    }
+
+    void updatePinhole(int uniqueID, long leaseSeconds) throws ActionException {
+        if (!pinholeTable.update(uniqueID, leaseSeconds)) {
+            throw new ActionException(704, "NoSuchEntry");
+        }
+    }
+
+    void deletePinhole(int uniqueID) throws ActionException {
+        if (!pinholeTable.remove(uniqueID)) throw new ActionException(704, "NoSuchEntry");
+    }
+
+    private void portMappingNumberOfEntriesChanged() {
+        for (AbstractConnectionService service : connectionServices) {
+            service.portMappingNumberOfEntriesChanged();
+        }
+    }
+
+    // #############################
+    // Test controls
+    // #############################
+
+    /**
+     * Change the external IP. Subscribers get a GENA event.
+     */
+    public void setExternalIPAddress(String externalIPAddress) {
+        String old = this.externalIPAddress;
+        this.externalIPAddress = externalIPAddress;
+        for (AbstractConnectionService service : connectionServices) {
+            service.externalIPAddressChanged(old, externalIPAddress);
+        }
+    }
+
+    /**
+     * Change the link status. Subscribers get a GENA event.
+     */
+    public void setPhysicalLinkStatus(String physicalLinkStatus) {
+        String old = this.physicalLinkStatus;
+        this.physicalLinkStatus = physicalLinkStatus;
+        commonService.physicalLinkStatusChanged(old, physicalLinkStatus);
+    }
+
+    public void setMaxBitRates(long upstreamMaxBitRate, long downstreamMaxBitRate) {
+        this.upstreamMaxBitRate = upstreamMaxBitRate;
+        this.downstreamMaxBitRate = downstreamMaxBitRate;
+    }
+
+    /**
+     * Count traffic. The counters wrap at 2^32 like the ui4 state variables of real routers.
+     */
+    public void addTraffic(long bytesSent, long bytesReceived) {
+        totalBytesSent.addAndGet(bytesSent);
+        totalBytesReceived.addAndGet(bytesReceived);
+    }
+
+    /**
+     * Refuse pinholes, like routers whose user turned them off
+     */
+    public void setInboundPinholeAllowed(boolean inboundPinholeAllowed) {
+        this.inboundPinholeAllowed = inboundPinholeAllowed;
+    }
+
+    public void setOutboundPinholeTimeoutSeconds(long outboundPinholeTimeoutSeconds) {
+        this.outboundPinholeTimeoutSeconds = outboundPinholeTimeoutSeconds;
+    }
+
+    /**
+     * Delay every SOAP answer
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Keep every request waiting until {@link #release()}
+     */
+    public void hold() {
+        held = new CountDownLatch(1);
+    }
+
+    /**
+     * Answer the requests kept waiting by {@link #hold()}
+     */
+    public void release() {
+        CountDownLatch latch = held;
+        held = null;
+        if (latch != null) latch.countDown();
+    }
+
+    /**
+     * Reject mappings with a lease, like many IGDv1 routers do
+     */
+    public void setOnlyPermanentLeases(boolean onlyPermanentLeases) {
+        this.onlyPermanentLeases = onlyPermanentLeases;
+    }
+
+    /**
+     * An offline gateway keeps requests hanging without answering them. Unlike
+     * {@link SimulatedNetwork#remove(SimulatedGateway)} it doesn't say goodbye.
+     */
+    public void setOffline(boolean offline) {
+        this.offline = offline;
+    }
+
+    /**
+     * Fail the next request of an action with a UPnP error code, e.g. 714, 718 or 725
+     */
+    public void failNext(String action, int errorCode) {
+        faults.putIfAbsent(action, new ConcurrentLinkedQueue<Integer>());
+        faults.get(action).add(errorCode);
+    }
+
+    /**
+     * @return number of requests received for an action
+     */
+    public int getRequests(String action) {
+        AtomicInteger count = requests.get(action);
+        return count != null ? count.get() : 0;
+    }
+
+    public void resetRequests() {
+        requests.clear();
+    }
+
+    // #############################
+    // Getters
+    // #############################
+
+    public LocalDevice getDevice() {
+        return device;
+    }
+
+    public UDN getUdn() {
+        return device.getIdentity().getUdn();
+    }
+
+    public NatTable getNatTable() {
+        return natTable;
+    }
+
+    public PinholeTable getPinholeTable() {
+        return pinholeTable;
+    }
+
+    public String getExternalIPAddress() {
+        return externalIPAddress;
+    }
+
+    public boolean isInboundPinholeAllowed() {
+        return inboundPinholeAllowed;
+    }
+
+    public long getOutboundPinholeTimeoutSeconds() {
+        return outboundPinholeTimeoutSeconds;
+    }
+
+    public String getPhysicalLinkStatus() {
+        return physicalLinkStatus;
+    }
+
+    public long getUpstreamMaxBitRate() {
+        return upstreamMaxBitRate;
+    }
+
+    public long getDownstreamMaxBitRate() {
+        return downstreamMaxBitRate;
+    }
+
+    public long getTotalBytesSent() {
+        return totalBytesSent.get() & 0xFFFFFFFFL;
+    }
+
+    public long getTotalBytesReceived() {
+        return totalBytesReceived.get() & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.simulator;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A NAT-PMP gateway for tests, RFC 6886, answering on an ephemeral UDP port of loopback. Mappings
+ * go into a {@link NatTable} like those of {@link SimulatedGateway}.
+ * <p>
+ * Latency, failures, drop-outs and restarts can be switched on at any time.
+ */
+public class SimulatedNatPmpGateway {
+
+    /**
+     * How long the gateway has been up when a test starts, so a restart shows in the epoch
+     */
+    private static final long UPTIME_MILLIS = 60 * 60 * 1000;
+
+    private final NatTable natTable = new NatTable();
+    private final DatagramSocket socket;
+    private final Thread thread;
+
+    private volatile String externalIPAddress;
+    private volatile long epochStartMillis = System.currentTimeMillis() - UPTIME_MILLIS;
+
+    private volatile long latencyMillis;
+    private volatile boolean offline;
+
+    /**
+     * Result codes to answer the next requests with
+     */
+    private final Queue<Integer> faults = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    public SimulatedNatPmpGateway(String externalIPAddress) throws SocketException {
+        this.externalIPAddress = externalIPAddress;
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "Simulated NAT-PMP gateway " + externalIPAddress);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void shutdown() {
+        socket.close();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // #############################
+    // Protocol
+    // #############################
+
+    private void serve() {
+        byte[] buffer = new byte[64];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+            requests.incrementAndGet();
+
+            try {
+                if (latencyMillis > 0) Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (offline) continue;
+
+            ByteBuffer response = answer(ByteBuffer.wrap(packet.getData(), 0,
+                    packet.getLength()), packet.getAddress().getHostAddress());
+            if (response == null) continue;
+            try {
+                socket.send(new DatagramPacket(response.array(), response.position(),
+                        packet.getSocketAddress()));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the response, or null for packets a gateway ignores
+     */
+    private ByteBuffer answer(ByteBuffer request, String internalClient) {
+        if (request.remaining() < 2) return null;
+        int version = request.get(0);
+        int opcode = request.get(1) & 0xFF;
+        // Responses of other clients on the LAN
+        if (opcode >= 128) return null;
+
+        ByteBuffer response = ByteBuffer.allocate(16);
+        response.put((byte) 0);
+        response.put((byte) (128 + opcode));
+
+        Integer fault = faults.poll();
+        int resultCode = fault != null ? fault : version != 0 ? 1 : opcode > 2 ? 5 : 0;
+        response.putShort((short) resultCode);
+        response.putInt((int) getEpoch());
+        if (resultCode != 0) return response;
+
+        if (opcode == 0) {
+            try {
+                response.put(InetAddress.getByName(externalIPAddress).getAddress());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return response;
+        }
+
+        if (request.remaining() < 12) return null;
+        String protocol = opcode == 1 ? "UDP" : "TCP";
+        int internalPort = request.getShort(4) & 0xFFFF;
+        int suggestedPort = request.getShort(6) & 0xFFFF;
+        long lifetime = request.getInt(8) & 0xFFFFFFFFL;
+
+        int externalPort;
+        if (lifetime == 0) {
+            delete(protocol, internalPort, internalClient);
+            externalPort = 0;
+        } else {
+            externalPort = map(protocol, internalPort, suggestedPort, internalClient, lifetime);
+            if (externalPort < 0) {
+                response.putShort(2, (short) 4);
+                return response;
+            }
+        }
+
+        response.putShort((short) internalPort);
+        response.putShort((short) externalPort);
+        response.putInt((int) lifetime);
+        return response;
+    }
+
+    /**
+     * Keep the mapping of the client on its port, or find a free port near the suggested one
+     *
+     * @return the external port, -1 if none is free
+     */
+    private int map(String protocol, int internalPort, int suggestedPort, String internalClient,
+                    long lifetime) {
+        synchronized (natTable) {
+            for (NatTable.Entry entry : natTable.getEntries()) {
+                if (entry.getProtocol().equals(protocol) &&
+                        entry.getInternalClient().equals(internalClient) &&
+                        entry.getInternalPort().getValue().intValue() == internalPort) {
+                    suggestedPort = entry.getExternalPort().getValue().intValue();
+                }
+            }
+
+            int port = suggestedPort != 0 ? suggestedPort : internalPort;
+            for (int i = 0; i < 65535; i++) {
+                NatTable.Entry existing = natTable.get(protocol, port);
+                if (existing == null || (existing.getInternalClient().equals(internalClient) &&
+                        existing.getInternalPort().getValue().intValue() == internalPort)) {
+                    natTable.put(new NatTable.Entry(null, port, protocol, internalPort,
+                            internalClient, true, "NAT-PMP", lifetime));
+                    return port;
+                }
+                port = port % 65535 + 1;
+            }
+            return -1;
+        }
+    }
+
+    private void delete(String protocol, int internalPort, String internalClient) {
+        synchronized (natTable) {
+            for (NatTable.Entry entry : natTable.getEntries()) {
+                if (entry.getProtocol().equals(protocol) &&
+                        entry.getInternalClient().equals(internalClient) &&
+                        entry.getInternalPort().getValue().intValue() == internalPort) {
+                    natTable.remove(protocol, entry.getExternalPort().getValue().intValue());
+                }
+            }
+        }
+    }
+
+    // #############################
+    // Test controls
+    // #############################
+
+    public void setExternalIPAddress(String externalIPAddress) {
+        this.externalIPAddress = externalIPAddress;
+    }
+
+    /**
+     * Delay every answer
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * An offline gateway drops all requests
+     */
+    public void setOffline(boolean offline) {
+        this.offline = offline;
+    }
+
+    /**
+     * Fail the next request with a result code, e.g. 2 (not authorized) or 4 (out of resources)
+     */
+    public void failNext(int resultCode) {
+        faults.add(resultCode);
+    }
+
+    /**
+     * Act like a rebooted gateway: all mappings are gone and the epoch starts over
+     */
+    public void restart() {
+        natTable.clear();
+        epochStartMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @return number of requests received
+     */
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public void resetRequests() {
+        requests.set(0);
+    }
+
+    // #############################
+    // Getters
+    // #############################
+
+    /**
+     * @return where to send requests to, as host:port
+     */
+    public String getAddress() {
+        return socket.getLocalAddress().getHostAddress() + ":" + socket.getLocalPort();
+    }
+
+    public InetSocketAddress getSocketAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    public NatTable getNatTable() {
+        return natTable;
+    }
+
+    public String getExternalIPAddress() {
+        return externalIPAddress;
+    }
+
+    /**
+     * @return seconds since the gateway started
+     */
+    public long getEpoch() {
+        return (System.currentTimeMillis() - epochStartMillis) / 1000;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.simulator;
+
+import org.fourthline.cling.DefaultUpnpServiceConfiguration;
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.UpnpServiceImpl;
+import org.fourthline.cling.model.NetworkAddress;
+import org.fourthline.cling.model.ValidationException;
+import org.fourthline.cling.model.meta.LocalService;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.meta.RemoteDeviceIdentity;
+import org.fourthline.cling.model.types.ServiceType;
+import org.fourthline.cling.protocol.RetrieveRemoteDescriptors;
+import org.fourthline.cling.registry.RegistrationException;
+import org.fourthline.cling.transport.RouterException;
+import org.fourthline.cling.transport.spi.MulticastReceiver;
+import org.fourthline.cling.transport.spi.NetworkAddressFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hosts {@link SimulatedGateway}s on a Cling stack of their own, bound to loopback.
+ * <p>
+ * SSDP doesn't work on loopback. A control point learns about a gateway through
+ * {@link #announce(UpnpService, SimulatedGateway)} instead, which does what Cling does after an
+ * ALIVE message or search response: retrieve the descriptors and register the device.
+ * <p>
+ * A gateway can answer unicast M-SEARCHes, too, on a port of its own. See
+ * {@link #answerSearches(SimulatedGateway)}.
+ */
+public class SimulatedNetwork {
+
+    private final UpnpService upnpService = new UpnpServiceImpl(new LoopbackConfiguration());
+
+    private final List<SearchResponder> responders = new CopyOnWriteArrayList<>();
+
+    public void add(SimulatedGateway gateway) throws RegistrationException {
+        upnpService.getRegistry().addDevice(gateway.getDevice());
+    }
+
+    /**
+     * Take a gateway off the network. Its BYEBYE doesn't reach anyone on loopback, use
+     * {@link #byebye(UpnpService, SimulatedGateway)} to tell a control point.
+     */
+    public void remove(SimulatedGateway gateway) {
+        upnpService.getRegistry().removeDevice(gateway.getDevice());
+    }
+
+    /**
+     * Let a control point discover a gateway. Synchronous, but the control point's registry
+     * listeners are called on its own executor.
+     */
+    public void announce(UpnpService controlPoint, SimulatedGateway gateway)
+            throws RouterException, MalformedURLException, ValidationException {
+        RemoteDevice device = new RemoteDevice(new RemoteDeviceIdentity(
+                gateway.getUdn(),
+                1800,
+                getDescriptorURL(gateway),
+                null,
+                InetAddress.getLoopbackAddress()
+        ));
+        new RetrieveRemoteDescriptors(controlPoint, device).run(); // Synchronous!
+    }
+
+    /**
+     * Let a gateway answer unicast M-SEARCHes on a port of its own, like a gateway in front of
+     * another one whose multicasts don't get through. See {@link #getSearchAddresses()}.
+     */
+    public void answerSearches(SimulatedGateway gateway)
+            throws RouterException, MalformedURLException, SocketException {
+        SearchResponder responder = new SearchResponder(gateway, getDescriptorURL(gateway));
+        responders.add(responder);
+        responder.start();
+    }
+
+    /**
+     * @return where the gateways of {@link #answerSearches(SimulatedGateway)} take M-SEARCHes
+     */
+    public List<InetSocketAddress> getSearchAddresses() {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (SearchResponder responder : responders) {
+            addresses.add((InetSocketAddress) responder.socket.getLocalSocketAddress());
+        }
+        return addresses;
+    }
+
+    /**
+     * Tell a control point a gateway said goodbye
+     */
+    public void byebye(UpnpService controlPoint, SimulatedGateway gateway) {
+        controlPoint.getRegistry().removeDevice(gateway.getUdn());
+    }
+
+    public URL getDescriptorURL(SimulatedGateway gateway)
+            throws RouterException, MalformedURLException {
+        List<NetworkAddress> streamServers =
+                upnpService.getRouter().getActiveStreamServers(InetAddress.getLoopbackAddress());
+        if (streamServers.isEmpty()) {
+            throw new IllegalStateException("Simulated network has no stream server");
+        }
+        NetworkAddress address = streamServers.get(0);
+        return new URL("http", address.getAddress().getHostAddress(), address.getPort(),
+                upnpService.getConfiguration().getNamespace()
+                        .getDescriptorPath(gateway.getDevice()).toString());
+    }
+
+    /**
+     * @return where a service of the gateway takes SOAP actions, for clients without a stack
+     */
+    public URL getControlURL(SimulatedGateway gateway, ServiceType serviceType)
+            throws RouterException, MalformedURLException {
+        LocalService service = gateway.getDevice().findService(serviceType);
+        if (service == null) throw new IllegalArgumentException("No " + serviceType);
+        return new URL(getDescriptorURL(gateway), upnpService.getConfiguration().getNamespace()
+                .getControlPath(service).toString());
+    }
+
+    public UpnpService getUpnpService() {
+        return upnpService;
+    }
+
+    public void shutdown() {
+        for (SearchResponder responder : responders) {
+            responder.socket.close();
+        }
+        upnpService.shutdown();
+    }
+
+    /**
+     * Answers M-SEARCHes for Internet Gateway Devices with the descriptor URL of a gateway
+     */
+    private static class SearchResponder extends Thread {
+
+        private static final String IGD_TYPE = "urn:schemas-upnp-org:device:InternetGatewayDevice:";
+
+        private final SimulatedGateway gateway;
+        private final URL descriptorURL;
+        private final DatagramSocket socket;
+
+        SearchResponder(SimulatedGateway gateway, URL descriptorURL) throws SocketException {
+            super("Simulated SSDP " + gateway.getUdn());
+            setDaemon(true);
+            this.gateway = gateway;
+            this.descriptorURL = descriptorURL;
+            socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[2048];
+            while (!socket.isClosed()) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                    String searchTarget = getSearchTarget(new String(packet.getData(), 0,
+                            packet.getLength(), StandardCharsets.US_ASCII));
+                    if (searchTarget == null || !searchTarget.startsWith(IGD_TYPE)) continue;
+
+                    byte[] response = ("HTTP/1.1 200 OK\r\n" +
+                            "CACHE-CONTROL: max-age=1800\r\n" +
+                            "EXT:\r\n" +
+                            "LOCATION: " + descriptorURL + "\r\n" +
+                            "SERVER: Simulated/1.0 UPnP/1.0 SimulatedGateway/1.0\r\n" +
+                            "ST: " + searchTarget + "\r\n" +
+                            "USN: " + gateway.getUdn() + "::" + searchTarget + "\r\n" +
+                            "\r\n").getBytes(StandardCharsets.US_ASCII);
+                    socket.send(new DatagramPacket(response, response.length,
+                            packet.getSocketAddress()));
+                } catch (IOException e) {
+                    // Closed on shutdown
+                }
+            }
+        }
+
+        /**
+         * @return the ST header of an M-SEARCH, or null if it is none
+         */
+        private static String getSearchTarget(String request) {
+            String[] lines = request.split("\r\n");
+            if (!lines[0].startsWith("M-SEARCH ")) return null;
+            for (String line : lines) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("ST")) {
+                    return line.substring(colon + 1).trim();
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class LoopbackConfiguration extends DefaultUpnpServiceConfiguration {
+
+        @Override
+        protected NetworkAddressFactory createNetworkAddressFactory(int streamListenPort) {
+            return new LoopbackNetworkAddressFactory(streamListenPort);
+        }
+
+        @Override
+        public MulticastReceiver createMulticastReceiver(
+                NetworkAddressFactory networkAddressFactory) {
+            return null;
+        }
+    }
+}
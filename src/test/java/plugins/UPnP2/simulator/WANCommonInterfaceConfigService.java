@@ -0,0 +1,130 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.simulator;
+
+import org.fourthline.cling.binding.annotations.UpnpAction;
+import org.fourthline.cling.binding.annotations.UpnpOutputArgument;
+import org.fourthline.cling.binding.annotations.UpnpService;
+import org.fourthline.cling.binding.annotations.UpnpServiceId;
+import org.fourthline.cling.binding.annotations.UpnpServiceType;
+import org.fourthline.cling.binding.annotations.UpnpStateVariable;
+import org.fourthline.cling.binding.annotations.UpnpStateVariables;
+import org.fourthline.cling.model.action.ActionException;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+
+import java.beans.PropertyChangeSupport;
+
+/**
+ * WANCommonInterfaceConfig:1 of a {@link SimulatedGateway}
+ */
+@UpnpService(
+        serviceId = @UpnpServiceId("WANCommonIFC1"),
+        serviceType = @UpnpServiceType(value = "WANCommonInterfaceConfig", version = 1)
+)
+@UpnpStateVariables({
+        @UpnpStateVariable(name = "PhysicalLinkStatus", datatype = "string",
+                allowedValues = {"Up", "Down", "Initializing", "Unavailable"}),
+        @UpnpStateVariable(name = "WANAccessType", datatype = "string", sendEvents = false),
+        @UpnpStateVariable(name = "Layer1UpstreamMaxBitRate", datatype = "ui4",
+                sendEvents = false),
+        @UpnpStateVariable(name = "Layer1DownstreamMaxBitRate", datatype = "ui4",
+                sendEvents = false),
+        @UpnpStateVariable(name = "TotalBytesSent", datatype = "ui4", sendEvents = false),
+        @UpnpStateVariable(name = "TotalBytesReceived", datatype = "ui4", sendEvents = false)
+})
+public class WANCommonInterfaceConfigService {
+
+    private final SimulatedGateway gateway;
+    private final PropertyChangeSupport propertyChangeSupport;
+
+    public WANCommonInterfaceConfigService(SimulatedGateway gateway) {
+        this.gateway = gateway;
+        propertyChangeSupport = new PropertyChangeSupport(this);
+    }
+
+    public PropertyChangeSupport getPropertyChangeSupport() {
+        return propertyChangeSupport;
+    }
+
+    void physicalLinkStatusChanged(String oldValue, String newValue) {
+        propertyChangeSupport.firePropertyChange("PhysicalLinkStatus", oldValue, newValue);
+    }
+
+    public String getPhysicalLinkStatus() {
+        return gateway.getPhysicalLinkStatus();
+    }
+
+    @UpnpAction(name = "GetCommonLinkProperties", out = {
+            @UpnpOutputArgument(name = "NewWANAccessType", stateVariable = "WANAccessType",
+                    getterName = "getWanAccessType"),
+            @UpnpOutputArgument(name = "NewLayer1UpstreamMaxBitRate",
+                    stateVariable = "Layer1UpstreamMaxBitRate", getterName = "getUpstream"),
+            @UpnpOutputArgument(name = "NewLayer1DownstreamMaxBitRate",
+                    stateVariable = "Layer1DownstreamMaxBitRate", getterName = "getDownstream"),
+            @UpnpOutputArgument(name = "NewPhysicalLinkStatus",
+                    stateVariable = "PhysicalLinkStatus", getterName = "getPhysicalLinkStatus")
+    })
+    public LinkProperties getCommonLinkProperties() throws ActionException {
+        gateway.enter("GetCommonLinkProperties");
+        return new LinkProperties(gateway.getUpstreamMaxBitRate(),
+                gateway.getDownstreamMaxBitRate(), gateway.getPhysicalLinkStatus());
+    }
+
+    @UpnpAction(name = "GetTotalBytesSent", out = @UpnpOutputArgument(
+            name = "NewTotalBytesSent", stateVariable = "TotalBytesSent"))
+    public UnsignedIntegerFourBytes getTotalBytesSent() throws ActionException {
+        gateway.enter("GetTotalBytesSent");
+        return new UnsignedIntegerFourBytes(gateway.getTotalBytesSent());
+    }
+
+    @UpnpAction(name = "GetTotalBytesReceived", out = @UpnpOutputArgument(
+            name = "NewTotalBytesReceived", stateVariable = "TotalBytesReceived"))
+    public UnsignedIntegerFourBytes getTotalBytesReceived() throws ActionException {
+        gateway.enter("GetTotalBytesReceived");
+        return new UnsignedIntegerFourBytes(gateway.getTotalBytesReceived());
+    }
+
+    public static final class LinkProperties {
+
+        private final long upstream;
+        private final long downstream;
+        private final String physicalLinkStatus;
+
+        LinkProperties(long upstream, long downstream, String physicalLinkStatus) {
+            this.upstream = upstream;
+            this.downstream = downstream;
+            this.physicalLinkStatus = physicalLinkStatus;
+        }
+
+        public String getWanAccessType() {
+            return "Ethernet";
+        }
+
+        public UnsignedIntegerFourBytes getUpstream() {
+            return new UnsignedIntegerFourBytes(upstream);
+        }
+
+        public UnsignedIntegerFourBytes getDownstream() {
+            return new UnsignedIntegerFourBytes(downstream);
+        }
+
+        public String getPhysicalLinkStatus() {
+            return physicalLinkStatus;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.simulator;
+
+import org.fourthline.cling.binding.annotations.UpnpService;
+import org.fourthline.cling.binding.annotations.UpnpServiceId;
+import org.fourthline.cling.binding.annotations.UpnpServiceType;
+import org.fourthline.cling.binding.annotations.UpnpStateVariable;
+import org.fourthline.cling.binding.annotations.UpnpStateVariables;
+
+/**
+ * WANIPConnection:1 of a {@link SimulatedGateway}
+ */
+@UpnpService(
+        serviceId = @UpnpServiceId("WANIPConn1"),
+        serviceType = @UpnpServiceType(value = "WANIPConnection", version = 1)
+)
+@UpnpStateVariables({
+        @UpnpStateVariable(name = "ExternalIPAddress", datatype = "string"),
+        @UpnpStateVariable(name = "PortMappingNumberOfEntries", datatype = "ui2"),
+        @UpnpStateVariable(name = "RemoteHost", datatype = "string", sendEvents = false),
+        @UpnpStateVariable(name = "ExternalPort", datatype = "ui2", sendEvents = false),
+        @UpnpStateVariable(name = "InternalPort", datatype = "ui2", sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingProtocol", datatype = "string",
+                allowedValues = {"TCP", "UDP"}, sendEvents = false),
+        @UpnpStateVariable(name = "InternalClient", datatype = "string", sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingDescription", datatype = "string",
+                sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingEnabled", datatype = "boolean",
+                sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingLeaseDuration", datatype = "ui4",
+                sendEvents = false)
+})
+public class WANIPConnectionService extends AbstractConnectionService {
+
+    public WANIPConnectionService(SimulatedGateway gateway) {
+        super(gateway);
+    }
+}
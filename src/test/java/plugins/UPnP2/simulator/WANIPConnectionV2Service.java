@@ -0,0 +1,88 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.simulator;
+
+import org.fourthline.cling.binding.annotations.UpnpAction;
+import org.fourthline.cling.binding.annotations.UpnpInputArgument;
+import org.fourthline.cling.binding.annotations.UpnpOutputArgument;
+import org.fourthline.cling.binding.annotations.UpnpService;
+import org.fourthline.cling.binding.annotations.UpnpServiceId;
+import org.fourthline.cling.binding.annotations.UpnpServiceType;
+import org.fourthline.cling.binding.annotations.UpnpStateVariable;
+import org.fourthline.cling.binding.annotations.UpnpStateVariables;
+import org.fourthline.cling.model.action.ActionException;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+
+/**
+ * WANIPConnection:2 of an IGDv2 {@link SimulatedGateway}. Can pick a free external port itself.
+ */
+@UpnpService(
+        serviceId = @UpnpServiceId("WANIPConn1"),
+        serviceType = @UpnpServiceType(value = "WANIPConnection", version = 2)
+)
+@UpnpStateVariables({
+        @UpnpStateVariable(name = "ExternalIPAddress", datatype = "string"),
+        @UpnpStateVariable(name = "PortMappingNumberOfEntries", datatype = "ui2"),
+        @UpnpStateVariable(name = "RemoteHost", datatype = "string", sendEvents = false),
+        @UpnpStateVariable(name = "ExternalPort", datatype = "ui2", sendEvents = false),
+        @UpnpStateVariable(name = "InternalPort", datatype = "ui2", sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingProtocol", datatype = "string",
+                allowedValues = {"TCP", "UDP"}, sendEvents = false),
+        @UpnpStateVariable(name = "InternalClient", datatype = "string", sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingDescription", datatype = "string",
+                sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingEnabled", datatype = "boolean",
+                sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingLeaseDuration", datatype = "ui4",
+                sendEvents = false)
+})
+public class WANIPConnectionV2Service extends AbstractConnectionService {
+
+    public WANIPConnectionV2Service(SimulatedGateway gateway) {
+        super(gateway);
+    }
+
+    @UpnpAction(name = "AddAnyPortMapping", out = @UpnpOutputArgument(
+            name = "NewReservedPort", stateVariable = "ExternalPort"))
+    public UnsignedIntegerTwoBytes addAnyPortMapping(
+            @UpnpInputArgument(name = "NewRemoteHost", stateVariable = "RemoteHost")
+                    String remoteHost,
+            @UpnpInputArgument(name = "NewExternalPort", stateVariable = "ExternalPort")
+                    UnsignedIntegerTwoBytes externalPort,
+            @UpnpInputArgument(name = "NewProtocol", stateVariable = "PortMappingProtocol")
+                    String protocol,
+            @UpnpInputArgument(name = "NewInternalPort", stateVariable = "InternalPort")
+                    UnsignedIntegerTwoBytes internalPort,
+            @UpnpInputArgument(name = "NewInternalClient", stateVariable = "InternalClient")
+                    String internalClient,
+            @UpnpInputArgument(name = "NewEnabled", stateVariable = "PortMappingEnabled")
+                    Boolean enabled,
+            @UpnpInputArgument(name = "NewPortMappingDescription",
+                    stateVariable = "PortMappingDescription")
+                    String description,
+            @UpnpInputArgument(name = "NewLeaseDuration",
+                    stateVariable = "PortMappingLeaseDuration")
+                    UnsignedIntegerFourBytes leaseDuration) throws ActionException {
+        gateway.enter("AddAnyPortMapping");
+        return new UnsignedIntegerTwoBytes(gateway.addAnyPortMapping(new NatTable.Entry(
+                remoteHost, externalPort.getValue().intValue(), protocol,
+                internalPort.getValue().intValue(), internalClient, enabled == null || enabled,
+                description, leaseDuration != null ? leaseDuration.getValue() : 0)));
+    }
+}
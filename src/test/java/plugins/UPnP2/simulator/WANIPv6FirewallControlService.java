@@ -0,0 +1,138 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.simulator;
+
+import org.fourthline.cling.binding.annotations.UpnpAction;
+import org.fourthline.cling.binding.annotations.UpnpInputArgument;
+import org.fourthline.cling.binding.annotations.UpnpOutputArgument;
+import org.fourthline.cling.binding.annotations.UpnpService;
+import org.fourthline.cling.binding.annotations.UpnpServiceId;
+import org.fourthline.cling.binding.annotations.UpnpServiceType;
+import org.fourthline.cling.binding.annotations.UpnpStateVariable;
+import org.fourthline.cling.binding.annotations.UpnpStateVariables;
+import org.fourthline.cling.model.action.ActionException;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+
+import java.beans.PropertyChangeSupport;
+
+/**
+ * WANIPv6FirewallControl:1 of a {@link SimulatedGateway}
+ */
+@UpnpService(
+        serviceId = @UpnpServiceId("WANIPv6Firewall1"),
+        serviceType = @UpnpServiceType(value = "WANIPv6FirewallControl", version = 1)
+)
+@UpnpStateVariables({
+        @UpnpStateVariable(name = "FirewallEnabled", datatype = "boolean"),
+        @UpnpStateVariable(name = "InboundPinholeAllowed", datatype = "boolean"),
+        @UpnpStateVariable(name = "A_ARG_TYPE_IPv6Address", datatype = "string",
+                sendEvents = false),
+        @UpnpStateVariable(name = "A_ARG_TYPE_Port", datatype = "ui2", sendEvents = false),
+        @UpnpStateVariable(name = "A_ARG_TYPE_Protocol", datatype = "ui2", sendEvents = false),
+        @UpnpStateVariable(name = "A_ARG_TYPE_LeaseTime", datatype = "ui4", sendEvents = false),
+        @UpnpStateVariable(name = "A_ARG_TYPE_UniqueID", datatype = "ui2", sendEvents = false),
+        @UpnpStateVariable(name = "A_ARG_TYPE_OutboundPinholeTimeout", datatype = "ui4",
+                sendEvents = false)
+})
+public class WANIPv6FirewallControlService {
+
+    private final SimulatedGateway gateway;
+    private final PropertyChangeSupport propertyChangeSupport;
+
+    public WANIPv6FirewallControlService(SimulatedGateway gateway) {
+        this.gateway = gateway;
+        propertyChangeSupport = new PropertyChangeSupport(this);
+    }
+
+    public PropertyChangeSupport getPropertyChangeSupport() {
+        return propertyChangeSupport;
+    }
+
+    // #############################
+    // Evented state variables
+    // #############################
+
+    public Boolean getFirewallEnabled() {
+        return true;
+    }
+
+    public Boolean getInboundPinholeAllowed() {
+        return gateway.isInboundPinholeAllowed();
+    }
+
+    // #############################
+    // Actions
+    // #############################
+
+    @UpnpAction(name = "GetOutboundPinholeTimeout", out = @UpnpOutputArgument(
+            name = "OutboundPinholeTimeout", stateVariable = "A_ARG_TYPE_OutboundPinholeTimeout"))
+    public UnsignedIntegerFourBytes getOutboundPinholeTimeout(
+            @UpnpInputArgument(name = "RemoteHost", stateVariable = "A_ARG_TYPE_IPv6Address")
+                    String remoteHost,
+            @UpnpInputArgument(name = "RemotePort", stateVariable = "A_ARG_TYPE_Port")
+                    UnsignedIntegerTwoBytes remotePort,
+            @UpnpInputArgument(name = "InternalClient", stateVariable = "A_ARG_TYPE_IPv6Address")
+                    String internalClient,
+            @UpnpInputArgument(name = "InternalPort", stateVariable = "A_ARG_TYPE_Port")
+                    UnsignedIntegerTwoBytes internalPort,
+            @UpnpInputArgument(name = "Protocol", stateVariable = "A_ARG_TYPE_Protocol")
+                    UnsignedIntegerTwoBytes protocol) throws ActionException {
+        gateway.enter("GetOutboundPinholeTimeout");
+        return new UnsignedIntegerFourBytes(gateway.getOutboundPinholeTimeoutSeconds());
+    }
+
+    @UpnpAction(name = "AddPinhole", out = @UpnpOutputArgument(
+            name = "UniqueID", stateVariable = "A_ARG_TYPE_UniqueID"))
+    public UnsignedIntegerTwoBytes addPinhole(
+            @UpnpInputArgument(name = "RemoteHost", stateVariable = "A_ARG_TYPE_IPv6Address")
+                    String remoteHost,
+            @UpnpInputArgument(name = "RemotePort", stateVariable = "A_ARG_TYPE_Port")
+                    UnsignedIntegerTwoBytes remotePort,
+            @UpnpInputArgument(name = "InternalClient", stateVariable = "A_ARG_TYPE_IPv6Address")
+                    String internalClient,
+            @UpnpInputArgument(name = "InternalPort", stateVariable = "A_ARG_TYPE_Port")
+                    UnsignedIntegerTwoBytes internalPort,
+            @UpnpInputArgument(name = "Protocol", stateVariable = "A_ARG_TYPE_Protocol")
+                    UnsignedIntegerTwoBytes protocol,
+            @UpnpInputArgument(name = "LeaseTime", stateVariable = "A_ARG_TYPE_LeaseTime")
+                    UnsignedIntegerFourBytes leaseTime) throws ActionException {
+        gateway.enter("AddPinhole");
+        return new UnsignedIntegerTwoBytes(gateway.addPinhole(new PinholeTable.Entry(
+                internalClient, internalPort.getValue().intValue(),
+                protocol.getValue().intValue(), leaseTime.getValue())));
+    }
+
+    @UpnpAction(name = "UpdatePinhole")
+    public void updatePinhole(
+            @UpnpInputArgument(name = "UniqueID", stateVariable = "A_ARG_TYPE_UniqueID")
+                    UnsignedIntegerTwoBytes uniqueID,
+            @UpnpInputArgument(name = "NewLeaseTime", stateVariable = "A_ARG_TYPE_LeaseTime")
+                    UnsignedIntegerFourBytes leaseTime) throws ActionException {
+        gateway.enter("UpdatePinhole");
+        gateway.updatePinhole(uniqueID.getValue().intValue(), leaseTime.getValue());
+    }
+
+    @UpnpAction(name = "DeletePinhole")
+    public void deletePinhole(
+            @UpnpInputArgument(name = "UniqueID", stateVariable = "A_ARG_TYPE_UniqueID")
+                    UnsignedIntegerTwoBytes uniqueID) throws ActionException {
+        gateway.enter("DeletePinhole");
+        gateway.deletePinhole(uniqueID.getValue().intValue());
+    }
+}
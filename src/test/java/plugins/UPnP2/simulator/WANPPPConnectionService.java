@@ -0,0 +1,91 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.simulator;
+
+import org.fourthline.cling.binding.annotations.UpnpAction;
+import org.fourthline.cling.binding.annotations.UpnpOutputArgument;
+import org.fourthline.cling.binding.annotations.UpnpService;
+import org.fourthline.cling.binding.annotations.UpnpServiceId;
+import org.fourthline.cling.binding.annotations.UpnpServiceType;
+import org.fourthline.cling.binding.annotations.UpnpStateVariable;
+import org.fourthline.cling.binding.annotations.UpnpStateVariables;
+import org.fourthline.cling.model.action.ActionException;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+
+/**
+ * WANPPPConnection:1 of a {@link SimulatedGateway}. Also tells its link rates.
+ */
+@UpnpService(
+        serviceId = @UpnpServiceId("WANPPPConn1"),
+        serviceType = @UpnpServiceType(value = "WANPPPConnection", version = 1)
+)
+@UpnpStateVariables({
+        @UpnpStateVariable(name = "ExternalIPAddress", datatype = "string"),
+        @UpnpStateVariable(name = "PortMappingNumberOfEntries", datatype = "ui2"),
+        @UpnpStateVariable(name = "RemoteHost", datatype = "string", sendEvents = false),
+        @UpnpStateVariable(name = "ExternalPort", datatype = "ui2", sendEvents = false),
+        @UpnpStateVariable(name = "InternalPort", datatype = "ui2", sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingProtocol", datatype = "string",
+                allowedValues = {"TCP", "UDP"}, sendEvents = false),
+        @UpnpStateVariable(name = "InternalClient", datatype = "string", sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingDescription", datatype = "string",
+                sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingEnabled", datatype = "boolean",
+                sendEvents = false),
+        @UpnpStateVariable(name = "PortMappingLeaseDuration", datatype = "ui4",
+                sendEvents = false),
+        @UpnpStateVariable(name = "UpstreamMaxBitRate", datatype = "ui4", sendEvents = false),
+        @UpnpStateVariable(name = "DownstreamMaxBitRate", datatype = "ui4", sendEvents = false)
+})
+public class WANPPPConnectionService extends AbstractConnectionService {
+
+    public WANPPPConnectionService(SimulatedGateway gateway) {
+        super(gateway);
+    }
+
+    @UpnpAction(name = "GetLinkLayerMaxBitRates", out = {
+            @UpnpOutputArgument(name = "NewUpstreamMaxBitRate",
+                    stateVariable = "UpstreamMaxBitRate", getterName = "getUpstream"),
+            @UpnpOutputArgument(name = "NewDownstreamMaxBitRate",
+                    stateVariable = "DownstreamMaxBitRate", getterName = "getDownstream")
+    })
+    public MaxBitRates getLinkLayerMaxBitRates() throws ActionException {
+        gateway.enter("GetLinkLayerMaxBitRates");
+        return new MaxBitRates(gateway.getUpstreamMaxBitRate(),
+                gateway.getDownstreamMaxBitRate());
+    }
+
+    public static final class MaxBitRates {
+
+        private final long upstream;
+        private final long downstream;
+
+        MaxBitRates(long upstream, long downstream) {
+            this.upstream = upstream;
+            this.downstream = downstream;
+        }
+
+        public UnsignedIntegerFourBytes getUpstream() {
+            return new UnsignedIntegerFourBytes(upstream);
+        }
+
+        public UnsignedIntegerFourBytes getDownstream() {
+            return new UnsignedIntegerFourBytes(downstream);
+        }
+    }
+}
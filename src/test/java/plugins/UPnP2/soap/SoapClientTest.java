@@ -0,0 +1,89 @@
+/*
+ * This file is part of UPnP2, a plugin for Freenet.
+ *
+ * UPnP2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * UPnP2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with UPnP2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package plugins.UPnP2.soap;
+
+import org.fourthline.cling.model.types.UDAServiceType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+
+import plugins.UPnP2.simulator.NatTable;
+import plugins.UPnP2.simulator.SimulatedGateway;
+import plugins.UPnP2.simulator.SimulatedNetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the SOAP client against a simulated gateway over loopback.
+ */
+public class SoapClientTest {
+
+    private static final int TIMEOUT_MILLIS = 2000;
+    private static final String SERVICE_TYPE = "urn:schemas-upnp-org:service:WANIPConnection:1";
+
+    private SimulatedNetwork network;
+    private SimulatedGateway gateway;
+    private URL controlURL;
+    private SoapClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        network = new SimulatedNetwork();
+        gateway = new SimulatedGateway("198.51.100.7");
+        network.add(gateway);
+        controlURL = network.getControlURL(gateway, new UDAServiceType("WANIPConnection", 1));
+        client = new SoapClient(TIMEOUT_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        network.shutdown();
+    }
+
+    @Test
+    public void externalIPAddress() throws Exception {
+        assertEquals("198.51.100.7", client.getExternalIPAddress(controlURL, SERVICE_TYPE));
+    }
+
+    @Test
+    public void addPortMapping() throws Exception {
+        client.addPortMapping(controlURL, SERVICE_TYPE, "", 12345, "UDP", 12345, "192.0.2.10",
+                "Freenet 0.7 darknet", 3600);
+
+        NatTable.Entry entry = gateway.getNatTable().get("UDP", 12345);
+        assertNotNull(entry);
+        assertEquals("192.0.2.10", entry.getInternalClient());
+    }
+
+    @Test
+    public void upnpErrorIsReported() throws Exception {
+        gateway.failNext("AddPortMapping", 718);
+
+        try {
+            client.addPortMapping(controlURL, SERVICE_TYPE, "", 12345, "UDP", 12345,
+                    "192.0.2.10", "Freenet 0.7 darknet", 3600);
+            fail("Gateway accepted the mapping");
+        } catch (SoapException e) {
+            assertEquals(718, e.getErrorCode());
+        }
+    }
+}